@@ -411,9 +411,11 @@ public class Metadata implements Cloneable, Serializable {
 		}
 
 		if(compressed) {
-			compressionCodec = COMPRESSOR_TYPE.getCompressorByMetadataID(dis.readShort());
+			short codecID = dis.readShort();
+			compressionCodec = COMPRESSOR_TYPE.getCompressorByMetadataID(codecID);
 			if(compressionCodec == null)
-				throw new MetadataParseException("Unrecognized splitfile compression codec "+compressionCodec);
+				// Probably inserted by a newer version with a codec we don't have yet.
+				throw new MetadataParseException("Unrecognized splitfile compression codec "+codecID);
 
 			decompressedLength = dis.readLong();
 		}
@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+
+/**
+ * Consults several DownloadCache's in order and returns the first hit. Null caches are skipped,
+ * so e.g. a disabled FCP server doesn't need special handling.
+ */
+public class ChainedDownloadCache implements DownloadCache {
+
+	private final DownloadCache[] caches;
+
+	public ChainedDownloadCache(DownloadCache... caches) {
+		this.caches = caches;
+	}
+
+	@Override
+	public CacheFetchResult lookupInstant(FreenetURI key, boolean noFilter, boolean mustCopy, Bucket preferred) {
+		for(DownloadCache cache : caches) {
+			if(cache == null) continue;
+			CacheFetchResult result = cache.lookupInstant(key, noFilter, mustCopy, preferred);
+			if(result != null) return result;
+		}
+		return null;
+	}
+
+	@Override
+	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context,
+			boolean mustCopy, Bucket preferred) {
+		for(DownloadCache cache : caches) {
+			if(cache == null) continue;
+			CacheFetchResult result = cache.lookup(key, noFilter, context, mustCopy, preferred);
+			if(result != null) return result;
+		}
+		return null;
+	}
+
+}
@@ -11,6 +11,7 @@ import freenet.client.FetchException;
 import freenet.client.InsertContext;
 import freenet.client.InsertException;
 import freenet.client.events.SimpleEventProducer;
+import freenet.client.filter.FilterResultCache;
 import freenet.client.filter.LinkFilterExceptionProvider;
 import freenet.clients.fcp.PersistentRequestRoot;
 import freenet.config.Config;
@@ -72,6 +73,10 @@ public class ClientContext {
 	public transient final RealCompressor rc;
 	public transient final DatastoreChecker checker;
 	public transient DownloadCache downloadCache;
+	/** Cache of completed transient fetches. Also part of downloadCache. Can be null. */
+	public transient LocalDownloadCache localDownloadCache;
+	/** Cache of content filter output, keyed by content hash. Can be null. */
+	public transient FilterResultCache filterResultCache;
 	/** Used for memory intensive jobs such as in-RAM FEC decodes. Some of these jobs may do disk 
 	 * I/O and we don't guarantee to serialise them. The new splitfile code does FEC decodes 
 	 * entirely in memory, which saves a lot of seeks and improves robustness. */
@@ -91,6 +96,8 @@ public class ClientContext {
     public PersistentJobRunner dummyJobRunner;
 
 	private transient final Config config;
+	/** The most progress events a second for each request, or 0 for no limit. */
+	private transient volatile int maxProgressEventsPerSecond;
 
 	public ClientContext(long bootID, ClientLayerPersister jobRunner, Executor mainExecutor,
 			ArchiveManager archiveManager, PersistentTempBucketFactory ptbf, TempBucketFactory tbf, PersistentFileTracker tracker,
@@ -143,6 +150,16 @@ public class ClientContext {
 		this.alerts = alerts;
 	}
 	
+	/** @return The most times a second a request tells its clients about its progress, or 0 
+	 * for no limit. See ProgressCoalescer. */
+	public int getMaxProgressEventsPerSecond() {
+		return maxProgressEventsPerSecond;
+	}
+
+	public void setMaxProgressEventsPerSecond(int max) {
+		maxProgressEventsPerSecond = max;
+	}
+
 	public synchronized void setPersistentMasterSecret(MasterSecret secret) {
 	    this.cryptoSecretPersistent = secret;
 	}
@@ -293,6 +310,14 @@ public class ClientContext {
 		this.downloadCache = cache;
 	}
 
+	public void setLocalDownloadCache(LocalDownloadCache cache) {
+		this.localDownloadCache = cache;
+	}
+
+	public void setFilterResultCache(FilterResultCache cache) {
+		this.filterResultCache = cache;
+	}
+
     public FetchContext getDefaultPersistentFetchContext() {
         return new FetchContext(defaultPersistentFetchContext, FetchContext.IDENTICAL_MASK);
     }
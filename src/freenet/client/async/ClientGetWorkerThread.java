@@ -16,6 +16,7 @@ import freenet.client.ClientMetadata;
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.filter.ContentFilter;
+import freenet.client.filter.FilterResultCache;
 import freenet.client.filter.FoundURICallback;
 import freenet.client.filter.LinkFilterExceptionProvider;
 import freenet.client.filter.TagReplacerCallback;
@@ -46,6 +47,8 @@ public class ClientGetWorkerThread extends Thread {
 
 	/** Link filter exception provider. */
 	private final LinkFilterExceptionProvider linkFilterExceptionProvider;
+	/** Cache of filter output. Can be null. */
+	private final FilterResultCache filterCache;
 
 	final private String mimeType;
 	private OutputStream output;
@@ -95,6 +98,19 @@ public class ClientGetWorkerThread extends Thread {
 	public ClientGetWorkerThread(InputStream input, OutputStream output, FreenetURI uri,
 			String mimeType, String schemeHostAndPort, HashResult[] hashes, boolean filterData, String charset,
 			FoundURICallback prefetchHook, TagReplacerCallback tagReplacer, LinkFilterExceptionProvider linkFilterExceptionProvider) throws URISyntaxException {
+		this(input, output, uri, mimeType, schemeHostAndPort, hashes, filterData, charset,
+				prefetchHook, tagReplacer, linkFilterExceptionProvider, null);
+	}
+
+	/**
+	 * As above.
+	 * @param filterCache Cache of filter output, used if we are filtering without a prefetchHook
+	 * or tagReplacer. Optional.
+	 */
+	public ClientGetWorkerThread(InputStream input, OutputStream output, FreenetURI uri,
+			String mimeType, String schemeHostAndPort, HashResult[] hashes, boolean filterData, String charset,
+			FoundURICallback prefetchHook, TagReplacerCallback tagReplacer, LinkFilterExceptionProvider linkFilterExceptionProvider,
+			FilterResultCache filterCache) throws URISyntaxException {
 		super("ClientGetWorkerThread-"+counter());
 		this.input = input;
 		if(uri != null) this.uri = uri.toURI("/");
@@ -109,6 +125,7 @@ public class ClientGetWorkerThread extends Thread {
 		this.prefetchHook = prefetchHook;
 		this.tagReplacer = tagReplacer;
 		this.linkFilterExceptionProvider = linkFilterExceptionProvider;
+		this.filterCache = filterCache;
 		if(logMINOR) Logger.minor(this, "Created worker thread for "+uri+" mime type "+mimeType+" filter data = "+filterData+" charset "+charset);
 	}
 
@@ -128,8 +145,13 @@ public class ClientGetWorkerThread extends Thread {
 				if(logMINOR) Logger.minor(this, "Running content filter... Prefetch hook: "+prefetchHook+" tagReplacer: "+tagReplacer);
 				if(mimeType == null || uri == null || input == null || output == null) throw new IOException("Insufficient arguements to worker thread");
 				// Send XHTML as HTML because we can't use web-pushing on XHTML.
-				FilterStatus filterStatus = ContentFilter.filter(input, output, mimeType, uri,
-						schemeHostAndPort, prefetchHook, tagReplacer, charset, linkFilterExceptionProvider);
+				FilterStatus filterStatus;
+				if(filterCache != null && prefetchHook == null && tagReplacer == null)
+					filterStatus = filterCache.filter(input, output, mimeType, uri,
+							schemeHostAndPort, charset, linkFilterExceptionProvider);
+				else
+					filterStatus = ContentFilter.filter(input, output, mimeType, uri,
+							schemeHostAndPort, prefetchHook, tagReplacer, charset, linkFilterExceptionProvider);
 
 				String detectedMIMEType = filterStatus.mimeType.concat(filterStatus.charset == null ? "" : "; charset="+filterStatus.charset);
 				synchronized(this) {
@@ -11,8 +11,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.MalformedURLException;
@@ -46,10 +44,11 @@ import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
-import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.compress.StreamingDecompressor;
 import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.HandoffPipe;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.io.NullOutputStream;
 import freenet.support.io.ResumeFailedException;
@@ -109,6 +108,9 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 	 * be compatible with this extension. */
 	final String forceCompatibleExtension;
 	private transient boolean resumedFetcher;
+	/** If true, don't look up the local download cache when starting, because the caller already
+	 * has. */
+	private transient boolean skipLocalCacheLookup;
 
 	// Shorter constructors for convenience and backwards compatibility.
 
@@ -202,6 +204,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			// which can call onSuccess and thereby almost anything.
 			HashResult[] oldHashes = null;
 			String overrideMIME = ctx.overrideMIME;
+			boolean newState = false;
 			synchronized(this) {
 				if(restart)
 					clearCountersOnRestart();
@@ -224,11 +227,14 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 				    currentState = SingleFileFetcher.create(this, this,
 				            uri, ctx, actx, ctx.maxNonSplitfileRetries, 0, false, -1, true,
 				            true, context, realTimeFlag, initialMetadata != null);
+				    newState = true;
 				}
                 if(overrideMIME != null)
                     expectedMIME = overrideMIME;
 			}
 			if(cancelled) cancel();
+			if(newState && !cancelled && checkLocalCache(context))
+				return true;
 			// schedule() may deactivate stuff, so store it now.
 			if(currentState != null && !finished) {
 				if(initialMetadata != null && currentState instanceof SingleFileFetcher && !resumedFetcher) {
@@ -243,6 +249,36 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		return true;
 	}
 
+	/** Tell the request not to look up the local download cache when it starts, because the
+	 * caller has already checked it. */
+	public void setSkipLocalCacheLookup() {
+		skipLocalCacheLookup = true;
+	}
+
+	/**
+	 * Try to complete a transient fetch from the local download cache. We ask for unfiltered data
+	 * and run it through the normal filtering and hashing, so only the network fetch and
+	 * decompression are skipped.
+	 * @return True if the request has been completed (successfully or not) from the cache.
+	 */
+	private boolean checkLocalCache(ClientContext context) {
+		if(skipLocalCacheLookup || persistent()) return false;
+		if(binaryBlobWriter != null || initialMetadata != null) return false;
+		LocalDownloadCache cache = context.localDownloadCache;
+		// USKs need to check for later editions, see FProxyFetchInProgress.
+		if(cache == null || uri.isUSK() || !LocalDownloadCache.isCacheable(uri)) return false;
+		CacheFetchResult result = cache.lookupInstant(uri, true, true, null);
+		if(result == null) return false;
+		Bucket data = result.asBucket();
+		if(data.size() > ctx.maxOutputLength) {
+			data.free();
+			return false;
+		}
+		if(logMINOR) Logger.minor(this, "Found "+uri+" in local download cache for "+this);
+		onSuccess(new SingleFileStreamGenerator(data, false), new ClientMetadata(result.getMimeType()), null, null, context);
+		return true;
+	}
+
 	@Override
 	protected void clearCountersOnRestart() {
 		this.archiveRestarts = 0;
@@ -299,11 +335,11 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		HandoffPipe pipe = new HandoffPipe();
+		OutputStream dataOutput = pipe.getOutputStream();
+		InputStream dataInput = pipe.getInputStream();
 		OutputStream output = null;
 
-		DecompressorThreadManager decompressorManager = null;
 		ClientGetWorkerThread worker = null;
 		Bucket finalResult = null;
 		FetchResult result = null;
@@ -326,19 +362,17 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
 			else finalResult = returnBucket;
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
 
-			// Decompress
+			// Decompress. The worker thread's reads drive the decompressors.
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-				dataInput = decompressorManager.execute();
+				dataInput = StreamingDecompressor.decompress(dataInput, decompressors, maxLen);
 			}
 
 			output = finalResult.getOutputStream();
 			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
-			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, ctx.getSchemeHostAndPort(), hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
+			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, ctx.getSchemeHostAndPort(), hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider, context.filterResultCache);
 			worker.start();
 			try {
 				streamGenerator.writeTo(dataOutput, context);
@@ -354,11 +388,6 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
 			worker.waitFinished();
 
-			if(decompressorManager != null) {
-				if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
-				decompressorManager.waitFinished();
-			}
-
 			if(worker.getClientMetadata() != null) {
 				clientMetadata = worker.getClientMetadata();
 				result = new FetchResult(clientMetadata, finalResult);
@@ -408,9 +437,28 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			return;
 		}
 		context.getJobRunner(persistent()).setCheckpointASAP();
+		maybeAddToLocalCache(result, context);
 		clientCallback.onSuccess(result, ClientGetter.this);
 	}
 
+	/** Keep a copy of a completed transient fetch in the local download cache. */
+	private void maybeAddToLocalCache(FetchResult result, ClientContext context) {
+		LocalDownloadCache cache = context.localDownloadCache;
+		if(cache == null || persistent() || binaryBlobWriter != null) return;
+		if(!canAddToLocalCache(ctx)) return;
+		cache.store(uri, result.getMimeType(), result.asBucket(), ctx.filterData);
+	}
+
+	/** The local download cache is keyed by the URI alone, so only cache what a fetch with the
+	 * default settings would have returned: not a different MIME type, the archive rather than
+	 * its contents, or data filtered with non-default settings. */
+	static boolean canAddToLocalCache(FetchContext ctx) {
+		if(ctx.overrideMIME != null || ctx.returnZIPManifests) return false;
+		if(ctx.filterData && (ctx.charset != null || ctx.prefetchHook != null || ctx.tagReplacer != null))
+			return false;
+		return true;
+	}
+
     @Override
     public void onSuccess(File tempFile, long length, ClientMetadata metadata,
             ClientGetState state, ClientContext context) {
@@ -439,7 +487,6 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
             InputStream is = new BufferedInputStream(new FileInputStream(raf.getFD()));
             // Check hashes...
 
-            DecompressorThreadManager decompressorManager = null;
             ClientGetWorkerThread worker = null;
 
             worker = new ClientGetWorkerThread(is, new NullOutputStream(), uri, null, ctx.getSchemeHostAndPort(), hashes, false, null, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
@@ -10,6 +10,7 @@ import java.io.Serializable;
 import java.util.Date;
 import java.util.WeakHashMap;
 
+import freenet.client.events.ProgressCoalescer;
 import freenet.crypt.ChecksumChecker;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
@@ -289,8 +290,30 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 	
-	/** Notify clients by calling innerNotifyClients off-thread. */
-	public final void notifyClients(ClientContext context) {
+	/** Notify clients by calling innerNotifyClients off-thread. If we have told them recently,
+	 * wait, so they get at most ClientContext.getMaxProgressEventsPerSecond() a second, with the
+	 * latest progress. */
+	public final void notifyClients(final ClientContext context) {
+	    long delay = getProgressCoalescer().onProgress(System.currentTimeMillis(), 
+	            context.getMaxProgressEventsPerSecond());
+	    if(delay < 0) return; // Will be sent with the notification already scheduled.
+	    if(delay == 0) {
+	        queueNotifyClients(context);
+	        return;
+	    }
+	    context.ticker.queueTimedJob(new Runnable() {
+
+	        @Override
+	        public void run() {
+	            // Before queueing the job, because it may be dropped.
+	            getProgressCoalescer().scheduledSend(System.currentTimeMillis());
+	            queueNotifyClients(context);
+	        }
+
+	    }, "Notify clients of progress for "+this, delay, false, false);
+	}
+
+	private void queueNotifyClients(ClientContext context) {
 	    context.getJobRunner(persistent()).queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -301,6 +324,35 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	        
 	    });
 	}
+
+	private synchronized ProgressCoalescer getProgressCoalescer() {
+	    if(progressCoalescer == null)
+	        progressCoalescer = new ProgressCoalescer();
+	    return progressCoalescer;
+	}
+
+	/** @return The number of times the progress changed but the clients were told about it 
+	 * later, together with later changes. */
+	public long getSuppressedProgressEvents() {
+	    return getProgressCoalescer().getSuppressed();
+	}
+
+	/** Called by the DatastoreChecker when it has looked for some of our keys in the store,
+	 * before they are fetched from the network. */
+	public synchronized void onStoreChecked(int checked, int found) {
+	    storeKeysChecked += checked;
+	    storeKeysFound += found;
+	}
+
+	/** @return The number of keys looked for in the store before fetching them. */
+	public synchronized long getStoreKeysChecked() {
+	    return storeKeysChecked;
+	}
+
+	/** @return The number of keys found in the store before fetching them. */
+	public synchronized long getStoreKeysFound() {
+	    return storeKeysFound;
+	}
 	
 	/** Notify clients, usually via a SplitfileProgressEvent, of the current progress. Called 
 	 * off-thread. Please do not change SimpleEventProducer to always produce events off-thread, it
@@ -396,6 +448,12 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
     }
     
     private transient boolean resumed = false;
+    /** Limits how often notifyClients() tells the clients about progress. Not persistent. */
+    private transient ProgressCoalescer progressCoalescer;
+    /** Keys looked for in the store by the DatastoreChecker, and how many were found. Not
+     * persistent. */
+    private transient long storeKeysChecked;
+    private transient long storeKeysFound;
     
     /** Called for a persistent request after startup. Should call notifyClients() at the end,
      * after the callback has been registered etc. 
@@ -1,16 +1,24 @@
 package freenet.client.async;
 
+import freenet.client.events.FinishedCompressionEvent.CodecAttempt;
 import freenet.crypt.HashResult;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 class CompressionOutput {
 	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes) {
+		this(bestCompressedData, bestCodec2, hashes, null);
+	}
+	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes,
+			CodecAttempt[] attempts) {
 		this.data = bestCompressedData;
 		this.bestCodec = bestCodec2;
 		this.hashes = hashes;
+		this.attempts = attempts;
 	}
 	final RandomAccessBucket data;
 	final COMPRESSOR_TYPE bestCodec;
 	final HashResult[] hashes;
-}
\ No newline at end of file
+	/** Per-codec timings and sizes, for FinishedCompressionEvent. May be null. */
+	final CodecAttempt[] attempts;
+}
@@ -4,13 +4,14 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import freenet.support.math.MersenneTwister;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
-import freenet.keys.NodeSSK;
 import freenet.node.LowLevelGetException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
@@ -39,6 +40,8 @@ public class DatastoreChecker implements PrioRunnable {
 	// In normal operation KILL_BLOCKS should be 0 !!!!
 	static final int KILL_BLOCKS = 0;
 	static final int RESET_COUNTER = 100;
+	/** Maximum number of keys to check in one batch, unless a single request has more. */
+	static final int MAX_BATCH_KEYS = 8192;
 	
 	private static volatile boolean logMINOR;
 
@@ -136,7 +139,7 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 	}
 
-	/** Process a single job, waiting if necessary.
+	/** Process a batch of jobs, waiting if necessary.
 	 * @return True if lazy=true and there are no jobs to run.
 	 */
 	private boolean realRun() {
@@ -145,26 +148,27 @@ public class DatastoreChecker implements PrioRunnable {
 			random = new MersenneTwister();
 		else
 			random = null;
-		Key[] keys = null;
-		SendableGet getter = null;
-		ClientRequestScheduler sched = null;
-		BlockSet blocks = null;
+		ArrayList<QueueItem> items = new ArrayList<QueueItem>();
 		boolean waited = false;
 		synchronized(this) {
 			while(true) {
+				// Take as many requests of the highest waiting priority as fit in one batch.
+				int totalKeys = 0;
 				for(short prio = 0;prio<queue.length;prio++) {
 				    QueueItem trans;
-					if((trans = queue[prio].pollFirst()) != null) {
-						keys = trans.keys;
-						getter = trans.getter;
-						// sched assigned out of loop
-						blocks = trans.blockSet;
+					while((trans = queue[prio].peekFirst()) != null) {
+						if(!items.isEmpty() && totalKeys + trans.keys.length > MAX_BATCH_KEYS)
+							break;
+						queue[prio].pollFirst();
+						items.add(trans);
+						totalKeys += trans.keys.length;
 						if(logMINOR)
-							Logger.minor(this, "Checking transient request "+getter+" prio "+prio+" of "+queue[prio].size());
-						break;
+							Logger.minor(this, "Checking transient request "+trans.getter+" prio "+prio+" of "+queue[prio].size());
 					}
+					if(!items.isEmpty())
+						break;
 				}
-				if(keys != null)
+				if(!items.isEmpty())
 					break;
 				if(logMINOR) Logger.minor(this, "Waiting for more transient requests");
 				if(lazy) {
@@ -180,34 +184,89 @@ public class DatastoreChecker implements PrioRunnable {
 				}
 			}
 		}
-		sched = getter.getScheduler(context);
-		boolean anyValid = false;
-		for(Key key : keys) {
-			if(random != null) {
-				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
-					anyValid = true;
-					continue;
+		checkBatch(items, random);
+		return false;
+	}
+
+	/** A key to look up in the store, and which request in the batch it belongs to. */
+	private static class KeyCheck implements Comparable<KeyCheck> {
+		final Key key;
+		final long slot;
+		final int item;
+		KeyCheck(Key key, long slot, int item) {
+			this.key = key;
+			this.slot = slot;
+			this.item = item;
+		}
+		@Override
+		public int compareTo(KeyCheck o) {
+			if(slot != o.slot) return Long.compare(slot, o.slot);
+			return key.compareTo(o.key);
+		}
+	}
+
+	/** Check the keys for a batch of requests. Store lookups are sorted by the slot the key
+	 * maps to in the main datastore, so a large splitfile is checked with mostly sequential
+	 * reads, and a key shared by several requests is only looked up once. Then call
+	 * finishRegister() for each request. */
+	private void checkBatch(List<QueueItem> items, Random random) {
+		int count = items.size();
+		ClientRequestScheduler[] schedulers = new ClientRequestScheduler[count];
+		int[] found = new int[count];
+		boolean[] anyValid = new boolean[count];
+		ArrayList<KeyCheck> storeChecks = new ArrayList<KeyCheck>();
+		for(int i=0;i<count;i++) {
+			QueueItem item = items.get(i);
+			schedulers[i] = item.getter.getScheduler(context);
+			for(Key key : item.keys) {
+				if(random != null) {
+					if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+						anyValid[i] = true;
+						continue;
+					}
+				}
+				if(item.blockSet != null) {
+					KeyBlock block = item.blockSet.get(key);
+					if(block != null) {
+						found[i]++;
+						schedulers[i].tripPendingKey(block);
+					} else {
+						anyValid[i] = true;
+					}
+				} else {
+					storeChecks.add(new KeyCheck(key, node.getStoreSlotHint(key), i));
 				}
 			}
-			KeyBlock block;
-			if(blocks != null)
-				block = blocks.get(key);
-			else
-				block = node.fetch(key, true, true, false, false, null);
-			if(block != null) {
-				if(logMINOR) Logger.minor(this, "Found key");
-				if(key instanceof NodeSSK)
-					sched.tripPendingKey(block);
-				else // CHK
-					sched.tripPendingKey(block);
-			} else {
-				anyValid = true;
+		}
+		Collections.sort(storeChecks);
+		ArrayList<ClientRequestScheduler> tripped = new ArrayList<ClientRequestScheduler>(2);
+		for(int j=0;j<storeChecks.size();) {
+			Key key = storeChecks.get(j).key;
+			KeyBlock block = node.fetch(key, true, true, false, false, null);
+			if(block != null && logMINOR) Logger.minor(this, "Found key");
+			tripped.clear();
+			for(;j<storeChecks.size() && storeChecks.get(j).key.equals(key);j++) {
+				int i = storeChecks.get(j).item;
+				if(block != null) {
+					found[i]++;
+					if(!tripped.contains(schedulers[i])) {
+						tripped.add(schedulers[i]);
+						schedulers[i].tripPendingKey(block);
+					}
+				} else {
+					anyValid[i] = true;
+				}
 			}
-//			synchronized(this) {
-//				keysToCheck[priority].remove(key);
-//			}
 		}
-		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys");
+		for(int i=0;i<count;i++) {
+			QueueItem item = items.get(i);
+			if(logMINOR) Logger.minor(this, "Checked "+item.keys.length+" keys for "+item.getter+": found "+found[i]+", missing "+(item.keys.length-found[i]));
+			item.getter.onStoreChecked(item.keys.length, found[i]);
+			finishRegister(item.getter, schedulers[i], anyValid[i]);
+		}
+	}
+
+	private void finishRegister(SendableGet getter, ClientRequestScheduler sched, boolean anyValid) {
 		if(getter.persistent()) {
 			final SendableGet get = getter;
 			final ClientRequestScheduler scheduler = sched;
@@ -242,7 +301,6 @@ public class DatastoreChecker implements PrioRunnable {
 		} else {
 			sched.finishRegister(new SendableGet[] { getter }, false, anyValid);
 		}
-		return false;
 	}
 
 	synchronized void wakeUp() {
@@ -10,4 +10,23 @@ public interface HealingQueue {
 	/** Queue a Bucket of data to insert as a CHK. */
 	void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context);
 
+	/** Queue a batch of blocks, typically all the blocks healed from one segment. Blocks that
+	 * are already being healed, or were healed recently, are dropped. */
+	void queue(Bucket[] data, byte[][] cryptoKeys, byte[] cryptoAlgorithms, ClientContext context);
+
+	/** @return The number of healing inserts currently running. */
+	int getQueueSize();
+
+	/** @return The number of blocks dropped because the same key was already queued. */
+	long getDedupHits();
+
+	/** @return The number of blocks dropped because too many healing inserts were running. */
+	long getDroppedBlocks();
+
+	/** @return The number of blocks successfully healed. */
+	long getHealedBlocks();
+
+	/** @return The average rate at which healing blocks have been inserted. */
+	double getHealingBytesPerSecond();
+
 }
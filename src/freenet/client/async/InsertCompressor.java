@@ -1,11 +1,18 @@
 package freenet.client.async;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
+import freenet.client.events.FinishedCompressionEvent.CodecAttempt;
 import freenet.config.Config;
 import freenet.crypt.HashResult;
 import freenet.crypt.MultiHashInputStream;
@@ -14,12 +21,16 @@ import freenet.node.PrioRunnable;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.MemoryLimitedChunk;
+import freenet.support.MemoryLimitedJob;
+import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressJob;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.CompressionRatioException;
+import freenet.support.compress.FramedCompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.compress.InvalidCompressionCodecException;
 import freenet.support.io.Closer;
@@ -107,109 +118,114 @@ public class InsertCompressor implements CompressJob {
 			boolean first = true;
 			long amountOfDataToCheckCompressionRatio = config.get("node").getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
-
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
+			List<CodecAttempt> attempts = new ArrayList<CodecAttempt>(comps.length);
+			if(comps.length > 1 && config.get("node").getBoolean("parallelCompression")) {
+				for(COMPRESSOR_TYPE comp : comps)
+					startCompression(comp, context);
+				CompressionRace race = new CompressionRace(comps, origData, minSize, bucketFactory,
+						generateHashes, amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+				race.run(context.memoryLimitedJobRunner, inserter.parent.getPriorityClass());
+				if(race.bestCodec != null) {
+					bestCodec = race.bestCodec;
+					bestCompressedData = race.bestData;
+					bestCompressedDataSize = bestCompressedData.size();
+				}
+				hashes = race.hashes;
+				attempts.addAll(Arrays.asList(race.attempts));
+			} else {
+				for (final COMPRESSOR_TYPE comp : comps) {
+					boolean shouldFreeOnFinally = true;
+					RandomAccessBucket result = null;
 					try {
-						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
+						if(logMINOR)
+							Logger.minor(this, "Attempt to compress using " + comp);
+						startCompression(comp, context);
+
+						InputStream is = null;
+						OutputStream os = null;
+						MultiHashInputStream hasher = null;
 						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize,
-									amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
-						} catch (CompressionOutputSizeException | CompressionRatioException e) {
+							is = origData.getInputStream();
+							result = bucketFactory.makeBucket(-1);
+							os = result.getOutputStream();
+							if(first && generateHashes != 0) {
+								if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+								is = hasher = new MultiHashInputStream(is, generateHashes);
+							}
+							long startTime = System.currentTimeMillis();
+							try {
+								comp.compress(is, os, origSize, bestCompressedDataSize,
+										amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+							} catch (CompressionOutputSizeException | CompressionRatioException e) {
+								attempts.add(new CodecAttempt(comp.metadataID, System.currentTimeMillis() - startTime, -1, true));
+								if(hasher != null) {
+									is.skip(Long.MAX_VALUE);
+									hashes = hasher.getResults();
+									first = false;
+								}
+								continue; // try next compressor type
+							} catch (RuntimeException e) {
+								// ArithmeticException has been seen in bzip2 codec.
+								Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+								attempts.add(new CodecAttempt(comp.metadataID, System.currentTimeMillis() - startTime, -1, false));
+								// Try the next one
+								// RuntimeException is iffy, so lets not try the hasher.
+								continue;
+							}
 							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
 								hashes = hasher.getResults();
 								first = false;
 							}
-							continue; // try next compressor type
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
+							attempts.add(new CodecAttempt(comp.metadataID, System.currentTimeMillis() - startTime, result.size(), false));
+						} finally {
+							Closer.close(is);
+							Closer.close(os);
+						}
+						long resultSize = result.size();
+						long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
+						// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+						if(resultSize <= minSize) {
+							if(logMINOR)
+								Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
+
+							bestCodec = comp;
+							if(bestCompressedData != null && bestCompressedData != origData)
+								// Don't need to removeFrom() : we haven't stored it.
+								bestCompressedData.free();
+							bestCompressedData = result;
+							bestCompressedDataSize = resultSize;
+							bestNumberOfBlocks = resultNumberOfBlocks;
+							shouldFreeOnFinally = false;
+							break;
 						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
+						if(resultNumberOfBlocks < bestNumberOfBlocks) {
+							if(logMINOR)
+								Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
+							if(bestCompressedData != null && bestCompressedData != origData)
+								bestCompressedData.free();
+							bestCompressedData = result;
+							bestCompressedDataSize = resultSize;
+							bestNumberOfBlocks = resultNumberOfBlocks;
+							bestCodec = comp;
+							shouldFreeOnFinally = false;
 						}
+					} catch (PersistenceDisabledException e) {
+					    if(!context.jobRunner.shuttingDown())
+					        Logger.error(this, "Database disabled compressing data", new Exception("error"));
+						shouldFreeOnFinally = true;
+						if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
+							bestCompressedData.free();
 					} finally {
-						Closer.close(is);
-						Closer.close(os);
+						if(shouldFreeOnFinally && (result != null) && result != origData)
+							result.free();
 					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
 
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultNumberOfBlocks < bestNumberOfBlocks) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch (PersistenceDisabledException e) {
-				    if(!context.jobRunner.shuttingDown())
-				        Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
 				}
 
 			}
 
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
+			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes,
+					attempts.toArray(new CodecAttempt[attempts.size()]));
 
 			if(persistent) {
 
@@ -255,6 +271,265 @@ public class InsertCompressor implements CompressJob {
 		}
 	}
 
+	/** Tell the inserter which codec we are trying. Only produce if we are compressing *the
+	 * original data*. */
+	private void startCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	/** Rough upper bound on the memory a codec needs while compressing, used to schedule it
+	 * on the MemoryLimitedJobRunner. */
+	static long compressionMemory(COMPRESSOR_TYPE comp, long size) {
+		switch(comp) {
+		case GZIP:
+			return 256*1024;
+		case BZIP2:
+			// 900K blocks, plus sorting arrays.
+			return 8*1024*1024;
+		case LZMA_FRAMED:
+			return FramedCompressor.maxMemoryUsage();
+		default:
+			// LZMA: Roughly 10 bytes per byte of dictionary, plus fixed tables.
+			long dictionary = 1;
+			while(dictionary < size && dictionary < (1<<20))
+				dictionary <<= 1;
+			return dictionary * 10 + 4*1024*1024;
+		}
+	}
+
+	/** Thrown by RaceOutputStream when a codec can no longer produce the best result. */
+	private static class LostRaceException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Runs all the codecs at once, each as a MemoryLimitedJob reading its own stream from the
+	 * original data. A codec's output is limited to what it could write and still beat the best
+	 * finished result, so codecs that can no longer win stop as soon as they write too much.
+	 * The hashes are computed on the calling thread while the codecs run. The result is the
+	 * same as the sequential loop would choose, except that when more than one codec fits in a
+	 * single block, whichever finishes first wins.
+	 */
+	static class CompressionRace {
+
+		private final COMPRESSOR_TYPE[] comps;
+		private final RandomAccessBucket origData;
+		private final long origSize;
+		private final int minSize;
+		private final BucketFactory bucketFactory;
+		private final long generateHashes;
+		private final long amountOfDataToCheckCompressionRatio;
+		private final int minimumCompressionPercentage;
+		private final RandomAccessBucket[] results;
+		final CodecAttempt[] attempts;
+		/** The most a codec may write and still beat the best finished result. */
+		private volatile long limit;
+		private volatile boolean cancelled;
+		private final CountDownLatch finished;
+		COMPRESSOR_TYPE bestCodec;
+		RandomAccessBucket bestData;
+		HashResult[] hashes;
+
+		CompressionRace(COMPRESSOR_TYPE[] comps, RandomAccessBucket origData, int minSize, BucketFactory bf,
+				long generateHashes, long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage) {
+			this.comps = comps;
+			this.origData = origData;
+			this.origSize = origData.size();
+			this.minSize = minSize;
+			this.bucketFactory = bf;
+			this.generateHashes = generateHashes;
+			this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+			this.minimumCompressionPercentage = minimumCompressionPercentage;
+			results = new RandomAccessBucket[comps.length];
+			attempts = new CodecAttempt[comps.length];
+			limit = origSize;
+			finished = new CountDownLatch(comps.length);
+		}
+
+		/** Run the codecs at the given priority and wait for them all to finish. */
+		void run(MemoryLimitedJobRunner runner, final int prio) throws IOException {
+			for(int i=0;i<comps.length;i++) {
+				final int index = i;
+				final COMPRESSOR_TYPE comp = comps[i];
+				long memory = Math.min(runner.getCapacity(), compressionMemory(comp, origSize));
+				runner.queueJob(new MemoryLimitedJob(memory) {
+
+					@Override
+					public int getPriority() {
+						return prio;
+					}
+
+					@Override
+					public boolean start(MemoryLimitedChunk chunk) {
+						try {
+							runCodec(index, comp);
+						} finally {
+							finished.countDown();
+						}
+						return true;
+					}
+
+				});
+			}
+			try {
+				if(generateHashes != 0) {
+					if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+					try (MultiHashInputStream hasher = new MultiHashInputStream(origData.getInputStream(), generateHashes)) {
+						hasher.skip(Long.MAX_VALUE);
+						hashes = hasher.getResults();
+					}
+				}
+				while(!finished.await(1, TimeUnit.SECONDS)) {
+					if(runner.isShutdown())
+						throw new IOException("Shutting down");
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while compressing");
+			} catch (IOException e) {
+				cancel();
+				throw e;
+			}
+			chooseBest();
+		}
+
+		private void runCodec(int index, COMPRESSOR_TYPE comp) {
+			if(cancelled) return;
+			if(logMINOR) Logger.minor(this, "Racing codec "+comp);
+			RandomAccessBucket result = null;
+			long startTime = System.currentTimeMillis();
+			try (InputStream is = origData.getInputStream()) {
+				result = bucketFactory.makeBucket(-1);
+				try (OutputStream os = new RaceOutputStream(result.getOutputStream())) {
+					comp.compress(is, os, origSize, origSize,
+							amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+				}
+				long size = result.size();
+				attempts[index] = new CodecAttempt(comp.metadataID, System.currentTimeMillis() - startTime, size, false);
+				if(onFinished(index, result))
+					result = null;
+			} catch (CompressionOutputSizeException | CompressionRatioException | LostRaceException e) {
+				attempts[index] = new CodecAttempt(comp.metadataID, System.currentTimeMillis() - startTime, -1, true);
+			} catch (IOException e) {
+				Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+				attempts[index] = new CodecAttempt(comp.metadataID, System.currentTimeMillis() - startTime, -1, false);
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+				attempts[index] = new CodecAttempt(comp.metadataID, System.currentTimeMillis() - startTime, -1, false);
+			} finally {
+				if(result != null)
+					result.free();
+			}
+		}
+
+		/** Record a finished codec and tighten the limit for the others.
+		 * @return True if we kept the result. */
+		private synchronized boolean onFinished(int index, RandomAccessBucket result) {
+			if(cancelled) return false;
+			long size = result.size();
+			if(size <= minSize) {
+				// Fits in one block, nothing else can do better.
+				if(logMINOR)
+					Logger.minor(this, "New size " + size + " smaller then minSize " + minSize);
+				limit = -1;
+			} else {
+				long blocks = size / CHKBlock.DATA_LENGTH;
+				long newLimit = Math.max(minSize, blocks * CHKBlock.DATA_LENGTH - 1);
+				if(newLimit < limit)
+					limit = newLimit;
+			}
+			results[index] = result;
+			return true;
+		}
+
+		private synchronized void chooseBest() {
+			long bestBlocks = origSize / CHKBlock.DATA_LENGTH;
+			boolean fits = false;
+			int best = -1;
+			for(int i=0;i<comps.length;i++) {
+				if(results[i] == null) continue;
+				if(fits) continue;
+				long size = results[i].size();
+				long blocks = size / CHKBlock.DATA_LENGTH;
+				if(size <= minSize) {
+					best = i;
+					fits = true;
+				} else if(blocks < bestBlocks) {
+					best = i;
+					bestBlocks = blocks;
+				}
+			}
+			for(int i=0;i<comps.length;i++) {
+				if(i == best || results[i] == null) continue;
+				results[i].free();
+				results[i] = null;
+			}
+			if(best != -1) {
+				bestCodec = comps[best];
+				bestData = results[best];
+				if(logMINOR)
+					Logger.minor(this, "Best codec "+bestCodec+" size "+bestData.size());
+			}
+		}
+
+		/** Stop all the codecs and free anything they have produced. */
+		synchronized void cancel() {
+			cancelled = true;
+			for(int i=0;i<results.length;i++) {
+				if(results[i] != null) {
+					results[i].free();
+					results[i] = null;
+				}
+			}
+		}
+
+		/** Gives up as soon as the codec writes more than it could and still win. */
+		private class RaceOutputStream extends FilterOutputStream {
+
+			private long written;
+
+			RaceOutputStream(OutputStream os) {
+				super(os);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				check(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] buf, int offset, int length) throws IOException {
+				check(length);
+				out.write(buf, offset, length);
+			}
+
+			private void check(int length) throws LostRaceException {
+				written += length;
+				if(cancelled || written > limit)
+					throw new LostRaceException();
+			}
+
+		}
+
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -0,0 +1,457 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import freenet.client.ClientMetadata;
+import freenet.crypt.SHA256;
+import freenet.keys.FreenetURI;
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+
+/**
+ * Size-bounded cache of completed, fully decoded (and optionally filtered) transient fetches,
+ * keyed by FreenetURI. Used together with the FCP cache (see {@link ChainedDownloadCache}) so that
+ * repeatedly visited freesite pages don't have to go through fetch, decompression and filtering
+ * every time.
+ *
+ * In persistent mode the data and a small metadata file per entry are kept in a directory and
+ * survive restarts; this is only used when the physical security level allows plaintext on disk.
+ * Otherwise entries are kept in buckets from the (possibly encrypted) temp bucket factory and are
+ * lost on restart.
+ *
+ * LOCKING: Only metadata is modified under the lock on this object. Copying data in and out is
+ * done outside it; entries which are being read are never evicted.
+ */
+public class LocalDownloadCache implements DownloadCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(LocalDownloadCache.class);
+	}
+
+	/** Which entry to drop first when the cache is full. */
+	public enum EvictionPolicy {
+		/** Least recently used. */
+		LRU,
+		/** Least frequently used, ties broken by least recently used. */
+		LFU
+	}
+
+	private static final String DATA_SUFFIX = ".data";
+	private static final String META_SUFFIX = ".meta";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private class Entry {
+		final String name;
+		final FreenetURI uri;
+		final String mimeType;
+		final boolean filtered;
+		final Bucket data;
+		final long size;
+		long hits;
+		int readers;
+		boolean removed;
+
+		Entry(String name, FreenetURI uri, String mimeType, boolean filtered, Bucket data, long size) {
+			this.name = name;
+			this.uri = uri;
+			this.mimeType = mimeType;
+			this.filtered = filtered;
+			this.data = data;
+			this.size = size;
+		}
+	}
+
+	private final File dir;
+	private final BucketFactory tempBucketFactory;
+	/** Access-ordered, so iteration order is least recently used first. */
+	private final LinkedHashMap<String, Entry> entries;
+	/** Entries currently being written by store(). */
+	private final Set<String> storing;
+	private long maxSize;
+	private EvictionPolicy policy;
+	private boolean persistent;
+	private long totalSize;
+
+	private long lookups;
+	private long hits;
+	private long bytesSaved;
+	private long stored;
+	private long evicted;
+
+	/**
+	 * @param dir Directory in which to keep entries in persistent mode.
+	 * @param tempBucketFactory Used for entries in non-persistent mode, and for copies handed to callers.
+	 * @param maxSize Maximum total size of the cached data. 0 disables the cache.
+	 * @param policy Eviction policy.
+	 * @param persistent Whether to keep the cache on disk across restarts.
+	 */
+	public LocalDownloadCache(File dir, BucketFactory tempBucketFactory, long maxSize, EvictionPolicy policy, boolean persistent) {
+		this.dir = dir;
+		this.tempBucketFactory = tempBucketFactory;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.storing = new HashSet<String>();
+		this.maxSize = maxSize;
+		this.policy = policy;
+		this.persistent = persistent;
+		if(persistent)
+			load();
+		else
+			deleteFiles();
+	}
+
+	/** Maximum size of a single entry relative to the whole cache. Larger results are not cached. */
+	private static final int MAX_ENTRY_FRACTION = 8;
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(long maxSize) {
+		List<Entry> toFree;
+		synchronized(this) {
+			this.maxSize = maxSize;
+			toFree = evict(0);
+		}
+		free(toFree);
+	}
+
+	public synchronized EvictionPolicy getEvictionPolicy() {
+		return policy;
+	}
+
+	public synchronized void setEvictionPolicy(EvictionPolicy policy) {
+		this.policy = policy;
+	}
+
+	/** Switch between persistent and non-persistent mode, e.g. when the physical security level
+	 * changes. Drops all entries. */
+	public void setPersistent(boolean persistent) {
+		synchronized(this) {
+			if(this.persistent == persistent) return;
+			this.persistent = persistent;
+		}
+		clear();
+		if(persistent)
+			load();
+		else
+			deleteFiles();
+	}
+
+	@Override
+	public CacheFetchResult lookupInstant(FreenetURI key, boolean noFilter, boolean mustCopy, Bucket preferred) {
+		Entry entry;
+		synchronized(this) {
+			lookups++;
+			entry = null;
+			if(!noFilter)
+				entry = entries.get(entryName(key, true));
+			if(entry == null)
+				entry = entries.get(entryName(key, false));
+			if(entry == null) return null;
+			entry.readers++;
+		}
+		// We always copy, even if mustCopy is false: the entry may be evicted while the caller is
+		// still using the data.
+		Bucket copy = null;
+		try {
+			copy = preferred != null ? preferred : tempBucketFactory.makeBucket(entry.size);
+			BucketTools.copy(entry.data, copy);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to copy cached data for "+key+" : "+e, e);
+			if(copy != null && copy != preferred) copy.free();
+			copy = null;
+		} finally {
+			release(entry, copy == null);
+		}
+		if(copy == null) return null;
+		synchronized(this) {
+			hits++;
+			entry.hits++;
+			bytesSaved += entry.size;
+		}
+		if(entry.data instanceof FileBucket)
+			new File(dir, entry.name + DATA_SUFFIX).setLastModified(System.currentTimeMillis());
+		if(logMINOR) Logger.minor(this, "Cache hit for "+key+" filtered="+entry.filtered);
+		return new CacheFetchResult(new ClientMetadata(entry.mimeType), copy, entry.filtered);
+	}
+
+	@Override
+	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context,
+			boolean mustCopy, Bucket preferred) {
+		return lookupInstant(key, noFilter, mustCopy, preferred);
+	}
+
+	/**
+	 * Add a completed fetch to the cache. The data is copied, so the caller keeps ownership of it.
+	 * Does nothing if the cache is disabled or the data is too big.
+	 * @param key The URI that was fetched.
+	 * @param mimeType The final MIME type of the data.
+	 * @param data The decoded data.
+	 * @param filtered Whether the data has been through the content filter.
+	 */
+	public void store(FreenetURI key, String mimeType, Bucket data, boolean filtered) {
+		if(!isCacheable(key)) return;
+		long size = data.size();
+		String name = entryName(key, filtered);
+		boolean persist;
+		synchronized(this) {
+			if(size <= 0 || size > maxSize / MAX_ENTRY_FRACTION) return;
+			// Keys are immutable, so if we already have it there is nothing to do.
+			if(entries.containsKey(name) || !storing.add(name)) return;
+			persist = persistent;
+		}
+		Bucket copy = null;
+		try {
+			if(persist) {
+				File tempFile = new File(dir, name + TEMP_SUFFIX);
+				copy = new FileBucket(tempFile, false, false, false, true);
+				BucketTools.copy(data, copy);
+				writeMetadata(name, key, mimeType, filtered);
+				File dataFile = new File(dir, name + DATA_SUFFIX);
+				if(!FileUtil.renameTo(tempFile, dataFile)) {
+					throw new IOException("Unable to rename "+tempFile+" to "+dataFile);
+				}
+				copy = new FileBucket(dataFile, true, false, false, true);
+			} else {
+				copy = tempBucketFactory.makeBucket(size);
+				BucketTools.copy(data, copy);
+				copy.setReadOnly();
+			}
+		} catch (IOException e) {
+			Logger.normal(this, "Unable to cache "+key+" : "+e, e);
+			if(copy != null) copy.free();
+			if(persist) new File(dir, name + META_SUFFIX).delete();
+			synchronized(this) {
+				storing.remove(name);
+			}
+			return;
+		}
+		Entry entry = new Entry(name, key, mimeType, filtered, copy, size);
+		List<Entry> toFree;
+		synchronized(this) {
+			storing.remove(name);
+			if(persist != persistent) {
+				// Mode changed while we were copying.
+				toFree = Collections.singletonList(entry);
+			} else {
+				entries.put(name, entry);
+				totalSize += size;
+				stored++;
+				toFree = evict(0);
+			}
+		}
+		free(toFree);
+	}
+
+	/** Only immutable keys are cached. For USKs the caller is responsible for checking whether a
+	 * later edition is known, as FProxy does. */
+	static boolean isCacheable(FreenetURI key) {
+		if(key.isCHK() || key.isSSK()) return true;
+		return key.isUSK() && key.getSuggestedEdition() >= 0;
+	}
+
+	/** @return The number of lookups that found something. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getLookups() {
+		return lookups;
+	}
+
+	/** @return The fraction of lookups which found something, or 0 if there have been none. */
+	public synchronized double getHitRatio() {
+		if(lookups == 0) return 0.0;
+		return ((double) hits) / lookups;
+	}
+
+	/** @return The number of bytes returned from the cache rather than being fetched again. */
+	public synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getStoredCount() {
+		return stored;
+	}
+
+	public synchronized long getEvictedCount() {
+		return evicted;
+	}
+
+	public synchronized boolean isPersistent() {
+		return persistent;
+	}
+
+	/** Remove entries until there is room for extra bytes. Caller must free the returned entries
+	 * outside the lock. */
+	private synchronized List<Entry> evict(long extra) {
+		List<Entry> toFree = new ArrayList<Entry>();
+		while(totalSize + extra > maxSize && !entries.isEmpty()) {
+			Entry victim = null;
+			for(Entry e : entries.values()) {
+				if(e.readers > 0) continue;
+				if(policy == EvictionPolicy.LRU) {
+					victim = e;
+					break;
+				}
+				if(victim == null || e.hits < victim.hits)
+					victim = e;
+			}
+			if(victim == null) break; // Everything is being read.
+			entries.remove(victim.name);
+			victim.removed = true;
+			totalSize -= victim.size;
+			evicted++;
+			toFree.add(victim);
+		}
+		return toFree;
+	}
+
+	private void release(Entry entry, boolean failed) {
+		boolean free;
+		synchronized(this) {
+			entry.readers--;
+			if(failed && !entry.removed) {
+				// Broken, e.g. deleted behind our back.
+				entries.remove(entry.name);
+				entry.removed = true;
+				totalSize -= entry.size;
+			}
+			free = entry.removed && entry.readers == 0;
+		}
+		if(free) free(Collections.singletonList(entry));
+	}
+
+	private void free(List<Entry> toFree) {
+		for(Entry e : toFree) {
+			e.data.free();
+			if(e.data instanceof FileBucket)
+				new File(dir, e.name + META_SUFFIX).delete();
+		}
+	}
+
+	private static String entryName(FreenetURI key, boolean filtered) {
+		String s = (filtered ? "F:" : "U:") + key.toString(false, false);
+		return HexUtil.bytesToHex(SHA256.digest(s.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private void writeMetadata(String name, FreenetURI key, String mimeType, boolean filtered) throws IOException {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("URI", key.toString(false, false));
+		if(mimeType != null)
+			fs.putSingle("MIMEType", mimeType);
+		fs.put("Filtered", filtered);
+		try (OutputStream os = new FileOutputStream(new File(dir, name + META_SUFFIX))) {
+			fs.writeTo(os);
+		}
+	}
+
+	/** Read back the entries from a previous run. Entries are ordered by the data file's last
+	 * modified time, which we touch on every hit. */
+	private synchronized void load() {
+		if(!dir.exists() && !dir.mkdirs()) {
+			Logger.error(this, "Unable to create download cache directory "+dir);
+			return;
+		}
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		List<File> dataFiles = new ArrayList<File>();
+		for(File f : files) {
+			String fileName = f.getName();
+			if(fileName.endsWith(DATA_SUFFIX)) {
+				dataFiles.add(f);
+			} else if(fileName.endsWith(TEMP_SUFFIX)) {
+				f.delete();
+			} else if(fileName.endsWith(META_SUFFIX)) {
+				String name = fileName.substring(0, fileName.length() - META_SUFFIX.length());
+				if(!new File(dir, name + DATA_SUFFIX).exists())
+					f.delete();
+			}
+		}
+		Collections.sort(dataFiles, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for(File f : dataFiles) {
+			String fileName = f.getName();
+			String name = fileName.substring(0, fileName.length() - DATA_SUFFIX.length());
+			File metaFile = new File(dir, name + META_SUFFIX);
+			try {
+				SimpleFieldSet fs = SimpleFieldSet.readFrom(metaFile, false, true);
+				FreenetURI uri = new FreenetURI(fs.get("URI"));
+				boolean filtered = fs.getBoolean("Filtered", false);
+				if(!name.equals(entryName(uri, filtered)))
+					throw new IOException("Entry name does not match key");
+				Entry entry = new Entry(name, uri, fs.get("MIMEType"), filtered,
+						new FileBucket(f, true, false, false, true), f.length());
+				entries.put(name, entry);
+				totalSize += entry.size;
+			} catch (IOException e) {
+				Logger.normal(this, "Dropping unreadable download cache entry "+name+" : "+e);
+				f.delete();
+				metaFile.delete();
+			}
+		}
+		free(evict(0));
+		if(logMINOR) Logger.minor(this, "Loaded "+entries.size()+" cached downloads, "+totalSize+" bytes");
+	}
+
+	private void deleteFiles() {
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		for(File f : files) {
+			String fileName = f.getName();
+			if(fileName.endsWith(DATA_SUFFIX) || fileName.endsWith(META_SUFFIX) || fileName.endsWith(TEMP_SUFFIX))
+				f.delete();
+		}
+	}
+
+	/** Drop everything. */
+	public void clear() {
+		List<Entry> toFree = new ArrayList<Entry>();
+		synchronized(this) {
+			for(Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+				Entry e = it.next();
+				e.removed = true;
+				if(e.readers == 0) toFree.add(e);
+				it.remove();
+			}
+			totalSize = 0;
+		}
+		free(toFree);
+	}
+
+}
@@ -5,6 +5,7 @@ package freenet.client.async;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import freenet.client.InsertContext;
 import freenet.client.InsertException;
@@ -12,21 +13,43 @@ import freenet.client.Metadata;
 import freenet.keys.BaseClientKey;
 import freenet.keys.CHKBlock;
 import freenet.keys.FreenetURI;
+import freenet.keys.Key;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
+import freenet.support.LRUMap;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 
+/**
+ * Inserts blocks we had to decode (or fetch after several retries) back into the network.
+ *
+ * Blocks are queued a segment at a time. Each block is encoded outside the lock, then checked
+ * against the keys that are already being healed or were healed recently, so a download that
+ * decodes many overlapping segments does not insert the same CHK over and over. The number of
+ * healing inserts in flight is capped by a supplier, which the node derives from its output
+ * bandwidth class. Blocks beyond the cap are dropped before they are encoded.
+ */
 public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue, PutCompletionCallback {
 	private static final long serialVersionUID = -2884613086588264043L;
 
-	final int maxRunning;
+	/** Number of recently healed keys we remember for deduplication. */
+	static final int RECENTLY_HEALED_KEYS = 8192;
+
+	private final Supplier<Integer> maxRunning;
 	int counter;
 	InsertContext ctx;
 	private final HealingDecisionSupplier healingDecisionSupplier;
-	final Map<Bucket, SingleBlockInserter> runningInserters;
+	/** Running inserts by routing key. */
+	final Map<Key, SingleBlockInserter> runningInserters;
+	/** Keys we have healed or decided not to heal recently. */
+	private final LRUMap<Key, Boolean> recentlyHealed;
+	private final long startTime;
+	private long dedupHits;
+	private long droppedBlocks;
+	private long healedBlocks;
+	private long healedBytes;
 
         private static volatile boolean logMINOR;
 	static {
@@ -41,49 +64,102 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
 	static final RequestClient REQUEST_CLIENT = new RequestClientBuilder().build();
 
 	public SimpleHealingQueue(InsertContext context, short prio, int maxRunning, HealingDecisionSupplier healingDecisionSupplier) {
+		this(context, prio, () -> maxRunning, healingDecisionSupplier);
+	}
+
+	public SimpleHealingQueue(InsertContext context, short prio, Supplier<Integer> maxRunning, HealingDecisionSupplier healingDecisionSupplier) {
 		super(prio, REQUEST_CLIENT);
 		this.ctx = context;
 		this.healingDecisionSupplier = healingDecisionSupplier;
-		this.runningInserters = new HashMap<Bucket, SingleBlockInserter>();
+		this.runningInserters = new HashMap<Key, SingleBlockInserter>();
+		this.recentlyHealed = LRUMap.createSafeMap();
 		this.maxRunning = maxRunning;
+		this.startTime = System.currentTimeMillis();
 	}
 
 	public boolean innerQueue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context) {
-		SingleBlockInserter sbi;
-		int ctr;
+		return innerQueue(new Bucket[] { data }, new byte[][] { cryptoKey }, new byte[] { cryptoAlgorithm }, context)[0];
+	}
+
+	/** Encode, deduplicate and schedule a batch of healing blocks.
+	 * @return For each block, whether an insert was started for it. The caller must free the
+	 * data for any block for which we return false. */
+	boolean[] innerQueue(Bucket[] data, byte[][] cryptoKeys, byte[] cryptoAlgorithms, ClientContext context) {
+		boolean[] started = new boolean[data.length];
+		SingleBlockInserter[] inserters = new SingleBlockInserter[data.length];
+		Key[] keys = new Key[data.length];
+		int firstToken;
 		synchronized(this) {
-			ctr = counter++;
-			if(runningInserters.size() > maxRunning) return false;
+			firstToken = counter;
+			counter += data.length;
+		}
+		int limit = maxRunning.get();
+		for(int i=0;i<data.length;i++) {
+			synchronized(this) {
+				if(runningInserters.size() >= limit) {
+					// Don't waste time encoding it.
+					droppedBlocks++;
+					continue;
+				}
+			}
+			// Encoding is the slow part, so do it without the lock.
 			try {
-				sbi = new SingleBlockInserter(this, data, (short)-1,
-							FreenetURI.EMPTY_CHK_URI, ctx, realTimeFlag, this, false,
-							CHKBlock.DATA_LENGTH, ctr, false, false, data, context, false, true, 0, cryptoAlgorithm, cryptoKey);
+				inserters[i] = encode(data[i], cryptoKeys[i], cryptoAlgorithms[i], firstToken+i, context);
+				keys[i] = inserters[i].getKeyNoEncode().getNodeKey();
 			} catch (Throwable e) {
 				Logger.error(this, "Caught trying to insert healing block: "+e, e);
-				return false;
+				inserters[i] = null;
+				continue;
 			}
-			if (isHealingThisBlockSimilarToForwarding(context, sbi)) {
-				runningInserters.put(data, sbi);
+			synchronized(this) {
+				Key key = keys[i];
+				if(runningInserters.containsKey(key) || recentlyHealed.containsKey(key)) {
+					dedupHits++;
+					inserters[i] = null;
+					continue;
+				}
+				if(runningInserters.size() >= limit) {
+					// Filled up while we were encoding. Not healed, so it may be queued again.
+					droppedBlocks++;
+					inserters[i] = null;
+					continue;
+				}
+				recentlyHealed.push(key, Boolean.TRUE);
+				while(recentlyHealed.size() > RECENTLY_HEALED_KEYS)
+					recentlyHealed.popKey();
+				if(!healingDecisionSupplier.shouldHeal(key.toNormalizedDouble())) {
+					inserters[i] = null;
+					continue;
+				}
+				runningInserters.put(key, inserters[i]);
 			}
 		}
-		try {
-			sbi.schedule(context);
-			if(logMINOR)
-				Logger.minor(this, "Started healing insert "+ctr+" for "+data);
-			return true;
-		} catch (Throwable e) {
-			Logger.error(this, "Caught trying to insert healing block: "+e, e);
-			return false;
+		for(int i=0;i<data.length;i++) {
+			SingleBlockInserter sbi = inserters[i];
+			if(sbi == null) continue;
+			try {
+				sbi.schedule(context);
+				if(logMINOR)
+					Logger.minor(this, "Started healing insert "+sbi.token+" for "+data[i]);
+				started[i] = true;
+			} catch (Throwable e) {
+				Logger.error(this, "Caught trying to insert healing block: "+e, e);
+				synchronized(this) {
+					runningInserters.remove(keys[i]);
+				}
+			}
 		}
+		return started;
 	}
 
-	private boolean isHealingThisBlockSimilarToForwarding(
-			ClientContext context,
-			SingleBlockInserter sbi) {
-		// ensure that we have a routing key
+	/** Create the insert for a healing block, and encode it so we know its key. */
+	SingleBlockInserter encode(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, int token, ClientContext context) {
+		SingleBlockInserter sbi = new SingleBlockInserter(this, data, (short)-1,
+				FreenetURI.EMPTY_CHK_URI, ctx, realTimeFlag, this, false,
+				CHKBlock.DATA_LENGTH, token, false, false, data, context, false, true, 0,
+				cryptoAlgorithm, cryptoKey);
 		sbi.tryEncode(context);
-		double keyLocation = sbi.getKeyNoEncode().getNodeKey().toNormalizedDouble();
-		return healingDecisionSupplier.shouldHeal(keyLocation);
+		return sbi;
 	}
 
 	@Override
@@ -92,6 +168,42 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
 			data.free();
 	}
 
+	@Override
+	public void queue(Bucket[] data, byte[][] cryptoKeys, byte[] cryptoAlgorithms, ClientContext context) {
+		boolean[] started = innerQueue(data, cryptoKeys, cryptoAlgorithms, context);
+		for(int i=0;i<data.length;i++) {
+			if(!started[i])
+				data[i].free();
+		}
+	}
+
+	@Override
+	public synchronized int getQueueSize() {
+		return runningInserters.size();
+	}
+
+	@Override
+	public synchronized long getDedupHits() {
+		return dedupHits;
+	}
+
+	@Override
+	public synchronized long getDroppedBlocks() {
+		return droppedBlocks;
+	}
+
+	@Override
+	public synchronized long getHealedBlocks() {
+		return healedBlocks;
+	}
+
+	@Override
+	public synchronized double getHealingBytesPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		if(elapsed <= 0) return 0.0;
+		return healedBytes * 1000.0 / elapsed;
+	}
+
 	@Override
 	public FreenetURI getURI() {
 		return FreenetURI.EMPTY_CHK_URI;
@@ -112,7 +224,9 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
 		SingleBlockInserter sbi = (SingleBlockInserter)state;
 		Bucket data = (Bucket) sbi.getToken();
 		synchronized(this) {
-			runningInserters.remove(data);
+			runningInserters.remove(sbi.getKeyNoEncode().getNodeKey());
+			healedBlocks++;
+			healedBytes += CHKBlock.DATA_LENGTH;
 		}
 		if(logMINOR)
 			Logger.minor(this, "Successfully inserted healing block: "+sbi.getURINoEncode()+" for "+data+" ("+sbi.token+ ')');
@@ -124,7 +238,7 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
 		SingleBlockInserter sbi = (SingleBlockInserter)state;
 		Bucket data = (Bucket) sbi.getToken();
 		synchronized(this) {
-			runningInserters.remove(data);
+			runningInserters.remove(sbi.getKeyNoEncode().getNodeKey());
 		}
 		if(logMINOR)
 			Logger.minor(this, "Failed to insert healing block: "+sbi.getURINoEncode()+" : "+e+" for "+data+" ("+sbi.token+ ')', e);
@@ -308,6 +308,22 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         }
     }
 
+    @Override
+    public void queueHeal(byte[][] data, byte[][] cryptoKeys, byte[] cryptoAlgorithms) {
+        Bucket[] buckets = new Bucket[data.length];
+        int count = 0;
+        try {
+            for(; count<data.length; count++)
+                buckets[count] = BucketTools.makeImmutableBucket(context.tempBucketFactory, data[count]);
+        } catch (IOException e) {
+            Logger.error(this, "I/O error, failed to queue healing blocks: "+e, e);
+            for(int i=0;i<count;i++)
+                buckets[i].free();
+            return;
+        }
+        context.healingQueue.queue(buckets, cryptoKeys, cryptoAlgorithms, context);
+    }
+
     public boolean localRequestOnly() {
         return blockFetchContext.localRequestOnly;
     }
@@ -597,30 +597,36 @@ public class SplitFileFetcherSegmentStorage {
      * queue up for healing all blocks that either failed or needed more than one try to retrieve. 
      */
     private void queueHeal(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent) throws IOException {
+        ArrayList<byte[]> healData = new ArrayList<byte[]>();
+        ArrayList<Integer> healBlockNumbers = new ArrayList<Integer>();
         for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocksPresent[i]) continue;
             if(blockChooser.getRetries(i) == 0) continue;
-            queueHeal(i, dataBlocks[i]);
+            healData.add(dataBlocks[i]);
+            healBlockNumbers.add(i);
         }
         for(int i=0;i<checkBlocks.length;i++) {
             if(checkBlocksPresent[i]) continue;
             if(blockChooser.getRetries(i+dataBlocks.length) == 0) continue;
-            queueHeal(i+dataBlocks.length, checkBlocks[i]);
+            healData.add(checkBlocks[i]);
+            healBlockNumbers.add(i+dataBlocks.length);
         }
-    }
-
-    private void queueHeal(int blockNumber, byte[] data) throws IOException {
-        byte[] cryptoKey;
-        byte cryptoAlgorithm;
-        if(parent.splitfileSingleCryptoKey != null) {
-            cryptoKey = parent.splitfileSingleCryptoKey;
-            cryptoAlgorithm = parent.splitfileSingleCryptoAlgorithm;
-        } else {
-            ClientCHK key = getSegmentKeys().getKey(blockNumber, null, false);
-            cryptoKey = key.getCryptoKey();
-            cryptoAlgorithm = key.getCryptoAlgorithm();
+        if(healData.isEmpty()) return;
+        int count = healData.size();
+        byte[][] cryptoKeys = new byte[count][];
+        byte[] cryptoAlgorithms = new byte[count];
+        SplitFileSegmentKeys keys = parent.splitfileSingleCryptoKey != null ? null : getSegmentKeys();
+        for(int i=0;i<count;i++) {
+            if(keys == null) {
+                cryptoKeys[i] = parent.splitfileSingleCryptoKey;
+                cryptoAlgorithms[i] = parent.splitfileSingleCryptoAlgorithm;
+            } else {
+                ClientCHK key = keys.getKey(healBlockNumbers.get(i), null, false);
+                cryptoKeys[i] = key.getCryptoKey();
+                cryptoAlgorithms[i] = key.getCryptoAlgorithm();
+            }
         }
-        parent.fetcher.queueHeal(data, cryptoKey, cryptoAlgorithm);
+        parent.fetcher.queueHeal(healData.toArray(new byte[count][]), cryptoKeys, cryptoAlgorithms);
     }
 
     private synchronized byte[][] readAllBlocks() throws IOException {
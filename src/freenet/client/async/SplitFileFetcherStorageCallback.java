@@ -57,6 +57,13 @@ public interface SplitFileFetcherStorageCallback {
      * any dangerous locks and not be too slow. */
     void queueHeal(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm);
 
+    /** Queue all the blocks to be healed from one segment. LOCKING: As for the single block
+     * version. */
+    default void queueHeal(byte[][] data, byte[][] cryptoKeys, byte[] cryptoAlgorithms) {
+        for(int i=0;i<data.length;i++)
+            queueHeal(data[i], cryptoKeys[i], cryptoAlgorithms[i]);
+    }
+
     /** Called when the storage layer has finished, the higher level code has finished, and the 
      * storage has been freed, i.e. the request is now completely finished. */
     void onClosed();
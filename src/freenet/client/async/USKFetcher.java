@@ -525,6 +525,12 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 
 	private boolean started;
 
+	/** True if we are a background poller waiting for the next round. */
+	private boolean sleeping;
+
+	/** Incremented when a timed schedule() should no longer run, see wakeUp(). */
+	private long scheduleGeneration;
+
 	private final boolean realTimeFlag;
 
 	private static short DEFAULT_NORMAL_POLL_PRIORITY = RequestStarter.PREFETCH_PRIORITY_CLASS;
@@ -729,26 +735,34 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			long valAtEnd = uskManager.lookupLatestSlot(origUSK);
 			long end;
 			long now = System.currentTimeMillis();
+			boolean advanced = false;
 			synchronized(this) {
 				started = false; // don't finish before have rescheduled
+				sleeping = true;
 
                 //Find out when we should check next ('end'), in an increasing delay (unless we make progress).
                 long newSleepTime = sleepTime * 2;
 				if(newSleepTime > maxSleepTime) newSleepTime = maxSleepTime;
 				sleepTime = newSleepTime;
-				end = now + context.random.nextInt((int) sleepTime);
 
 				if(valAtEnd > valueAtSchedule && valAtEnd > origUSK.suggestedEdition) {
 					// We have advanced; keep trying as if we just started.
 					// Only if we actually DO advance, not if we just confirm our suspicion (valueAtSchedule always starts at 0).
 					sleepTime = origSleepTime;
 					firstLoop = false;
-					end = now;
+					advanced = true;
 					if(logMINOR)
 						Logger.minor(this, "We have advanced: at start, "+valueAtSchedule+" at end, "+valAtEnd);
 				}
-				if(logMINOR) Logger.minor(this, "Sleep time is "+sleepTime+" this sleep is "+(end-now)+" for "+this);
 			}
+			// The poll scheduler adapts the sleep time to how often the USK is updated.
+			if(advanced) {
+				uskManager.pollScheduler.onRoundAdvanced(origUSK, now);
+				end = now;
+			} else {
+				end = now + uskManager.pollScheduler.onRoundFinished(origUSK, sleepTime, now, context.random);
+			}
+			if(logMINOR) Logger.minor(this, "Sleep time is "+sleepTime+" this sleep is "+(end-now)+" for "+this);
 			schedule(end-now, context);
 			checkFinishedForNow(context);
 		} else {
@@ -952,6 +966,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 		}
 		USKAttempt a = new USKAttempt(l, forever);
+		uskManager.pollScheduler.onProbes(origUSK, 1);
 		if(forever)
 			pollingAttempts.put(i, a);
 		else {
@@ -979,15 +994,39 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		if (delay<=0) {
 			schedule(context);
 		} else {
+			final long generation;
+			synchronized(this) {
+				generation = scheduleGeneration;
+			}
 			context.ticker.queueTimedJob(new Runnable() {
 				@Override
 				public void run() {
+					synchronized(USKFetcher.this) {
+						// Already woken up early.
+						if(generation != scheduleGeneration) return;
+					}
 					USKFetcher.this.schedule(context);
 				}
 			}, delay);
 		}
 	}
 
+	/**
+	 * If we are a background poller sleeping between rounds, start the next round now.
+	 * Used when another request wants a fresh check of the same USK, so that it can share
+	 * our round rather than start a separate fetcher.
+	 * @return True if we started a new round.
+	 */
+	boolean wakeUp(ClientContext context) {
+		synchronized(this) {
+			if(!sleeping || cancelled || completed) return false;
+			scheduleGeneration++;
+		}
+		if(logMINOR) Logger.minor(this, "Waking up "+this);
+		schedule(context);
+		return true;
+	}
+
 	@Override
 	public void schedule(ClientContext context) {
 		if(logMINOR) Logger.minor(this, "Scheduling "+this);
@@ -995,6 +1034,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		synchronized(this) {
 			if(cancelled) return;
 			if(completed) return;
+			sleeping = false;
 			if(!scheduledDBRs && !ctx.ignoreUSKDatehints) {
 				atts = addDBRs(context);
 			}
@@ -1068,6 +1108,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			atts[x++] = att;
 		}
 		dbrHintsStarted = atts.length;
+		uskManager.pollScheduler.onProbes(origUSK, atts.length);
 		return atts;
 	}
 
@@ -93,6 +93,9 @@ public class USKManager {
 	
 	final Executor executor;
 	
+	/** Adapts background polling to how often each USK is updated, and tracks polling costs. */
+	final USKPollScheduler pollScheduler;
+	
 	private ClientContext context;
 	
 	public USKManager(NodeClientCore core) {
@@ -113,6 +116,7 @@ public class USKManager {
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
+		pollScheduler = new USKPollScheduler(USKFetcher.origSleepTime, USKFetcher.maxSleepTime);
 	}
 
 	public void init(ClientContext context) {
@@ -282,6 +286,7 @@ public class USKManager {
 	public void startTemporaryBackgroundFetcher(USK usk, ClientContext context, final FetchContext fctx, boolean prefetchContent, boolean realTimeFlag) {
 		final USK clear = usk.clearCopy();
 		USKFetcher sched = null;
+		USKFetcher wake = null;
 		ArrayList<USKFetcher> toCancel = null;
 		synchronized(this) {
 //			int x = 0;
@@ -290,7 +295,19 @@ public class USKManager {
 //				x++;
 //			}
 			USKFetcher f = temporaryBackgroundFetchersLRU.get(clear);
-			if(f == null) {
+			USKFetcher background = null;
+			if(f == null)
+				background = backgroundFetchersByClearUSK.get(clear);
+			if(background != null) {
+				// Share the background fetcher's polling rather than starting a separate
+				// round of DBRs and edition probes for the same USK. Only wake it early if
+				// the hint is newer than anything we know of, or every page view of the USK
+				// would force a round and defeat the back-off.
+				if(usk.suggestedEdition > lookupLatestSlot(clear)) {
+					background.addHintEdition(usk.suggestedEdition);
+					wake = background;
+				}
+			} else if(f == null) {
 				f = new USKFetcher(usk, this, fctx.ignoreUSKDatehints ? backgroundFetchContextIgnoreDBR : backgroundFetchContext, new USKFetcherWrapper(usk, RequestStarter.UPDATE_PRIORITY_CLASS, realTimeFlag ? rcRT : rcBulk), 3, false, false, false);
 				sched = f;
 				temporaryBackgroundFetchersLRU.push(clear, f);
@@ -308,7 +325,8 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Prefetch: set "+fetchTime+" for "+clear);
 				schedulePrefetchChecker();
 			}
-			temporaryBackgroundFetchersLRU.push(clear, f);
+			if(f != null)
+				temporaryBackgroundFetchersLRU.push(clear, f);
 			while(temporaryBackgroundFetchersLRU.size() > NodeClientCore.getMaxBackgroundUSKFetchers()) {
 				USKFetcher fetcher = temporaryBackgroundFetchersLRU.popValue();
 				temporaryBackgroundFetchersPrefetch.remove(fetcher.getOriginalUSK().clearCopy());
@@ -323,10 +341,11 @@ public class USKManager {
 		}
 		final ArrayList<USKFetcher> cancelled = toCancel;
 		final USKFetcher scheduleMe = sched;
+		final USKFetcher wakeMe = wake;
 		// This is just a prefetching method. so it should not unnecessarily delay the parent, nor should it take important locks.
 		// So we should do the actual schedule/cancels off-thread.
 		// However, the above is done on-thread because a lot of the time it will already be running.
-		if(cancelled != null || sched != null) {
+		if(cancelled != null || sched != null || wake != null) {
 			executor.execute(new Runnable() {
 				
 				@Override
@@ -338,6 +357,7 @@ public class USKManager {
 						}
 					}
 					if(scheduleMe != null) scheduleMe.schedule(USKManager.this.context);
+					if(wakeMe != null) wakeMe.wakeUp(USKManager.this.context);
 				}
 				
 			});
@@ -445,6 +465,7 @@ public class USKManager {
 				latestSlotByClearUSK.put(clear, l);
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
+				pollScheduler.onNewEdition(clear, number, System.currentTimeMillis());
 			} 
 			
 			callbacks = subscribersByClearUSK.get(clear);
@@ -475,6 +496,7 @@ public class USKManager {
 				l = number;
 				latestSlotByClearUSK.put(clear, l);
 				if(logMINOR) Logger.minor(this, "Put "+number);
+				pollScheduler.onNewEdition(clear, number, System.currentTimeMillis());
 			} else
 				return;
 			
@@ -690,6 +712,11 @@ public class USKManager {
 		return temporaryBackgroundFetchersLRU.size();
 	}
 
+	/** @return The scheduler which tracks polling intervals and costs for each USK. */
+	public USKPollScheduler getPollScheduler() {
+		return pollScheduler;
+	}
+
 	public void onFinished(USKFetcher fetcher) {
 		onFinished(fetcher, false);
 	}
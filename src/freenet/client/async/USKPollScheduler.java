@@ -0,0 +1,203 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+import freenet.keys.USK;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Decides how often background USK fetchers poll, and keeps track of what polling costs.
+ *
+ * All fetchers for the same clear USK share one entry here. Whenever a new edition is found,
+ * by any fetcher or hint, we update an estimate of how often the USK is updated. A background
+ * fetcher that has finished a round without finding anything then sleeps for a fraction of that
+ * interval, rather than simply doubling its sleep time. USKs that update rarely are polled
+ * rarely; USKs that update often are polled more often. Until we have seen at least two
+ * updates, we fall back to the fetcher's own exponential back-off.
+ *
+ * This is transient, like the rest of USKManager.
+ */
+public class USKPollScheduler {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Maximum number of USKs we track. */
+	static final int MAX_TRACKED_USKS = 1024;
+	/** Weight given to the newest interval in the update interval average. */
+	static final double INTERVAL_WEIGHT = 0.3;
+	/** Sleep for this fraction of the estimated update interval. */
+	static final int INTERVAL_DIVISOR = 4;
+
+	private final long minSleepTime;
+	private final long maxSleepTime;
+	private final LRUMap<USK, Entry> entries;
+	private long totalProbes;
+
+	private static class Entry {
+		final USK usk;
+		long rounds;
+		long probes;
+		long editions;
+		long lastEdition = -1;
+		long lastUpdateTime = -1;
+		/** Exponentially weighted average of the time between updates, or -1 if unknown. */
+		double updateInterval = -1;
+		long lastPollTime = -1;
+		long nextPollTime = -1;
+
+		Entry(USK usk) {
+			this.usk = usk;
+		}
+	}
+
+	/** A snapshot of the polling statistics for one USK. */
+	public static class PollingCost {
+		public final USK usk;
+		/** Number of polling rounds completed. */
+		public final long rounds;
+		/** Number of SSK requests (edition probes and date hints) started. */
+		public final long probes;
+		/** Number of new editions seen. */
+		public final long editions;
+		/** Estimated time between updates, or -1 if we don't know yet. */
+		public final long updateInterval;
+		/** When we last finished a round, or -1. */
+		public final long lastPollTime;
+		/** When the next background round is due, or -1. */
+		public final long nextPollTime;
+
+		PollingCost(Entry e) {
+			usk = e.usk;
+			rounds = e.rounds;
+			probes = e.probes;
+			editions = e.editions;
+			updateInterval = (long) e.updateInterval;
+			lastPollTime = e.lastPollTime;
+			nextPollTime = e.nextPollTime;
+		}
+	}
+
+	USKPollScheduler(long minSleepTime, long maxSleepTime) {
+		this.minSleepTime = minSleepTime;
+		this.maxSleepTime = maxSleepTime;
+		entries = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+	}
+
+	private Entry getEntry(USK clear) {
+		Entry e = entries.get(clear);
+		if(e == null)
+			e = new Entry(clear);
+		entries.push(clear, e);
+		while(entries.size() > MAX_TRACKED_USKS)
+			entries.popKey();
+		return e;
+	}
+
+	/** Record that SSK requests have been started to poll a USK. */
+	synchronized void onProbes(USK usk, int count) {
+		if(count <= 0) return;
+		getEntry(usk.clearCopy()).probes += count;
+		totalProbes += count;
+	}
+
+	/** Record that a new latest slot has been found. */
+	synchronized void onNewEdition(USK usk, long edition, long now) {
+		Entry e = getEntry(usk.clearCopy());
+		if(edition <= e.lastEdition) return;
+		e.editions++;
+		if(e.lastUpdateTime > 0 && e.lastEdition >= 0) {
+			long interval = now - e.lastUpdateTime;
+			if(interval > 0) {
+				if(e.updateInterval < 0)
+					e.updateInterval = interval;
+				else
+					e.updateInterval = e.updateInterval * (1.0 - INTERVAL_WEIGHT) + interval * INTERVAL_WEIGHT;
+			}
+		}
+		e.lastEdition = edition;
+		e.lastUpdateTime = now;
+	}
+
+	/**
+	 * Called when a background fetcher has finished a round without finding a new edition.
+	 * @param backoffSleepTime The sleep time the fetcher would use on its own, after
+	 * doubling.
+	 * @return How long to wait before the next round.
+	 */
+	synchronized long onRoundFinished(USK usk, long backoffSleepTime, long now, Random random) {
+		Entry e = getEntry(usk.clearCopy());
+		e.rounds++;
+		e.lastPollTime = now;
+		long delay;
+		if(e.updateInterval < 0) {
+			delay = random.nextInt((int) Math.min(Integer.MAX_VALUE, backoffSleepTime));
+		} else {
+			long target = (long) (e.updateInterval / INTERVAL_DIVISOR);
+			// If it has been quiet for much longer than usual, slow down anyway.
+			long quiet = now - e.lastUpdateTime;
+			if(quiet > e.updateInterval * 2)
+				target = Math.max(target, quiet / INTERVAL_DIVISOR);
+			target = Math.max(minSleepTime, Math.min(maxSleepTime, target));
+			// Spread the polls out so subscriptions don't all fire together, but never poll
+			// more often than the minimum or less often than the maximum.
+			delay = target * 3 / 4 + random.nextInt((int) Math.min(Integer.MAX_VALUE, target / 2 + 1));
+			delay = Math.max(minSleepTime, Math.min(maxSleepTime, delay));
+		}
+		e.nextPollTime = now + delay;
+		if(logMINOR)
+			Logger.minor(this, "Next poll of "+usk+" in "+delay+"ms (interval "+(long)e.updateInterval+")");
+		return delay;
+	}
+
+	/** Called when a round finished with progress, so we will poll again immediately. */
+	synchronized void onRoundAdvanced(USK usk, long now) {
+		Entry e = getEntry(usk.clearCopy());
+		e.rounds++;
+		e.lastPollTime = now;
+		e.nextPollTime = now;
+	}
+
+	/** @return Polling statistics for all tracked USKs, most expensive first. */
+	public synchronized List<PollingCost> getPollingCosts() {
+		List<PollingCost> ret = new ArrayList<PollingCost>(entries.size());
+		Enumeration<Entry> e = entries.values();
+		while(e.hasMoreElements())
+			ret.add(new PollingCost(e.nextElement()));
+		Collections.sort(ret, new Comparator<PollingCost>() {
+
+			@Override
+			public int compare(PollingCost o1, PollingCost o2) {
+				return Long.compare(o2.probes, o1.probes);
+			}
+
+		});
+		return ret;
+	}
+
+	/** @return The total number of SSK requests started to poll USKs. */
+	public synchronized long getTotalProbes() {
+		return totalProbes;
+	}
+
+}
@@ -7,17 +7,46 @@ public class FinishedCompressionEvent implements ClientEvent {
 
 	static final int code = 0x09;
 	
+	private static final CodecAttempt[] NO_ATTEMPTS = new CodecAttempt[0];
+	
 	/** Codec, -1 = uncompressed */
 	public final int codec;
 	/** Original size */
 	public final long originalSize;
 	/** Compressed size */
 	public final long compressedSize;
+	/** What each codec tried did, in the order they were configured. May be empty. */
+	public final CodecAttempt[] attempts;
+
+	/** The outcome of trying one codec. */
+	public static class CodecAttempt {
+		/** Codec metadata ID */
+		public final short codec;
+		/** How long the codec ran for, in milliseconds */
+		public final long time;
+		/** Size of the compressed data, or -1 if the codec did not finish */
+		public final long compressedSize;
+		/** True if the codec was stopped early because it could no longer produce the best
+		 * result, or produced too little compression */
+		public final boolean aborted;
+		
+		public CodecAttempt(short codec, long time, long compressedSize, boolean aborted) {
+			this.codec = codec;
+			this.time = time;
+			this.compressedSize = compressedSize;
+			this.aborted = aborted;
+		}
+	}
 
 	public FinishedCompressionEvent(int codec, long origSize, long compressedSize) {
+		this(codec, origSize, compressedSize, NO_ATTEMPTS);
+	}
+
+	public FinishedCompressionEvent(int codec, long origSize, long compressedSize, CodecAttempt[] attempts) {
 		this.codec = codec;
 		this.originalSize = origSize;
 		this.compressedSize = compressedSize;
+		this.attempts = attempts == null ? NO_ATTEMPTS : attempts;
 	}
 
 	@Override
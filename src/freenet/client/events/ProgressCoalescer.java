@@ -0,0 +1,74 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often a request tells its clients about its progress. Every block fetched or
+ * inserted changes the progress, and on a fast request sending a SplitfileProgressEvent to
+ * every client, and from there to every FCP connection and the status cache, for each of them is
+ * a lot of work for very little information. Instead, progress is sent at most a given number of
+ * times a second. If it changes more often, one notification is scheduled for the end of the
+ * interval, and everything in between is folded into it: it reads the current state when it
+ * runs, so the latest state wins.
+ *
+ * Not persistent; the producer of the events (ClientRequester) does the scheduling, so events
+ * are still produced on the right job runner.
+ */
+public class ProgressCoalescer {
+
+	/** Progress notifications folded into a later one, by all requests since startup. */
+	private static final AtomicLong totalSuppressed = new AtomicLong();
+
+	/** When we last sent progress. */
+	private long lastSent = Long.MIN_VALUE;
+	/** A notification is scheduled, which will carry any progress until it runs. */
+	private boolean scheduled;
+	private long suppressed;
+
+	/**
+	 * The progress has changed. Decide when to tell the clients.
+	 * @param now The current time, in milliseconds.
+	 * @param maxPerSecond The most times a second to send progress, or 0 for no limit.
+	 * @return 0 to notify now; the delay in milliseconds after which to notify, and then call
+	 * scheduledSend(); or -1 if there is already a notification scheduled, which will include
+	 * this progress.
+	 */
+	public synchronized long onProgress(long now, int maxPerSecond) {
+		if(scheduled) {
+			suppressed++;
+			totalSuppressed.incrementAndGet();
+			return -1;
+		}
+		if(maxPerSecond > 0 && lastSent != Long.MIN_VALUE) {
+			long wait = lastSent + 1000 / maxPerSecond - now;
+			if(wait > 0) {
+				scheduled = true;
+				return wait;
+			}
+		}
+		lastSent = now;
+		return 0;
+	}
+
+	/** The scheduled notification is running now, and will send the current progress. */
+	public synchronized void scheduledSend(long now) {
+		scheduled = false;
+		lastSent = now;
+	}
+
+	/** @return The number of progress notifications for this request which were folded into a
+	 * later one. */
+	public synchronized long getSuppressed() {
+		return suppressed;
+	}
+
+	/** @return The number of progress notifications folded into a later one, by all requests
+	 * since startup. */
+	public static long getTotalSuppressed() {
+		return totalSuppressed.get();
+	}
+
+}
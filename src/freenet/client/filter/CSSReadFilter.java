@@ -53,7 +53,8 @@ public class CSSReadFilter implements ContentDataFilter, CharsetExtractor {
 			try {
 				InputStreamReader isr = new InputStreamReader(input, charset);
 				OutputStreamWriter osw = new OutputStreamWriter(output, charset);
-				r = new BufferedReader(isr, 32768);
+				// CSSTokenizerFilter does its own buffering on input.
+				r = isr;
 				w = new BufferedWriter(osw, 32768);
 
 			} catch(UnsupportedEncodingException e) {
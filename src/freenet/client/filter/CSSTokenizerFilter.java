@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import freenet.l10n.NodeL10n;
 import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
@@ -42,7 +43,16 @@ import freenet.support.io.FileBucket;
  * See end of 1.4.2.1.
  */
 class CSSTokenizerFilter {
+	/** Characters read from the Reader at a time. */
+	private static final int READ_BUFFER_SIZE = 8192;
+	/** Longest selector, declaration or rule we will hold in memory. Nothing legitimate comes
+	 * close; anything longer is rejected rather than buffered until we run out of memory. */
+	static final int MAX_BUFFERED_CHARS = 1024*1024;
+
 	private Reader r;
+	private final char[] readBuffer = new char[READ_BUFFER_SIZE];
+	private int readOffset;
+	private int readLength;
 	Writer w = null;
 	FilterCallback cb;
 	private static volatile boolean logDEBUG;
@@ -2070,6 +2080,28 @@ class CSSTokenizerFilter {
 
 
 
+	/** Read the next character through our own buffer, rather than making a (synchronized)
+	 * call to the Reader for every character.
+	 * @return The character, or -1 at the end of the stream. */
+	private int read() throws IOException {
+		if(readOffset == readLength) {
+			int x = r.read(readBuffer, 0, readBuffer.length);
+			if(x <= 0) return -1;
+			readOffset = 0;
+			readLength = x;
+		}
+		return readBuffer[readOffset++];
+	}
+
+	private static void throwTooLong() throws DataFilterException {
+		String msg = l10n("tooLong");
+		throw new DataFilterException(msg, msg, msg);
+	}
+
+	private static String l10n(String key) {
+		return NodeL10n.getBase().getString("CSSTokenizerFilter."+key);
+	}
+
 	// main function
 	public void parse() throws IOException {
 
@@ -2119,14 +2151,9 @@ class CSSTokenizerFilter {
 
 		while(true)
 		{
-			try
-			{
-				x=r.read();
-			}
-			catch(IOException e)
-			{
-				throw e;
-			}
+			x=read();
+			if(buffer.length() > MAX_BUFFERED_CHARS || filteredTokens.length() > MAX_BUFFERED_CHARS)
+				throwTooLong();
 
 			if(x==-1)
 			{
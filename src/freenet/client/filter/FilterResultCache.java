@@ -0,0 +1,241 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import freenet.client.filter.ContentFilter.FilterStatus;
+import freenet.crypt.SHA256;
+import freenet.support.Logger;
+
+/**
+ * Size-bounded in-memory cache of content filter output, keyed by the SHA-256 of the unfiltered
+ * data plus everything else the output depends on: the MIME type, the charset hint, the base URI,
+ * the scheme/host/port and the link filter exception provider. Shared resources such as a
+ * freesite's stylesheet and icons are fetched again for every page, and without this would be
+ * filtered again every time.
+ *
+ * Only small files are cached. To hash the data before filtering we read it into memory first,
+ * up to the maximum entry size; anything bigger is filtered directly as before. Filtering with a
+ * FoundURICallback or TagReplacerCallback is never cached, because those have side effects or
+ * produce per-request output, so callers must not use this class for those.
+ */
+public class FilterResultCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(FilterResultCache.class);
+	}
+
+	/** Largest unfiltered file we will cache. */
+	static final int MAX_ENTRY_SIZE = 256*1024;
+
+	private static class Key {
+		final byte[] hash;
+		final String mimeType;
+		final String charset;
+		final URI baseURI;
+		final String schemeHostAndPort;
+		final LinkFilterExceptionProvider linkFilterExceptionProvider;
+		final int hashCode;
+
+		Key(byte[] hash, String mimeType, String charset, URI baseURI, String schemeHostAndPort,
+				LinkFilterExceptionProvider linkFilterExceptionProvider) {
+			this.hash = hash;
+			this.mimeType = mimeType;
+			this.charset = charset;
+			this.baseURI = baseURI;
+			this.schemeHostAndPort = schemeHostAndPort;
+			this.linkFilterExceptionProvider = linkFilterExceptionProvider;
+			this.hashCode = Arrays.hashCode(hash) ^ Objects.hash(mimeType, charset, baseURI, schemeHostAndPort);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hashCode == k.hashCode && Arrays.equals(hash, k.hash) &&
+				Objects.equals(mimeType, k.mimeType) && Objects.equals(charset, k.charset) &&
+				Objects.equals(baseURI, k.baseURI) && Objects.equals(schemeHostAndPort, k.schemeHostAndPort) &&
+				linkFilterExceptionProvider == k.linkFilterExceptionProvider;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static class Entry {
+		final byte[] data;
+		final String charset;
+		final String mimeType;
+		/** How long filtering took, in nanoseconds. */
+		final long filterTime;
+
+		Entry(byte[] data, FilterStatus status, long filterTime) {
+			this.data = data;
+			this.charset = status.charset;
+			this.mimeType = status.mimeType;
+			this.filterTime = filterTime;
+		}
+	}
+
+	/** Access-ordered, so iteration order is least recently used first. */
+	private final LinkedHashMap<Key, Entry> entries;
+	private long maxSize;
+	private long totalSize;
+
+	private long lookups;
+	private long hits;
+	private long timeSaved;
+	private long bytesSaved;
+	private long tooBig;
+
+	/** @param maxSize Maximum total size of the cached output. 0 disables the cache. */
+	public FilterResultCache(long maxSize) {
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Filter some data, using the cache if possible. Equivalent to
+	 * ContentFilter.filter(input, output, typeName, baseURI, schemeHostAndPort, null, null,
+	 * maybeCharset, linkFilterExceptionProvider).
+	 */
+	public FilterStatus filter(InputStream input, OutputStream output, String typeName, URI baseURI,
+			String schemeHostAndPort, String maybeCharset, LinkFilterExceptionProvider linkFilterExceptionProvider)
+			throws UnsafeContentTypeException, IOException {
+		int limit = maxEntrySize();
+		if(limit <= 0)
+			return ContentFilter.filter(input, output, typeName, baseURI, schemeHostAndPort, null, null, maybeCharset, linkFilterExceptionProvider);
+		byte[] buf = readUpTo(input, limit + 1);
+		if(buf.length > limit) {
+			synchronized(this) {
+				tooBig++;
+			}
+			input = new SequenceInputStream(new ByteArrayInputStream(buf), input);
+			return ContentFilter.filter(input, output, typeName, baseURI, schemeHostAndPort, null, null, maybeCharset, linkFilterExceptionProvider);
+		}
+		Key key = new Key(SHA256.digest(buf), typeName, maybeCharset, baseURI, schemeHostAndPort, linkFilterExceptionProvider);
+		Entry entry;
+		synchronized(this) {
+			lookups++;
+			entry = entries.get(key);
+			if(entry != null) {
+				hits++;
+				timeSaved += entry.filterTime;
+				bytesSaved += buf.length;
+			}
+		}
+		if(entry != null) {
+			if(logMINOR) Logger.minor(this, "Filter cache hit for "+typeName+" at "+baseURI);
+			output.write(entry.data);
+			output.flush();
+			return new FilterStatus(entry.charset, entry.mimeType);
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(buf.length);
+		long start = System.nanoTime();
+		FilterStatus status = ContentFilter.filter(new ByteArrayInputStream(buf), baos, typeName, baseURI, schemeHostAndPort, null, null, maybeCharset, linkFilterExceptionProvider);
+		long time = System.nanoTime() - start;
+		byte[] filtered = baos.toByteArray();
+		output.write(filtered);
+		output.flush();
+		store(key, new Entry(filtered, status, time));
+		return status;
+	}
+
+	/** @return Up to length bytes, fewer only if the stream ended first. */
+	private static byte[] readUpTo(InputStream input, int length) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(length, 16384));
+		byte[] buf = new byte[4096];
+		while(baos.size() < length) {
+			int x = input.read(buf, 0, Math.min(buf.length, length - baos.size()));
+			if(x < 0) break;
+			baos.write(buf, 0, x);
+		}
+		return baos.toByteArray();
+	}
+
+	private synchronized void store(Key key, Entry entry) {
+		if(entry.data.length > maxSize) return;
+		Entry old = entries.put(key, entry);
+		if(old != null) totalSize -= old.data.length;
+		totalSize += entry.data.length;
+		shrink();
+	}
+
+	private void shrink() {
+		Iterator<Entry> it = entries.values().iterator();
+		while(totalSize > maxSize && it.hasNext()) {
+			totalSize -= it.next().data.length;
+			it.remove();
+		}
+	}
+
+	private synchronized int maxEntrySize() {
+		return (int) Math.min(MAX_ENTRY_SIZE, maxSize / 4);
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		shrink();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getLookups() {
+		return lookups;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized double getHitRatio() {
+		return lookups == 0 ? 0.0 : ((double) hits) / lookups;
+	}
+
+	/** @return The time the cache hits would have spent filtering, in milliseconds. */
+	public synchronized long getTimeSaved() {
+		return timeSaved / (1000*1000);
+	}
+
+	/** @return The amount of data which did not need to be filtered again. */
+	public synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	/** @return The number of files too big to cache. */
+	public synchronized long getTooBig() {
+		return tooBig;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		totalSize = 0;
+	}
+
+}
@@ -164,7 +164,9 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 			}
 		}
 
-		String reason = l10n("deletedURI");
+		// Only localised if we actually throw: absolute URIs that aren't keys are common, e.g. in CSS.
+		String reasonKey = "deletedURI";
+		String reasonError = null;
 
 		// Try as an absolute URI
 
@@ -207,9 +209,11 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 					// Not a FreenetURI
 					if(logMINOR) Logger.minor(this, "Malformed URL (a): "+e, e);
 					if(e.getMessage() != null) {
-						reason = l10n("malformedAbsoluteURL", "error", e.getMessage());
+						reasonKey = "malformedAbsoluteURL";
+						reasonError = e.getMessage();
 					} else {
-						reason = l10n("couldNotParseAbsoluteFreenetURI");
+						reasonKey = "couldNotParseAbsoluteFreenetURI";
+						reasonError = null;
 					}
 				}
 			}
@@ -232,9 +236,11 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 				} catch (MalformedURLException e) {
 					if(logMINOR) Logger.minor(this, "Malformed URL (b): "+e, e);
 					if(e.getMessage() != null) {
-						reason = l10n("malformedRelativeURL", "error", e.getMessage());
+						reasonKey = "malformedRelativeURL";
+						reasonError = e.getMessage();
 					} else {
-						reason = l10n("couldNotParseRelativeFreenetURI");
+						reasonKey = "couldNotParseRelativeFreenetURI";
+						reasonError = null;
 					}
 				}
 
@@ -250,7 +256,7 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 			return ExternalLinkToadlet.escape(uri.toString());
 		else {
 			if(uri.getScheme() == null) {
-				throw new CommentException(reason);
+				throw new CommentException(reasonError == null ? l10n(reasonKey) : l10n(reasonKey, "error", reasonError));
 			}
 			throw new CommentException(l10n("protocolNotEscaped", "protocol", uri.getScheme()));
 		}
@@ -55,6 +55,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 	 * In all cases we disallow text before the first valid tag. This is because if we don't,
 	 * charset detection can be ambiguous, potentially resulting in attacks. */
 	private static final boolean allowNoHTMLTag = true;
+	/** Characters read from the Reader at a time by the tokenizer. */
+	private static final int READ_BUFFER_SIZE = 8192;
 
 	// FIXME make these configurable on a per-document level.
 	// Maybe by merging with TagReplacerCallback???
@@ -81,7 +83,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		try {
 			isr = new InputStreamReader(input, charset);
 			osw = new OutputStreamWriter(output, charset);
-			r = new BufferedReader(isr, 4096);
+			// HTMLParseContext does its own buffering on input.
+			r = isr;
 			w = new BufferedWriter(osw, 4096);
 		} catch(UnsupportedEncodingException e) {
 			throw UnknownCharsetException.create(e, charset);
@@ -147,6 +150,9 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		boolean headEnded=false;
 		/** if a &lt;video&gt; or &lt;audio&gt; tag is present in the file, it makes sense to include the media player. */ 
 		boolean wasMediaElementFound=false;
+		private final char[] readBuffer = new char[READ_BUFFER_SIZE];
+		private int readOffset;
+		private int readLength;
 
 		HTMLParseContext(Reader r, Writer w, String charset, FilterCallback cb, boolean onlyDetectingCharset) {
 			this.r = r;
@@ -181,6 +187,19 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return openElements.peek();
 		}
 
+		/** Read the next character through our own buffer, avoiding a (synchronized) call to
+		 * the Reader for every character.
+		 * @return The character, or -1 at the end of the stream. */
+		private int read() throws IOException {
+			if(readOffset == readLength) {
+				int x = r.read(readBuffer, 0, readBuffer.length);
+				if(x <= 0) return -1;
+				readOffset = 0;
+				readLength = x;
+			}
+			return readBuffer[readOffset++];
+		}
+
 		void run() throws IOException, DataFilterException {
 
 			/**
@@ -218,14 +237,14 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				// If detecting charset, and found it, stop afterwards.
 				if(onlyDetectingCharset && detectedCharset != null)
 					return;
-				int x = r.read();
+				int x = read();
 				if (x == -1) {
 					switch (mode) {
 						case INTEXT :
 							if(textAllowed) {
 								saveText(b, currentTag, w, this);
 							} else {
-								if(!b.toString().trim().isEmpty())
+								if(!isBlank(b))
 									throwFilterException(l10n("textBeforeHTML"));
 							}
 							break;
@@ -277,7 +296,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().isEmpty())
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								b.setLength(0);
@@ -299,7 +318,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().isEmpty())
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 
@@ -437,7 +456,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								if(textAllowed) {
 									saveText(b, currentTag, w, this);
 								} else {
-									if(!b.toString().trim().isEmpty())
+									if(!isBlank(b))
 										throwFilterException(l10n("textBeforeHTML"));
 								}
 								balt.setLength(0);
@@ -486,8 +505,11 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		boolean killText = false; // has to be set on or off explicitly by tags
 		boolean killStyle = false;
 		int styleScriptRecurseCount = 0;
-		String currentStyleScriptChunk = "";
+		/** Contents of the current style or script element, written by the closing tag. */
+		final StringBuilder currentStyleScriptChunk = new StringBuilder();
 		StringBuilder writeAfterTag = new StringBuilder(1024);
+		/** Reused by saveText(). */
+		private char[] textBuffer = new char[1024];
 
 		public void closeXHTMLTag(String element, Writer w) throws IOException {
 			// Assume that missing closes are way more common than extra closes.
@@ -518,15 +540,39 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 
-		StringBuilder out = new StringBuilder(s.length()*2);
+		if (pc.inStyle || pc.inScript) {
+			// Script is thrown away by sanitizeScripting(), so don't keep it.
+			if (pc.inScript || pc.killStyle)
+				return;
+			// Styles are parsed elsewhere, so no escaping.
+			StringBuilder chunk = pc.currentStyleScriptChunk;
+			for(int i=0;i<s.length();i++) {
+				char c = s.charAt(i);
+				if(isControlChar(c)) {
+					if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
+					continue;
+				}
+				chunk.append(c);
+			}
+			checkStyleLength(pc);
+			return; // is parsed and written elsewhere
+		}
 
-		for(int i=0;i<s.length();i++) {
+		// Escape into a buffer kept for the whole page, rather than a new StringBuilder each time.
+		int length = s.length();
+		char[] buf = pc.textBuffer;
+		if(buf.length < length * 4)
+			buf = pc.textBuffer = new char[Math.max(length * 4, buf.length * 2)];
+		int j = 0;
+		for(int i=0;i<length;i++) {
 			char c = s.charAt(i);
-			if(c == '<' && !(pc.inStyle || pc.inScript)) {
-				//Scripts and styles parsed elsewhere
-				out.append("&lt;");
+			if(c == '<') {
+				buf[j++] = '&';
+				buf[j++] = 'l';
+				buf[j++] = 't';
+				buf[j++] = ';';
 			}
-			else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
+			else if(isControlChar(c)) {
 				// Not a real character
 				// STRONGLY suggests somebody is using a bogus charset.
 				// This could be in order to break the filter.
@@ -534,19 +580,36 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				continue;
 			}
 			else {
-				out.append(c);
+				buf[j++] = c;
 			}
 		}
-		String sout = out.toString();
 
-		if (pc.inStyle || pc.inScript) {
-			pc.currentStyleScriptChunk += sout;
-			return; // is parsed and written elsewhere
-		}
 		if(pc.cb != null)
-			pc.cb.onText(HTMLDecoder.decode(sout), tagName); /* Tag name is given as type for the text */
+			pc.cb.onText(HTMLDecoder.decode(new String(buf, 0, j)), tagName); /* Tag name is given as type for the text */
 
-		w.write(sout);
+		w.write(buf, 0, j);
+	}
+
+	/** Drop a style element as soon as it is too long for the CSS filter, rather than keeping
+	 * all of it until the closing tag. */
+	private void checkStyleLength(HTMLParseContext pc) {
+		if (pc.currentStyleScriptChunk.length() > CSSTokenizerFilter.MAX_BUFFERED_CHARS) {
+			Logger.normal(this, "Deleting style element longer than "+CSSTokenizerFilter.MAX_BUFFERED_CHARS+" characters");
+			pc.killStyle = true;
+			pc.currentStyleScriptChunk.setLength(0);
+		}
+	}
+
+	private static boolean isControlChar(char c) {
+		return (c < 32) && (c != '\t') && (c != '\n') && (c != '\r');
+	}
+
+	/** Equivalent to s.toString().trim().isEmpty(), without copying. */
+	private static boolean isBlank(CharSequence s) {
+		for(int i=0;i<s.length();i++) {
+			if(s.charAt(i) > ' ') return false;
+		}
+		return true;
 	}
 
 	static String m3uPlayerScriptTagContent() {
@@ -644,18 +707,18 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 					}else{
 						if (pc.writeStyleScriptWithTag) {
 							pc.writeStyleScriptWithTag = false;
-							String style = pc.currentStyleScriptChunk;
-							if ((style == null) || style.isEmpty())
+							StringBuilder style = pc.currentStyleScriptChunk;
+							if (style.length() == 0)
 								pc.writeAfterTag.append("<!-- "+l10n("deletedUnknownStyle")+" -->");
 							else
-								w.write(style);
-							pc.currentStyleScriptChunk = "";
+								w.append(style);
+							style.setLength(0);
 						}
 
 						t.write(w,pc);
 						if (pc.writeAfterTag.length() > 0) {
 							w.write(pc.writeAfterTag.toString());
-							pc.writeAfterTag = new StringBuilder(1024);
+							pc.writeAfterTag.setLength(0);
 						}
 					}
 				} else
@@ -666,7 +729,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 					return pc.openElements.peek();
 				if (pc.writeAfterTag.length() > 0) {
 					w.write(pc.writeAfterTag.toString());
-					pc.writeAfterTag = new StringBuilder(1024);
+					pc.writeAfterTag.setLength(0);
 				}
 				return null;
 			} else return t.element;
@@ -692,7 +755,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return; // ignore it
 
 		if (pc.inStyle || pc.inScript) {
-			pc.currentStyleScriptChunk += s;
+			if (!(pc.inScript || pc.killStyle)) {
+				pc.currentStyleScriptChunk.append(s);
+				checkStyleLength(pc);
+			}
 			return; // </style> handler should write
 		}
 		if (pc.killTag) {
@@ -844,18 +910,35 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return map;
 		}
 
+		/** Write the same as toString(), directly to the Writer. */
 		public void htmlwrite(Writer w,HTMLParseContext pc) throws IOException {
-			String s = toString();
-			if(pc.getisXHTML())
-			{
-				if(ElementInfo.isVoidElement(element) && s.charAt(s.length()-2)!='/')
-				{
-					s=s.substring(0,s.length()-1)+" />";
+			if (element == null)
+				return;
+			w.write('<');
+			// The character before the closing '>'.
+			char last = '<';
+			if (startSlash) {
+				w.write('/');
+				last = '/';
+			}
+			w.write(element);
+			if (!element.isEmpty())
+				last = element.charAt(element.length()-1);
+			if (unparsedAttrs != null) {
+				for (String attr : unparsedAttrs) {
+					w.write(' ');
+					w.write(attr);
+					last = attr.isEmpty() ? ' ' : attr.charAt(attr.length()-1);
 				}
 			}
-			if (s != null) {
-				w.write(s);
+			if (endSlash) {
+				w.write(" /");
+				last = '/';
 			}
+			if(pc.getisXHTML() && ElementInfo.isVoidElement(element) && last != '/')
+				w.write(" />");
+			else
+				w.write('>');
 		}
 
 		public void write(Writer w,HTMLParseContext pc) throws IOException {
@@ -2362,7 +2445,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				pc.writeStyleScriptWithTag = true;
 			} else {
 				pc.killStyle = false;
-				pc.currentStyleScriptChunk = "";
+				pc.currentStyleScriptChunk.setLength(0);
 			}
 			pc.expectingBadComment = false;
 			// Pass it on, no params for </style>
@@ -2415,13 +2498,16 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 
 		@Override
 		void processStyle(HTMLParseContext pc) {
+			String style;
 			try {
-				pc.currentStyleScriptChunk =
-					sanitizeStyle(pc.currentStyleScriptChunk, pc.cb, pc, false);
+				style = sanitizeStyle(pc.currentStyleScriptChunk.toString(), pc.cb, pc, false);
 			} catch (DataFilterException e) {
 				Logger.error(this, "Error parsing style: "+e, e);
-				pc.currentStyleScriptChunk = "";
+				style = null;
 			}
+			pc.currentStyleScriptChunk.setLength(0);
+			if(style != null)
+				pc.currentStyleScriptChunk.append(style);
 		}
 	}
 
@@ -2463,8 +2549,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 
 		@Override
 		void processStyle(HTMLParseContext pc) {
-			pc.currentStyleScriptChunk =
-				sanitizeScripting(pc.currentStyleScriptChunk);
+			String script = sanitizeScripting(pc.currentStyleScriptChunk.toString());
+			pc.currentStyleScriptChunk.setLength(0);
+			if(script != null)
+				pc.currentStyleScriptChunk.append(script);
 		}
 	}
 
@@ -3318,6 +3406,9 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		CSSParser pc = new CSSParser(r, w, false, cb, hpc.charset, false, isInline);
 		try {
 			pc.parse();
+		} catch (DataFilterException e) {
+			Logger.normal(HTMLFilter.class, "Rejected style: "+e, e);
+			return "/* "+l10n("couldNotParseStyle")+" */";
 		} catch (IOException e) {
 			Logger.error(
 				HTMLFilter.class,
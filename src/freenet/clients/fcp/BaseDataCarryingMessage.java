@@ -12,12 +12,29 @@ public abstract class BaseDataCarryingMessage extends FCPMessage {
 	
 	public abstract void readFrom(InputStream is, BucketFactory bf, FCPServer server) throws IOException, MessageInvalidException;
 	
+	/** Read the data from a connection handled by the FCPSelector. By default the same as 
+	 * reading it from the stream. */
+	void readFrom(InputStream is, BucketFactory bf, FCPServer server, FCPSelector.Connection connection) throws IOException, MessageInvalidException {
+		readFrom(is, bf, server);
+	}
+	
 	@Override
 	public void send(OutputStream os) throws IOException {
 		super.send(os);
 		writeData(os);
 	}
 
+	/** Send the message to a connection handled by the FCPSelector. */
+	void send(OutputStream os, FCPSelector.Connection connection) throws IOException {
+		super.send(os);
+		writeData(os, connection);
+	}
+
 	protected abstract void writeData(OutputStream os) throws IOException;
 
+	/** By default the same as writing the data to the stream. */
+	protected void writeData(OutputStream os, FCPSelector.Connection connection) throws IOException {
+		writeData(os);
+	}
+
 }
@@ -10,6 +10,7 @@ import freenet.support.SimpleFieldSet;
  *  ClientHello
  *  Name=Toad's Test Client
  *  ExpectedVersion=0.7.0
+ *  Framing=Binary // optional, see FCPBinaryCodec
  *  End
  */
 public class ClientHelloMessage extends FCPMessage {
@@ -17,6 +18,8 @@ public class ClientHelloMessage extends FCPMessage {
 	public final static String NAME = "ClientHello";
 	String clientName;
 	String clientExpectedVersion;
+	/** The client wants every message after the NodeHello to be sent as a binary frame. */
+	final boolean binaryFraming;
 	
 	public ClientHelloMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		clientName = fs.get("Name");
@@ -26,6 +29,7 @@ public class ClientHelloMessage extends FCPMessage {
 		if(clientExpectedVersion == null)
 			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "ClientHello must contain a ExpectedVersion field", null, false);
 		// FIXME check the expected version
+		binaryFraming = FCPBinaryCodec.FRAMING_BINARY.equals(fs.get("Framing"));
 	}
 
 	@Override
@@ -33,6 +37,8 @@ public class ClientHelloMessage extends FCPMessage {
 		SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putSingle("Name", clientName);
 		sfs.putSingle("ExpectedVersion", clientExpectedVersion);
+		if(binaryFraming)
+			sfs.putSingle("Framing", FCPBinaryCodec.FRAMING_BINARY);
 		return sfs;
 	}
 
@@ -44,7 +50,7 @@ public class ClientHelloMessage extends FCPMessage {
 	@Override
 	public void run(FCPConnectionHandler handler, Node node) {
 		// We know the Hello is valid.
-		FCPMessage msg = new NodeHelloMessage(handler.connectionIdentifier);
+		FCPMessage msg = new NodeHelloMessage(handler.connectionIdentifier, binaryFraming);
 		handler.send(msg);
 		handler.setClientName(clientName);
 	}
@@ -3,9 +3,14 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import freenet.client.async.PersistenceDisabledException;
 import freenet.support.Logger;
@@ -40,6 +45,13 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 
 	@Override
 	public void readFrom(InputStream is, BucketFactory bf, FCPServer server) throws IOException, MessageInvalidException {
+		readFrom(is, bf, server, null);
+	}
+
+	/** If the bucket is written to a plain file, the data is written straight from the
+	 * connection to the file. */
+	@Override
+	void readFrom(InputStream is, BucketFactory bf, FCPServer server, FCPSelector.Connection connection) throws IOException, MessageInvalidException {
 		long len = dataLength();
 		if(len < 0) return;
 		if(len == 0) {
@@ -58,7 +70,23 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
             FileUtil.copy(is, new NullOutputStream(), len);
             throw new MessageInvalidException(ProtocolErrorMessage.PERSISTENCE_DISABLED, null, getIdentifier(), isGlobal());
         }
-		BucketTools.copyFrom(tempBucket, is, len);
+		if(connection == null) {
+			BucketTools.copyFrom(tempBucket, is, len);
+		} else {
+			OutputStream os = tempBucket.getOutputStreamUnbuffered();
+			try {
+				if(os instanceof FileOutputStream) {
+					FileChannel fc = ((FileOutputStream) os).getChannel();
+					long position = fc.position();
+					connection.transferTo(fc, position, len);
+					fc.position(position + len);
+				} else {
+					FileUtil.copy(is, os, len);
+				}
+			} finally {
+				os.close();
+			}
+		}
 		this.bucket = tempBucket;
 	}
 	
@@ -68,6 +96,27 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 		if(len > 0) BucketTools.copyTo(bucket, os, len);
 		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 	}
+
+	/** If the bucket is a plain file, the data is sent straight from the file to the 
+	 * connection. */
+	@Override
+	protected void writeData(OutputStream os, FCPSelector.Connection connection) throws IOException {
+		long len = dataLength();
+		File file = len > 0 ? BucketTools.getPlainFile(bucket) : null;
+		if(file == null) {
+			writeData(os);
+			return;
+		}
+		os.flush();
+		FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if(fc.size() < len) throw new EOFException();
+			connection.transferFrom(fc, 0, len);
+		} finally {
+			fc.close();
+		}
+		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
+	}
 	
 	@Override
 	String getEndString() {
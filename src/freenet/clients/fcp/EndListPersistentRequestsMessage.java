@@ -10,15 +10,32 @@ public class EndListPersistentRequestsMessage extends FCPMessage {
 
 	static final String name = "EndListPersistentRequests";
 	private final String listRequestIdentifier;
+	/** For a paged listing, where to continue from, otherwise null. */
+	private final String cursor;
+	private final boolean hasMore;
 
 	public EndListPersistentRequestsMessage(String listRequestIdentifier) {
+		this(listRequestIdentifier, null, false);
+	}
+
+	/** End of one page of a paged listing.
+	 * @param cursor Pass this as Cursor on the next ListPersistentRequests to get the next
+	 * page.
+	 * @param hasMore False if this was the last page. */
+	EndListPersistentRequestsMessage(String listRequestIdentifier, String cursor, boolean hasMore) {
 		this.listRequestIdentifier = listRequestIdentifier;
+		this.cursor = cursor;
+		this.hasMore = hasMore;
 	}
 
 	@Override
 	public SimpleFieldSet getFieldSet() {
 		SimpleFieldSet simpleFieldSet = new SimpleFieldSet(true);
 		simpleFieldSet.putSingle("Identifier", listRequestIdentifier);
+		if(cursor != null) {
+			simpleFieldSet.putSingle("Cursor", cursor);
+			simpleFieldSet.put("HasMore", hasMore);
+		}
 		return simpleFieldSet;
 	}
 
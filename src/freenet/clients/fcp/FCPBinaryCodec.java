@@ -0,0 +1,461 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.TooLongException;
+
+/**
+ * Binary framing of FCP messages, for clients which track so many requests that writing and
+ * parsing the text protocol costs noticeable CPU time, on both ends. A client asks for it with
+ * Framing=Binary in its ClientHello. If the NodeHello also says Framing=Binary, every later
+ * message in both directions is sent as a frame:
+ *
+ * <pre>
+ * length   4 bytes, big-endian: the length of the rest of the frame, not including any data
+ * type     1 byte: the codec the message is written with
+ * body     written by the codec
+ * </pre>
+ *
+ * A frame is at most MAX_FRAME_LENGTH bytes. A longer message is split into several frames,
+ * each but the last with the top bit of its length set (see CONTINUED), and is the rest of
+ * each frame joined together, so the type is at the start of the first. Data sent with a
+ * message follows the last frame, as it follows the end marker in the text
+ * protocol. Strings are a byte count followed by UTF-8. Numbers are variable length, 7 bits a
+ * byte, least significant first; signed numbers are zig-zag encoded first.
+ *
+ * Any message can be sent with the generic codec, which writes the name, the end marker and
+ * every field. The messages sent most often while requests are running have their own codecs,
+ * which write just the values, in a fixed order. Decoding a frame gives the same name and
+ * fields as the text message, so the message set is the same either way.
+ */
+public class FCPBinaryCodec {
+
+	/** The value of the Framing field in ClientHello and NodeHello. */
+	public static final String FRAMING_BINARY = "Binary";
+	/** Frames longer than this are rejected. Longer messages are sent as several frames, so like
+	 * the text protocol, whose limit is per line, there is no limit on the whole message. */
+	public static final int MAX_FRAME_LENGTH = 64*1024;
+	/** Set in the length of a frame which the next frame continues. */
+	static final int CONTINUED = 0x80000000;
+
+	static final byte TYPE_GENERIC = 0;
+	static final byte TYPE_SIMPLE_PROGRESS = 1;
+	static final byte TYPE_SENDING_TO_NETWORK = 2;
+	static final byte TYPE_SUBSCRIBED_USK_UPDATE = 3;
+
+	private static final Codec[] CODECS;
+	private static final Map<Class<? extends FCPMessage>, Codec> CODECS_BY_CLASS;
+
+	/** Writes one type of message, and reads it back as its name and fields. */
+	private static abstract class Codec {
+
+		final byte type;
+		final Class<? extends FCPMessage> messageClass;
+
+		Codec(byte type, Class<? extends FCPMessage> messageClass) {
+			this.type = type;
+			this.messageClass = messageClass;
+		}
+
+		abstract void encode(FCPMessage msg, FrameWriter w);
+
+		abstract DecodedMessage decode(FrameReader r) throws IOException;
+
+	}
+
+	/** Writes any message as its name, end marker and fields. */
+	private static final class GenericCodec extends Codec {
+
+		GenericCodec() {
+			super(TYPE_GENERIC, null);
+		}
+
+		@Override
+		void encode(FCPMessage msg, FrameWriter w) {
+			encode(msg.getName(), msg.getEndString(), msg.getFieldSet(), w);
+		}
+
+		void encode(String name, String endMarker, SimpleFieldSet fs, FrameWriter w) {
+			w.writeString(name);
+			w.writeString(endMarker);
+			List<String> fields = new ArrayList<String>();
+			flatten(fs, "", fields);
+			w.writeVarLong(fields.size() / 2);
+			for(String s : fields)
+				w.writeString(s);
+		}
+
+		private void flatten(SimpleFieldSet fs, String prefix, List<String> fields) {
+			for(Map.Entry<String, String> entry : fs.directKeyValues().entrySet()) {
+				fields.add(prefix + entry.getKey());
+				fields.add(entry.getValue());
+			}
+			for(Map.Entry<String, SimpleFieldSet> entry : fs.directSubsets().entrySet())
+				flatten(entry.getValue(), prefix + entry.getKey() + SimpleFieldSet.MULTI_LEVEL_CHAR, fields);
+		}
+
+		@Override
+		DecodedMessage decode(FrameReader r) throws IOException {
+			String name = r.readString();
+			String endMarker = r.readString();
+			long count = r.readVarLong();
+			SimpleFieldSet fs = new SimpleFieldSet(true);
+			for(long i=0;i<count;i++) {
+				String key = r.readString();
+				String value = r.readString();
+				try {
+					fs.putOverwrite(key, value);
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Invalid field "+key+" in binary FCP message "+name);
+				}
+			}
+			fs.setEndMarker(endMarker);
+			return new DecodedMessage(name, fs);
+		}
+
+	}
+
+	private static final GenericCodec GENERIC = new GenericCodec();
+
+	static {
+		Codec simpleProgress = new Codec(TYPE_SIMPLE_PROGRESS, SimpleProgressMessage.class) {
+
+			@Override
+			void encode(FCPMessage m, FrameWriter w) {
+				SimpleProgressMessage msg = (SimpleProgressMessage) m;
+				SplitfileProgressEvent event = msg.getEvent();
+				w.writeString(msg.getIdentifier());
+				w.writeByte((msg.isGlobal() ? 1 : 0) | (event.finalizedTotal ? 2 : 0));
+				w.writeSignedVarLong(event.totalBlocks);
+				w.writeSignedVarLong(event.minSuccessfulBlocks);
+				w.writeSignedVarLong(event.failedBlocks);
+				w.writeSignedVarLong(event.fatallyFailedBlocks);
+				w.writeSignedVarLong(event.succeedBlocks);
+				w.writeSignedVarLong(event.latestSuccess != null ? event.latestSuccess.getTime() : 0);
+				w.writeSignedVarLong(event.minSuccessFetchBlocks);
+			}
+
+			@Override
+			DecodedMessage decode(FrameReader r) throws IOException {
+				SimpleFieldSet fs = new SimpleFieldSet(true);
+				String identifier = r.readString();
+				int flags = r.readByte();
+				fs.put("Total", r.readSignedVarLong());
+				fs.put("Required", r.readSignedVarLong());
+				fs.put("Failed", r.readSignedVarLong());
+				fs.put("FatallyFailed", r.readSignedVarLong());
+				fs.put("Succeeded", r.readSignedVarLong());
+				fs.put("LastProgress", r.readSignedVarLong());
+				fs.put("FinalizedTotal", (flags & 2) != 0);
+				long minSuccessFetchBlocks = r.readSignedVarLong();
+				if(minSuccessFetchBlocks != 0)
+					fs.put("MinSuccessFetchBlocks", minSuccessFetchBlocks);
+				fs.putSingle("Identifier", identifier);
+				fs.put("Global", (flags & 1) != 0);
+				fs.setEndMarker("EndMessage");
+				return new DecodedMessage("SimpleProgress", fs);
+			}
+
+		};
+		Codec sendingToNetwork = new Codec(TYPE_SENDING_TO_NETWORK, SendingToNetworkMessage.class) {
+
+			@Override
+			void encode(FCPMessage m, FrameWriter w) {
+				SendingToNetworkMessage msg = (SendingToNetworkMessage) m;
+				w.writeString(msg.identifier);
+				w.writeByte(msg.global ? 1 : 0);
+			}
+
+			@Override
+			DecodedMessage decode(FrameReader r) throws IOException {
+				SimpleFieldSet fs = new SimpleFieldSet(true);
+				fs.putSingle("Identifier", r.readString());
+				fs.put("Global", r.readByte() != 0);
+				fs.setEndMarker("EndMessage");
+				return new DecodedMessage(SendingToNetworkMessage.NAME, fs);
+			}
+
+		};
+		Codec subscribedUSKUpdate = new Codec(TYPE_SUBSCRIBED_USK_UPDATE, SubscribedUSKUpdate.class) {
+
+			@Override
+			void encode(FCPMessage m, FrameWriter w) {
+				SubscribedUSKUpdate msg = (SubscribedUSKUpdate) m;
+				w.writeString(msg.identifier);
+				w.writeSignedVarLong(msg.edition);
+				w.writeString(msg.key.getURI().toString());
+				w.writeByte((msg.newKnownGood ? 1 : 0) | (msg.newSlotToo ? 2 : 0));
+			}
+
+			@Override
+			DecodedMessage decode(FrameReader r) throws IOException {
+				SimpleFieldSet fs = new SimpleFieldSet(true);
+				fs.putSingle("Identifier", r.readString());
+				fs.put("Edition", r.readSignedVarLong());
+				fs.putSingle("URI", r.readString());
+				int flags = r.readByte();
+				fs.put("NewKnownGood", (flags & 1) != 0);
+				fs.put("NewSlotToo", (flags & 2) != 0);
+				fs.setEndMarker("EndMessage");
+				return new DecodedMessage(SubscribedUSKUpdate.name, fs);
+			}
+
+		};
+		Codec[] codecs = { GENERIC, simpleProgress, sendingToNetwork, subscribedUSKUpdate };
+		CODECS = new Codec[codecs.length];
+		CODECS_BY_CLASS = new HashMap<Class<? extends FCPMessage>, Codec>();
+		for(Codec codec : codecs) {
+			CODECS[codec.type] = codec;
+			if(codec.messageClass != null)
+				CODECS_BY_CLASS.put(codec.messageClass, codec);
+		}
+	}
+
+	/** A message read from a frame: its name, and the same fields as in the text protocol. */
+	static final class DecodedMessage {
+
+		final String name;
+		final SimpleFieldSet fs;
+
+		DecodedMessage(String name, SimpleFieldSet fs) {
+			this.name = name;
+			this.fs = fs;
+		}
+
+	}
+
+	private FCPBinaryCodec() {
+		// Static methods only.
+	}
+
+	/**
+	 * Write a message as a frame, or several if it is longer than MAX_FRAME_LENGTH, followed by
+	 * its data if it has any.
+	 * @param connection If not null, the connection os writes to, which data can be sent to
+	 * directly. See BaseDataCarryingMessage.send(OutputStream, FCPSelector.Connection).
+	 */
+	static void write(FCPMessage msg, OutputStream os, FCPSelector.Connection connection) throws IOException {
+		FrameWriter w = new FrameWriter();
+		Codec codec = CODECS_BY_CLASS.get(msg.getClass());
+		if(codec != null) {
+			w.writeByte(codec.type);
+			codec.encode(msg, w);
+		} else {
+			SimpleFieldSet fs = msg.getFieldSet();
+			if(fs == null) {
+				Logger.warning(FCPBinaryCodec.class, "Not sending message "+msg);
+				return;
+			}
+			w.writeByte(TYPE_GENERIC);
+			GENERIC.encode(msg.getName(), msg.getEndString(), fs, w);
+		}
+		w.writeTo(os);
+		if(msg instanceof BaseDataCarryingMessage) {
+			if(connection != null)
+				((BaseDataCarryingMessage) msg).writeData(os, connection);
+			else
+				((BaseDataCarryingMessage) msg).writeData(os);
+		}
+	}
+
+	/**
+	 * Read a message from a frame.
+	 * @param buf The frame, not including the length.
+	 * @throws IOException If the frame is not valid.
+	 */
+	static DecodedMessage decode(byte[] buf, int offset, int length) throws IOException {
+		FrameReader r = new FrameReader(buf, offset, length);
+		int type = r.readByte();
+		if(type >= CODECS.length)
+			throw new IOException("Unknown binary FCP message type "+type);
+		DecodedMessage msg = CODECS[type].decode(r);
+		if(!r.isEmpty())
+			throw new IOException("Junk at end of binary FCP message "+msg.name);
+		return msg;
+	}
+
+	/**
+	 * Read a message from a stream, joining its frames together if there is more than one.
+	 * @return Null if the stream ended before the message.
+	 * @throws IOException If the stream ended in the middle of the message, or it is not valid.
+	 */
+	static DecodedMessage read(InputStream is) throws IOException {
+		byte[] buf = null;
+		int count = 0;
+		while(true) {
+			int length = 0;
+			for(int i=0;i<4;i++) {
+				int b = is.read();
+				if(b < 0) {
+					if(i == 0 && buf == null) return null;
+					throw new EOFException();
+				}
+				length = (length << 8) | b;
+			}
+			boolean continued = (length & CONTINUED) != 0;
+			length &= ~CONTINUED;
+			if(length <= 0 || length > MAX_FRAME_LENGTH)
+				throw new TooLongException("Invalid binary FCP frame length "+length);
+			if(buf == null)
+				buf = new byte[length];
+			else if(buf.length - count < length)
+				// Only grows as the data arrives, like the text protocol.
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+			for(int read = 0; read < length;) {
+				int x = is.read(buf, count + read, length - read);
+				if(x < 0) throw new EOFException();
+				read += x;
+			}
+			count += length;
+			if(!continued)
+				return decode(buf, 0, count);
+		}
+	}
+
+	/** Builds a frame in a byte array, leaving room for the length. */
+	static final class FrameWriter {
+
+		private byte[] buf = new byte[128];
+		private int count = 4;
+
+		private void ensure(int bytes) {
+			if(buf.length - count < bytes)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes));
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			buf[count++] = (byte) b;
+		}
+
+		void writeVarLong(long l) {
+			ensure(10);
+			while((l & ~0x7FL) != 0) {
+				buf[count++] = (byte) ((l & 0x7F) | 0x80);
+				l >>>= 7;
+			}
+			buf[count++] = (byte) l;
+		}
+
+		void writeSignedVarLong(long l) {
+			writeVarLong((l << 1) ^ (l >> 63));
+		}
+
+		void writeString(String s) {
+			int length = s.length();
+			// Most strings are ASCII, which we can copy as we go.
+			ensure(length + 10);
+			int start = count;
+			writeVarLong(length);
+			int pos = count;
+			for(int i=0;i<length;i++) {
+				char c = s.charAt(i);
+				if(c >= 0x80) {
+					count = start;
+					byte[] b = s.getBytes(StandardCharsets.UTF_8);
+					writeVarLong(b.length);
+					ensure(b.length);
+					System.arraycopy(b, 0, buf, count, b.length);
+					count += b.length;
+					return;
+				}
+				buf[pos++] = (byte) c;
+			}
+			count = pos;
+		}
+
+		/** @return The length of the frame so far, not including the length itself. */
+		int length() {
+			return count - 4;
+		}
+
+		/** Write the length and then the frame, or several frames if it is too long for one. */
+		void writeTo(OutputStream os) throws IOException {
+			int length = length();
+			if(length <= MAX_FRAME_LENGTH) {
+				writeLength(buf, 0, length);
+				os.write(buf, 0, count);
+				return;
+			}
+			byte[] header = new byte[4];
+			for(int offset = 4; offset < count; offset += MAX_FRAME_LENGTH) {
+				int chunk = Math.min(MAX_FRAME_LENGTH, count - offset);
+				writeLength(header, 0, offset + chunk < count ? chunk | CONTINUED : chunk);
+				os.write(header);
+				os.write(buf, offset, chunk);
+			}
+		}
+
+		private static void writeLength(byte[] buf, int offset, int length) {
+			buf[offset] = (byte) (length >>> 24);
+			buf[offset+1] = (byte) (length >>> 16);
+			buf[offset+2] = (byte) (length >>> 8);
+			buf[offset+3] = (byte) length;
+		}
+
+	}
+
+	/** Reads a frame from a byte array. */
+	static final class FrameReader {
+
+		private final byte[] buf;
+		private int pos;
+		private final int end;
+
+		FrameReader(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			this.pos = offset;
+			this.end = offset + length;
+		}
+
+		int readByte() throws IOException {
+			if(pos >= end) throw new EOFException();
+			return buf[pos++] & 0xFF;
+		}
+
+		long readVarLong() throws IOException {
+			long l = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				l |= (long) (b & 0x7F) << shift;
+				if((b & 0x80) == 0) return l;
+			}
+			throw new IOException("Number too long");
+		}
+
+		long readSignedVarLong() throws IOException {
+			long l = readVarLong();
+			return (l >>> 1) ^ -(l & 1);
+		}
+
+		String readString() throws IOException {
+			long length = readVarLong();
+			if(length < 0) throw new IOException("Invalid string length "+length);
+			if(length > end - pos) throw new EOFException();
+			String s = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+			pos += (int) length;
+			return s;
+		}
+
+		boolean isEmpty() {
+			return pos == end;
+		}
+
+	}
+
+}
@@ -94,6 +94,7 @@ public class FCPConnectionHandler implements Closeable {
 	private boolean inputClosed;
 	private boolean outputClosed;
 	private String clientName;
+	private final long connectedTime;
 	private PersistentRequestClient rebootClient;
 	private PersistentRequestClient foreverClient;
 	final BucketFactory bf;
@@ -158,6 +159,7 @@ public class FCPConnectionHandler implements Closeable {
 		this.sock = s;
 		this.server = server;
 		isClosed = false;
+		this.connectedTime = System.currentTimeMillis();
 		this.bf = server.getCore().getTempBucketFactory();
 		requestsByIdentifier = new HashMap<String, ClientRequest>();
 		uskSubscriptions = new HashMap<String, SubscribeUSK>();
@@ -188,7 +190,29 @@ public class FCPConnectionHandler implements Closeable {
         outputHandler.queue(message);
     }
 
+	@SuppressWarnings("deprecation")
 	void start() {
+		server.connectionOpened(this);
+		if(sock != null && sock.getChannel() != null) {
+			try {
+				FCPSelector.Connection connection = server.getSelector().add(sock.getChannel(), inputHandler.getSelectorTask());
+				inputHandler.start(connection);
+				outputHandler.start(connection);
+				connection.start();
+				return;
+			} catch (IOException e) {
+				Logger.error(this, "Unable to use the FCP selector, using threads for "+this+" : "+e, e);
+				try {
+					sock.getChannel().configureBlocking(true);
+				} catch (IOException e1) {
+					Logger.error(this, "Unable to use connection: "+e1, e1);
+					close();
+					closedInput();
+					closedOutput();
+					return;
+				}
+			}
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -265,6 +289,7 @@ public class FCPConnectionHandler implements Closeable {
 		} catch (IOException e) {
 			// Ignore
 		}
+		server.connectionClosed(this);
 	}
 	
 	public void closedOutput() {
@@ -282,6 +307,7 @@ public class FCPConnectionHandler implements Closeable {
 		} catch (IOException e) {
 			// Ignore
 		}
+		server.connectionClosed(this);
 	}
 
 	public void setClientName(final String name) {
@@ -317,6 +343,22 @@ public class FCPConnectionHandler implements Closeable {
 		return clientName;
 	}
 
+	/** @return When the client connected, in milliseconds since the epoch. */
+	public long getConnectedTime() {
+		return connectedTime;
+	}
+
+	/** @return The number of bytes of messages and data read from the client. */
+	public long getBytesRead() {
+		return inputHandler.getBytesRead();
+	}
+
+	/** @return The number of bytes of messages and data sent to the client. */
+	@SuppressWarnings("deprecation")
+	public long getBytesWritten() {
+		return outputHandler.getBytesWritten();
+	}
+
 	// FIXME next 3 methods are in need of refactoring!
 	
 	/**
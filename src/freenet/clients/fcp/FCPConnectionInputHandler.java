@@ -6,6 +6,8 @@ package freenet.clients.fcp;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -13,7 +15,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Logger.LogLevel;
-import freenet.support.io.Closer;
+import freenet.support.io.CountedInputStream;
 import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.TooLongException;
 
@@ -32,6 +34,16 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	private InputStream is;
+	private CountedInputStream counted;
+	private LineReadingInputStream lis;
+	private boolean firstMessage = true;
+	/** Set after a ClientHello asking for binary framing: every later message is a frame. */
+	private boolean binaryFraming;
+	private volatile long bytesRead;
+	/** If not null, we don't have our own thread, and only run when the selector has read a 
+	 * complete message. */
+	private FCPSelector.Connection connection;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -43,6 +55,22 @@ public class FCPConnectionInputHandler implements Runnable {
 		handler.getServer().getNode().getExecutor().execute(this, "FCP input handler for "+handler.getSocket().getRemoteSocketAddress());
 	}
 
+	/** The Runnable to run when the selector has a complete message for this connection.
+	 * @see FCPSelector#add(java.nio.channels.SocketChannel, Runnable) */
+	Runnable getSelectorTask() {
+		return selectorTask;
+	}
+
+	/** Read from a connection handled by an FCPSelector. The selector buffers the data, so we
+	 * don't need a BufferedInputStream. */
+	void start(FCPSelector.Connection connection) {
+		this.connection = connection;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
 	@Override
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
@@ -62,92 +90,203 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	public void realRun() throws IOException {
-		InputStream is = new BufferedInputStream(handler.getSocket().getInputStream(), 4096);
-		LineReadingInputStream lis = new LineReadingInputStream(is);
-
-		boolean firstMessage = true;
-
-		while(true) {
-			SimpleFieldSet fs;
-			if(WrapperManager.hasShutdownHookBeenTriggered()) {
-				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
-				handler.send(msg);
-				Closer.close(is);
-				return;
-			}
-			// Read a message
-			String messageType = lis.readLine(128, 128, true);
-			if(messageType == null) {
-				Closer.close(is);
-				return;
-			}
-			if(messageType.isEmpty())
-				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+		counted = new CountedInputStream(handler.getSocket().getInputStream());
+		is = new BufferedInputStream(counted, 4096);
+		lis = new LineReadingInputStream(is);
 
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.send(err);
-				continue;
-			}
+		while(handleMessage()) {
+			handler.getOutputHandler().pauseInputIfBackedUp();
+		}
+	}
+
+	/** Runs the messages the selector has read, until there are no complete messages left, or 
+	 * the client needs to catch up with its replies, and then gives the connection back to the
+	 * selector. */
+	private final Runnable selectorTask = new Runnable() {
 
-			FCPMessage msg;
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.getServer().getCore().getPersistentTempBucketFactory());
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.send(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
+				if(lis == null) {
+					counted = new CountedInputStream(connection.getInputStream());
+					is = counted;
+					lis = new LineReadingInputStream(is);
+				}
+				while(handleMessage()) {
+					if(handler.getOutputHandler().pauseInputIfBackedUp())
+						return;
+					if(connection.release())
+						return;
 				}
-				continue;
+			} catch (TooLongException e) {
+				Logger.normal(this, "Caught "+e.getMessage(), e);
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
 			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-				handler.send(err);
-				handler.close();
-				Closer.close(is);
-				return;
+			handler.close();
+			handler.closedInput();
+		}
+
+	};
+
+	/**
+	 * Read and run one message.
+	 * @return False if the connection has been closed.
+	 */
+	private boolean handleMessage() throws IOException {
+		try {
+			return innerHandleMessage();
+		} finally {
+			bytesRead = connection == null ? counted.count() : counted.count() + connection.getReceivedDirect();
+		}
+	}
+
+	private boolean innerHandleMessage() throws IOException {
+		SimpleFieldSet fs;
+		if(WrapperManager.hasShutdownHookBeenTriggered()) {
+			FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+			handler.send(msg);
+			closeInput();
+			return false;
+		}
+		// Read a message
+		String messageType;
+		if(binaryFraming) {
+			FCPBinaryCodec.DecodedMessage decoded = readFrame();
+			if(decoded == null) {
+				closeInput();
+				return false;
 			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.getServer());
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
-					continue;
+			messageType = decoded.name;
+			fs = decoded.fs;
+		} else {
+			ByteBuffer header = connection == null ? null : connection.readMessage();
+			if(header != null) {
+				// The selector has the whole header in its buffer, parse it in one go.
+				byte[] buf = header.array();
+				int offset = header.position();
+				int end = header.limit();
+				int nameEnd = offset;
+				while(buf[nameEnd] != '\n') nameEnd++;
+				int next = nameEnd + 1;
+				if(buf[nameEnd-1] == '\r') nameEnd--;
+				if(nameEnd - offset > 128) throw new TooLongException("Message name too long");
+				messageType = new String(buf, offset, nameEnd - offset, StandardCharsets.UTF_8);
+				if(FCPMessage.canCreateFromReadOnly(messageType))
+					fs = SimpleFieldSet.readOnly(buf, next, end - next, true, true);
+				else
+					fs = new SimpleFieldSet(buf, next, end - next, true, true, true);
+			} else {
+				messageType = lis.readLine(128, 128, true);
+				if(messageType == null) {
+					closeInput();
+					return false;
 				}
+				if(messageType.isEmpty())
+					return true;
+				fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
 			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+		}
+
+		// check for valid endmarker
+		if (fs.getEndMarker() == null) {
+			// Cut short by the end of the stream.
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "No end marker", fs.get("Identifier"), fs.getBoolean("Global", false));
+			handler.send(err);
+			return true;
+		}
+		if (!firstMessage && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.send(err);
+			return true;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.getServer().getCore().getPersistentTempBucketFactory());
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
+				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+				handler.send(err);
+				handler.close();
+				closeInput();
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.send(err);
+			handler.close();
+			closeInput();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.getServer().getNode());
+				if(connection != null)
+					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.getServer(), connection);
+				else
+					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.getServer());
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
+				return true;
 			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.send(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.getServer().getNode());
+			if(msg instanceof ClientHelloMessage && ((ClientHelloMessage) msg).binaryFraming) {
+				binaryFraming = true;
+				if(connection != null)
+					connection.setBinaryFraming();
 			}
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.send(err);
+			return true;
+		}
+		firstMessage = false;
+		if(handler.isClosed()) {
+			closeInput();
+			return false;
+		}
+		return true;
+	}
+
+	private void closeInput() {
+		try {
+			is.close();
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e+" closing input for "+handler);
 		}
 	}
 
+	/** Read a binary frame, from the selector's buffer if it is all there, otherwise from the
+	 * stream, which is also where a message split into several frames is read from.
+	 * @return Null if the client closed the connection between messages. */
+	private FCPBinaryCodec.DecodedMessage readFrame() throws IOException {
+		ByteBuffer frame = connection == null ? null : connection.readMessage();
+		if(frame != null)
+			return FCPBinaryCodec.decode(frame.array(), frame.position(), frame.remaining());
+		return FCPBinaryCodec.read(lis);
+	}
+
 }
@@ -8,18 +8,39 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
 
 import freenet.support.LogThresholdCallback;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.CountedOutputStream;
 
 public class FCPConnectionOutputHandler implements Runnable {
 
 	final FCPConnectionHandler handler;
 	final Deque<FCPMessage> outQueue;
+	/** The SimpleProgressMessage in outQueue for each request which has one, by progressKey().
+	 * Newer progress replaces it, so a slow client gets the current state rather than every
+	 * step on the way. Synced on outQueue. */
+	private final Map<String, SimpleProgressMessage> queuedProgress;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** Synced on outQueue. The input handler is waiting for the client to catch up. */
+	private boolean inputPaused;
+	/** Synced on outQueue. Selector only: a writer is running. */
+	private boolean writing;
+	/** Synced on outQueue */
+	private long coalescedProgress;
+	private volatile long bytesWritten;
+	/** If not null, we don't have our own thread, and write to this when there is something 
+	 * queued. */
+	private FCPSelector.Connection connection;
+	private CountedOutputStream os;
+	/** Only used by the thread writing to the client. Set once the NodeHello agreeing to binary
+	 * framing has been sent. */
+	private boolean binaryFraming;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -36,6 +57,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 	public FCPConnectionOutputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
 		this.outQueue = new ArrayDeque<FCPMessage>();
+		this.queuedProgress = new HashMap<String, SimpleProgressMessage>();
 	}
 
 	void start() {
@@ -43,6 +65,15 @@ public class FCPConnectionOutputHandler implements Runnable {
 			return;
 		handler.getServer().getNode().getExecutor().execute(this, "FCP output handler for "+handler.getSocket().getRemoteSocketAddress()+ ':' +handler.getSocket().getPort());
 	}
+
+	/** Write to a connection handled by an FCPSelector, only using a thread while there is 
+	 * something to write. */
+	void start(FCPSelector.Connection connection) {
+		synchronized(outQueue) {
+			this.connection = connection;
+			os = new CountedOutputStream(new BufferedOutputStream(connection.getOutputStream(), 4096));
+		}
+	}
 	
 	@Override
 	public void run() {
@@ -67,7 +98,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 	}
  
 	private void realRun() throws IOException {
-		OutputStream os = new BufferedOutputStream(handler.getSocket().getOutputStream(), 4096);
+		CountedOutputStream os = new CountedOutputStream(new BufferedOutputStream(handler.getSocket().getOutputStream(), 4096));
 		while(true) {
 			boolean closed;
 			FCPMessage msg = null;
@@ -93,7 +124,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 							continue;
 						}
 					} else {
-						msg = outQueue.removeFirst();
+						msg = poll();
 					}
 				}
 				if(shouldFlush) {
@@ -113,12 +144,128 @@ public class FCPConnectionOutputHandler implements Runnable {
 				}
 			} else {
 				if(logMINOR) Logger.minor(this, "Sending "+msg);
-				msg.send(os);
+				send(msg, os);
+				bytesWritten = os.written();
 				flushed = false;
 			}
 		}
 	}
 
+	/** Writes the queue when we don't have our own thread. */
+	private final Runnable writer = new Runnable() {
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			try {
+				boolean flushed = true;
+				while(true) {
+					FCPMessage msg = null;
+					boolean resume = false;
+					synchronized(outQueue) {
+						if(!outQueue.isEmpty()) {
+							boolean wasPaused = inputPaused;
+							msg = poll();
+							resume = wasPaused && !inputPaused;
+						} else if(flushed && !handler.isClosed()) {
+							writing = false;
+							return;
+						}
+					}
+					if(resume)
+						connection.resume();
+					if(msg != null) {
+						if(logMINOR) Logger.minor(this, "Sending "+msg);
+						send(msg, os);
+						bytesWritten = os.written() + connection.getSentDirect();
+						flushed = false;
+					} else if(!flushed) {
+						os.flush();
+						flushed = true;
+					} else {
+						// Closed, and everything has been sent.
+						os.close();
+						break;
+					}
+				}
+			} catch (IOException e) {
+				if(logMINOR)
+					Logger.minor(this, "Caught "+e, e);
+				connection.close();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+				connection.close();
+			}
+			synchronized(outQueue) {
+				closedOutputQueue = true;
+				outQueue.notifyAll();
+			}
+			handler.close();
+			handler.closedOutput();
+		}
+
+	};
+
+	private void send(FCPMessage msg, OutputStream os) throws IOException {
+		if(binaryFraming)
+			FCPBinaryCodec.write(msg, os, connection);
+		else if(connection != null && msg instanceof BaseDataCarryingMessage)
+			((BaseDataCarryingMessage) msg).send(os, connection);
+		else
+			msg.send(os);
+		if(msg instanceof NodeHelloMessage && ((NodeHelloMessage) msg).isBinaryFraming())
+			binaryFraming = true;
+	}
+
+	/** Remove the next message from the queue. Caller must hold the outQueue lock. */
+	private FCPMessage poll() {
+		FCPMessage msg = outQueue.removeFirst();
+		if(msg instanceof SimpleProgressMessage)
+			queuedProgress.remove(progressKey((SimpleProgressMessage) msg));
+		if(inputPaused && outQueue.size() <= handler.getServer().maxMessageQueueLength() / 4) {
+			// The client has caught up.
+			inputPaused = false;
+			outQueue.notifyAll();
+		} else if(outQueue.isEmpty()) {
+			// For onClosed().
+			outQueue.notifyAll();
+		}
+		return msg;
+	}
+
+	private static String progressKey(SimpleProgressMessage msg) {
+		return msg.isGlobal() ? "G:" + msg.getIdentifier() : "L:" + msg.getIdentifier();
+	}
+
+	/**
+	 * Called by the input handler before running the next message from the client. If the
+	 * client isn't reading the messages we send, stop reading its messages until it has caught
+	 * up. With its own thread, waits for the client to catch up. With a selector, pauses the
+	 * connection, which will be resumed when the client has caught up.
+	 * @return True if the input handler should give up the connection because it has been paused.
+	 */
+	boolean pauseInputIfBackedUp() {
+		synchronized(outQueue) {
+			if(closedOutputQueue || outQueue.size() <= handler.getServer().maxMessageQueueLength() / 2)
+				return false;
+			if(logMINOR) Logger.minor(this, "Pausing input from "+handler+" : "+outQueue.size()+" messages queued");
+			inputPaused = true;
+			if(connection != null) {
+				if(connection.pause()) return true;
+				inputPaused = false;
+				return false;
+			}
+			while(inputPaused && !closedOutputQueue && !handler.isClosed()) {
+				try {
+					outQueue.wait(1000);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			return false;
+		}
+	}
+
     /**
      * @deprecated
      *     Use {@link FCPConnectionHandler#send(FCPMessage)} instead of using public access to the
@@ -145,6 +292,20 @@ public class FCPConnectionOutputHandler implements Runnable {
 				// FIXME throw something???
 				return;
 			}
+			if(msg instanceof SimpleProgressMessage) {
+				String key = progressKey((SimpleProgressMessage) msg);
+				SimpleProgressMessage old = queuedProgress.get(key);
+				if(old != null) {
+					// Not sent yet, so send the latest progress instead. At the end of the
+					// queue, so it stays after anything queued since, e.g. the request
+					// finishing.
+					outQueue.removeLastOccurrence(old);
+					outQueue.add(msg);
+					queuedProgress.put(key, (SimpleProgressMessage) msg);
+					coalescedProgress++;
+					return;
+				}
+			}
 			if(outQueue.size() >= MAX_QUEUE_LENGTH) {
 				if(neverDropAMessage) {
 					Logger.error(this, "FCP message queue length is "+outQueue.size()+" for "+handler+" - not dropping message as configured...");
@@ -154,11 +315,30 @@ public class FCPConnectionOutputHandler implements Runnable {
 				}
 			}
 			outQueue.add(msg);
-			outQueue.notifyAll();
+			if(msg instanceof SimpleProgressMessage)
+				queuedProgress.put(progressKey((SimpleProgressMessage) msg), (SimpleProgressMessage) msg);
+			if(connection == null) {
+				outQueue.notifyAll();
+				return;
+			}
+			if(writing) return;
+			writing = true;
 		}
+		startWriter();
+	}
+
+	private void startWriter() {
+		handler.getServer().getNode().getExecutor().execute(writer, "FCP output handler for "+handler.getSocket().getRemoteSocketAddress());
 	}
 
 	public void onClosed() {
+		boolean start = false;
+		synchronized(outQueue) {
+			if(connection != null && !writing && !closedOutputQueue)
+				writing = start = true;
+		}
+		// Send what's left and close.
+		if(start) startWriter();
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
@@ -175,6 +355,32 @@ public class FCPConnectionOutputHandler implements Runnable {
 		}
 	}
 
+	/** @return The number of messages waiting to be sent. */
+	public int getQueueLength() {
+		synchronized(outQueue) {
+			return outQueue.size();
+		}
+	}
+
+	/** @return The number of progress messages which were replaced by a later one before they 
+	 * could be sent. */
+	public long getCoalescedProgress() {
+		synchronized(outQueue) {
+			return coalescedProgress;
+		}
+	}
+
+	/** @return True if we have stopped reading messages from the client until it reads ours. */
+	public boolean isInputPaused() {
+		synchronized(outQueue) {
+			return inputPaused;
+		}
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
 	public boolean isQueueHalfFull() {
 		int MAX_QUEUE_LENGTH = handler.getServer().maxMessageQueueLength();
 		synchronized(outQueue) {
@@ -53,9 +53,8 @@ public abstract class FCPMessage {
 			return;
 		}
 		sfs.setEndMarker(getEndString());
-		String msg = sfs.toString();
 		os.write((getName()+ '\n').getBytes(StandardCharsets.UTF_8));
-		os.write(msg.getBytes(StandardCharsets.UTF_8));
+		os.write(sfs.toByteArray());
 		if(logDEBUG) {
 			Logger.debug(this, "Outgoing FCP message:\n"+getName()+'\n'+sfs.toString());
 			Logger.debug(this, "Being handled by "+this);
@@ -158,6 +157,20 @@ public abstract class FCPMessage {
 		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "Unknown message name "+name, null, false);
 	}
 	
+	/**
+	 * Can the message be created from a read-only SimpleFieldSet (see
+	 * {@link SimpleFieldSet#readOnly(byte[], int, int, boolean, boolean)})? Only true for the
+	 * common messages whose constructors just read their fields; others may change the
+	 * SimpleFieldSet or keep it.
+	 */
+	static boolean canCreateFromReadOnly(String name) {
+		return name.equals(ClientGetMessage.NAME) || name.equals(ClientPutMessage.NAME) ||
+			name.equals(ClientHelloMessage.NAME) || name.equals(GetRequestStatusMessage.NAME) ||
+			name.equals(ListPersistentRequestsMessage.NAME) ||
+			name.equals(ModifyPersistentRequest.NAME) || name.equals(RemovePersistentRequest.NAME) ||
+			name.equals(WatchGlobal.NAME);
+	}
+
 	/**
 	 * Create a message from a SimpleFieldSet, and the message's name, if possible. 
 	 * Useful for FCPClients
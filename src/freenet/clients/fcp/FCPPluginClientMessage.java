@@ -5,6 +5,7 @@ package freenet.clients.fcp;
 
 import java.io.IOException;
 
+import freenet.clients.fcp.FCPPluginConnection.MessageQueueFullException;
 import freenet.clients.fcp.FCPPluginConnection.SendDirection;
 import freenet.node.FSParseException;
 import freenet.node.Node;
@@ -206,6 +207,10 @@ public class FCPPluginClientMessage extends DataCarryingMessage {
             // function then, we don't have to try the old interface.
             try {
                 serverConnection.send(SendDirection.ToServer, message);
+            } catch (MessageQueueFullException e) {
+                // The plugin is alive but busy, so the client may send the message again later.
+                throw new MessageInvalidException(ProtocolErrorMessage.PLUGIN_QUEUE_FULL,
+                    e.getMessage(), identifier, false);
             } catch (IOException e) {
                 throw new MessageInvalidException(ProtocolErrorMessage.NO_SUCH_PLUGIN,
                     pluginname + " not found or is not a FCPPlugin", identifier, false);
@@ -113,6 +113,22 @@ public interface FCPPluginConnection {
         }
     }
 
+    /**
+     * Thrown by the send functions if the remote side is a
+     * {@link FredPluginFCPMessageHandler.QueuedMessageHandler} whose queue for this connection is
+     * full.<br>
+     * Unlike other {@link IOException}s, this does NOT mean that the connection is dead: The
+     * message was not sent, and you may send it again once the remote side has caught up. You
+     * should slow down your sending then.
+     */
+    public static final class MessageQueueFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MessageQueueFullException(String message) {
+            super(message);
+        }
+    }
+
     /**
      * Can be used by both server and client implementations to send messages to each other.<br>
      * The messages sent by this function will be delivered to the remote side at either:
@@ -177,7 +193,9 @@ public interface FCPPluginConnection {
      * @throws IOException
      *     If the connection has been closed meanwhile.<br/>
      *     This FCPPluginConnection <b>should be</b> considered as dead once this happens, you
-     *     should then discard it and obtain a fresh one.
+     *     should then discard it and obtain a fresh one.<br/>
+     *     Except if it is a {@link MessageQueueFullException}: Then the remote side is too busy
+     *     to accept the message, and you may retry it later on the same connection.
      * 
      *     <p><b>ATTENTION:</b> If this is not thrown, that does NOT mean that the connection is
      *     alive. Messages are sent asynchronously, so it can happen that a closed connection is not
@@ -361,7 +379,9 @@ public interface FCPPluginConnection {
      *     If the given timeout expired before a reply was received <b>or</b> if the connection has
      *     been closed before even sending the message.<br>
      *     This FCPPluginConnection <b>should be</b> considered as dead once this happens, you
-     *     should then discard it and obtain a fresh one.
+     *     should then discard it and obtain a fresh one.<br>
+     *     Except if it is a {@link MessageQueueFullException}: Then the message was not sent
+     *     because the remote side is too busy, and you may retry it later on the same connection.
      * @throws InterruptedException
      *     If another thread called {@link Thread#interrupt()} upon the thread which you used to
      *     execute this function.<br>
@@ -6,6 +6,7 @@ package freenet.clients.fcp;
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.EnumMap;
 import java.util.TreeMap;
 import java.util.UUID;
@@ -14,12 +15,14 @@ import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import freenet.clients.fcp.FCPPluginConnection.MessageQueueFullException;
 import freenet.clients.fcp.FCPPluginMessage.ClientPermissions;
 import freenet.node.NodeStarter;
 import freenet.node.PrioRunnable;
 import freenet.pluginmanager.FredPluginFCPMessageHandler;
 import freenet.pluginmanager.FredPluginFCPMessageHandler.ClientSideFCPMessageHandler;
 import freenet.pluginmanager.FredPluginFCPMessageHandler.PrioritizedMessageHandler;
+import freenet.pluginmanager.FredPluginFCPMessageHandler.QueuedMessageHandler;
 import freenet.pluginmanager.FredPluginFCPMessageHandler.ServerSideFCPMessageHandler;
 import freenet.pluginmanager.PluginManager;
 import freenet.pluginmanager.PluginNotFoundException;
@@ -117,6 +120,18 @@ import freenet.support.io.NativeThread;
  *   from its database.
  *   <br/>This mechanism also works for networked FCP.<br>
  * </p></p>
+ * 
+ * <h2>Delivery to local message handlers</h2>
+ * <p>By default, each message to a local {@link FredPluginFCPMessageHandler} is handled in a
+ * thread of its own on the {@link #executor}, so messages of a connection are handled in parallel
+ * and in no particular order.<br>
+ * If the message handler implements {@link QueuedMessageHandler}, the messages are instead added
+ * to a bounded {@link MessageQueue} of the connection, one for each {@link SendDirection}. A single
+ * thread at once handles up to {@link #MESSAGE_BATCH_SIZE} messages of the queue in order, and
+ * the send functions throw {@link MessageQueueFullException} once the queue is full. This avoids
+ * the cost of a thread per message for plugins which exchange very many messages.<br>
+ * In both cases, the latency and handling time of each message is counted in the
+ * {@link FCPPluginMessageStats} for the server plugin.</p>
  */
 final class FCPPluginConnectionImpl implements FCPPluginConnection {
     
@@ -152,6 +167,26 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
      */
     private final Executor executor;
 
+    /**
+     * Where we count the messages delivered to local message handlers, for the
+     * {@link #serverPluginName}.
+     */
+    private final FCPPluginMessageStats stats;
+
+    /**
+     * Maximal number of messages which a {@link MessageQueue} handles before it gives up its
+     * thread and continues in a fresh one, so a busy connection does not keep a thread forever
+     * and the priority is recomputed now and then.
+     */
+    static final int MESSAGE_BATCH_SIZE = 64;
+
+    /**
+     * For each {@link SendDirection}, the queue of messages waiting for a
+     * {@link QueuedMessageHandler}. Not used for other message handlers.
+     */
+    private final EnumMap<SendDirection, MessageQueue> messageQueues
+        = new EnumMap<SendDirection, MessageQueue>(SendDirection.class);
+
     /**
      * The class name of the plugin to which this FCPPluginConnectionImpl is connected.
      */
@@ -306,25 +341,29 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
      * The client is not running within the node, it is attached by network with a
      * {@link FCPConnectionHandler}.<br/>
      * 
-     * @see #constructForNetworkedFCP(FCPPluginConnectionTracker, Executor, PluginManager, String,
-     *      FCPConnectionHandler)
+     * @see #constructForNetworkedFCP(FCPPluginConnectionTracker, Executor,
+     *      FCPPluginMessageStats, PluginManager, String, FCPConnectionHandler)
      *     The public interface to this constructor.
      */
     private FCPPluginConnectionImpl(FCPPluginConnectionTracker tracker, Executor executor,
-            String serverPluginName, ServerSideFCPMessageHandler serverPlugin,
+            FCPPluginMessageStats stats, String serverPluginName, ServerSideFCPMessageHandler serverPlugin,
             FCPConnectionHandler clientConnection) {
         
         assert(tracker != null);
         assert(executor != null);
+        assert(stats != null);
         assert(serverPlugin != null);
         assert(serverPluginName != null);
         assert(clientConnection != null);
         
         this.executor = executor;
+        this.stats = stats;
         this.serverPluginName = serverPluginName;
         this.server = new WeakReference<ServerSideFCPMessageHandler>(serverPlugin);
         this.client = null;
         this.clientConnection = clientConnection;
+        for(SendDirection direction : SendDirection.values())
+            this.messageQueues.put(direction, new MessageQueue(direction));
         this.defaultSendDirectionAdapters.put(SendDirection.ToServer,
                 new SendToServerAdapter(this));
         // new SendToClientAdapter() will need to query this connection from the tracker already.
@@ -359,7 +398,7 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
      *   {@link WeakReference} to the FCPPluginConnectionImpl.<br>
      */
     static FCPPluginConnectionImpl constructForNetworkedFCP(FCPPluginConnectionTracker tracker,
-            Executor executor, PluginManager serverPluginManager,
+            Executor executor, FCPPluginMessageStats stats, PluginManager serverPluginManager,
             String serverPluginName, FCPConnectionHandler clientConnection)
                 throws PluginNotFoundException {
         
@@ -369,7 +408,7 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
         assert(serverPluginName != null);
         assert(clientConnection != null);
         
-        return new FCPPluginConnectionImpl(tracker, executor, serverPluginName,
+        return new FCPPluginConnectionImpl(tracker, executor, stats, serverPluginName,
             serverPluginManager.getPluginFCPServer(serverPluginName), clientConnection);
     }
 
@@ -383,25 +422,29 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
      * The client's message handler is accessible as an implementor of
      * {@link ClientSideFCPMessageHandler}.<br>
      * 
-     * @see #constructForIntraNodeFCP(FCPPluginConnectionTracker, Executor, PluginManager, String,
-     *      ClientSideFCPMessageHandler)
+     * @see #constructForIntraNodeFCP(FCPPluginConnectionTracker, Executor,
+     *      FCPPluginMessageStats, PluginManager, String, ClientSideFCPMessageHandler)
      *     The public interface to this constructor.
      */
     private FCPPluginConnectionImpl(FCPPluginConnectionTracker tracker, Executor executor,
-            String serverPluginName, ServerSideFCPMessageHandler server,
+            FCPPluginMessageStats stats, String serverPluginName, ServerSideFCPMessageHandler server,
             ClientSideFCPMessageHandler client) {
         
         assert(tracker != null);
         assert(executor != null);
+        assert(stats != null);
         assert(serverPluginName != null);
         assert(server != null);
         assert(client != null);
         
         this.executor = executor;
+        this.stats = stats;
         this.serverPluginName = serverPluginName;
         this.server = new WeakReference<ServerSideFCPMessageHandler>(server);
         this.client = client;
         this.clientConnection = null;
+        for(SendDirection direction : SendDirection.values())
+            this.messageQueues.put(direction, new MessageQueue(direction));
         this.defaultSendDirectionAdapters.put(SendDirection.ToServer,
                 new SendToServerAdapter(this));
         // new SendToClientAdapter() will need to query this connection from the tracker already.
@@ -438,7 +481,7 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
      *   {@link WeakReference} to the FCPPluginConnectionImpl.<br>
      */
     static FCPPluginConnectionImpl constructForIntraNodeFCP(FCPPluginConnectionTracker tracker,
-            Executor executor, PluginManager serverPluginManager,
+            Executor executor, FCPPluginMessageStats stats, PluginManager serverPluginManager,
             String serverPluginName, ClientSideFCPMessageHandler client)
                 throws PluginNotFoundException {
         
@@ -447,7 +490,7 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
         assert(serverPluginName != null);
         assert(client != null);
         
-        return new FCPPluginConnectionImpl(tracker, executor, serverPluginName,
+        return new FCPPluginConnectionImpl(tracker, executor, stats, serverPluginName,
             serverPluginManager.getPluginFCPServer(serverPluginName), client);
     }
     
@@ -479,8 +522,8 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
         assert(client != null);
         FCPPluginConnectionTracker tracker = new FCPPluginConnectionTracker();
         tracker.start();
-        return new FCPPluginConnectionImpl(
-            tracker, new PooledExecutor(), server.toString(), server, client);
+        return new FCPPluginConnectionImpl(tracker, new PooledExecutor(),
+            new FCPPluginMessageStats(), server.toString(), server, client);
     }
     
     @Override
@@ -537,6 +580,20 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
 
     @Override
     public void send(final SendDirection direction, FCPPluginMessage message) throws IOException {
+        send(direction, message, false);
+    }
+
+    /**
+     * Implementation of {@link #send(SendDirection, FCPPluginMessage)}.
+     * 
+     * @param isReplyToDeliveredMessage
+     *     True if the message is the reply which a local message handler returned for a message
+     *     delivered to it. Such replies are accepted by a {@link MessageQueue} even if it is full:
+     *     They cannot be sent again later, and are limited by the number of messages the other
+     *     queue accepted.
+     */
+    private void send(final SendDirection direction, FCPPluginMessage message,
+            boolean isReplyToDeliveredMessage) throws IOException {
         // We first have to compute the message.permissions field ourselves - we shall ignore what
         // caller said for security.
         ClientPermissions currentClientPermissions = (direction == SendDirection.ToClient) ?
@@ -605,7 +662,11 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
         
         // We now have the right FredPluginFCPMessageHandler, it is still alive, and so we can can
         // pass the message to it.
-        dispatchMessageLocallyToMessageHandler(messageHandler, direction, message);
+        if(messageHandler instanceof QueuedMessageHandler) {
+            messageQueues.get(direction).add(messageHandler, message, isReplyToDeliveredMessage);
+        } else {
+            dispatchMessageLocallyToMessageHandler(messageHandler, direction, message);
+        }
     }
     
     /**
@@ -731,7 +792,7 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
 
     /**
      * Backend for {@link #send(SendDirection, FCPPluginMessage)} to dispatch messages to a
-     * {@link FredPluginFCPMessageHandler}.<br><br>
+     * {@link FredPluginFCPMessageHandler} which is not a {@link QueuedMessageHandler}.<br><br>
      * 
      * This shall only be called for messages for which it was determined that the message handler
      * is a plugin running in the local VM.<br><br>
@@ -742,162 +803,321 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
             final FredPluginFCPMessageHandler messageHandler, final SendDirection direction,
             final FCPPluginMessage message) {
         
+        final long sentTime = System.nanoTime();
+        
         final Runnable messageDispatcher = new PrioRunnable() {
             @Override
             public void run() {
-                FCPPluginMessage reply = null;
-                
-                try {
-                    try {
-                        reply = messageHandler.handlePluginFCPMessage(
-                            getDefaultSendDirectionAdapter(direction.invert()), message);
-                    } catch(Error e) {
-                        // TODO: Code quality: This is a workaround for Java 6 not having
-                        // "catch(RuntimeException | Error e)". Once we are on Java 7, remove this
-                        // catch() block, and catch both types with the catch() block below.
-                        throw new RuntimeException(e);
-                    }
-                } catch(RuntimeException e) {
-                    // The message handler is a server or client implementation, and thus as third
-                    // party code might have bugs. So we need to catch any undeclared throwables.
-                    // Notice that this is not normal mode of operation: Instead of throwing,
-                    // the JavaDoc requests message handlers to return a reply with success=false.
-                    
-                    String errorMessage = "FredPluginFCPMessageHandler threw."
-                        + " See JavaDoc of its member interfaces for how signal errors properly."
-                        + " connection = " + FCPPluginConnectionImpl.this
-                        + "; SendDirection = " + direction
-                        + "; message = " + message;
-                    
-                    Logger.error(messageHandler, errorMessage, e);
-                    
-                    if(!message.isReplyMessage()) {
-                        // If the original message was not a reply already, we are allowed to send a
-                        // reply with success=false to indicate the error to the remote side.
-                        // This allows possibly existing, waiting sendSynchronous() calls to fail
-                        // quickly instead of having to wait for the timeout because no reply
-                        // arrives.
-                        reply = FCPPluginMessage.constructReplyMessage(message, null, null, false,
-                            "InternalError", errorMessage + "; Throwable = " + e.toString());
-                    }
-                }
-                
-                if(reply != null) {
-                    // TODO: Performance: The below checks might be converted to assert() or
-                    // be prefixed with if(logMINOR).
-                    // Not doing this now since the FredPluginFCPMessageHandler API which specifies
-                    // those requirements is new and thus quite a few client applications might be
-                    // converted to it soon, and do those beginners mistakes.
-                    // After everyone has gotten used to it, we can move to the more lax checking.
-                    // An alternate solution would be to not use the FCPPluginMessage object
-                    // which was returned by the message handler but always re-construct it to
-                    // follow the standards.
-
-                    // Replying to replies is disallowed to prevent infinite bouncing.
-                    if(message.isReplyMessage()) {
-                        Logger.error(messageHandler, "FredPluginFCPMessageHandler tried to send a"
-                            + " reply to a reply. Discarding it. See JavaDoc of its member"
-                            + " interfaces for how to do this properly."
-                            + " connection = " + FCPPluginConnectionImpl.this
-                            + "; original message SendDirection = " + direction
-                            + "; original message = " + message
-                            + "; reply = " + reply);
-                        
-                        reply = null;
-                    } else if(!reply.isReplyMessage()) {
-                        Logger.error(messageHandler, "FredPluginFCPMessageHandler tried to send a"
-                            + " non-reply message as reply. See JavaDoc of its member interfaces"
-                            + " for how to do this properly."
-                            + " connection = " + FCPPluginConnectionImpl.this
-                            + "; original message SendDirection = " + direction
-                            + "; original message = " + message
-                            + "; reply = " + reply);
-
-                        reply = null;
-                    } else if(!reply.identifier.equals(message.identifier)) {
-                        Logger.error(messageHandler, "FredPluginFCPMessageHandler tried to send a"
-                            + " reply with with different identifier than original message."
-                            + " See JavaDoc of its member interfaces for how to do this properly."
-                            + " connection = " + FCPPluginConnectionImpl.this
-                            + "; original message SendDirection = " + direction
-                            + "; original message = " + message
-                            + "; reply = " + reply);
-
-                        reply = null;
-                    }
-                } else if(reply == null) {
-                    if(!message.isReplyMessage()) {
-                        // The message handler did not not ship a reply even though it would have
-                        // been allowed to because the original message was not a reply.
-                        // This shouldn't be done: Not sending a success reply at least will cause
-                        // sendSynchronous() threads to keep waiting for the reply until timeout.
-                        Logger.warning(
-                            messageHandler, "Fred did not receive a reply from the message "
-                                          + "handler even though it was allowed to reply. "
-                                          + "This would cause sendSynchronous() to timeout! "
-                                          + " connection = " + FCPPluginConnectionImpl.this
-                                          + "; SendDirection = " + direction
-                                          + "; message = " + message);
-                    }
-                }
-                
-                // We already tried to set a reply if one is needed. If it is still null now, then
-                // we do not have to send one for sure, so we can return.
-                if(reply == null) {
-                    return;
-                }
-                
-                try {
-                    send(direction.invert(), reply);
-                } catch (IOException e) {
-                    // The remote partner has disconnected, which can happen during normal
-                    // operation.
-                    // There is nothing we can do to get the IOException out to the caller of the
-                    // initial send() of the original message which triggered the reply sending.
-                    // - We are in a different thread, the initial send() has returned already.
-                    // So we just log it, because it still might indicate problems if we try to
-                    // send after disconnection.
-                    // We log it marked as from the messageHandler instead of the
-                    // FCPPluginConnectionImpl:
-                    // The messageHandler will be an object of the server or client plugin,
-                    // from a class contained in it. So there is a chance that the developer
-                    // has logging enabled for that class, and thus we log it marked as from that.
-                    
-                    Logger.warning(messageHandler, "Sending reply from FredPluginFCPMessageHandler"
-                        + " failed, the connection was closed already."
-                        + " connection = " + FCPPluginConnectionImpl.this
-                        + "; original message SendDirection = " + direction
-                        + "; original message = " + message
-                        + "; reply = " + reply, e);
-                }
+                handleMessage(messageHandler, direction, message, sentTime);
             }
 
             @Override
             public int getPriority() {
-                NativeThread.PriorityLevel priority = NativeThread.PriorityLevel.NORM_PRIORITY;
-                
-                if(messageHandler instanceof PrioritizedMessageHandler) {
-                    try {
-                        priority = ((PrioritizedMessageHandler)messageHandler).getPriority(message);
-                    } catch(Throwable t) {
-                        Logger.error(messageHandler, "Message handler's getPriority() threw!", t);
-                    }
-                }
-                
-                return priority.value;
+                return getMessagePriority(messageHandler, message).value;
             }
 
             /** @return A suitable {@link String} for use as the name of this thread */
             @Override public String toString() {
-                // Don't use FCPPluginConnection.toString() as it would be too long to fit in
-                // the thread list on the Freenet FProxy web interface.
-                return "FCPPluginConnection for " + serverPluginName;
+                return getThreadName();
             }
         };
         
         executor.execute(messageDispatcher, messageDispatcher.toString());
     }
 
+    /**
+     * Passes a message to a local {@link FredPluginFCPMessageHandler} and sends the reply which it
+     * returns, if any. Runs on a thread of the {@link #executor}.
+     * 
+     * @param sentTime
+     *     The {@link System#nanoTime()} at which the message was sent, to compute its latency.
+     */
+    private void handleMessage(final FredPluginFCPMessageHandler messageHandler,
+            final SendDirection direction, final FCPPluginMessage message, final long sentTime) {
+        
+        FCPPluginMessage reply = null;
+        final long startTime = System.nanoTime();
+        
+        try {
+            try {
+                reply = messageHandler.handlePluginFCPMessage(
+                    getDefaultSendDirectionAdapter(direction.invert()), message);
+            } catch(Error e) {
+                // TODO: Code quality: This is a workaround for Java 6 not having
+                // "catch(RuntimeException | Error e)". Once we are on Java 7, remove this
+                // catch() block, and catch both types with the catch() block below.
+                throw new RuntimeException(e);
+            }
+        } catch(RuntimeException e) {
+            // The message handler is a server or client implementation, and thus as third
+            // party code might have bugs. So we need to catch any undeclared throwables.
+            // Notice that this is not normal mode of operation: Instead of throwing,
+            // the JavaDoc requests message handlers to return a reply with success=false.
+            
+            String errorMessage = "FredPluginFCPMessageHandler threw."
+                + " See JavaDoc of its member interfaces for how signal errors properly."
+                + " connection = " + this
+                + "; SendDirection = " + direction
+                + "; message = " + message;
+            
+            Logger.error(messageHandler, errorMessage, e);
+            
+            if(!message.isReplyMessage()) {
+                // If the original message was not a reply already, we are allowed to send a
+                // reply with success=false to indicate the error to the remote side.
+                // This allows possibly existing, waiting sendSynchronous() calls to fail
+                // quickly instead of having to wait for the timeout because no reply
+                // arrives.
+                reply = FCPPluginMessage.constructReplyMessage(message, null, null, false,
+                    "InternalError", errorMessage + "; Throwable = " + e.toString());
+            }
+        }
+        final long endTime = System.nanoTime();
+        stats.delivered(serverPluginName, startTime - sentTime, endTime - startTime);
+        
+        if(reply != null) {
+            // TODO: Performance: The below checks might be converted to assert() or
+            // be prefixed with if(logMINOR).
+            // Not doing this now since the FredPluginFCPMessageHandler API which specifies
+            // those requirements is new and thus quite a few client applications might be
+            // converted to it soon, and do those beginners mistakes.
+            // After everyone has gotten used to it, we can move to the more lax checking.
+            // An alternate solution would be to not use the FCPPluginMessage object
+            // which was returned by the message handler but always re-construct it to
+            // follow the standards.
+
+            // Replying to replies is disallowed to prevent infinite bouncing.
+            if(message.isReplyMessage()) {
+                Logger.error(messageHandler, "FredPluginFCPMessageHandler tried to send a"
+                    + " reply to a reply. Discarding it. See JavaDoc of its member"
+                    + " interfaces for how to do this properly."
+                    + " connection = " + this
+                    + "; original message SendDirection = " + direction
+                    + "; original message = " + message
+                    + "; reply = " + reply);
+                
+                reply = null;
+            } else if(!reply.isReplyMessage()) {
+                Logger.error(messageHandler, "FredPluginFCPMessageHandler tried to send a"
+                    + " non-reply message as reply. See JavaDoc of its member interfaces"
+                    + " for how to do this properly."
+                    + " connection = " + this
+                    + "; original message SendDirection = " + direction
+                    + "; original message = " + message
+                    + "; reply = " + reply);
+
+                reply = null;
+            } else if(!reply.identifier.equals(message.identifier)) {
+                Logger.error(messageHandler, "FredPluginFCPMessageHandler tried to send a"
+                    + " reply with with different identifier than original message."
+                    + " See JavaDoc of its member interfaces for how to do this properly."
+                    + " connection = " + this
+                    + "; original message SendDirection = " + direction
+                    + "; original message = " + message
+                    + "; reply = " + reply);
+
+                reply = null;
+            }
+        } else if(reply == null) {
+            if(!message.isReplyMessage()) {
+                // The message handler did not not ship a reply even though it would have
+                // been allowed to because the original message was not a reply.
+                // This shouldn't be done: Not sending a success reply at least will cause
+                // sendSynchronous() threads to keep waiting for the reply until timeout.
+                Logger.warning(
+                    messageHandler, "Fred did not receive a reply from the message "
+                                  + "handler even though it was allowed to reply. "
+                                  + "This would cause sendSynchronous() to timeout! "
+                                  + " connection = " + this
+                                  + "; SendDirection = " + direction
+                                  + "; message = " + message);
+            }
+        }
+        
+        // We already tried to set a reply if one is needed. If it is still null now, then
+        // we do not have to send one for sure, so we can return.
+        if(reply == null) {
+            return;
+        }
+        
+        try {
+            send(direction.invert(), reply, true);
+        } catch (IOException e) {
+            // The remote partner has disconnected, which can happen during normal
+            // operation.
+            // There is nothing we can do to get the IOException out to the caller of the
+            // initial send() of the original message which triggered the reply sending.
+            // - We are in a different thread, the initial send() has returned already.
+            // So we just log it, because it still might indicate problems if we try to
+            // send after disconnection.
+            // We log it marked as from the messageHandler instead of the
+            // FCPPluginConnectionImpl:
+            // The messageHandler will be an object of the server or client plugin,
+            // from a class contained in it. So there is a chance that the developer
+            // has logging enabled for that class, and thus we log it marked as from that.
+            
+            Logger.warning(messageHandler, "Sending reply from FredPluginFCPMessageHandler"
+                + " failed, the connection was closed already."
+                + " connection = " + this
+                + "; original message SendDirection = " + direction
+                + "; original message = " + message
+                + "; reply = " + reply, e);
+        }
+    }
+
+    /**
+     * @return
+     *     The thread priority for handling the message, as specified by the message handler if it
+     *     is a {@link PrioritizedMessageHandler}.
+     */
+    private static NativeThread.PriorityLevel getMessagePriority(
+            FredPluginFCPMessageHandler messageHandler, FCPPluginMessage message) {
+        
+        NativeThread.PriorityLevel priority = NativeThread.PriorityLevel.NORM_PRIORITY;
+        
+        if(messageHandler instanceof PrioritizedMessageHandler) {
+            try {
+                priority = ((PrioritizedMessageHandler)messageHandler).getPriority(message);
+            } catch(Throwable t) {
+                Logger.error(messageHandler, "Message handler's getPriority() threw!", t);
+            }
+        }
+        
+        return priority;
+    }
+
+    /** @return A suitable {@link String} for use as the name of message handling threads */
+    private String getThreadName() {
+        // Don't use FCPPluginConnection.toString() as it would be too long to fit in
+        // the thread list on the Freenet FProxy web interface.
+        return "FCPPluginConnection for " + serverPluginName;
+    }
+
+    /** A message waiting in a {@link MessageQueue}. */
+    private static final class QueuedMessage {
+        final FredPluginFCPMessageHandler messageHandler;
+        final FCPPluginMessage message;
+        /** The {@link System#nanoTime()} at which the message was queued. */
+        final long sentTime;
+
+        QueuedMessage(FredPluginFCPMessageHandler messageHandler, FCPPluginMessage message,
+                long sentTime) {
+            this.messageHandler = messageHandler;
+            this.message = message;
+            this.sentTime = sentTime;
+        }
+    }
+
+    /**
+     * The messages of one {@link SendDirection} which are waiting for a
+     * {@link QueuedMessageHandler}.<br><br>
+     * 
+     * When the first message is added to an empty queue, the queue schedules itself on the
+     * {@link #executor}. That thread handles the messages in order, one after another, until the
+     * queue is empty or it has handled {@link #MESSAGE_BATCH_SIZE} of them; in the latter case it
+     * schedules itself again. So there is at most one thread for each queue, and none if it is
+     * empty.
+     */
+    private final class MessageQueue implements PrioRunnable {
+        private final SendDirection direction;
+
+        /** Guarded by this MessageQueue. */
+        private final ArrayDeque<QueuedMessage> messages = new ArrayDeque<QueuedMessage>();
+
+        /** True while a thread is scheduled or running to handle the messages. Guarded by this
+         *  MessageQueue. */
+        private boolean running = false;
+
+        MessageQueue(SendDirection direction) {
+            this.direction = direction;
+        }
+
+        /**
+         * @param messageHandler Must implement {@link QueuedMessageHandler}.
+         * @param force
+         *     If true, add the message even if the queue is full. For replies to delivered
+         *     messages.
+         * @throws MessageQueueFullException If the queue is full and force is false.
+         */
+        void add(FredPluginFCPMessageHandler messageHandler, FCPPluginMessage message,
+                boolean force) throws MessageQueueFullException {
+            
+            int capacity = getCapacity(messageHandler);
+            boolean start;
+            synchronized(this) {
+                if(!force && messages.size() >= capacity) {
+                    stats.rejected(serverPluginName);
+                    throw new MessageQueueFullException("Too many messages waiting for the "
+                        + (direction == SendDirection.ToServer ? "server" : "client")
+                        + ", capacity " + capacity + ": " + FCPPluginConnectionImpl.this);
+                }
+                messages.add(new QueuedMessage(messageHandler, message, System.nanoTime()));
+                start = !running;
+                running = true;
+            }
+            if(start)
+                executor.execute(this, getThreadName());
+        }
+
+        private int getCapacity(FredPluginFCPMessageHandler messageHandler) {
+            try {
+                return Math.max(1,
+                    ((QueuedMessageHandler)messageHandler).getMessageQueueCapacity());
+            } catch(Throwable t) {
+                Logger.error(messageHandler, "Message handler's getMessageQueueCapacity() threw!",
+                    t);
+                return 1;
+            }
+        }
+
+        @Override
+        public void run() {
+            for(int i = 0; i < MESSAGE_BATCH_SIZE; ++i) {
+                QueuedMessage queued;
+                synchronized(this) {
+                    queued = messages.poll();
+                    if(queued == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    handleMessage(queued.messageHandler, direction, queued.message,
+                        queued.sentTime);
+                } catch(Throwable t) {
+                    // handleMessage() already catches what the message handler throws, so this is
+                    // a bug in fred. Carry on anyway, or the queue would stall for ever.
+                    Logger.error(this, "Handling queued message failed: " + queued.message, t);
+                }
+            }
+            synchronized(this) {
+                if(messages.isEmpty()) {
+                    running = false;
+                    return;
+                }
+            }
+            // Give up the thread, and continue in a fresh one with the priority of the next
+            // message.
+            executor.execute(this, getThreadName());
+        }
+
+        @Override
+        public int getPriority() {
+            QueuedMessage first;
+            synchronized(this) {
+                first = messages.peek();
+            }
+            if(first == null)
+                return NativeThread.PriorityLevel.NORM_PRIORITY.value;
+            return getMessagePriority(first.messageHandler, first.message).value;
+        }
+
+        /** @return The number of messages waiting. */
+        synchronized int size() {
+            return messages.size();
+        }
+    }
+
     @Override
     public FCPPluginMessage sendSynchronous(SendDirection direction, FCPPluginMessage message,
             long timeoutNanoSeconds)
@@ -1263,4 +1483,23 @@ final class FCPPluginConnectionImpl implements FCPPluginConnection {
             synchronousSendsLock.readLock().unlock();
         }
     }
+
+    /**
+     * ATTENTION: For unit test use only.
+     * 
+     * @return
+     *     The number of messages waiting in the {@link MessageQueue} of the given direction.
+     */
+    int getMessageQueueLength(SendDirection direction) {
+        return messageQueues.get(direction).size();
+    }
+
+    /**
+     * ATTENTION: For unit test use only.
+     * 
+     * @return The {@link FCPPluginMessageStats} in which this connection counts its messages.
+     */
+    FCPPluginMessageStats getMessageStats() {
+        return stats;
+    }
 }
@@ -0,0 +1,121 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the messages which {@link FCPPluginConnectionImpl} delivers to message handlers in this
+ * node, for each server plugin, to show how busy and how responsive plugins are.<br><br>
+ *
+ * Messages in both directions of a connection are counted for its server plugin, so messages to
+ * intra-node client plugins are included. Messages to networked FCP clients are not, they are
+ * handled by the FCP connection instead.<br>
+ * The latency is the time a message waited between being sent and its handler being called; the
+ * handling time is how long the handler took.<br><br>
+ *
+ * Counting doesn't lock, so plugins don't wait for each other, or for someone looking at the
+ * stats. A snapshot reads the counters one at a time, so it may include part of a message which
+ * is being counted at the same time.
+ */
+public final class FCPPluginMessageStats {
+
+    /** The stats of a single server plugin. */
+    private static final class Counters {
+        final long startTime = System.currentTimeMillis();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+        final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+        final LongAdder handlingNanos = new LongAdder();
+    }
+
+    private final ConcurrentHashMap<String, Counters> countersByPlugin =
+        new ConcurrentHashMap<String, Counters>();
+
+    /** A snapshot of the stats of a single server plugin. */
+    public static final class Stats {
+        /** Number of messages which were passed to a message handler. */
+        public final long delivered;
+        /** Number of messages which were refused because the queue was full. */
+        public final long rejected;
+        /** Total time the delivered messages waited before being handled. */
+        public final long latencyNanos;
+        /** Longest time a delivered message waited before being handled. */
+        public final long maxLatencyNanos;
+        /** Total time the message handler took for the delivered messages. */
+        public final long handlingNanos;
+        /** When the first message for the plugin was counted. */
+        public final long startTime;
+
+        private Stats(Counters counters) {
+            delivered = counters.delivered.sum();
+            rejected = counters.rejected.sum();
+            latencyNanos = counters.latencyNanos.sum();
+            maxLatencyNanos = counters.maxLatencyNanos.get();
+            handlingNanos = counters.handlingNanos.sum();
+            startTime = counters.startTime;
+        }
+
+        /** @return The average time delivered messages waited before being handled. */
+        public long getAverageLatency(TimeUnit unit) {
+            return delivered == 0 ? 0 : unit.convert(latencyNanos / delivered, TimeUnit.NANOSECONDS);
+        }
+
+        /** @return The average time the handler took for a message. */
+        public long getAverageHandlingTime(TimeUnit unit) {
+            return delivered == 0 ? 0 : unit.convert(handlingNanos / delivered, TimeUnit.NANOSECONDS);
+        }
+
+        /** @return Delivered messages per second since the first message. */
+        public double getThroughput(long now) {
+            return delivered * 1000.0 / Math.max(1000, now - startTime);
+        }
+    }
+
+    private Counters getCounters(String serverPluginName) {
+        Counters counters = countersByPlugin.get(serverPluginName);
+        if(counters == null) {
+            Counters newCounters = new Counters();
+            counters = countersByPlugin.putIfAbsent(serverPluginName, newCounters);
+            if(counters == null)
+                counters = newCounters;
+        }
+        return counters;
+    }
+
+    /** Count a message which a message handler has handled. */
+    void delivered(String serverPluginName, long latencyNanos, long handlingNanos) {
+        Counters counters = getCounters(serverPluginName);
+        counters.delivered.increment();
+        counters.latencyNanos.add(latencyNanos);
+        counters.maxLatencyNanos.accumulate(latencyNanos);
+        counters.handlingNanos.add(handlingNanos);
+    }
+
+    /** Count a message which was refused because the queue was full. */
+    void rejected(String serverPluginName) {
+        getCounters(serverPluginName).rejected.increment();
+    }
+
+    /** @return The stats of the given server plugin, or null if it has not had any messages. */
+    public Stats getStats(String serverPluginName) {
+        Counters counters = countersByPlugin.get(serverPluginName);
+        return counters == null ? null : new Stats(counters);
+    }
+
+    /** @return The stats of all server plugins which have had messages, by plugin name. */
+    public Map<String, Stats> getStats() {
+        Map<String, Stats> ret = new TreeMap<String, Stats>();
+        for(Map.Entry<String, Counters> entry : countersByPlugin.entrySet())
+            ret.put(entry.getKey(), new Stats(entry.getValue()));
+        return ret;
+    }
+
+}
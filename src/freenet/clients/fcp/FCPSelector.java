@@ -0,0 +1,571 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Multiplexes FCP connections on one thread, so an idle connection doesn't need any thread at
+ * all. The selector thread reads from each connection until it has a complete message (or its
+ * buffer is full), and only then hands the connection to a thread from the executor, which parses
+ * and runs messages with the same blocking code as a threaded connection, until the buffer runs
+ * out of complete messages. Output is written by a thread only while there is something queued.
+ * A thread which would block on the channel waits for the selector to say it is ready instead.
+ *
+ * Input from a client is paused while its output queue is backed up, so a client which doesn't
+ * read its replies can't make the node queue more and more messages for it.
+ */
+class FCPSelector implements PrioRunnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(FCPSelector.class);
+	}
+
+	/** Size of each connection's input buffer. A longer message is read by its input thread. */
+	static final int BUFFER_SIZE = 16*1024;
+	/** How often a thread waiting for the channel checks whether it has been closed. */
+	private static final long CHECK_CLOSED_INTERVAL = SECONDS.toMillis(1);
+
+	private final Executor executor;
+	private final Selector selector;
+	/** Connections whose interest ops need updating by the selector thread. */
+	private final ArrayDeque<Connection> toUpdate = new ArrayDeque<Connection>();
+	private int openConnections;
+
+	FCPSelector(Executor executor) throws IOException {
+		this.executor = executor;
+		this.selector = Selector.open();
+	}
+
+	void start() {
+		executor.execute(this, "FCP selector");
+	}
+
+	/**
+	 * Add a newly accepted connection. The selector doesn't read from it until start() is called
+	 * on the returned connection, so the caller can set up its handlers first.
+	 * @param input Reads and runs the messages in the buffer. Run on an executor thread when
+	 * a complete message has arrived, or the connection has been closed.
+	 */
+	Connection add(SocketChannel channel, Runnable input) throws IOException {
+		channel.configureBlocking(false);
+		Connection c = new Connection(channel, input);
+		synchronized(this) {
+			openConnections++;
+		}
+		return c;
+	}
+
+	synchronized int getOpenConnections() {
+		return openConnections;
+	}
+
+	void close() {
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to close FCP selector: "+e, e);
+		}
+	}
+
+	private void update(Connection c) {
+		synchronized(toUpdate) {
+			toUpdate.add(c);
+		}
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				selector.select();
+				applyUpdates();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()) continue;
+					((Connection) key.attachment()).ready(key);
+				}
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in FCP selector", t);
+			}
+		}
+	}
+
+	private void applyUpdates() {
+		while(true) {
+			Connection c;
+			synchronized(toUpdate) {
+				c = toUpdate.poll();
+			}
+			if(c == null) return;
+			int ops = c.interestOps();
+			SelectionKey key = c.channel.keyFor(selector);
+			try {
+				if(ops < 0) {
+					if(key != null) key.cancel();
+				} else if(key == null) {
+					c.channel.register(selector, ops, c);
+				} else {
+					key.interestOps(ops);
+				}
+			} catch (ClosedChannelException e) {
+				c.close();
+			} catch (CancelledKeyException e) {
+				c.close();
+			}
+		}
+	}
+
+	@Override
+	public int getPriority() {
+		return NativeThread.PriorityLevel.HIGH_PRIORITY.value;
+	}
+
+	/**
+	 * One FCP connection. Either idle, with the selector thread reading into the buffer, or busy,
+	 * with an input thread reading from the buffer and the channel. Output may be written at any
+	 * time, by one thread at a time.
+	 */
+	class Connection {
+
+		final SocketChannel channel;
+		private final Runnable input;
+		/** Data read but not used yet, from start to buffer.position(). */
+		private final ByteBuffer buffer;
+		private int start;
+		/** Messages are binary frames rather than text. */
+		private volatile boolean binaryFraming;
+		private final ConnectionInputStream in;
+		private final OutputStream out;
+		// Protected by this.
+		/** An input thread is running. */
+		private boolean busy;
+		/** Don't read any more messages until resumed. */
+		private boolean paused;
+		/** Operations threads are waiting for. */
+		private int waitingOps;
+		private boolean closed;
+		/** Bytes sent by transferFrom(). Only changed by the output thread. */
+		private volatile long sentDirect;
+		/** Bytes received by transferTo(). Only changed by the input thread. */
+		private volatile long receivedDirect;
+
+		Connection(SocketChannel channel, Runnable input) {
+			this.channel = channel;
+			this.input = input;
+			this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			this.in = new ConnectionInputStream();
+			this.out = new ConnectionOutputStream();
+		}
+
+		/** Start reading from the connection. */
+		void start() {
+			update(this);
+		}
+
+		/** Reads the connection. Only to be used by the input thread. */
+		InputStream getInputStream() {
+			return in;
+		}
+
+		/** Writes to the connection. Only to be used by one thread at a time. */
+		OutputStream getOutputStream() {
+			return out;
+		}
+
+		/** @return The interest ops for the selector, or -1 to cancel the key. */
+		private synchronized int interestOps() {
+			if(closed) return -1;
+			int ops = waitingOps;
+			if(!busy && !paused)
+				ops |= SelectionKey.OP_READ;
+			return ops;
+		}
+
+		/** Called on the selector thread. */
+		private void ready(SelectionKey key) {
+			int readyOps = key.readyOps();
+			boolean dispatch = false;
+			synchronized(this) {
+				if((waitingOps & readyOps) != 0) {
+					waitingOps &= ~readyOps;
+					notifyAll();
+				}
+				if(busy || paused || (readyOps & SelectionKey.OP_READ) == 0 || closed) {
+					// Only the input thread may read now.
+				} else {
+					try {
+						int read = fill();
+						if(read < 0 || hasMessage() || isFull())
+							busy = dispatch = true;
+					} catch (IOException e) {
+						if(logMINOR) Logger.minor(this, "Caught "+e+" reading "+this);
+						// Let the input thread find out.
+						busy = dispatch = true;
+					}
+				}
+				int ops = interestOps();
+				if(ops < 0)
+					key.cancel();
+				else
+					key.interestOps(ops);
+			}
+			if(dispatch)
+				executor.execute(input, "FCP input handler for "+channel.socket().getRemoteSocketAddress());
+		}
+
+		/**
+		 * Called by the input thread when it has finished with the messages it can run without
+		 * blocking, unless paused.
+		 * @return False if there is another complete message already, which the input thread
+		 * should handle now, or the connection has been closed and the input thread should
+		 * find out and clean up, or true if the connection has gone back to the selector.
+		 */
+		boolean release() {
+			synchronized(this) {
+				if(closed || (!paused && (hasMessage() || isFull()))) return false;
+				busy = false;
+			}
+			update(this);
+			return true;
+		}
+
+		/** Called by the input thread instead of release() to stop reading from the client,
+		 * until resume() is called.
+		 * @return False if the connection has been closed, so the input thread should carry on
+		 * and clean up. */
+		boolean pause() {
+			synchronized(this) {
+				if(closed) return false;
+				paused = true;
+				busy = false;
+			}
+			update(this);
+			return true;
+		}
+
+		/** Start reading from the client again, after pause(). */
+		void resume() {
+			boolean dispatch = false;
+			synchronized(this) {
+				if(!paused) return;
+				paused = false;
+				if(!busy && (hasMessage() || isFull() || closed))
+					busy = dispatch = true;
+			}
+			update(this);
+			if(dispatch)
+				executor.execute(input, "FCP input handler for "+channel.socket().getRemoteSocketAddress());
+		}
+
+		synchronized boolean isPaused() {
+			return paused;
+		}
+
+		/** Close the channel. Unless an input thread is already running, runs one, to find
+		 * that the connection is closed and clean up. */
+		void close() {
+			boolean dispatch = false;
+			synchronized(this) {
+				if(closed) return;
+				closed = true;
+				notifyAll();
+				if(!busy)
+					busy = dispatch = true;
+			}
+			synchronized(FCPSelector.this) {
+				openConnections--;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Caught "+e+" closing "+this);
+			}
+			update(this);
+			if(dispatch)
+				executor.execute(input, "FCP input handler for closed connection");
+		}
+
+		/** Wait until the selector says the channel is ready for op. */
+		private void await(int op) throws IOException {
+			synchronized(this) {
+				if(closed) throw new ClosedChannelException();
+				waitingOps |= op;
+			}
+			update(this);
+			synchronized(this) {
+				while((waitingOps & op) != 0) {
+					if(closed || !channel.isOpen()) throw new ClosedChannelException();
+					try {
+						wait(CHECK_CLOSED_INTERVAL);
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+
+		/** Read whatever is available from the channel into the buffer, without blocking. */
+		private int fill() throws IOException {
+			if(start == buffer.position()) {
+				start = 0;
+				buffer.clear();
+			} else if(!buffer.hasRemaining() && start > 0) {
+				buffer.flip();
+				buffer.position(start);
+				buffer.compact();
+				start = 0;
+			}
+			if(!buffer.hasRemaining()) return 0;
+			return channel.read(buffer);
+		}
+
+		/**
+		 * Send part of a file to the client with FileChannel.transferTo(), so the data doesn't
+		 * have to be copied through the Java heap. Only to be used by the thread writing to the
+		 * output stream, after flushing anything it has buffered.
+		 * @throws EOFException If the file is shorter than position + count.
+		 */
+		void transferFrom(FileChannel fc, long position, long count) throws IOException {
+			while(count > 0) {
+				long moved = fc.transferTo(position, count, channel);
+				if(moved == 0) {
+					if(position >= fc.size()) throw new EOFException();
+					await(SelectionKey.OP_WRITE);
+					continue;
+				}
+				position += moved;
+				count -= moved;
+				sentDirect += moved;
+			}
+		}
+
+		/**
+		 * Write data from the client to a file, starting with what is already in the buffer, and
+		 * then with FileChannel.transferFrom() from the channel. Only to be used by the input
+		 * thread, after reading everything up to the data through the input stream.
+		 * @throws EOFException If the client disconnects before sending count bytes.
+		 */
+		void transferTo(FileChannel fc, long position, long count) throws IOException {
+			while(count > 0) {
+				long moved;
+				if(start < buffer.position()) {
+					ByteBuffer bb = ByteBuffer.wrap(buffer.array(), start, (int) Math.min(count, buffer.position() - start));
+					moved = fc.write(bb, position);
+					start += moved;
+				} else {
+					moved = fc.transferFrom(channel, position, count);
+					// transferFrom() doesn't tell us whether it stopped at the end of the stream.
+					if(moved == 0 && !in.waitForData())
+						throw new EOFException();
+				}
+				position += moved;
+				count -= moved;
+				receivedDirect += moved;
+			}
+		}
+
+		long getSentDirect() {
+			return sentDirect;
+		}
+
+		long getReceivedDirect() {
+			return receivedDirect;
+		}
+
+		private boolean isFull() {
+			return start == 0 && !buffer.hasRemaining();
+		}
+
+		/** Is there a complete message header in the buffer, i.e. a message name, and then
+		 * lines up to an end marker, which is the first line without an '=', other than empty
+		 * lines and # comments, which SimpleFieldSet skips? Or with binary 
+		 * framing, a whole frame. Any data sent with the message may still be on its way. */
+		boolean hasMessage() {
+			return messageEnd() >= 0;
+		}
+
+		/** @return The index just after the end marker of the first complete message header in 
+		 * the buffer, or -1. */
+		private int messageEnd() {
+			if(binaryFraming) {
+				if(buffer.position() - start < 4) return -1;
+				int length = buffer.getInt(start);
+				// A frame which won't fit in the buffer, or is continued by the next frame
+				// (a negative length), or isn't valid, is read through the input stream.
+				if(length <= 0 || length > buffer.capacity() - 4) return start + 4;
+				if(length > buffer.position() - start - 4) return -1;
+				return start + 4 + length;
+			}
+			byte[] buf = buffer.array();
+			int end = buffer.position();
+			int i = skipEmptyLines();
+			int lineStart = i;
+			boolean first = true;
+			boolean sawEquals = false;
+			for(;i<end;i++) {
+				byte b = buf[i];
+				if(b == '=') {
+					sawEquals = true;
+				} else if(b == '\n') {
+					if(!first && !sawEquals) {
+						int lineEnd = i;
+						if(lineEnd > lineStart && buf[lineEnd-1] == '\r') lineEnd--;
+						if(lineEnd > lineStart && buf[lineStart] != '#') return i + 1;
+					}
+					first = false;
+					sawEquals = false;
+					lineStart = i + 1;
+				}
+			}
+			return -1;
+		}
+
+		/** Messages from now on are binary frames, see FCPBinaryCodec. Only to be used by the input
+		 * thread. */
+		void setBinaryFraming() {
+			binaryFraming = true;
+		}
+
+		/** Empty lines between messages are ignored. */
+		private int skipEmptyLines() {
+			byte[] buf = buffer.array();
+			int end = buffer.position();
+			int i = start;
+			while(i < end && (buf[i] == '\r' || buf[i] == '\n'))
+				i++;
+			return i;
+		}
+
+		/**
+		 * If there is a complete message header in the buffer, consume it, so it can be parsed
+		 * without going through the input stream a line at a time. Only to be used by the input
+		 * thread.
+		 * @return The message name and fields, up to and including the end marker, or with binary
+		 * framing the frame without its length, as a view of the buffer which is only valid 
+		 * until the next read from this connection; or null if the buffer doesn't contain a 
+		 * complete message header.
+		 */
+		ByteBuffer readMessage() {
+			if(binaryFraming) {
+				if(buffer.position() - start < 4) return null;
+				int length = buffer.getInt(start);
+				if(length <= 0 || length > buffer.position() - start - 4) return null;
+				start += 4 + length;
+				return ByteBuffer.wrap(buffer.array(), start - length, length);
+			}
+			int end = messageEnd();
+			if(end < 0) return null;
+			int from = skipEmptyLines();
+			start = end;
+			return ByteBuffer.wrap(buffer.array(), from, end - from);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+channel;
+		}
+
+		/** Reads from the buffer, then from the channel, waiting for the selector if necessary. */
+		private class ConnectionInputStream extends InputStream {
+
+			@Override
+			public int read() throws IOException {
+				if(start == buffer.position() && !waitForData())
+					return -1;
+				return buffer.get(start++) & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int offset, int length) throws IOException {
+				if(length == 0) return 0;
+				if(start == buffer.position()) {
+					if(length >= buffer.capacity()) {
+						// Read a big block of data straight into the caller's array.
+						while(true) {
+							int read = channel.read(ByteBuffer.wrap(b, offset, length));
+							if(read != 0) return read;
+							await(SelectionKey.OP_READ);
+						}
+					}
+					if(!waitForData()) return -1;
+				}
+				int x = Math.min(length, buffer.position() - start);
+				System.arraycopy(buffer.array(), start, b, offset, x);
+				start += x;
+				return x;
+			}
+
+			/** @return False on EOF. */
+			boolean waitForData() throws IOException {
+				while(true) {
+					int read = fill();
+					if(read < 0) return false;
+					if(read > 0) return true;
+					await(SelectionKey.OP_READ);
+				}
+			}
+
+			@Override
+			public int available() {
+				return buffer.position() - start;
+			}
+
+		}
+
+		/** Writes to the channel, waiting for the selector if necessary. Not buffered. */
+		private class ConnectionOutputStream extends OutputStream {
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int offset, int length) throws IOException {
+				ByteBuffer buf = ByteBuffer.wrap(b, offset, length);
+				while(buf.hasRemaining()) {
+					if(channel.write(buf) == 0)
+						await(SelectionKey.OP_WRITE);
+				}
+			}
+
+			@Override
+			public void close() {
+				Connection.this.close();
+			}
+
+		}
+
+	}
+
+}
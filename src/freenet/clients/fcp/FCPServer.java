@@ -8,7 +8,9 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
@@ -93,6 +95,8 @@ public class FCPServer implements Runnable, DownloadCache {
     /** Stores {@link FCPPluginConnectionImpl} objects by ID and automatically garbage collects them
      *  so we don't have to bloat this class with that. */
 	final FCPPluginConnectionTracker pluginConnectionTracker;
+    /** Latency and throughput of the messages delivered to plugins by FCPPluginConnections. */
+	final FCPPluginMessageStats pluginMessageStats = new FCPPluginMessageStats();
 	final WeakHashMap<String, PersistentRequestClient> rebootClientsByName;
 
 	/**
@@ -142,7 +146,8 @@ public class FCPServer implements Runnable, DownloadCache {
 	}
 
 	public void load() {
-	    globalForeverClient.updateRequestStatusCache();
+	    System.out.println("Loading cache of request statuses...");
+	    persistentRoot.updateRequestStatusCaches();
 	}
 
 	private void maybeGetNetworkInterface() {
@@ -153,7 +158,7 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.getExecutor(), true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.getExecutor(), true);
+				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.getExecutor(), true, true);
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -218,6 +223,39 @@ public class FCPServer implements Runnable, DownloadCache {
 		ch.start();
 	}
 
+	/** Handles connections which have a channel, so idle clients don't need any threads. */
+	private FCPSelector selector;
+
+	synchronized FCPSelector getSelector() throws IOException {
+		if(selector == null) {
+			selector = new FCPSelector(node.getExecutor());
+			selector.start();
+		}
+		return selector;
+	}
+
+	/** Open connections from FCP clients. */
+	private final Set<FCPConnectionHandler> connections = new HashSet<FCPConnectionHandler>();
+
+	void connectionOpened(FCPConnectionHandler handler) {
+		synchronized(connections) {
+			connections.add(handler);
+		}
+	}
+
+	void connectionClosed(FCPConnectionHandler handler) {
+		synchronized(connections) {
+			connections.remove(handler);
+		}
+	}
+
+	/** @return The connections from FCP clients which are currently open. */
+	public FCPConnectionHandler[] getConnections() {
+		synchronized(connections) {
+			return connections.toArray(new FCPConnectionHandler[connections.size()]);
+		}
+	}
+
 	static class FCPPortNumberCallback extends IntCallback  {
 
 		private final NodeClientCore node;
@@ -531,8 +569,8 @@ public class FCPServer implements Runnable, DownloadCache {
             throws PluginNotFoundException {
         
         FCPPluginConnectionImpl connection = FCPPluginConnectionImpl.constructForNetworkedFCP(
-            pluginConnectionTracker, node.getExecutor(), node.getPluginManager(),
-            serverPluginName, messageHandler);
+            pluginConnectionTracker, node.getExecutor(), pluginMessageStats,
+            node.getPluginManager(), serverPluginName, messageHandler);
         // The constructor function already did this for us
         /* pluginConnectionTracker.registerConnection(connection); */
         return connection;
@@ -570,13 +608,18 @@ public class FCPServer implements Runnable, DownloadCache {
                 throws PluginNotFoundException {
         
         FCPPluginConnectionImpl connection = FCPPluginConnectionImpl.constructForIntraNodeFCP(
-            pluginConnectionTracker, node.getExecutor(), node.getPluginManager(),
-            serverPluginName, messageHandler);
+            pluginConnectionTracker, node.getExecutor(), pluginMessageStats,
+            node.getPluginManager(), serverPluginName, messageHandler);
         // The constructor function already did this for us
         /* pluginConnectionTracker.registerConnection(connection); */
         return connection.getDefaultSendDirectionAdapter(SendDirection.ToServer);
     }
 
+    /** @return Latency and throughput of the messages delivered to plugins, by plugin. */
+    public FCPPluginMessageStats getPluginMessageStats() {
+        return pluginMessageStats;
+    }
+
     /**
      * <p><b>The documentation of {@link FCPPluginConnectionTracker#getConnection(UUID)} applies to
      * this function.</b></p>
@@ -653,6 +696,16 @@ public class FCPServer implements Runnable, DownloadCache {
 		return v.toArray(new RequestStatus[v.size()]);
 	}
 
+	/** Get the status of a single request on the global queue, or null if there is no such
+	 * request. Much cheaper than getGlobalRequests() when only one request is needed. */
+	public RequestStatus getGlobalRequestStatus(String identifier) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		RequestStatus status = globalRebootClient.getRequestStatusCache().getStatus(identifier);
+		if(status == null && globalForeverClient != null)
+			status = globalForeverClient.getRequestStatusCache().getStatus(identifier);
+		return status;
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, PersistenceDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, core.getClientContext())) {
 			final CountDownLatch done = new CountDownLatch(1);
@@ -974,6 +1027,13 @@ public class FCPServer implements Runnable, DownloadCache {
 		globalRebootClient.addRequestCompletionCallback(cb);
 	}
 
+	/** Be told when the progress of a request on the global queue changes. */
+	public void addGlobalRequestStatusListener(RequestStatusCache.Listener listener) {
+		if(globalForeverClient != null)
+			globalForeverClient.getRequestStatusCache().addListener(listener);
+		globalRebootClient.getRequestStatusCache().addListener(listener);
+	}
+
 	/** Start a request on the global queue. Return after it has started, 
 	 * e.g. it will show up on the queue page, it will persist after 
 	 * restart etc. Actually it won't persist until the next commit, but 
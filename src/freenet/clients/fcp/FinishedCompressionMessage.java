@@ -4,6 +4,7 @@
 package freenet.clients.fcp;
 
 import freenet.client.events.FinishedCompressionEvent;
+import freenet.client.events.FinishedCompressionEvent.CodecAttempt;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.compress.Compressor;
@@ -15,12 +16,14 @@ public class FinishedCompressionMessage extends FCPMessage {
 	final int codec;
 	final long origSize;
 	final long compressedSize;
+	final CodecAttempt[] attempts;
 
 	public FinishedCompressionMessage(String identifier, boolean global, FinishedCompressionEvent event) {
 		this.identifier = identifier;
 		this.codec = event.codec;
 		this.compressedSize = event.compressedSize;
 		this.origSize = event.originalSize;
+		this.attempts = event.attempts;
 		this.global = global;
 	}
 
@@ -36,6 +39,18 @@ public class FinishedCompressionMessage extends FCPMessage {
 		fs.put("OriginalSize", origSize);
 		fs.put("CompressedSize", compressedSize);
 		fs.put("Global", global);
+		for(CodecAttempt attempt : attempts) {
+			Compressor.COMPRESSOR_TYPE type = Compressor.COMPRESSOR_TYPE.getCompressorByMetadataID(attempt.codec);
+			if(type == null) continue;
+			String prefix = "Codecs."+type.name()+".";
+			fs.put(prefix+"Time", attempt.time);
+			fs.put(prefix+"Aborted", attempt.aborted);
+			if(attempt.compressedSize >= 0) {
+				fs.put(prefix+"CompressedSize", attempt.compressedSize);
+				if(origSize > 0)
+					fs.put(prefix+"Ratio", (double)attempt.compressedSize / origSize);
+			}
+		}
 		return fs;
 	}
 
@@ -3,25 +3,126 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import freenet.client.async.ClientContext;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.client.async.PersistentJob;
+import freenet.clients.fcp.RequestStatusCache.State;
 import freenet.node.Node;
+import freenet.node.RequestStarter;
 import freenet.support.SimpleFieldSet;
 import freenet.support.io.NativeThread;
 
+/**
+ * FCP message: List persistent requests.
+ *
+ * With no other fields, sends the full PersistentGet, PersistentPut etc messages, and any
+ * progress and completion messages, for every request on the client's queue, and on the global
+ * queue if watching it, then EndListPersistentRequests.
+ *
+ * Giving any of the fields below instead lists one page of the same requests, the client's own
+ * and the global queue's if watching it, as a PersistentRequestSummary per request, from the
+ * caches of request statuses:
+ *
+ * ListPersistentRequests
+ * Identifier=list identifier
+ * MaxRequests=100 // at most this many requests, default 100, at most 1000
+ * Cursor=... // from the previous EndListPersistentRequests, to get the next page
+ * State=running // only requests which are running, finished or failed
+ * PriorityClass=4 // only requests with this priority
+ * IdentifierPrefix=MyApp- // only requests whose identifier starts with this
+ * EndMessage
+ *
+ * The EndListPersistentRequests then includes the Cursor for the next page, and HasMore=false
+ * on the last page. Requests are listed in the order they were added, so polling from the last
+ * cursor returns just the new ones.
+ */
 public class ListPersistentRequestsMessage extends FCPMessage {
 
 	static final String NAME = "ListPersistentRequests";
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 1000;
 	private final String identifier;
+	/** List a page of summaries rather than everything. */
+	private final boolean paged;
+	private final int maxRequests;
+	/** Where the page starts in each cache: the client's reboot queue, the client's forever
+	 * queue, the global reboot queue, then the global forever queue. */
+	private final long[] cursor;
+	private final State state;
+	/** Negative means any priority. */
+	private final short priorityClass;
+	private final String identifierPrefix;
 
-	public ListPersistentRequestsMessage(SimpleFieldSet fs) {
+	public ListPersistentRequestsMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
+		String max = fs.get("MaxRequests");
+		String cursor = fs.get("Cursor");
+		String state = fs.get("State");
+		String prio = fs.get("PriorityClass");
+		identifierPrefix = fs.get("IdentifierPrefix");
+		paged = max != null || cursor != null || state != null || prio != null ||
+			identifierPrefix != null;
+		if(max != null) {
+			try {
+				maxRequests = Integer.parseInt(max);
+			} catch (NumberFormatException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, "Could not parse MaxRequests: "+e.getMessage(), identifier, false);
+			}
+			if(maxRequests <= 0 || maxRequests > MAX_PAGE_SIZE)
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "MaxRequests must be between 1 and "+MAX_PAGE_SIZE, identifier, false);
+		} else
+			maxRequests = DEFAULT_PAGE_SIZE;
+		this.cursor = new long[4];
+		if(cursor != null) {
+			String[] split = cursor.split(":");
+			try {
+				if(split.length != this.cursor.length) throw new NumberFormatException();
+				for(int i=0;i<split.length;i++) {
+					this.cursor[i] = Long.parseLong(split[i]);
+					if(this.cursor[i] < 0) throw new NumberFormatException();
+				}
+			} catch (NumberFormatException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid Cursor: "+cursor, identifier, false);
+			}
+		}
+		if(state != null) {
+			try {
+				this.state = State.valueOf(state.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid State: "+state+" - must be running, finished or failed", identifier, false);
+			}
+		} else
+			this.state = null;
+		if(prio != null) {
+			try {
+				priorityClass = Short.parseShort(prio);
+			} catch (NumberFormatException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, "Could not parse PriorityClass: "+e.getMessage(), identifier, false);
+			}
+			if(!RequestStarter.isValidPriorityClass(priorityClass))
+				throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid priority class "+priorityClass+" - range is "+RequestStarter.PAUSED_PRIORITY_CLASS+" to "+RequestStarter.MAXIMUM_PRIORITY_CLASS, identifier, false);
+		} else
+			priorityClass = -1;
 	}
 	
 	@Override
 	public SimpleFieldSet getFieldSet() {
-		return new SimpleFieldSet(true);
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(paged) {
+			fs.putSingle("Identifier", identifier);
+			fs.put("MaxRequests", maxRequests);
+			fs.putSingle("Cursor", formatCursor(cursor));
+			if(state != null)
+				fs.putSingle("State", state.name().toLowerCase());
+			if(priorityClass >= 0)
+				fs.put("PriorityClass", priorityClass);
+			if(identifierPrefix != null)
+				fs.putSingle("IdentifierPrefix", identifierPrefix);
+		}
+		return fs;
 	}
 	
 	@Override
@@ -132,9 +233,90 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 		
 	}
 	
+	/** Send one page of summaries of the client's requests, and those on the global queue if
+	 * the client is watching it. Only reads the caches of request statuses, so it does not need
+	 * the database thread and takes a bounded amount of time and output queue space however big
+	 * the queues are. */
+	private void runPaged(FCPConnectionHandler handler) {
+		FCPServer server = handler.getServer();
+		PersistentRequestClient[] clients = new PersistentRequestClient[cursor.length];
+		clients[0] = handler.getRebootClient();
+		clients[1] = handler.getForeverClient();
+		if(handler.getRebootClient().watchGlobal) {
+			clients[2] = server.getGlobalRebootClient();
+			clients[3] = server.getGlobalForeverClient();
+		}
+		for(FCPMessage msg : listPage(clients))
+			handler.send(msg);
+	}
+
+	/** @param clients The queues in the order of the cursor, null for those not to list.
+	 * @return The messages for one page: a summary of each request, then the end message. */
+	List<FCPMessage> listPage(PersistentRequestClient[] clients) {
+		List<FCPMessage> messages = new ArrayList<FCPMessage>();
+		RequestStatusCache.Filter filter = null;
+		if(priorityClass >= 0 || identifierPrefix != null) {
+			filter = new RequestStatusCache.Filter() {
+
+				@Override
+				public boolean accept(RequestStatus status) {
+					if(priorityClass >= 0 && status.getPriority() != priorityClass)
+						return false;
+					return identifierPrefix == null ||
+						status.getIdentifier().startsWith(identifierPrefix);
+				}
+
+			};
+		}
+		long[] next = cursor.clone();
+		int remaining = maxRequests;
+		boolean hasMore = false;
+		for(int i=0;i<clients.length;i++) {
+			if(clients[i] == null) continue;
+			RequestStatusCache cache = clients[i].getRequestStatusCache();
+			if(remaining == 0) {
+				// Only to find out whether there are more on the next queues.
+				if(!cache.getPage(state, filter, next[i], 1).statuses.isEmpty()) {
+					hasMore = true;
+					break;
+				}
+				continue;
+			}
+			RequestStatusCache.Page page = cache.getPage(state, filter, next[i], remaining);
+			for(RequestStatus status : page.statuses) {
+				ClientRequest request = clients[i].getRequest(status.getIdentifier());
+				messages.add(new PersistentRequestSummaryMessage(status,
+						request == null ? null : request.getClientRequest(),
+						clients[i].isGlobalQueue, identifier));
+			}
+			remaining -= page.statuses.size();
+			next[i] = page.cursor;
+			if(page.hasMore) {
+				hasMore = true;
+				break;
+			}
+		}
+		messages.add(new EndListPersistentRequestsMessage(identifier, formatCursor(next), hasMore));
+		return messages;
+	}
+
+	/** The cursor is opaque to clients: the position in each queue. */
+	private static String formatCursor(long[] cursor) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<cursor.length;i++) {
+			if(i > 0) sb.append(':');
+			sb.append(cursor[i]);
+		}
+		return sb.toString();
+	}
+
 	@Override
 	public void run(final FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
+		if(paged) {
+			runPaged(handler);
+			return;
+		}
 		
 		PersistentRequestClient rebootClient = handler.getRebootClient();
 
@@ -17,15 +17,27 @@ import freenet.support.compress.Compressor;
  * FCPVersion=<protocol version>
  * Node=Fred
  * Version=0.7.0,401
+ * Framing=Binary // if the client asked for it, see FCPBinaryCodec
  * EndMessage
  */
 public class NodeHelloMessage extends FCPMessage {
 	public static final String NAME = "NodeHello";
 	
 	private final String id;
+	private final boolean binaryFraming;
 		
 	public NodeHelloMessage(String id) {
+		this(id, false);
+	}
+
+	/** @param binaryFraming If true, every message after this one is sent as a binary frame. */
+	public NodeHelloMessage(String id, boolean binaryFraming) {
 		this.id = id;
+		this.binaryFraming = binaryFraming;
+	}
+
+	boolean isBinaryFraming() {
+		return binaryFraming;
 	}
 	
 	@Override
@@ -43,6 +55,8 @@ public class NodeHelloMessage extends FCPMessage {
 		sfs.putSingle("CompressionCodecs", Compressor.COMPRESSOR_TYPE.getHelloCompressorDescriptor());
 		sfs.putSingle("ConnectionIdentifier", id);
 		sfs.putSingle("NodeLanguage", NodeL10n.getBase().getSelectedLanguage().toString());
+		if(binaryFraming)
+			sfs.putSingle("Framing", FCPBinaryCodec.FRAMING_BINARY);
 		return sfs;
 	}
 
@@ -49,10 +49,7 @@ public class PersistentRequestClient {
 			this.root = root;
 		} else
 			this.root = null;
-		if(isGlobalQueue)
-		    statusCache = new RequestStatusCache();
-		else
-		    statusCache = null;
+		statusCache = new RequestStatusCache();
 	}
 	
 	/** The persistent root object, null if persistence is PERSIST_REBOOT */
@@ -504,7 +501,6 @@ public class PersistentRequestClient {
 	
 	private void updateRequestStatusCache(RequestStatusCache cache) {
 		if(persistence == Persistence.FOREVER) {
-			System.out.println("Loading cache of request statuses...");
 			ArrayList<RequestStatus> statuses = new ArrayList<RequestStatus>();
 			addPersistentRequestStatus(statuses, true);
 			for(RequestStatus status : statuses) {
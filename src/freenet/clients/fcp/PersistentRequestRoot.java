@@ -106,6 +106,18 @@ public class PersistentRequestRoot {
         return client.getRequest(req.identifier) != null;
     }
 
+    /** Fill in the caches of request statuses of all the clients, once their requests have been
+     * resumed. */
+    void updateRequestStatusCaches() {
+        List<PersistentRequestClient> toUpdate;
+        synchronized(this) {
+            toUpdate = new ArrayList<PersistentRequestClient>(clients.values());
+        }
+        globalForeverClient.updateRequestStatusCache();
+        for(PersistentRequestClient client : toUpdate)
+            client.updateRequestStatusCache();
+    }
+
     public PersistentRequestClient getGlobalForeverClient() {
         return globalForeverClient;
     }
@@ -0,0 +1,119 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import freenet.client.async.ClientRequester;
+import freenet.keys.FreenetURI;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * A short description of a persistent request, sent for each request in a paged
+ * ListPersistentRequests. Much smaller than the PersistentGet or PersistentPut plus progress and
+ * completion messages the full listing sends, and built from the request status cache rather
+ * than the requests themselves.
+ *
+ * PersistentRequestSummary
+ * Identifier=request identifier
+ * ListRequestIdentifier=identifier of the ListPersistentRequests
+ * Type=Get // or Put or PutDir
+ * State=running // or finished or failed
+ * Started=true
+ * PriorityClass=4
+ * Persistence=forever // or reboot
+ * Global=true // if on the global queue
+ * URI=CHK@... // original URI of a download, final URI of an upload, if known
+ * Total=1203
+ * Required=601
+ * Succeeded=427
+ * Failed=0
+ * FatallyFailed=0
+ * FinalizedTotal=true
+ * DataLength=1048576 // if known
+ * KeysCheckedInStore=1203 // keys looked for in the datastore before fetching them, if running
+ * KeysFoundInStore=86
+ * CoalescedProgress=15 // progress changes sent together with later ones, if running
+ * EndMessage
+ */
+public class PersistentRequestSummaryMessage extends FCPMessage {
+
+	static final String NAME = "PersistentRequestSummary";
+
+	private final RequestStatus status;
+	private final RequestStatusCache.State state;
+	private final boolean global;
+	private final String listRequestIdentifier;
+	/** Counters from the running request, -1 if not known. */
+	private final long storeKeysChecked;
+	private final long storeKeysFound;
+	private final long coalescedProgress;
+
+	/** @param requester The running request, or null. */
+	PersistentRequestSummaryMessage(RequestStatus status, ClientRequester requester, boolean global,
+			String listRequestIdentifier) {
+		this.status = status;
+		this.state = RequestStatusCache.State.of(status);
+		this.global = global;
+		if(requester != null) {
+			storeKeysChecked = requester.getStoreKeysChecked();
+			storeKeysFound = requester.getStoreKeysFound();
+			coalescedProgress = requester.getSuppressedProgressEvents();
+		} else {
+			storeKeysChecked = -1;
+			storeKeysFound = -1;
+			coalescedProgress = -1;
+		}
+		this.listRequestIdentifier = listRequestIdentifier;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", status.getIdentifier());
+		if(listRequestIdentifier != null)
+			fs.putSingle("ListRequestIdentifier", listRequestIdentifier);
+		String type;
+		if(status instanceof DownloadRequestStatus)
+			type = "Get";
+		else if(status instanceof UploadDirRequestStatus)
+			type = "PutDir";
+		else
+			type = "Put";
+		fs.putSingle("Type", type);
+		fs.putSingle("State", state.name().toLowerCase());
+		fs.put("Started", status.isStarted());
+		fs.put("PriorityClass", status.getPriority());
+		fs.putSingle("Persistence", status.isPersistentForever() ? "forever" : "reboot");
+		fs.put("Global", global);
+		FreenetURI uri = status.getURI();
+		if(uri != null)
+			fs.putSingle("URI", uri.toString(false, false));
+		fs.put("Total", status.getTotalBlocks());
+		fs.put("Required", status.getMinBlocks());
+		fs.put("Succeeded", status.getFetchedBlocks());
+		fs.put("Failed", status.getFailedBlocks());
+		fs.put("FatallyFailed", status.getFatalyFailedBlocks());
+		fs.put("FinalizedTotal", status.isTotalFinalized());
+		long dataLength = status.getDataSize();
+		if(dataLength >= 0)
+			fs.put("DataLength", dataLength);
+		if(storeKeysChecked >= 0) {
+			fs.put("KeysCheckedInStore", storeKeysChecked);
+			fs.put("KeysFoundInStore", storeKeysFound);
+			fs.put("CoalescedProgress", coalescedProgress);
+		}
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME + " goes from server to client not the other way around", status.getIdentifier(), global);
+	}
+
+}
@@ -62,6 +62,7 @@ public class ProtocolErrorMessage extends FCPMessage implements Serializable {
 	static final int WRONG_RETURN_TYPE = 36;
 	static final int IO_ERROR = 37;
 	static final int PLUGINS_DISABLED = 38;
+	static final int PLUGIN_QUEUE_FULL = 39;
 	
 	final int code;
 	final String extra;
@@ -144,6 +145,8 @@ public class ProtocolErrorMessage extends FCPMessage implements Serializable {
 		    return "Disk I/O error";
 		case PERSISTENCE_DISABLED:
 		    return "Persistence disabled (e.g. encrypted queue waiting for password?)";
+		case PLUGIN_QUEUE_FULL:
+		    return "Too many messages waiting for the plugin, try again later";
 		default:
 			Logger.error(this, "Unknown error code: "+code, new Exception("debug"));
 		return "(Unknown)";
@@ -13,8 +13,8 @@ import freenet.l10n.NodeL10n;
  * 
  * Methods that change the status should be package-local, and called either
  * within freenet.clients.fcp, or via RequestStatusCache. Hence we should be 
- * able to lock the RequestStatusCache and be confident that nothing is going
- * to change under us.
+ * able to lock the RequestStatusCache's shard for the request and be confident
+ * that nothing is going to change under us.
  * 
  * @author toad 
  */
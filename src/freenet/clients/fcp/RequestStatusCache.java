@@ -1,8 +1,15 @@
 package freenet.clients.fcp;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.ClientMetadata;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -13,196 +20,494 @@ import freenet.client.events.SplitfileProgressEvent;
 import freenet.clients.fcp.ClientPut.COMPRESS_STATE;
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
-import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
 import freenet.support.io.NoFreeBucket;
 
-/** Per-PersistentRequestClient cache of status of requests. */
+/** Per-PersistentRequestClient cache of status of requests.
+ *
+ * Every progress update and every render of the queue page goes through here, so the cache is
+ * split into shards by identifier, each with its own lock, rather than one lock for the whole
+ * queue. Each shard indexes its requests by identifier, by URI (the original URI of a download
+ * or the final URI of an upload), by state, and by the order they were added, which is what
+ * paged snapshots are taken in. Looking up by URI or taking a snapshot visits every shard, but
+ * only holds one shard's lock at a time, so the result is consistent for each request but not
+ * necessarily across requests. */
 public class RequestStatusCache {
-	
+
     private static volatile boolean logMINOR;
-    
+
 	static {
 		Logger.registerClass(RequestStatusCache.class);
 	}
 
-	private final ArrayList<RequestStatus> downloads;
-	private final ArrayList<RequestStatus> uploads;
-	private final HashMap<String, RequestStatus> requestsByIdentifier;
-	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
-	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
-	
+	/** Must be a power of 2. */
+	private static final int SHARDS = 16;
+
+	/** The state of a request, as indexed by the cache. */
+	public enum State {
+		/** Not finished yet, whether or not it has started. */
+		RUNNING,
+		/** Finished successfully. */
+		FINISHED,
+		FAILED;
+
+		static State of(RequestStatus status) {
+			if(!status.hasFinished()) return RUNNING;
+			return status.hasSucceeded() ? FINISHED : FAILED;
+		}
+	}
+
+	/** A page of a snapshot of the cache. */
+	public static final class Page {
+		/** Copies of the statuses, in the order they were added to the cache. */
+		public final List<RequestStatus> statuses;
+		/** Pass this to getPage() to get the next page. */
+		public final long cursor;
+		/** False if this is the last page. There may still be more requests later, if they are
+		 * added after the page was taken. */
+		public final boolean hasMore;
+
+		Page(List<RequestStatus> statuses, long cursor, boolean hasMore) {
+			this.statuses = statuses;
+			this.cursor = cursor;
+			this.hasMore = hasMore;
+		}
+	}
+
+	/** A request in the cache, with the keys it is indexed by. */
+	private static class Entry {
+		final RequestStatus status;
+		final long sequence;
+		/** The URI it is indexed by. */
+		FreenetURI uri;
+		State state;
+
+		Entry(RequestStatus status, long sequence) {
+			this.status = status;
+			this.sequence = sequence;
+		}
+	}
+
+	private static class Shard {
+		final HashMap<String, Entry> byIdentifier = new HashMap<String, Entry>();
+		final HashMap<FreenetURI, List<Entry>> downloadsByURI = new HashMap<FreenetURI, List<Entry>>();
+		final HashMap<FreenetURI, List<Entry>> uploadsByFinalURI = new HashMap<FreenetURI, List<Entry>>();
+		final TreeMap<Long, Entry> bySequence = new TreeMap<Long, Entry>();
+		final EnumMap<State, TreeMap<Long, Entry>> byState =
+			new EnumMap<State, TreeMap<Long, Entry>>(State.class);
+
+		Shard() {
+			for(State state : State.values())
+				byState.put(state, new TreeMap<Long, Entry>());
+		}
+
+		void add(Entry entry) {
+			Entry old = byIdentifier.put(entry.status.getIdentifier(), entry);
+			if(old != null) remove(old);
+			bySequence.put(entry.sequence, entry);
+			entry.state = State.of(entry.status);
+			byState.get(entry.state).put(entry.sequence, entry);
+			setURI(entry, entry.status.getURI());
+		}
+
+		/** Remove from the secondary indexes. */
+		void remove(Entry entry) {
+			bySequence.remove(entry.sequence);
+			byState.get(entry.state).remove(entry.sequence);
+			setURI(entry, null);
+		}
+
+		/** Index the request under a different URI, or none. */
+		void setURI(Entry entry, FreenetURI uri) {
+			HashMap<FreenetURI, List<Entry>> index =
+				entry.status instanceof DownloadRequestStatus ? downloadsByURI : uploadsByFinalURI;
+			if(entry.uri != null) {
+				List<Entry> list = index.get(entry.uri);
+				if(list != null) {
+					list.remove(entry);
+					if(list.isEmpty()) index.remove(entry.uri);
+				}
+			}
+			entry.uri = uri;
+			if(uri != null) {
+				List<Entry> list = index.get(uri);
+				if(list == null) {
+					list = new ArrayList<Entry>(1);
+					index.put(uri, list);
+				}
+				list.add(entry);
+			}
+		}
+
+		/** The request may have started, finished or failed. */
+		void updateState(Entry entry) {
+			State state = State.of(entry.status);
+			if(state == entry.state) return;
+			byState.get(entry.state).remove(entry.sequence);
+			byState.get(state).put(entry.sequence, entry);
+			entry.state = state;
+		}
+
+		/** The entries after the cursor, in the given state or any state if null. */
+		Map<Long, Entry> after(State state, long cursor) {
+			TreeMap<Long, Entry> map = state == null ? bySequence : byState.get(state);
+			return map.tailMap(cursor, false);
+		}
+	}
+
+	private final Shard[] shards;
+	/** Gives the order requests are added in. */
+	private final AtomicLong sequence;
+	private final CopyOnWriteArrayList<Listener> listeners;
+
+	/** Notified when the progress of a request changes. Called without holding the cache's
+	 * lock, so it is safe to call back into the cache, but it should return quickly. */
+	public interface Listener {
+		void onStatusChanged(String identifier);
+	}
+
 	RequestStatusCache() {
-		downloads = new ArrayList<RequestStatus>();
-		uploads = new ArrayList<RequestStatus>();
-		requestsByIdentifier = new HashMap<String, RequestStatus>();
-		downloadsByURI = new MultiValueTable<FreenetURI, RequestStatus>();
-		uploadsByFinalURI = new MultiValueTable<FreenetURI, RequestStatus>();
-	}
-	
-	synchronized void addDownload(DownloadRequestStatus status) {
-		RequestStatus old = 
-			requestsByIdentifier.put(status.getIdentifier(), status);
+		shards = new Shard[SHARDS];
+		for(int i=0;i<shards.length;i++)
+			shards[i] = new Shard();
+		sequence = new AtomicLong();
+		listeners = new CopyOnWriteArrayList<Listener>();
+	}
+
+	private Shard shard(String identifier) {
+		int hash = identifier.hashCode();
+		// Spread the bits, as HashMap does.
+		hash ^= hash >>> 16;
+		return shards[hash & (SHARDS - 1)];
+	}
+
+	void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	private void statusChanged(String identifier) {
+		for(Listener listener : listeners)
+			listener.onStatusChanged(identifier);
+	}
+
+	void addDownload(DownloadRequestStatus status) {
 		if(logMINOR) Logger.minor(this, "Starting download "+status.getIdentifier());
-		if(old == status) return;
-		if(old != null)
-		    downloads.remove(old);
-		downloads.add(status);
-		downloadsByURI.put(status.getURI(), status);
-	}
-	
-	synchronized void addUpload(UploadRequestStatus status) {
-		RequestStatus old = 
-			requestsByIdentifier.put(status.getIdentifier(), status);
-		if(old == status) return;
+		add(status);
+	}
+
+	void addUpload(UploadRequestStatus status) {
 		if(logMINOR) Logger.minor(this, "Starting upload "+status.getIdentifier());
-		if(old != null)
-		    uploads.remove(old);
-		uploads.add(status);
-		FreenetURI uri = status.getURI();
-		if(uri != null)
-			uploadsByFinalURI.put(uri, status);
-	}
-	
-	synchronized void finishedDownload(String identifier, boolean success, long dataSize, 
+		add(status);
+	}
+
+	private void add(RequestStatus status) {
+		Shard shard = shard(status.getIdentifier());
+		synchronized(shard) {
+			Entry old = shard.byIdentifier.get(status.getIdentifier());
+			if(old != null && old.status == status) return;
+			// Take the sequence number with the lock held, so it is in order within the shard.
+			shard.add(new Entry(status, sequence.incrementAndGet()));
+		}
+	}
+
+	void finishedDownload(String identifier, boolean success, long dataSize,
 			String mimeType, FetchExceptionMode failureCode, String failureReasonLong, String failureReasonShort, Bucket dataShadow, boolean filtered) {
-		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
-				failureReasonShort, dataShadow, filtered);
-	}
-	
-	synchronized void gotFinalURI(String identifier, FreenetURI finalURI) {
-		UploadRequestStatus status = (UploadRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		if(status.getFinalURI() == null)
-			// No final URI set yet, put into the index.
-			uploadsByFinalURI.put(finalURI, status);
-		status.setFinalURI(finalURI);
-	}
-	
-	synchronized void finishedUpload(String identifier, boolean success,  
-			FreenetURI finalURI, InsertExceptionMode failureCode, String failureReasonShort, 
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			DownloadRequestStatus status = (DownloadRequestStatus) entry.status;
+			status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
+					failureReasonShort, dataShadow, filtered);
+			shard.updateState(entry);
+		}
+		statusChanged(identifier);
+	}
+
+	void gotFinalURI(String identifier, FreenetURI finalURI) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			UploadRequestStatus status = (UploadRequestStatus) entry.status;
+			if(status.getFinalURI() == null)
+				// No final URI set yet, put into the index.
+				shard.setURI(entry, finalURI);
+			status.setFinalURI(finalURI);
+		}
+	}
+
+	void finishedUpload(String identifier, boolean success,
+			FreenetURI finalURI, InsertExceptionMode failureCode, String failureReasonShort,
 			String failureReasonLong) {
-		UploadRequestStatus status = (UploadRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		if(status.getFinalURI() == null && finalURI != null)
-			// No final URI set yet, put into the index.
-			uploadsByFinalURI.put(finalURI, status);
-		status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
-	}
-	
-	synchronized void updateStatus(String identifier, SplitfileProgressEvent event) {
-		RequestStatus status = requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.updateStatus(event);
-	}
-	
-	synchronized void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
-		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.updateDetectedCompatModes(compatModes, dontCompress);
-		status.updateDetectedSplitfileKey(splitfileKey);
-	}
-	
-	synchronized void removeByIdentifier(String identifier) {
-		RequestStatus status = requestsByIdentifier.remove(identifier);
-		if(status == null) return;
-		if(status instanceof DownloadRequestStatus) {
-			downloads.remove(status);
-			FreenetURI uri = status.getURI();
-			assert(uri != null);
-			downloadsByURI.removeElement(uri, status);
-		} else if(status instanceof UploadRequestStatus) {
-			uploads.remove(status);
-			FreenetURI uri = ((UploadRequestStatus) status).getFinalURI();
-			if(uri != null)
-				uploadsByFinalURI.removeElement(uri, status);
-		}
-	}
-
-	synchronized void clear() {
-		downloads.clear();
-		uploads.clear();
-		requestsByIdentifier.clear();
-		downloadsByURI.clear();
-		uploadsByFinalURI.clear();
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			UploadRequestStatus status = (UploadRequestStatus) entry.status;
+			if(status.getFinalURI() == null && finalURI != null)
+				// No final URI set yet, put into the index.
+				shard.setURI(entry, finalURI);
+			status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
+			shard.updateState(entry);
+		}
+		statusChanged(identifier);
+	}
+
+	void updateStatus(String identifier, SplitfileProgressEvent event) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			entry.status.updateStatus(event);
+		}
+		statusChanged(identifier);
+	}
+
+	void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			DownloadRequestStatus status = (DownloadRequestStatus) entry.status;
+			status.updateDetectedCompatModes(compatModes, dontCompress);
+			status.updateDetectedSplitfileKey(splitfileKey);
+		}
+	}
+
+	void removeByIdentifier(String identifier) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.remove(identifier);
+			if(entry == null) return;
+			shard.remove(entry);
+		}
+	}
+
+	void clear() {
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				shard.byIdentifier.clear();
+				shard.downloadsByURI.clear();
+				shard.uploadsByFinalURI.clear();
+				shard.bySequence.clear();
+				for(TreeMap<Long, Entry> map : shard.byState.values())
+					map.clear();
+			}
+		}
 	}
 
 	public void updateCompressionStatus(String identifier,
 			COMPRESS_STATE compressing) {
-		UploadFileRequestStatus status = (UploadFileRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.updateCompressionStatus(compressing);
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			((UploadFileRequestStatus) entry.status).updateCompressionStatus(compressing);
+		}
+	}
+
+	/** Get a copy of the status of a single request, or null if there is no such request. */
+	public RequestStatus getStatus(String identifier) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			return entry == null ? null : entry.status.clone();
+		}
+	}
+
+	/** Add copies of the status of every request. */
+	public void addTo(List<RequestStatus> status) {
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				for(Entry entry : shard.byIdentifier.values())
+					status.add(entry.status.clone());
+			}
+		}
+	}
+
+	/** Get copies of the status of the downloads of a URI and the uploads which inserted to
+	 * it. */
+	public List<RequestStatus> getByURI(FreenetURI uri) {
+		List<RequestStatus> ret = new ArrayList<RequestStatus>();
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				addClones(shard.downloadsByURI.get(uri), ret);
+				addClones(shard.uploadsByFinalURI.get(uri), ret);
+			}
+		}
+		return ret;
 	}
 
-	public synchronized void addTo(List<RequestStatus> status) {
-		// FIXME is it better to just synchronize on the RequestStatusCache when
-		// rendering the downloads page, and when updating? Ugly though ...
-		for(RequestStatus req : requestsByIdentifier.values())
-			status.add(req.clone());
+	private static void addClones(List<Entry> entries, List<RequestStatus> ret) {
+		if(entries == null) return;
+		for(Entry entry : entries)
+			ret.add(entry.status.clone());
 	}
 
-	public synchronized void updateExpectedMIME(String identifier, String foundDataMimeType) {
-		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.updateExpectedMIME(foundDataMimeType);
+	/** @return The number of requests in the given state, or in total if state is null. */
+	public int count(State state) {
+		int count = 0;
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				if(state == null)
+					count += shard.byIdentifier.size();
+				else
+					count += shard.byState.get(state).size();
+			}
+		}
+		return count;
 	}
 
-	public synchronized void updateExpectedDataLength(String identifier, long expectedDataLength) {
-		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.updateExpectedDataLength(expectedDataLength);
+	/** Get a page of copies of the statuses, in the order the requests were added. Only copies
+	 * the page, so it is cheap even when the queue is huge.
+	 * @param state Only return requests in this state, or null for all requests. A request which
+	 * changes state between pages may be returned twice or not at all.
+	 * @param cursor 0 for the first page, or Page.cursor from the previous page.
+	 * @param limit The most requests to return.
+	 */
+	public Page getPage(State state, long cursor, int limit) {
+		return getPage(state, null, cursor, limit);
+	}
+
+	/** Selects which requests getPage() returns. */
+	public interface Filter {
+		/** Called with the shard's lock held, so must be quick and must not call back into the
+		 * cache. */
+		boolean accept(RequestStatus status);
+	}
+
+	/** Get a page of copies of the statuses which match a filter, in the order the requests
+	 * were added.
+	 * @param filter Only return requests it accepts, or null for all requests. Checking it is
+	 * much cheaper than copying a request, but a filter which matches few requests still means
+	 * looking at many of them.
+	 * @see #getPage(State, long, int) */
+	public Page getPage(State state, Filter filter, long cursor, int limit) {
+		if(limit <= 0) throw new IllegalArgumentException();
+		// First find where the page ends, without copying anything.
+		long[] sequences = new long[0];
+		int count = 0;
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				int found = 0;
+				for(Entry entry : shard.after(state, cursor).values()) {
+					// One more than the limit, so we know whether there is another page.
+					if(found > limit) break;
+					if(filter != null && !filter.accept(entry.status)) continue;
+					if(count == sequences.length)
+						sequences = Arrays.copyOf(sequences, Math.max(16, count * 2));
+					sequences[count++] = entry.sequence;
+					found++;
+				}
+			}
+		}
+		if(count == 0)
+			return new Page(Collections.<RequestStatus>emptyList(), cursor, false);
+		Arrays.sort(sequences, 0, count);
+		boolean hasMore = count > limit;
+		long end = sequences[Math.min(count, limit) - 1];
+		// Then copy the entries up to there. In order within each shard, but not across shards.
+		TreeMap<Long, RequestStatus> page = new TreeMap<Long, RequestStatus>();
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				for(Entry entry : shard.after(state, cursor).values()) {
+					if(entry.sequence > end) break;
+					if(filter != null && !filter.accept(entry.status)) continue;
+					page.put(entry.sequence, entry.status.clone());
+				}
+			}
+		}
+		return new Page(new ArrayList<RequestStatus>(page.values()), end, hasMore);
+	}
+
+	public void updateExpectedMIME(String identifier, String foundDataMimeType) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			((DownloadRequestStatus) entry.status).updateExpectedMIME(foundDataMimeType);
+		}
+	}
+
+	public void updateExpectedDataLength(String identifier, long expectedDataLength) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			((DownloadRequestStatus) entry.status).updateExpectedDataLength(expectedDataLength);
+		}
 	}
 
 	public void setPriority(String identifier, short newPriorityClass) {
-		RequestStatus status = requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.setPriority(newPriorityClass);
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			entry.status.setPriority(newPriorityClass);
+		}
 	}
-	
+
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
 	 * and ,true when it has actually started (a race condition means we don't setStarted
 	 * at that point since it's possible the success/failure callback might happen first). */
-	public synchronized void updateStarted(String identifier, boolean started) {
-		RequestStatus status = requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		
-		if(!started)
-			// Caller should call with false first, so we only need to unset finished when setting started=false.
-			status.restart(false);
-		else
-			// Already restarted, just set started = true.
-			status.setStarted(started);
+	public void updateStarted(String identifier, boolean started) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+
+			if(!started)
+				// Caller should call with false first, so we only need to unset finished when setting started=false.
+				entry.status.restart(false);
+			else
+				// Already restarted, just set started = true.
+				entry.status.setStarted(started);
+			shard.updateState(entry);
+		}
+		statusChanged(identifier);
 	}
-	
+
 	/** Restart a download. Caller should call ,false first, at which point we setStarted,
 	 * and ,true when it has actually started (a race condition means we don't setStarted
 	 * at that point since it's possible the success/failure callback might happen first).
 	 * @param redirect If non-null, the request followed a redirect. */
-	public synchronized void updateStarted(String identifier, FreenetURI redirect) {
-		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
-		if(status == null) return; // Can happen during cancel etc.
-		status.restart(false);
-		if(redirect != null) {
-			downloadsByURI.remove(status.getURI());
-			status.redirect(redirect);
-			downloadsByURI.put(redirect, status);
-		}
-	}
-
-	public synchronized CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
-		Object[] downloads = downloadsByURI.getArray(key);
-		if(downloads == null) return null;
-		for(Object o : downloads) {
-			DownloadRequestStatus download = (DownloadRequestStatus) o;
-			Bucket data = download.getDataShadow();
-			if(data == null) continue;
-			if(data.size() == 0) continue;
-			if(noFilter && download.filterData) continue;
-			// FIXME it probably *is* worth the effort to allow this when it is overridden on the fetcher, since the user changed the type???
-			if(download.overriddenDataType) continue;
-			return new CacheFetchResult(new ClientMetadata(download.getMIMEType()), new NoFreeBucket(data), download.filterData);
+	public void updateStarted(String identifier, FreenetURI redirect) {
+		Shard shard = shard(identifier);
+		synchronized(shard) {
+			Entry entry = shard.byIdentifier.get(identifier);
+			if(entry == null) return; // Can happen during cancel etc.
+			DownloadRequestStatus status = (DownloadRequestStatus) entry.status;
+			status.restart(false);
+			if(redirect != null) {
+				status.redirect(redirect);
+				shard.setURI(entry, redirect);
+			}
+			shard.updateState(entry);
+		}
+		statusChanged(identifier);
+	}
+
+	public CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				List<Entry> downloads = shard.downloadsByURI.get(key);
+				if(downloads == null) continue;
+				for(Entry entry : downloads) {
+					DownloadRequestStatus download = (DownloadRequestStatus) entry.status;
+					Bucket data = download.getDataShadow();
+					if(data == null) continue;
+					if(data.size() == 0) continue;
+					if(noFilter && download.filterData) continue;
+					// FIXME it probably *is* worth the effort to allow this when it is overridden on the fetcher, since the user changed the type???
+					if(download.overriddenDataType) continue;
+					return new CacheFetchResult(new ClientMetadata(download.getMIMEType()), new NoFreeBucket(data), download.filterData);
+				}
+			}
 		}
 		return null;
 	}
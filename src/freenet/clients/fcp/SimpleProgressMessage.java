@@ -103,4 +103,12 @@ public class SimpleProgressMessage extends FCPMessage {
 		return event;
 	}
 
+	String getIdentifier() {
+		return ident;
+	}
+
+	boolean isGlobal() {
+		return global;
+	}
+
 }
@@ -14,8 +14,12 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.*;
 
 import freenet.client.HighLevelSimpleClient;
+import freenet.client.events.ProgressCoalescer;
 import freenet.client.async.PersistenceDisabledException;
 import freenet.clients.fcp.DownloadRequestStatus;
+import freenet.clients.fcp.FCPConnectionHandler;
+import freenet.clients.fcp.FCPConnectionOutputHandler;
+import freenet.clients.fcp.FCPPluginMessageStats;
 import freenet.clients.fcp.FCPServer;
 import freenet.clients.fcp.RequestStatus;
 import freenet.clients.fcp.UploadDirRequestStatus;
@@ -415,6 +419,39 @@ public class DiagnosticToadlet extends Toadlet {
 		}
 		textBuilder.append("\n");
 
+		// Progress changes which requests folded into a later progress event.
+		int maxProgressEvents = core.getClientContext().getMaxProgressEventsPerSecond();
+		textBuilder.append("Progress events coalesced: ").append(ProgressCoalescer.getTotalSuppressed())
+			.append(maxProgressEvents == 0 ? " (no limit)" : " (at most " + maxProgressEvents + "/s per request)")
+			.append("\n\n");
+
+		// FCP clients which are slow to read their messages have a long queue and paused input.
+		textBuilder.append("FCP connections:\n");
+		long now = System.currentTimeMillis();
+		for(FCPConnectionHandler conn : fcp.getConnections()) {
+			FCPConnectionOutputHandler out = conn.getOutputHandler();
+			long seconds = Math.max(1, (now - conn.getConnectedTime()) / 1000);
+			textBuilder.append(conn.getClientName()).append(": queued ").append(out.getQueueLength())
+				.append(", coalesced progress ").append(out.getCoalescedProgress())
+				.append(out.isInputPaused() ? ", input paused" : "")
+				.append(", in ").append(SizeUtil.formatSize(conn.getBytesRead() / seconds)).append("/s")
+				.append(", out ").append(SizeUtil.formatSize(conn.getBytesWritten() / seconds)).append("/s\n");
+		}
+		textBuilder.append("\n");
+
+		// Messages delivered to plugins by FCPPluginConnections.
+		textBuilder.append("FCP plugin messages:\n");
+		for(Map.Entry<String, FCPPluginMessageStats.Stats> entry : fcp.getPluginMessageStats().getStats().entrySet()) {
+			FCPPluginMessageStats.Stats stats = entry.getValue();
+			textBuilder.append(entry.getKey()).append(": delivered ").append(stats.delivered)
+				.append(String.format(" (%.1f/s)", stats.getThroughput(now)))
+				.append(", rejected ").append(stats.rejected)
+				.append(", latency avg ").append(stats.getAverageLatency(TimeUnit.MICROSECONDS)).append("us")
+				.append(" max ").append(TimeUnit.NANOSECONDS.toMicros(stats.maxLatencyNanos)).append("us")
+				.append(", handling avg ").append(stats.getAverageHandlingTime(TimeUnit.MICROSECONDS)).append("us\n");
+		}
+		textBuilder.append("\n");
+
 		// drawThreadPriorityStatsBox
 		if (node.isNodeDiagnosticsEnabled()) {
 			textBuilder.append(threadsStats());
@@ -138,6 +138,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		waiters = new ArrayList<FProxyFetchWaiter>();
 		results = new ArrayList<FProxyFetchResult>();
 		getter = new ClientGetter(this, uri, alteredFctx, FProxyToadlet.PRIORITY, null, null, null);
+		// We check the download caches ourselves in checkCache().
+		getter.setSkipLocalCacheLookup();
 	}
 
 	public synchronized FProxyFetchWaiter getWaiter() {
@@ -6,8 +6,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
@@ -42,6 +40,7 @@ import freenet.clients.http.ajaxpush.PushNotificationToadlet;
 import freenet.clients.http.ajaxpush.PushTesterToadlet;
 import freenet.clients.http.updateableelements.ProgressBarElement;
 import freenet.clients.http.updateableelements.ProgressInfoElement;
+import freenet.clients.http.updateableelements.RequestProgressElement;
 import freenet.clients.http.utils.UriFilterProxyHeaderParser;
 import freenet.config.Config;
 import freenet.config.Option;
@@ -74,7 +73,6 @@ import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
@@ -241,12 +239,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			// see http://onjava.com/pub/a/onjava/excerpt/jebp_3/index3.html
 			// Testing on FF3.5.1 shows that application/x-force-download wants to run it in wine,
 			// whereas application/force-download wants to save it.
-			context.sendReplyHeadersFProxy(200, "OK", headers, "application/force-download", size);
-			context.writeData(data);
+			sendData(context, data, size, headers, "application/force-download", false);
 		} else {
 			// Send the data, intact
-			MultiValueTable<String, String> hdr = context.getHeaders();
-
 			MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
 			/*
 			 * Firefox and its derivatives may use the MIME type implied by the filename extension for
@@ -255,51 +250,50 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			 * See https://developer.mozilla.org/en-US/docs/Mozilla/How_Mozilla_determines_MIME_Types#HTTP
 			 */
 			retHdr.put("Content-Encoding", "identity");
+            retHdr.put("X-Content-Type-Options", "nosniff");
+			sendData(context, data, size, retHdr, mimeType,
+				container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK()));
+		}
+	}
 
-			String rangeStr = hdr.get("range");
-			// was a range request
-			if (rangeStr != null) {
-
-				long range[];
-				try {
-					range = parseRange(rangeStr);
-				} catch (HTTPRangeException e) {
-					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
-					return;
-				}
-				if (range[1] == -1 || range[1] >= size) {
-					range[1] = size - 1;
-				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
-					os.close(); os = null; // If we can't write, we need to throw, so we don't send too little data.
-				} finally {
-					Closer.close(is);
-					Closer.close(os);
-				}
-				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
-                retHdr.put("X-Content-Type-Options", "nosniff");
-				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
+	/**
+	 * Send the data, or the part of it asked for in a Range header. Ranges are sent straight from
+	 * the data, so resuming a big download doesn't copy it to a temporary bucket first.
+	 * @param cacheable If true, the browser may cache the data.
+	 */
+	private static void sendData(ToadletContext context, Bucket data, long size, MultiValueTable<String, String> headers,
+			String mimeType, boolean cacheable) throws ToadletContextClosedException, IOException {
+		headers.put("Accept-Ranges", "bytes");
+		String rangeStr = context.getHeaders().get("range");
+		if (rangeStr == null) {
+			if (cacheable) {
+				context.sendReplyHeadersStatic(200, "OK", headers, mimeType, size, new Date());
 			} else {
-                retHdr.put("X-Content-Type-Options", "nosniff");
-                if (container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
-                    context.sendReplyHeadersStatic(200, "OK", retHdr, mimeType, size, new Date());
-                } else {
-                    context.sendReplyHeadersFProxy(200, "OK", retHdr, mimeType, size);
-                }
-				context.writeData(data);
+				context.sendReplyHeadersFProxy(200, "OK", headers, mimeType, size);
 			}
+			context.writeData(data);
+			return;
+		}
+		long range[];
+		try {
+			range = parseRange(rangeStr);
+		} catch (HTTPRangeException e) {
+			context.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
+			return;
+		}
+		if (range[1] == -1 || range[1] >= size) {
+			range[1] = size - 1;
+		}
+		if (range[0] >= size) {
+			MultiValueTable<String, String> rangeHdr = new MultiValueTable<String, String>();
+			rangeHdr.put("Content-Range", "bytes */" + size);
+			context.sendReplyHeaders(416, "Requested Range Not Satisfiable", rangeHdr, null, 0);
+			return;
 		}
+		long length = range[1] - range[0] + 1;
+		headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+		context.sendReplyHeadersFProxy(206, "Partial content", headers, mimeType, length);
+		context.writeData(data, range[0], length);
 	}
 
 	static final HTMLNode DOWNLOADS_LINK = QueueToadlet.DOWNLOADS_LINK;
@@ -1152,13 +1146,17 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(alerts, "FProxyToadlet.categoryStatus", "/alerts/", true, "FProxyToadlet.alertsTitle",
 		        "FProxyToadlet.alerts", true, null);
 
-		QueueToadlet downloadToadlet = new QueueToadlet(core, core.getFCPServer(), client, false);
+		// Shared by the queue pages, so each change to a request is only pushed once.
+		RequestProgressElement.Subscriptions progressSubscriptions =
+		        new RequestProgressElement.Subscriptions(server.getPushDataManager());
+		core.getFCPServer().addGlobalRequestStatusListener(progressSubscriptions);
+		QueueToadlet downloadToadlet = new QueueToadlet(core, core.getFCPServer(), client, false, progressSubscriptions);
 		server.register(downloadToadlet, "FProxyToadlet.categoryQueue", "/downloads/", true,
 		        "FProxyToadlet.downloadsTitle", "FProxyToadlet.downloads", false, downloadToadlet);
 		LocalDownloadDirectoryToadlet localDownloadDirectoryToadlet =
 		        new LocalDownloadDirectoryToadlet(core, client, "/downloads/");
 		server.register(localDownloadDirectoryToadlet, null, localDownloadDirectoryToadlet.path(), true, false);
-		QueueToadlet uploadToadlet = new QueueToadlet(core, core.getFCPServer(), client, true);
+		QueueToadlet uploadToadlet = new QueueToadlet(core, core.getFCPServer(), client, true, progressSubscriptions);
 		server.register(uploadToadlet, "FProxyToadlet.categoryQueue", "/uploads/", true,
 		         "FProxyToadlet.uploadsTitle", "FProxyToadlet.uploads", false, uploadToadlet);
 
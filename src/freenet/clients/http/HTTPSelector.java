@@ -0,0 +1,657 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import freenet.clients.http.ToadletContextImpl.ConnectionState;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.MultiValueTable;
+import freenet.support.io.NativeThread;
+import freenet.support.io.TooLongException;
+
+/**
+ * Handles HTTP connections without a thread each. One thread waits on a Selector for data on
+ * every idle connection, and reads and parses the request line and headers as they arrive. Only
+ * a complete request is handed to a handler thread, which handles it with ordinary blocking I/O,
+ * reading any data sent with it and writing the reply, just as ToadletContextImpl.handle() does.
+ * After that, a keep-alive connection goes back to the Selector. A request suspended by its
+ * Toadlet, e.g. a long poll (see ToadletContext.suspend()), is kept without a thread until it is
+ * resumed, and is closed if the client closes the connection meanwhile.
+ *
+ * At most maxHandlers requests are handled at once; complete requests beyond that wait in a
+ * queue. Only for sockets with channels: SSL connections still get a thread each.
+ */
+public class HTTPSelector implements PrioRunnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(HTTPSelector.class);
+	}
+
+	/** Handles a complete request, on a handler thread. */
+	interface RequestHandler {
+		/**
+		 * @param is The data sent with the request, if any, followed by the rest of the
+		 * connection. Only the request's own data may be read.
+		 * @param requestLine The request line, from ToadletContextImpl.parseRequestLine().
+		 * @param resume Handles the request again, if it is suspended.
+		 */
+		ConnectionState handle(Socket sock, InputStream is, String[] requestLine,
+				MultiValueTable<String,String> headers, Resumer resume) throws Throwable;
+
+		/** Report an error in a request or while handling it to the client, if possible. */
+		void handleError(Socket sock, Throwable t);
+
+		/** Called once for each connection passed to add(), after it has been closed. */
+		void closed();
+	}
+
+	/** Handles a suspended request again when run, see ToadletContext.suspend(). */
+	interface Resumer extends Runnable {
+		/** Run onClosed if the connection is closed before the request is handled again.
+		 * Must not block. */
+		void whenClosed(Runnable onClosed);
+	}
+
+	/** Initial read buffer size for a connection. Grows if a request's headers don't fit. */
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	/** Longest request line and headers we will accept. */
+	static final int MAX_HEAD_SIZE = 64*1024;
+	/** Close connections which have been idle, or sending headers, for this long. */
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+	/** How often to check for idle connections. */
+	private static final long CHECK_IDLE_INTERVAL = SECONDS.toMillis(10);
+
+	private final RequestHandler handler;
+	private final Executor executor;
+	private final Selector selector;
+	/** Connections for the selector thread to start waiting on. */
+	private final ArrayDeque<Connection> toRegister = new ArrayDeque<Connection>();
+	/** Suspended connections for the selector thread to start watching, or to handle again. */
+	private final ArrayDeque<Connection> toWatch = new ArrayDeque<Connection>();
+	/** Complete requests waiting for a handler thread. */
+	private final ArrayDeque<Connection> waiting = new ArrayDeque<Connection>();
+	/** All open connections, busy or idle. */
+	private final Set<Connection> connections = new HashSet<Connection>();
+	private boolean closed;
+	private int maxHandlers;
+	private int runningHandlers;
+	private int suspendedRequests;
+	private long requests;
+
+	public HTTPSelector(RequestHandler handler, Executor executor, int maxHandlers) throws IOException {
+		this.handler = handler;
+		this.executor = executor;
+		this.maxHandlers = maxHandlers;
+		this.selector = Selector.open();
+	}
+
+	public void start() {
+		executor.execute(this, "HTTP selector");
+	}
+
+	/** Start handling a newly accepted connection. */
+	public void add(SocketChannel channel) {
+		Connection c = new Connection(channel);
+		boolean shutdown;
+		synchronized(this) {
+			connections.add(c);
+			shutdown = closed;
+		}
+		if(shutdown) {
+			close(c);
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			close(c);
+			return;
+		}
+		register(c);
+	}
+
+	private void register(Connection c) {
+		synchronized(toRegister) {
+			toRegister.add(c);
+		}
+		selector.wakeup();
+	}
+
+	private void watch(Connection c) {
+		synchronized(toWatch) {
+			toWatch.add(c);
+		}
+		selector.wakeup();
+	}
+
+	public synchronized void setMaxHandlers(int maxHandlers) {
+		this.maxHandlers = maxHandlers;
+		dispatchWaiting();
+	}
+
+	/** @return The number of open connections, busy or idle. */
+	public synchronized int getOpenConnections() {
+		return connections.size();
+	}
+
+	/** @return The number of requests being handled by a thread right now. */
+	public synchronized int getRunningHandlers() {
+		return runningHandlers;
+	}
+
+	public synchronized int getSuspendedRequests() {
+		return suspendedRequests;
+	}
+
+	/** @return The number of requests handled, including each time a suspended request was resumed. */
+	public synchronized long getRequests() {
+		return requests;
+	}
+
+	/** Stop the selector thread, and close all connections, including those being handled. */
+	public void close() {
+		List<Connection> open;
+		synchronized(this) {
+			closed = true;
+			waiting.clear();
+			open = new ArrayList<Connection>(connections);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to close HTTP selector: "+e, e);
+		}
+		for(Connection c : open)
+			close(c);
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		List<Connection> ready = new ArrayList<Connection>();
+		long lastCheckedIdle = System.currentTimeMillis();
+		while(true) {
+			try {
+				selector.select(CHECK_IDLE_INTERVAL);
+				long now = System.currentTimeMillis();
+				registerNew(ready, now);
+				watchSuspended(ready);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid()) continue;
+					Connection c = (Connection) key.attachment();
+					if(c.watched) {
+						readSuspended(key, c);
+						continue;
+					}
+					if(readRequest(c, now)) {
+						key.cancel();
+						ready.add(c);
+					}
+				}
+				if(now - lastCheckedIdle >= CHECK_IDLE_INTERVAL) {
+					closeIdle(now);
+					lastCheckedIdle = now;
+				}
+				if(!ready.isEmpty()) {
+					// Finish cancelling the keys, so the channels can be made blocking again.
+					selector.selectNow();
+					for(Connection c : ready) {
+						try {
+							c.channel.configureBlocking(true);
+						} catch (IOException e) {
+							close(c);
+							continue;
+						}
+						dispatch(c);
+					}
+					ready.clear();
+				}
+			} catch (ClosedSelectorException e) {
+				return;
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in HTTP selector", t);
+			}
+		}
+	}
+
+	/** Start waiting for the next request on connections returned by the handler threads. */
+	private void registerNew(List<Connection> ready, long now) {
+		while(true) {
+			Connection c;
+			synchronized(toRegister) {
+				c = toRegister.poll();
+			}
+			if(c == null) return;
+			c.lastActive = now;
+			// A pipelining client may have sent the next request already.
+			if(c.parse()) {
+				ready.add(c);
+				continue;
+			}
+			try {
+				c.channel.register(selector, SelectionKey.OP_READ, c);
+			} catch (IOException e) {
+				close(c);
+			}
+		}
+	}
+
+	/**
+	 * Start watching newly suspended connections, so they are closed if the client closes them,
+	 * and stop watching those which have been resumed.
+	 */
+	private void watchSuspended(List<Connection> ready) {
+		while(true) {
+			Connection c;
+			synchronized(toWatch) {
+				c = toWatch.poll();
+			}
+			if(c == null) return;
+			boolean resume;
+			boolean suspended;
+			synchronized(this) {
+				if(c.closed) continue;
+				resume = c.resumePending;
+				c.resumePending = false;
+				suspended = c.suspended;
+			}
+			if(resume) {
+				// The connection may be queued twice, if it is resumed before being watched.
+				if(c.watched) {
+					c.channel.keyFor(selector).cancel();
+					c.watched = false;
+				}
+				ready.add(c);
+			} else if(suspended && !c.watched) {
+				try {
+					c.channel.configureBlocking(false);
+					c.channel.register(selector, SelectionKey.OP_READ, c);
+					c.watched = true;
+				} catch (IOException e) {
+					close(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read from a suspended connection, to find out if the client has closed it. Anything else
+	 * the client sends is kept for after the suspended request.
+	 */
+	private void readSuspended(SelectionKey key, Connection c) {
+		try {
+			if(!c.buffer.hasRemaining()) {
+				// Can't tell until the request is handled.
+				key.interestOps(0);
+				return;
+			}
+			if(c.channel.read(c.buffer) >= 0) return;
+		} catch (IOException e) {
+			// Closed.
+		}
+		if(logMINOR) Logger.minor(this, "Client closed suspended connection "+c);
+		key.cancel();
+		c.watched = false;
+		close(c);
+	}
+
+	/**
+	 * Read whatever has arrived on the connection.
+	 * @return True if there is a complete request, or an error to report, for a handler thread.
+	 */
+	private boolean readRequest(Connection c, long now) {
+		try {
+			int read = c.channel.read(c.buffer);
+			if(read < 0) {
+				close(c);
+				return false;
+			}
+			c.lastActive = now;
+			return c.parse();
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Closing "+c+" : "+e);
+			close(c);
+			return false;
+		}
+	}
+
+	private void closeIdle(long now) {
+		for(SelectionKey key : selector.keys()) {
+			if(!key.isValid()) continue;
+			Connection c = (Connection) key.attachment();
+			// Suspended requests are timed out by their Toadlets.
+			if(c.watched) continue;
+			if(now - c.lastActive > IDLE_TIMEOUT) {
+				if(logMINOR) Logger.minor(this, "Closing idle connection "+c);
+				key.cancel();
+				close(c);
+			}
+		}
+	}
+
+	private void dispatch(Connection c) {
+		synchronized(this) {
+			if(runningHandlers >= maxHandlers) {
+				waiting.add(c);
+				return;
+			}
+			runningHandlers++;
+			requests++;
+		}
+		executor.execute(c, "HTTP request handler for "+c);
+	}
+
+	private synchronized void dispatchWaiting() {
+		while(runningHandlers < maxHandlers && !waiting.isEmpty()) {
+			runningHandlers++;
+			requests++;
+			executor.execute(waiting.poll(), "HTTP request handler");
+		}
+	}
+
+	/** Called by the handler thread after handling a request. */
+	private void handled(Connection c, ConnectionState state) {
+		if(state == ConnectionState.KEEP_ALIVE) {
+			try {
+				c.channel.configureBlocking(false);
+			} catch (IOException e) {
+				state = ConnectionState.CLOSE;
+			}
+		}
+		boolean again = false;
+		boolean suspended = false;
+		synchronized(this) {
+			runningHandlers--;
+			if(state == ConnectionState.SUSPENDED) {
+				if(c.resumed)
+					again = true;
+				else if(!c.closed) {
+					c.suspended = true;
+					suspendedRequests++;
+					suspended = true;
+				}
+			}
+			c.resumed = false;
+			dispatchWaiting();
+		}
+		if(state == ConnectionState.KEEP_ALIVE)
+			register(c);
+		else if(state == ConnectionState.CLOSE)
+			close(c);
+		else if(again)
+			dispatch(c);
+		else if(suspended)
+			watch(c);
+	}
+
+	/** Called when a suspended request should be handled again. */
+	private void resume(Connection c) {
+		synchronized(this) {
+			if(c.closed) return;
+			if(!c.suspended) {
+				// The Toadlet may not have returned yet.
+				c.resumed = true;
+				return;
+			}
+			c.suspended = false;
+			c.resumePending = true;
+			suspendedRequests--;
+		}
+		// The selector thread must stop watching it first.
+		watch(c);
+	}
+
+	/** Called by the handler thread, if the Toadlet wants to know if a suspended request's
+	 * connection is closed. */
+	private void whenClosed(Connection c, Runnable onClosed) {
+		synchronized(this) {
+			if(!c.closed) {
+				c.onClosed = onClosed;
+				return;
+			}
+		}
+		runOnClosed(c, onClosed);
+	}
+
+	private void close(Connection c) {
+		Runnable onClosed;
+		synchronized(this) {
+			if(c.closed) return;
+			c.closed = true;
+			connections.remove(c);
+			if(c.suspended) {
+				c.suspended = false;
+				suspendedRequests--;
+			}
+			onClosed = c.onClosed;
+			c.onClosed = null;
+		}
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e+" closing "+c);
+		}
+		if(onClosed != null)
+			runOnClosed(c, onClosed);
+		handler.closed();
+	}
+
+	private void runOnClosed(Connection c, Runnable onClosed) {
+		try {
+			onClosed.run();
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" running "+onClosed+" for closed connection "+c, t);
+		}
+	}
+
+	@Override
+	public int getPriority() {
+		return NativeThread.PriorityLevel.HIGH_PRIORITY.value;
+	}
+
+	/** A connection, and the request currently being read or handled on it. */
+	private class Connection implements PrioRunnable {
+
+		final SocketChannel channel;
+		/** Data read but not used yet, from 0 to position(). */
+		ByteBuffer buffer;
+		long lastActive;
+		/** The current request, once its headers have all arrived. */
+		String[] requestLine;
+		MultiValueTable<String,String> headers;
+		/** If not null, reading the request failed, and the handler should report this. */
+		Throwable error;
+		/** Protected by HTTPSelector.this. */
+		boolean suspended;
+		/** Protected by HTTPSelector.this. True if resumed before the handler returned. */
+		boolean resumed;
+		/** Protected by HTTPSelector.this. True if resumed, but still to be passed to a handler
+		 * by the selector thread. */
+		boolean resumePending;
+		/** Only used by the selector thread. True if suspended and registered with the selector,
+		 * to find out if the client closes the connection. */
+		boolean watched;
+		/** Protected by HTTPSelector.this. */
+		boolean closed;
+		/** Protected by HTTPSelector.this. Run if closed before the request is handled again,
+		 * see Resumer.whenClosed(). */
+		Runnable onClosed;
+		final InputStream input;
+		final Resumer resume;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			this.input = new ConnectionInputStream();
+			this.resume = new Resumer() {
+
+				@Override
+				public void run() {
+					resume(Connection.this);
+				}
+
+				@Override
+				public void whenClosed(Runnable onClosed) {
+					HTTPSelector.this.whenClosed(Connection.this, onClosed);
+				}
+
+			};
+		}
+
+		/**
+		 * Look for a complete request line and headers in the buffer, and if there is one, parse
+		 * it, and remove it from the buffer.
+		 * @return True if the request is complete, or broken, and should be passed to a
+		 * handler.
+		 */
+		boolean parse() {
+			byte[] buf = buffer.array();
+			int length = buffer.position();
+			// Skip empty lines between requests.
+			int start = 0;
+			while(start < length && (buf[start] == '\r' || buf[start] == '\n'))
+				start++;
+			int end = -1;
+			for(int i=start;i<length-1;i++) {
+				if(buf[i] != '\n') continue;
+				if(buf[i+1] == '\n') {
+					end = i+2;
+					break;
+				}
+				if(buf[i+1] == '\r' && i+2 < length && buf[i+2] == '\n') {
+					end = i+3;
+					break;
+				}
+			}
+			if(end == -1) {
+				if(start > 0) {
+					discard(start);
+				} else if(!buffer.hasRemaining()) {
+					if(buffer.capacity() >= MAX_HEAD_SIZE) {
+						error = new TooLongException("Request headers longer than "+MAX_HEAD_SIZE+" bytes");
+						return true;
+					}
+					ByteBuffer b = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_HEAD_SIZE));
+					buffer.flip();
+					b.put(buffer);
+					buffer = b;
+				}
+				return false;
+			}
+			String[] lines = new String(buf, start, end - start, StandardCharsets.ISO_8859_1).split("\r?\n");
+			discard(end);
+			try {
+				for(String line : lines) {
+					if(line.length() > ToadletContextImpl.MAX_HEADER_LINE_LENGTH)
+						throw new TooLongException("Request or header line longer than "+ToadletContextImpl.MAX_HEADER_LINE_LENGTH);
+				}
+				requestLine = ToadletContextImpl.parseRequestLine(lines[0]);
+				headers = new MultiValueTable<String,String>();
+				for(int i=1;i<lines.length;i++)
+					ToadletContextImpl.parseHeaderLine(lines[i], headers);
+			} catch (TooLongException e) {
+				error = e;
+			} catch (ParseException e) {
+				error = e;
+			}
+			return true;
+		}
+
+		/** Remove the first count bytes from the buffer. */
+		private void discard(int count) {
+			buffer.flip();
+			buffer.position(count);
+			buffer.compact();
+		}
+
+		/** Handle the current request. */
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			Socket sock = channel.socket();
+			ConnectionState state = ConnectionState.CLOSE;
+			synchronized(HTTPSelector.this) {
+				onClosed = null;
+			}
+			try {
+				if(error != null)
+					handler.handleError(sock, error);
+				else
+					state = handler.handle(sock, input, requestLine, headers, resume);
+			} catch (Throwable t) {
+				handler.handleError(sock, t);
+				state = ConnectionState.CLOSE;
+			}
+			handled(this, state);
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.PriorityLevel.HIGH_PRIORITY.value-1;
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+channel;
+		}
+
+		/** Reads from the buffer, then from the channel, which must be blocking. */
+		private class ConnectionInputStream extends InputStream {
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int x = read(b, 0, 1);
+				return x < 0 ? -1 : (b[0] & 0xFF);
+			}
+
+			@Override
+			public int read(byte[] b, int offset, int length) throws IOException {
+				if(length == 0) return 0;
+				if(buffer.position() == 0) {
+					if(channel.read(buffer) < 0) return -1;
+				}
+				buffer.flip();
+				int x = Math.min(length, buffer.remaining());
+				buffer.get(b, offset, x);
+				buffer.compact();
+				return x;
+			}
+
+			@Override
+			public int available() {
+				return buffer.position();
+			}
+
+		}
+
+	}
+
+}
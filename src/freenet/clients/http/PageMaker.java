@@ -2,11 +2,16 @@ package freenet.clients.http;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import freenet.client.filter.PushingTagReplacerCallback;
+import freenet.l10n.BaseL10n;
 import freenet.l10n.NodeL10n;
 import freenet.node.DarknetPeerNode;
 import freenet.node.Node;
@@ -130,6 +135,51 @@ public final class PageMaker {
 	
 	private List<SubMenu> menuList = new ArrayList<SubMenu>();
 	private Map<String, SubMenu> subMenus = new HashMap<String, SubMenu>();
+
+	/** Depth of the navigation bar in the page: html, body, div#page. */
+	private static final int NAVIGATION_BAR_DEPTH = 3;
+	private static final int MAX_CACHED_NAVIGATION_BARS = 64;
+
+	/** Rendered navigation bars, see getNavigationBar(). Cleared when the menus change. */
+	private final Map<NavigationBarKey, String> navigationBarCache = new LinkedHashMap<NavigationBarKey, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<NavigationBarKey, String> eldest) {
+			return size() > MAX_CACHED_NAVIGATION_BARS;
+		}
+	};
+
+	/** Everything the navigation bar depends on, apart from the menus themselves. */
+	private static class NavigationBarKey {
+		private final boolean fullAccess;
+		private final String activePath;
+		/** Which of the links, in menu order, are enabled. */
+		private final BitSet enabledLinks;
+		private final BaseL10n l10n;
+		private final int l10nGeneration;
+
+		NavigationBarKey(boolean fullAccess, String activePath, BitSet enabledLinks, BaseL10n l10n, int l10nGeneration) {
+			this.fullAccess = fullAccess;
+			this.activePath = activePath;
+			this.enabledLinks = enabledLinks;
+			this.l10n = l10n;
+			this.l10nGeneration = l10nGeneration;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof NavigationBarKey)) return false;
+			NavigationBarKey k = (NavigationBarKey) o;
+			return fullAccess == k.fullAccess && activePath.equals(k.activePath) &&
+				enabledLinks.equals(k.enabledLinks) && l10n == k.l10n && l10nGeneration == k.l10nGeneration;
+		}
+
+		@Override
+		public int hashCode() {
+			return activePath.hashCode() ^ enabledLinks.hashCode() ^ l10nGeneration ^ (fullAccess ? 1 : 0);
+		}
+	}
 	
 	private static class SubMenu {
 		
@@ -204,6 +254,7 @@ public final class PageMaker {
 		SubMenu menu = new SubMenu(link, name, title, plugin);
 		subMenus.put(name, menu);
 		menuList.add(menu);
+		navigationBarCache.clear();
 	}
 	
 	/**
@@ -214,6 +265,7 @@ public final class PageMaker {
 		SubMenu menu = new SubMenu(link, name, title, plugin);
 		subMenus.put(name, menu);
 		menuList.add(menuOffset, menu);
+		navigationBarCache.clear();
 	}
 	
 
@@ -224,6 +276,7 @@ public final class PageMaker {
 			return;
 		}	
 		menuList.remove(menu);
+		navigationBarCache.clear();
 	}
 	
 	public synchronized void addNavigationLink(String menutext, String path, String name, String title, boolean fullOnly, LinkEnabledCallback cb, FredPluginL10n l10n) {
@@ -231,6 +284,7 @@ public final class PageMaker {
 		if(menu == null)
 			throw new NullPointerException("there is no menu named "+menutext);
 		menu.addNavigationLink(path, name, title, fullOnly, cb, l10n);
+		navigationBarCache.clear();
 	}
 
 	/** Remove a navigation link from a sub-menu. Applies globally, do not use this to customise 
@@ -240,6 +294,7 @@ public final class PageMaker {
 		// The menu may have already been removed.
 		if(menu != null)
 		    menu.removeNavigationLink(name);
+		navigationBarCache.clear();
 	}
 	
 	public HTMLNode createBackLink(ToadletContext toadletContext, String name) {
@@ -471,148 +526,189 @@ public final class PageMaker {
 
 		topBarDiv.addChild("h1", title);
 		if (renderParameters.isRenderNavigationLinks()) {
-			SubMenu selected = null;
-			// Render the full menu.
-			HTMLNode navbarDiv = pageDiv.addChild("div", "id", "navbar");
-			HTMLNode navbarUl = navbarDiv.addChild("ul", "id", "navlist");
-			synchronized (this) {
-				for (SubMenu menu : menuList) {
-					HTMLNode subnavlist = new HTMLNode("ul");
-					boolean isSelected = false;
-					boolean nonEmpty = false;
-					for (String navigationLink :  fullAccess ? menu.navigationLinkTexts : menu.navigationLinkTextsNonFull) {
-						LinkEnabledCallback cb = menu.navigationLinkCallbacks.get(navigationLink);
-						if(cb != null && !cb.isEnabled(ctx)) continue;
-						nonEmpty = true;
-						String navigationTitle = menu.navigationLinkTitles.get(navigationLink);
-						String navigationPath = menu.navigationLinks.get(navigationLink);
-						HTMLNode sublistItem;
-						if(activePath.equals(navigationPath)) {
-							sublistItem = subnavlist.addChild("li", "class", "submenuitem-selected");
-							isSelected = true;
-						} else {
-							sublistItem = subnavlist.addChild("li", "class", "submenuitem-not-selected");
-						}
-						
-						FredPluginL10n l10n = menu.navigationLinkL10n.get(navigationLink);
-						if(l10n == null) l10n = menu.plugin;
-						if(l10n != null) {
-							// From a plugin. Include the plugin name in the id.
-							sublistItem.addAttribute("id", getPluginL10nCSSIdentifier(l10n, navigationTitle));
-
-							if(navigationTitle != null) {
-								String newNavigationTitle = l10n.getString(navigationTitle);
-								if(newNavigationTitle == null) {
-									Logger.error(this, "Plugin '"+l10n+"' did return null in getString(key)!");
-								} else {
-									navigationTitle = newNavigationTitle;
-								}
-							}
-							if(navigationLink != null) {
-								String newNavigationLink = l10n.getString(navigationLink);
-								if(newNavigationLink == null) {
-									Logger.error(this, "Plugin '"+l10n+"' did return null in getString(key)!");
-								} else {
-									navigationLink = newNavigationLink;
-								}
-							}
-						} else {
-							// Not from a plugin. Add the localization key as id.
-							sublistItem.addAttribute("id", filterCSSIdentifier(navigationTitle));
+			pageDiv.addChild("%", getNavigationBar(ctx, fullAccess, activePath));
+		}
+		HTMLNode contentDiv = pageDiv.addChild("div", "id", "content");
+		return new PageNode(pageNode, headNode, contentDiv);
+	}
 
-							if(navigationTitle != null) navigationTitle = NodeL10n.getBase().getString(navigationTitle);
-							if(navigationLink != null) navigationLink = NodeL10n.getBase().getString(navigationLink);
-						}
-						if(navigationTitle != null)
-							sublistItem.addChild("a", new String[] { "href", "title" }, new String[] { navigationPath, navigationTitle }, navigationLink);
-						else
-							sublistItem.addChild("a", "href", navigationPath, navigationLink);
+	/**
+	 * Get the navigation bar, and the selected sub-menu for themes which show it separately, as
+	 * HTML. This is the same on nearly every page, so we keep it and only render it again if the
+	 * menus or the translation have changed, or different links are enabled.
+	 */
+	private synchronized String getNavigationBar(ToadletContext ctx, boolean fullAccess, String activePath) {
+		// Ask each callback once, and use the same answer for the key and for rendering.
+		Map<LinkEnabledCallback, Boolean> enabled = new IdentityHashMap<LinkEnabledCallback, Boolean>();
+		BitSet enabledLinks = new BitSet();
+		int i = 0;
+		for (SubMenu menu : menuList) {
+			for (String navigationLink : fullAccess ? menu.navigationLinkTexts : menu.navigationLinkTextsNonFull) {
+				LinkEnabledCallback cb = menu.navigationLinkCallbacks.get(navigationLink);
+				if(cb != null) {
+					Boolean isEnabled = enabled.get(cb);
+					if(isEnabled == null) {
+						isEnabled = cb.isEnabled(ctx);
+						enabled.put(cb, isEnabled);
 					}
-					if(nonEmpty) {
-						HTMLNode listItem;
-						if(isSelected) {
-							selected = menu;
-							subnavlist.addAttribute("class", "subnavlist-selected");
-							listItem = new HTMLNode("li", "class", "navlist-selected");
+					if(isEnabled) enabledLinks.set(i);
+				} else {
+					enabledLinks.set(i);
+				}
+				i++;
+			}
+		}
+		BaseL10n l10n = NodeL10n.getBase();
+		NavigationBarKey key = new NavigationBarKey(fullAccess, activePath, enabledLinks, l10n, l10n.getGeneration());
+		String navigationBar = navigationBarCache.get(key);
+		if(navigationBar == null) {
+			navigationBar = renderNavigationBar(fullAccess, activePath, enabled);
+			navigationBarCache.put(key, navigationBar);
+		}
+		return navigationBar;
+	}
+
+	private String renderNavigationBar(boolean fullAccess, String activePath, Map<LinkEnabledCallback, Boolean> enabled) {
+		StringBuilder sb = new StringBuilder();
+		SubMenu selected = null;
+		// Render the full menu.
+		HTMLNode navbarDiv = new HTMLNode("div", "id", "navbar");
+		HTMLNode navbarUl = navbarDiv.addChild("ul", "id", "navlist");
+		for (SubMenu menu : menuList) {
+			HTMLNode subnavlist = new HTMLNode("ul");
+			boolean isSelected = false;
+			boolean nonEmpty = false;
+			for (String navigationLink :  fullAccess ? menu.navigationLinkTexts : menu.navigationLinkTextsNonFull) {
+				LinkEnabledCallback cb = menu.navigationLinkCallbacks.get(navigationLink);
+				if(cb != null && !enabled.get(cb)) continue;
+				nonEmpty = true;
+				String navigationTitle = menu.navigationLinkTitles.get(navigationLink);
+				String navigationPath = menu.navigationLinks.get(navigationLink);
+				HTMLNode sublistItem;
+				if(activePath.equals(navigationPath)) {
+					sublistItem = subnavlist.addChild("li", "class", "submenuitem-selected");
+					isSelected = true;
+				} else {
+					sublistItem = subnavlist.addChild("li", "class", "submenuitem-not-selected");
+				}
+				
+				FredPluginL10n l10n = menu.navigationLinkL10n.get(navigationLink);
+				if(l10n == null) l10n = menu.plugin;
+				if(l10n != null) {
+					// From a plugin. Include the plugin name in the id.
+					sublistItem.addAttribute("id", getPluginL10nCSSIdentifier(l10n, navigationTitle));
+
+					if(navigationTitle != null) {
+						String newNavigationTitle = l10n.getString(navigationTitle);
+						if(newNavigationTitle == null) {
+							Logger.error(this, "Plugin '"+l10n+"' did return null in getString(key)!");
 						} else {
-							subnavlist.addAttribute("class", "subnavlist");
-							listItem = new HTMLNode("li", "class", "navlist-not-selected");
+							navigationTitle = newNavigationTitle;
 						}
-						String menuItemTitle = menu.defaultNavigationLinkTitle;
-						String text = menu.navigationLinkText;
-						if(menu.plugin == null) {
-							// Not from a plugin. Add the localization key as id.
-							listItem.addAttribute("id", filterCSSIdentifier(menuItemTitle));
-
-							menuItemTitle = NodeL10n.getBase().getString(menuItemTitle);
-							text = NodeL10n.getBase().getString(text);
+					}
+					if(navigationLink != null) {
+						String newNavigationLink = l10n.getString(navigationLink);
+						if(newNavigationLink == null) {
+							Logger.error(this, "Plugin '"+l10n+"' did return null in getString(key)!");
 						} else {
-							/*
-							 * From a plugin. Include the plugin name in the id.
-							 *
-							 * Note that a plugin could misbehave and fail to register its
-							 * menu with proper localization keys.
-							 */
-							listItem.addAttribute("id", getPluginL10nCSSIdentifier(menu.plugin, text));
-
-							String newTitle = menu.plugin.getString(menuItemTitle);
-							if(newTitle == null) {
-								Logger.error(this, "Plugin '"+menu.plugin+"' did return null in getString(key)!");
-							} else {
-								menuItemTitle = newTitle;
-							}
-							String newText = menu.plugin.getString(text);
-							if(newText == null) {
-								Logger.error(this, "Plugin '"+menu.plugin+"' did return null in getString(key)!");
-							} else {
-								text = newText;
-							}
+							navigationLink = newNavigationLink;
 						}
-						
-						listItem.addChild("a", new String[] { "href", "title" }, new String[] { menu.defaultNavigationLink, menuItemTitle }, text);
-						listItem.addChild(subnavlist);
-						navbarUl.addChild(listItem);
 					}
+				} else {
+					// Not from a plugin. Add the localization key as id.
+					sublistItem.addAttribute("id", filterCSSIdentifier(navigationTitle));
+
+					if(navigationTitle != null) navigationTitle = NodeL10n.getBase().getString(navigationTitle);
+					if(navigationLink != null) navigationLink = NodeL10n.getBase().getString(navigationLink);
 				}
+				if(navigationTitle != null)
+					sublistItem.addChild("a", new String[] { "href", "title" }, new String[] { navigationPath, navigationTitle }, navigationLink);
+				else
+					sublistItem.addChild("a", "href", navigationPath, navigationLink);
 			}
-			// Some themes want the selected submenu separately.
-			if(selected != null) {
-				HTMLNode div = new HTMLNode("div", "id", "selected-subnavbar");
-				HTMLNode subnavlist = div.addChild("ul", "id", "selected-subnavbar-list");
-				boolean nonEmpty = false;
-				for (String navigationLink :  fullAccess ? selected.navigationLinkTexts : selected.navigationLinkTextsNonFull) {
-					LinkEnabledCallback cb = selected.navigationLinkCallbacks.get(navigationLink);
-					if(cb != null && !cb.isEnabled(ctx)) continue;
-					nonEmpty = true;
-					String navigationTitle = selected.navigationLinkTitles.get(navigationLink);
-					String navigationPath = selected.navigationLinks.get(navigationLink);
-					HTMLNode sublistItem;
-					if(activePath.equals(navigationPath)) {
-						sublistItem = subnavlist.addChild("li", "class", "submenuitem-selected");
+			if(nonEmpty) {
+				HTMLNode listItem;
+				if(isSelected) {
+					selected = menu;
+					subnavlist.addAttribute("class", "subnavlist-selected");
+					listItem = new HTMLNode("li", "class", "navlist-selected");
+				} else {
+					subnavlist.addAttribute("class", "subnavlist");
+					listItem = new HTMLNode("li", "class", "navlist-not-selected");
+				}
+				String menuItemTitle = menu.defaultNavigationLinkTitle;
+				String text = menu.navigationLinkText;
+				if(menu.plugin == null) {
+					// Not from a plugin. Add the localization key as id.
+					listItem.addAttribute("id", filterCSSIdentifier(menuItemTitle));
+
+					menuItemTitle = NodeL10n.getBase().getString(menuItemTitle);
+					text = NodeL10n.getBase().getString(text);
+				} else {
+					/*
+					 * From a plugin. Include the plugin name in the id.
+					 *
+					 * Note that a plugin could misbehave and fail to register its
+					 * menu with proper localization keys.
+					 */
+					listItem.addAttribute("id", getPluginL10nCSSIdentifier(menu.plugin, text));
+
+					String newTitle = menu.plugin.getString(menuItemTitle);
+					if(newTitle == null) {
+						Logger.error(this, "Plugin '"+menu.plugin+"' did return null in getString(key)!");
 					} else {
-						sublistItem = subnavlist.addChild("li", "class", "submenuitem-not-selected");
+						menuItemTitle = newTitle;
 					}
-					
-					FredPluginL10n l10n = selected.navigationLinkL10n.get(navigationLink);
-					if (l10n == null) l10n = selected.plugin;
-					if(l10n != null) {
-						if(navigationTitle != null) navigationTitle = l10n.getString(navigationTitle);
-						if(navigationLink != null) navigationLink = l10n.getString(navigationLink);
+					String newText = menu.plugin.getString(text);
+					if(newText == null) {
+						Logger.error(this, "Plugin '"+menu.plugin+"' did return null in getString(key)!");
 					} else {
-						if(navigationTitle != null) navigationTitle = NodeL10n.getBase().getString(navigationTitle);
-						if(navigationLink != null) navigationLink = NodeL10n.getBase().getString(navigationLink);
+						text = newText;
 					}
-					if(navigationTitle != null)
-						sublistItem.addChild("a", new String[] { "href", "title" }, new String[] { navigationPath, navigationTitle }, navigationLink);
-					else
-						sublistItem.addChild("a", "href", navigationPath, navigationLink);
 				}
-				if(nonEmpty)
-					pageDiv.addChild(div);
+				
+				listItem.addChild("a", new String[] { "href", "title" }, new String[] { menu.defaultNavigationLink, menuItemTitle }, text);
+				listItem.addChild(subnavlist);
+				navbarUl.addChild(listItem);
 			}
 		}
-		HTMLNode contentDiv = pageDiv.addChild("div", "id", "content");
-		return new PageNode(pageNode, headNode, contentDiv);
+		navbarDiv.generate(sb, NAVIGATION_BAR_DEPTH);
+		// Some themes want the selected submenu separately.
+		if(selected != null) {
+			HTMLNode div = new HTMLNode("div", "id", "selected-subnavbar");
+			HTMLNode subnavlist = div.addChild("ul", "id", "selected-subnavbar-list");
+			boolean nonEmpty = false;
+			for (String navigationLink :  fullAccess ? selected.navigationLinkTexts : selected.navigationLinkTextsNonFull) {
+				LinkEnabledCallback cb = selected.navigationLinkCallbacks.get(navigationLink);
+				if(cb != null && !enabled.get(cb)) continue;
+				nonEmpty = true;
+				String navigationTitle = selected.navigationLinkTitles.get(navigationLink);
+				String navigationPath = selected.navigationLinks.get(navigationLink);
+				HTMLNode sublistItem;
+				if(activePath.equals(navigationPath)) {
+					sublistItem = subnavlist.addChild("li", "class", "submenuitem-selected");
+				} else {
+					sublistItem = subnavlist.addChild("li", "class", "submenuitem-not-selected");
+				}
+				
+				FredPluginL10n l10n = selected.navigationLinkL10n.get(navigationLink);
+				if (l10n == null) l10n = selected.plugin;
+				if(l10n != null) {
+					if(navigationTitle != null) navigationTitle = l10n.getString(navigationTitle);
+					if(navigationLink != null) navigationLink = l10n.getString(navigationLink);
+				} else {
+					if(navigationTitle != null) navigationTitle = NodeL10n.getBase().getString(navigationTitle);
+					if(navigationLink != null) navigationLink = NodeL10n.getBase().getString(navigationLink);
+				}
+				if(navigationTitle != null)
+					sublistItem.addChild("a", new String[] { "href", "title" }, new String[] { navigationPath, navigationTitle }, navigationLink);
+				else
+					sublistItem.addChild("a", "href", navigationPath, navigationLink);
+			}
+			if(nonEmpty)
+				div.generate(sb, NAVIGATION_BAR_DEPTH);
+		}
+		return sb.toString();
 	}
 
 	/**
@@ -638,10 +734,14 @@ public final class PageMaker {
 	 * @link http://www.w3.org/TR/CSS21/grammar.html#scanner
 	 * @link http://stackoverflow.com/questions/448981/
 	 */
+	private static final Pattern INVALID_CSS_IDENTIFIER_START = Pattern.compile("^-[^_a-zA-Z]");
+	private static final Pattern INVALID_CSS_IDENTIFIER_CHARS = Pattern.compile("[^-_a-zA-Z0-9]");
+
 	public static String filterCSSIdentifier(String input) {
 		while (input.length() < 2) input = input.concat("_");
 
-		return input.replaceFirst("^-[^_a-zA-Z]", "-_").replaceAll("[^-_a-zA-Z0-9]", "_");
+		input = INVALID_CSS_IDENTIFIER_START.matcher(input).replaceFirst("-_");
+		return INVALID_CSS_IDENTIFIER_CHARS.matcher(input).replaceAll("_");
 	}
 
 	public THEME getTheme() {
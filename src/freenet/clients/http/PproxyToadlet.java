@@ -338,6 +338,10 @@ public class PproxyToadlet extends Toadlet {
 		return NodeL10n.getBase().getString("PproxyToadlet."+key);
 	}
 
+	private String l10n(String key, String[] patterns, String[] values) {
+		return NodeL10n.getBase().getString("PproxyToadlet."+key, patterns, values);
+	}
+
 	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx)
 	throws ToadletContextClosedException, IOException {
 
@@ -508,6 +512,7 @@ public class PproxyToadlet extends Toadlet {
 			if(advancedMode) {
 				headerRow.addChild("th", l10n("internalIDTitle"));
 				headerRow.addChild("th", l10n("startedAtTitle"));
+				headerRow.addChild("th", l10n("startupTimeTitle"));
 			}
 			headerRow.addChild("th");
 			headerRow.addChild("th");
@@ -527,6 +532,14 @@ public class PproxyToadlet extends Toadlet {
 				if(advancedMode) {
 					pluginRow.addChild("td", pi.getThreadName());
 					pluginRow.addChild("td", new Date(pi.getStarted()).toString());
+					if(pi.getLoadTime() < 0)
+						pluginRow.addChild("td");
+					else
+						pluginRow.addChild("td", "title", l10n("startupTimeDetail",
+							new String[] { "load", "start" },
+							new String[] { TimeUtil.formatTime(pi.getLoadTime(), 2, true),
+								TimeUtil.formatTime(pi.getStartTime(), 2, true) }),
+							TimeUtil.formatTime(pi.getLoadTime() + pi.getStartTime(), 2, true));
 				}
 				if (pi.isStopping()) {
 					pluginRow.addChild("td", l10n("pluginStopping"));
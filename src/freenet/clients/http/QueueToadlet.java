@@ -29,6 +29,7 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
@@ -64,6 +65,7 @@ import freenet.clients.fcp.RequestStatus;
 import freenet.clients.fcp.UploadDirRequestStatus;
 import freenet.clients.fcp.UploadFileRequestStatus;
 import freenet.clients.fcp.UploadRequestStatus;
+import freenet.clients.http.updateableelements.RequestProgressElement;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.DarknetPeerNode;
@@ -82,6 +84,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.MultiValueTable;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.URLEncoder;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 import freenet.support.api.RandomAccessBucket;
@@ -158,16 +161,29 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		this.fiw = fiw;
 	}
 
-	private boolean isReversed = false;
 	private final boolean uploads;
+	private final RequestProgressElement.Subscriptions progressSubscriptions;
+
+	/** Number of requests shown per table unless the pageSize parameter says otherwise. With
+	 * tens of thousands of requests, rendering them all takes many seconds. */
+	static final int DEFAULT_PAGE_SIZE = 100;
+	static final int MAX_PAGE_SIZE = 1000;
+	/** Prefix of the parameter giving the first request shown in each table */
+	private static final String OFFSET_PARAM_PREFIX = "offset-";
 
     private static final String KEY_LIST_LOCATION = "listKeys.txt";
 
-	public QueueToadlet(NodeClientCore core, FCPServer fcp, HighLevelSimpleClient client, boolean uploads) {
+	/**
+	 * @param progressSubscriptions The requests whose progress is pushed to a page, shared by
+	 * the uploads and downloads pages. Must be listening to the global queue already.
+	 */
+	public QueueToadlet(NodeClientCore core, FCPServer fcp, HighLevelSimpleClient client, boolean uploads,
+			RequestProgressElement.Subscriptions progressSubscriptions) {
 		super(client);
 		this.core = core;
 		this.fcp = fcp;
 		this.uploads = uploads;
+		this.progressSubscriptions = progressSubscriptions;
 		if(fcp == null) throw new NullPointerException();
 		fcp.setCompletionCallback(this);
 		try {
@@ -283,7 +299,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					new String[] { "type", "name", "value" },
 					new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.no") });
 
-				this.writeHTMLReply(ctx, 200, "OK", page.outer.generate());
+				this.writeHTMLReply(ctx, 200, "OK", page.outer);
 				return;
 			} else if(request.isPartSet("remove_request") && !request.getPartAsStringFailsafe("remove_request", 128).isEmpty()) {
 				// Remove all requested (i.e. selected) requests from the queue, regardless of
@@ -531,7 +547,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				}
 				alertContent.addChild("a", "href", path(),
 					NodeL10n.getBase().getString("Toadlet.returnToQueuepage"));
-				writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if (request.isPartSet("change_priority_top")) {
 				handleChangePriority(request, ctx, "_top");
@@ -914,7 +930,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					new String[]{"type", "name", "value"},
 					new String[]{"submit", "recommend_uri", l10n("recommend")});
 
-				this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				this.writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if(request.isPartSet("recommend_uri")) {
 				String description = request.getPartAsStringFailsafe("description", 32768);
@@ -975,7 +991,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		alert.addChild("ul", l10n("downloadDisallowed", "directory", downloadPath));
 		alert.addChild("a", "href", path(),
 			NodeL10n.getBase().getString("Toadlet.returnToQueuepage"));
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private File getDownloadsDir (String downloadPath) throws NotAllowedException {
@@ -1016,7 +1032,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		else
 			content.addChild("p").addChild("a", "href", path(), l10n("backToDownloadsPage"));
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void sendPersistenceDisabledError(ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -1032,7 +1048,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 			addHomepageLink(infoboxContent);
 
-			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode.generate());
+			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode);
 			return;
 
 		}
@@ -1066,7 +1082,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			NodeL10n.getBase().addL10nSubstitution(infoboxContent.addChild("div"), "QueueToadlet.returnToQueuePage", new String[] { "link" }, new HTMLNode[] { HTMLNode.link(path()) });
 		else if(returnToInsertPage)
 			NodeL10n.getBase().addL10nSubstitution(infoboxContent.addChild("div"), "QueueToadlet.tryAgainUploadFilePage", new String[] { "link" }, new HTMLNode[] { HTMLNode.link(FileInsertWizardToadlet.PATH) });
-		writeHTMLReply(context, 400, "Bad request", pageNode.generate());
+		writeHTMLReply(context, 400, "Bad request", pageNode);
 	}
 
 	public void handleMethodGET(URI uri, final HTTPRequest request, final ToadletContext ctx)
@@ -1114,7 +1130,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				RequestStatus[] reqs = fcp.getGlobalRequests();
 				MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 				HTMLNode pageNode = handleGetInner(pageMaker, reqs, core.getClientContext(), request, ctx);
-				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 				return;
 			} catch (PersistenceDisabledException e) {
 				sendPersistenceDisabledError(ctx);
@@ -1193,7 +1209,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
-			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 		else if(plainText != null)
 			this.writeReply(ctx, 200, "text/plain", "OK", plainText);
 		else {
@@ -1259,8 +1275,14 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		long totalQueuedDownloadSize = 0;
 		long totalQueuedUploadSize = 0;
 
+		String filter = request.getParam("filter").trim().toLowerCase(Locale.ROOT);
+		if(filter.isEmpty())
+			filter = null;
+
 		boolean added = false;
 		for(RequestStatus req: reqs) {
+			if(filter != null && !matchesFilter(req, filter))
+				continue;
 			if(req instanceof DownloadRequestStatus && !uploads) {
 				DownloadRequestStatus download = (DownloadRequestStatus)req;
 				if(download.hasSucceeded()) {
@@ -1349,12 +1371,15 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		added = true;
 			}
 		}
-		if(!added) {
+		if(!added && filter == null) {
 		    return sendEmptyQueuePage(ctx, pageMaker);
 		}
 		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
 		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
 
+		// Look up the parameters once rather than on every comparison.
+		final String sortBy = request.isParameterSet("sortBy") ? request.getParam("sortBy") : null;
+		final boolean reversed = request.isParameterSet("reversed");
 		Comparator<RequestStatus> jobComparator = new Comparator<RequestStatus>() {
 			@Override
 			public int compare(RequestStatus firstRequest, RequestStatus secondRequest) {
@@ -1364,9 +1389,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				int result = 0;
 				boolean isSet = true;
 
-				if(request.isParameterSet("sortBy")){
-					final String sortBy = request.getParam("sortBy");
-
+				if(sortBy != null){
 					switch (sortBy) {
 						case "id":
 							result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
@@ -1412,11 +1435,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 				if(result == 0){
 					return 0;
-				}else if(request.isParameterSet("reversed")){
-					isReversed = true;
+				}else if(reversed){
 					return result > 0 ? -1 : 1;
 				}else{
-					isReversed = false;
 					return result < 0 ? -1 : 1;
 				}
 			}
@@ -1532,6 +1553,11 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild(navigationBar);
 		}
 
+		contentNode.addChild(createFilterForm(request, filter));
+		if (!added) {
+			contentNode.addChild("p", "class", "queue-filter-empty", l10n("noMatchingRequests"));
+		}
+
 		final String[] priorityClasses = new String[] {
 				l10n("priority0"),
 				l10n("priority1"),
@@ -1578,9 +1604,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
 			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			}
 		}
 
@@ -1588,9 +1614,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
 			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			}
 		}
 
@@ -1598,9 +1624,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedUpload");
 			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			} else {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			}
 		}
 
@@ -1608,9 +1634,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDirUpload");
 			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			}
 		}
 
@@ -1618,9 +1644,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDownload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			}
 		}
 
@@ -1628,9 +1654,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			}
 		}
 
@@ -1638,9 +1664,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDirUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			}
 		}
 
@@ -1665,9 +1691,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
 				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				}
 			}
 		}
@@ -1685,9 +1711,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
 				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				}
 			}
 
@@ -1699,7 +1725,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
-			pageMaker, ctx, uncompletedDownload,
+			pageMaker, ctx, request, uncompletedDownload,
 			new QueueColumn[] {
 			    QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
 			    QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1716,7 +1742,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			QueueType.UncompletedDownload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
 			}
 		}
 
@@ -1726,7 +1752,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
-			pageMaker, ctx, uncompletedUpload,
+			pageMaker, ctx, request, uncompletedUpload,
 			new QueueColumn[] {
 			    QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
 			    QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1743,7 +1769,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			QueueType.UncompletedUpload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
 			}
 		}
 
@@ -1753,7 +1779,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
-			pageMaker, ctx, uncompletedDirUpload,
+			pageMaker, ctx, request, uncompletedDirUpload,
 			new QueueColumn[] {
 			    QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.PRIORITY,
 			    QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1769,7 +1795,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			QueueType.UncompletedDirUpload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
 			}
 		}
 
@@ -1804,6 +1830,21 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return reasonCell;
 	}
 
+	public static HTMLNode createProgressCell(boolean advancedMode, RequestStatus clientRequest, boolean upload) {
+		if(clientRequest instanceof UploadFileRequestStatus)
+			return createProgressCell(advancedMode,
+					clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
+					clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
+					clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
+					clientRequest.getTotalBlocks(), true, upload);
+		else
+			return createProgressCell(advancedMode,
+					clientRequest.isStarted(), COMPRESS_STATE.WORKING,
+					clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
+					clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
+					clientRequest.getTotalBlocks(), clientRequest.isTotalFinalized(), upload);
+	}
+
 	public static HTMLNode createProgressCell(boolean advancedMode, boolean started, COMPRESS_STATE compressing, int fetched, int failed, int fatallyFailed, int min, int total, boolean finalized, boolean upload) {
 		HTMLNode progressCell = new HTMLNode("td", "class", "request-progress");
 		if (!started) {
@@ -2110,15 +2151,31 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	return lastFailureCell;
     }
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
-		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
+		return createRequestTable(pageMaker, ctx, request, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
 	}
 	
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
+	/** Create a table showing one page of the given (sorted) requests. */
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
 		boolean hasFriends = core.getNode().getDarknetConnections().length > 0;
 		long now = System.currentTimeMillis();
+		boolean pushProgress = !(queueType.isFailed || queueType.isCompleted) &&
+			ctx.getContainer().isFProxyJavascriptEnabled() && ctx.getContainer().isFProxyWebPushingEnabled();
+		
+		int pageSize = getPageSize(request);
+		String offsetParam = OFFSET_PARAM_PREFIX + id + (mimeType == null ? "" : "-" + mimeType);
+		int offset = request.getIntParam(offsetParam, 0);
+		if(offset >= requests.size())
+			offset = (requests.size() - 1) / pageSize * pageSize;
+		if(offset < 0)
+			offset = 0;
+		List<? extends RequestStatus> shown = requests;
+		if(offset > 0 || requests.size() > pageSize)
+			shown = requests.subList(offset, Math.min(requests.size(), offset + pageSize));
 		
 		HTMLNode formDiv = new HTMLNode("div", "class", "request-table-form");
+		if(shown != requests)
+			formDiv.addChild(createPager(request, offsetParam, offset, pageSize, requests.size()));
 		HTMLNode form = ctx.addFormChild(formDiv, path(), "request-table-form-"+id+(advancedModeEnabled?"-advanced":"-simple"));
 		
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, true, queueType);
@@ -2133,10 +2190,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		for (QueueColumn column : columns) {
 			switch (column) {
 				case IDENTIFIER:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=id" : "?sortBy=id&reversed")).addChild("#", l10n("identifier"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "id")).addChild("#", l10n("identifier"));
 					break;
 				case SIZE:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=size" : "?sortBy=size&reversed")).addChild("#", l10n("size"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "size")).addChild("#", l10n("size"));
 					break;
 				case MIME_TYPE:
 					headerRow.addChild("th", l10n("mimeType"));
@@ -2160,17 +2217,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					headerRow.addChild("th", l10n("totalSize"));
 					break;
 				case PROGRESS:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=progress" : "?sortBy=progress&reversed")).addChild("#", l10n("progress"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "progress")).addChild("#", l10n("progress"));
 					break;
 				case REASON:
 					headerRow.addChild("th", l10n("reason"));
 					break;
 				case LAST_ACTIVITY:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=lastActivity" : "?sortBy=lastActivity&reversed"), l10n("lastActivity"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "lastActivity"), l10n("lastActivity"));
 					break;
 		case LAST_FAILURE:
 		    headerRow.addChild("th").addChild("a", "href",
-			    (isReversed ? "?sortBy=lastFailure" : "?sortBy=lastFailure&reversed"),
+			    sortLink(request, "lastFailure"),
 			    l10n("lastFailure"));
 		    break;
 				case COMPAT_MODE:
@@ -2180,7 +2237,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		}
 		//Add a row with a checkbox for each request.
 		int x = 0;
-		for (RequestStatus clientRequest : requests) {
+		for (RequestStatus clientRequest : shown) {
 			HTMLNode requestRow = table.addChild("tr", "class", "priority" + clientRequest.getPriority());
 			requestRow.addChild(createCheckboxCell(clientRequest, x++));
 
@@ -2231,22 +2288,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
 						break;
 					case PROGRESS:
-						if(clientRequest instanceof UploadFileRequestStatus)
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
+						if(pushProgress)
+							requestRow.addChild(new RequestProgressElement(fcp, progressSubscriptions, clientRequest, ctx.isAdvancedModeEnabled(), queueType.isUpload, ctx, true));
 						else
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), COMPRESS_STATE.WORKING,
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
+							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(), clientRequest, queueType.isUpload));
 						break;
 					case REASON:
 						requestRow.addChild(createReasonCell(clientRequest.getFailureReason(false)));
@@ -2269,9 +2314,97 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			}
 		}
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, false, queueType);
+		if(shown != requests)
+			formDiv.addChild(createPager(request, offsetParam, offset, pageSize, requests.size()));
 		return formDiv;
 	}
 
+	/** A form to only show the requests matching a filter, keeping the sort order and page size. */
+	private HTMLNode createFilterForm(HTTPRequest request, String filter) {
+		HTMLNode form = new HTMLNode("form", new String[] { "action", "method", "class" }, new String[] { path(), "get", "queue-filter" });
+		for(String name : new String[] { "sortBy", "reversed", "pageSize" }) {
+			if(request.isParameterSet(name))
+				form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", name, request.getParam(name) });
+		}
+		form.addChild("#", l10n("filterLabel") + " ");
+		form.addChild("input", new String[] { "type", "name", "value", "size" }, new String[] { "text", "filter", filter == null ? "" : request.getParam("filter"), "30" });
+		form.addChild("#", " ");
+		form.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("filter") });
+		if(filter != null) {
+			form.addChild("#", " ");
+			form.addChild("a", "href", path(), l10n("clearFilter"));
+		}
+		return form;
+	}
+
+	static int getPageSize(HTTPRequest request) {
+		int pageSize = request.getIntParam("pageSize", DEFAULT_PAGE_SIZE);
+		if(pageSize < 1) return DEFAULT_PAGE_SIZE;
+		return Math.min(pageSize, MAX_PAGE_SIZE);
+	}
+
+	private HTMLNode createPager(HTTPRequest request, String offsetParam, int offset, int pageSize, int total) {
+		HTMLNode pager = new HTMLNode("div", "class", "request-table-pager");
+		if(offset > 0) {
+			pager.addChild("a", "href", pageLink(request, offsetParam, Math.max(0, offset - pageSize)), l10n("previousPage"));
+			pager.addChild("#", " ");
+		}
+		pager.addChild("span", "class", "request-table-range", l10n("pageRange", new String[] { "first", "last", "total" },
+				new String[] { Integer.toString(offset + 1), Integer.toString(Math.min(total, offset + pageSize)), Integer.toString(total) }));
+		if(offset + pageSize < total) {
+			pager.addChild("#", " ");
+			pager.addChild("a", "href", pageLink(request, offsetParam, offset + pageSize), l10n("nextPage"));
+		}
+		return pager;
+	}
+
+	/** Link sorting the queue by the given column, in the opposite order to the current one.
+	 * Keeps the filter and page size, but goes back to the first page of each table. */
+	static String sortLink(HTTPRequest request, String sortBy) {
+		StringBuilder sb = new StringBuilder("?sortBy=").append(sortBy);
+		if(!request.isParameterSet("reversed"))
+			sb.append("&reversed");
+		if(request.isParameterSet("filter"))
+			appendParam(sb, "filter", request.getParam("filter"));
+		if(request.isParameterSet("pageSize"))
+			appendParam(sb, "pageSize", request.getParam("pageSize"));
+		return sb.toString();
+	}
+
+	/** Link to the same view, except that the table using offsetParam starts at offset. */
+	static String pageLink(HTTPRequest request, String offsetParam, int offset) {
+		StringBuilder sb = new StringBuilder();
+		for(String name : request.getParameterNames()) {
+			if(name.equals(offsetParam)) continue;
+			appendParam(sb, name, request.getParam(name));
+		}
+		appendParam(sb, offsetParam, Integer.toString(offset));
+		return sb.toString();
+	}
+
+	private static void appendParam(StringBuilder sb, String name, String value) {
+		sb.append(sb.length() == 0 ? '?' : '&').append(URLEncoder.encode(name, false));
+		if(!value.isEmpty())
+			sb.append('=').append(URLEncoder.encode(value, false));
+	}
+
+	/** Does the identifier, key or filename of the request contain the filter? The filter must
+	 * already be lower case. */
+	static boolean matchesFilter(RequestStatus req, String filter) {
+		if(req.getIdentifier().toLowerCase(Locale.ROOT).contains(filter))
+			return true;
+		FreenetURI uri = req.getURI();
+		if(uri != null && uri.toString().toLowerCase(Locale.ROOT).contains(filter))
+			return true;
+		if(req instanceof UploadRequestStatus) {
+			uri = ((UploadRequestStatus) req).getFinalURI();
+			if(uri != null && uri.toString().toLowerCase(Locale.ROOT).contains(filter))
+				return true;
+		}
+		String filename = req.getPreferredFilenameSafe();
+		return filename != null && filename.toLowerCase(Locale.ROOT).contains(filter);
+	}
+
 	private boolean queueCannotRecommend(QueueType queueType) {
 		return queueType.isUpload && !queueType.isCompleted;
 	}
@@ -7,6 +7,7 @@ import org.tanukisoftware.wrapper.WrapperManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
@@ -20,6 +21,7 @@ import freenet.client.filter.HTMLFilter;
 import freenet.client.filter.LinkFilterExceptionProvider;
 import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.clients.http.PageMaker.THEME;
+import freenet.clients.http.ToadletContextImpl.ConnectionState;
 import freenet.clients.http.bookmark.BookmarkManager;
 import freenet.clients.http.updateableelements.PushDataManager;
 import freenet.config.EnumerableOptionCallback;
@@ -45,6 +47,7 @@ import freenet.support.HTMLNode;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.MultiValueTable;
 import freenet.support.Ticker;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.BucketFactory;
@@ -223,6 +226,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				String[] failedAddresses = networkInterface.setBindTo(bindTo, false);
 				if(failedAddresses == null) {
 					SimpleToadletServer.this.bindTo = bindTo;
+					// Don't keep connections to the old addresses.
+					closeSelector();
 				} else {
 					// This is an advanced option for reasons of reducing clutter,
 					// but it is expected to be used by regular users, not devs.
@@ -326,6 +331,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				} else {
 					myThread.interrupt();
 					myThread = null;
+					closeSelector();
 					SimpleToadletServer.this.notifyAll();
 					return;
 				}
@@ -720,6 +726,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 					public void set(Integer val) {
 						synchronized(SimpleToadletServer.this) {
 							maxFproxyConnections = val;
+							if(selector != null)
+								selector.setMaxHandlers(val);
 							SimpleToadletServer.this.notifyAll();
 						}
 					}
@@ -866,7 +874,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true, true);
 		}
 	}		
 
@@ -1037,16 +1045,72 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				if(myThread == null) return;
 			}
 			Socket conn = networkInterface.accept();
-			if (WrapperManager.hasShutdownHookBeenTriggered())
+			if (WrapperManager.hasShutdownHookBeenTriggered()) {
+				closeSelector();
 				return;
+			}
             if(conn == null)
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            if(finishedStartup && conn.getChannel() != null) {
+            	try {
+            		HTTPSelector httpSelector = getSelector();
+            		// Counted until the selector closes the connection, like a SocketHandler.
+            		synchronized(this) {
+            			fproxyConnections++;
+            		}
+            		httpSelector.add(conn.getChannel());
+            		continue;
+            	} catch (IOException e) {
+            		Logger.error(this, "Unable to start HTTP selector, using a thread per connection: "+e, e);
+            	}
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
+
+	/** Waits for requests on idle connections, so they don't need a thread each. */
+	private HTTPSelector selector;
+
+	private synchronized HTTPSelector getSelector() throws IOException {
+		if(selector == null) {
+			selector = new HTTPSelector(new HTTPSelector.RequestHandler() {
+
+				@Override
+				public ConnectionState handle(Socket sock, InputStream is, String[] requestLine,
+						MultiValueTable<String, String> headers, HTTPSelector.Resumer resume) throws Throwable {
+					return ToadletContextImpl.handleRequest(sock, is, requestLine, headers, SimpleToadletServer.this,
+							pageMaker, getUserAlertManager(), bookmarkManager, resume);
+				}
+
+				@Override
+				public void handleError(Socket sock, Throwable t) {
+					ToadletContextImpl.handleError(sock, t);
+				}
+
+				@Override
+				public void closed() {
+					synchronized(SimpleToadletServer.this) {
+						fproxyConnections--;
+						SimpleToadletServer.this.notifyAll();
+					}
+				}
+
+			}, executor, maxFproxyConnections);
+			selector.start();
+		}
+		return selector;
+	}
+
+	/** Close the selector and all its connections. A new one is started for the next connection. */
+	private synchronized void closeSelector() {
+		if(selector != null) {
+			selector.close();
+			selector = null;
+		}
+	}
 	
 	public class SocketHandler implements PrioRunnable {
 
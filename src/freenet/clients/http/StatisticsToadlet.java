@@ -13,10 +13,15 @@ import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 import freenet.client.async.ClientRequester;
+import freenet.client.async.HealingQueue;
+import freenet.client.async.LocalDownloadCache;
+import freenet.client.async.USKPollScheduler;
+import freenet.client.filter.FilterResultCache;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
@@ -440,6 +445,24 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+
+			LocalDownloadCache downloadCache = core.getLocalDownloadCache();
+			if(downloadCache != null) {
+				HTMLNode downloadCacheInfobox = nextTableCell.addChild("div", "class", "infobox");
+				drawDownloadCacheBox(downloadCacheInfobox, downloadCache);
+			}
+
+			FilterResultCache filterCache = core.getFilterResultCache();
+			if(filterCache != null) {
+				HTMLNode filterCacheInfobox = nextTableCell.addChild("div", "class", "infobox");
+				drawFilterCacheBox(filterCacheInfobox, filterCache);
+			}
+
+			HTMLNode healingInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawHealingQueueBox(healingInfobox, core.getHealingQueue());
+
+			HTMLNode uskPollingInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawUSKPollingBox(uskPollingInfobox, core.getUskManager().getPollScheduler());
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -528,7 +551,7 @@ public class StatisticsToadlet extends Toadlet {
 		
 		}
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void showRequesters(HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -537,7 +560,7 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode contentNode = page.content;
 
 		drawClientRequestersBox(contentNode);
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void drawLoadBalancingBox(HTMLNode loadStatsInfobox, boolean realTime) {
@@ -652,6 +675,75 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 
+	private void drawDownloadCacheBox(HTMLNode box, LocalDownloadCache cache) {
+		box.addChild("div", "class", "infobox-header", l10n("downloadCacheTitle"));
+		HTMLNode list = box.addChild("div", "class", "infobox-content").addChild("ul");
+		list.addChild("li", l10n("downloadCacheEntries", new String[] { "count", "size", "max" },
+				new String[] { thousandPoint.format(cache.getEntryCount()), SizeUtil.formatSize(cache.getTotalSize(), true),
+						SizeUtil.formatSize(cache.getMaxSize(), true) }));
+		list.addChild("li", l10n("downloadCacheHitRatio", new String[] { "ratio", "hits", "lookups" },
+				new String[] { fix3p1pct.format(cache.getHitRatio()), thousandPoint.format(cache.getHits()),
+						thousandPoint.format(cache.getLookups()) }));
+		list.addChild("li", l10n("downloadCacheBytesSaved", "size", SizeUtil.formatSize(cache.getBytesSaved(), true)));
+		list.addChild("li", l10n("downloadCacheStoredEvicted", new String[] { "stored", "evicted" },
+				new String[] { thousandPoint.format(cache.getStoredCount()), thousandPoint.format(cache.getEvictedCount()) }));
+		list.addChild("li", l10n("downloadCachePersistent", "persistent", Boolean.toString(cache.isPersistent())));
+	}
+
+	private void drawFilterCacheBox(HTMLNode box, FilterResultCache cache) {
+		box.addChild("div", "class", "infobox-header", l10n("filterCacheTitle"));
+		HTMLNode list = box.addChild("div", "class", "infobox-content").addChild("ul");
+		list.addChild("li", l10n("downloadCacheEntries", new String[] { "count", "size", "max" },
+				new String[] { thousandPoint.format(cache.getEntryCount()), SizeUtil.formatSize(cache.getTotalSize(), true),
+						SizeUtil.formatSize(cache.getMaxSize(), true) }));
+		list.addChild("li", l10n("downloadCacheHitRatio", new String[] { "ratio", "hits", "lookups" },
+				new String[] { fix3p1pct.format(cache.getHitRatio()), thousandPoint.format(cache.getHits()),
+						thousandPoint.format(cache.getLookups()) }));
+		list.addChild("li", l10n("filterCacheTimeSaved", new String[] { "time", "size" },
+				new String[] { TimeUtil.formatTime(cache.getTimeSaved(), 2, true), SizeUtil.formatSize(cache.getBytesSaved(), true) }));
+		list.addChild("li", l10n("filterCacheTooBig", "count", thousandPoint.format(cache.getTooBig())));
+	}
+
+	private void drawHealingQueueBox(HTMLNode box, HealingQueue queue) {
+		box.addChild("div", "class", "infobox-header", l10n("healingTitle"));
+		HTMLNode list = box.addChild("div", "class", "infobox-content").addChild("ul");
+		list.addChild("li", l10n("healingRunning", "count", thousandPoint.format(queue.getQueueSize())));
+		list.addChild("li", l10n("healingHealed", new String[] { "count", "rate" },
+				new String[] { thousandPoint.format(queue.getHealedBlocks()),
+						SizeUtil.formatSize((long) queue.getHealingBytesPerSecond(), true) }));
+		list.addChild("li", l10n("healingDedupHits", "count", thousandPoint.format(queue.getDedupHits())));
+		list.addChild("li", l10n("healingDropped", "count", thousandPoint.format(queue.getDroppedBlocks())));
+	}
+
+	private static final int MAX_USK_POLLING_ROWS = 10;
+
+	private void drawUSKPollingBox(HTMLNode box, USKPollScheduler scheduler) {
+		box.addChild("div", "class", "infobox-header", l10n("uskPollingTitle"));
+		HTMLNode content = box.addChild("div", "class", "infobox-content");
+		content.addChild("p", l10n("uskPollingTotal", "count", thousandPoint.format(scheduler.getTotalProbes())));
+		List<USKPollScheduler.PollingCost> costs = scheduler.getPollingCosts();
+		if(costs.isEmpty()) return;
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", "USK");
+		row.addChild("th", l10n("uskPollingProbes"));
+		row.addChild("th", l10n("uskPollingRounds"));
+		row.addChild("th", l10n("uskPollingEditions"));
+		row.addChild("th", l10n("uskPollingInterval"));
+		row.addChild("th", l10n("uskPollingNext"));
+		long now = System.currentTimeMillis();
+		for(int i=0;i<costs.size() && i<MAX_USK_POLLING_ROWS;i++) {
+			USKPollScheduler.PollingCost cost = costs.get(i);
+			row = table.addChild("tr");
+			row.addChild("td", cost.usk.getURI().toShortString());
+			row.addChild("td", thousandPoint.format(cost.probes));
+			row.addChild("td", thousandPoint.format(cost.rounds));
+			row.addChild("td", thousandPoint.format(cost.editions));
+			row.addChild("td", cost.updateInterval < 0 ? "-" : TimeUtil.formatTime(cost.updateInterval, 2));
+			row.addChild("td", cost.nextPollTime < now ? "-" : TimeUtil.formatTime(cost.nextPollTime - now, 2));
+		}
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -8,6 +8,8 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 
 import freenet.client.FetchContext;
@@ -53,6 +55,9 @@ public abstract class Toadlet {
 
 	public static final String HANDLE_METHOD_PREFIX = "handleMethod";
 
+	/** Initial buffer size for rendering a page, enough for the page chrome and a little more. */
+	private static final int INITIAL_PAGE_BUFFER_SIZE = 32768;
+
 	public abstract String path();
 
 	/**
@@ -259,6 +264,33 @@ public abstract class Toadlet {
 		writeReply(ctx, code, "text/html; charset=utf-8", desc, null, reply, false);
 	}
 
+	/**
+	 * Write an HTTP response as HTML. The page is rendered and encoded straight into the reply,
+	 * without building it as a String first.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param page The HTML page, usually PageNode.outer.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, HTMLNode page) throws ToadletContextClosedException, IOException {
+		writeHTMLReply(ctx, code, desc, null, page);
+	}
+
+	/**
+	 * Write an HTTP response as HTML, possibly with custom headers. The page is rendered and
+	 * encoded straight into the reply, without building it as a String first.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param headers The additional HTTP headers to send.
+	 * @param page The HTML page, usually PageNode.outer.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, HTMLNode page) throws ToadletContextClosedException, IOException {
+		StringBuilder sb = page.generate(new StringBuilder(INITIAL_PAGE_BUFFER_SIZE));
+		ByteBuffer buf = StandardCharsets.UTF_8.encode(CharBuffer.wrap(sb));
+		writeReply(ctx, code, "text/html; charset=utf-8", desc, headers, buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), false);
+	}
+
 	/**
 	 * Write an HTTP response as plain text.
 	 * @param ctx The specific request to reply to.
@@ -111,7 +111,35 @@ public interface ToadletContext {
 	 * @see freenet.support.io.NoFreeBucket
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
+
+	/**
+	 * Write part of a bucket, e.g. for a Range request. You must send reply headers first.
+	 * Does not free the bucket.
+	 *
+	 * @param offset The offset of the first byte to send.
+	 * @param length The number of bytes to send.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
 	
+	/**
+	 * Suspend the request, to wait for something without holding a thread, e.g. for a long
+	 * poll. If the Toadlet then returns without sending a reply, the connection is put aside
+	 * until the returned callback is run, and the request is then handled again from the
+	 * start. The callback may be run at any time, even before the Toadlet returns, and more
+	 * than once; it does not block.
+	 * @return The callback, or null if this request can't be suspended, in which case the
+	 * Toadlet should just wait.
+	 */
+	Runnable suspend();
+
+	/**
+	 * Run the given callback if the connection is closed while the request is suspended, before
+	 * it is handled again, so whatever holds the callback returned by suspend() can drop it. Does
+	 * nothing if the request can't be suspended.
+	 * @param onClosed Must not block.
+	 */
+	void whenClosed(Runnable onClosed);
+
 	/**
 	 * Get the page maker object.
 	 */
@@ -12,10 +12,12 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
@@ -65,10 +67,18 @@ public class ToadletContextImpl implements ToadletContext {
 	private static final String METHODS_CANNOT_HAVE_DATA = "GET";
 	private static final String METHODS_RESTRICTED_MODE = "GET POST";
 	
+	/** Size of the buffers used to send buckets we can't transfer directly. */
+	private static final int SEND_BUFFER_SIZE = 256*1024;
+	/** Buffers kept for reuse, so sending a large download doesn't churn the heap. */
+	private static final ArrayDeque<byte[]> spareSendBuffers = new ArrayDeque<byte[]>();
+	private static final int MAX_SPARE_SEND_BUFFERS = 8;
+
 	private final MultiValueTable<String,String> headers;
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
 	private ArrayList<Cookie> replyCookies; // Null until the first time the user sets a Cookie.
 	private final OutputStream sockOutputStream;
+	/** The socket's channel, if it has one, for sending files directly. Null for SSL. */
+	private final WritableByteChannel sockChannel;
 	private final PageMaker pagemaker;
 	private final BucketFactory bf;
 	private final ToadletContainer container;
@@ -100,6 +110,9 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** Handles the request again after it has been suspended, or null if it can't be. */
+	private HTTPSelector.Resumer resume;
+	private boolean suspended;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
 		this.headers = headers;
@@ -108,6 +121,7 @@ public class ToadletContextImpl implements ToadletContext {
 		this.closed = false;
 		this.uri=uri;
 		sockOutputStream = sock.getOutputStream();
+		sockChannel = sock.getChannel();
 		remoteAddr = sock.getInetAddress();
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
@@ -515,7 +529,7 @@ public class ToadletContextImpl implements ToadletContext {
 			
 			while(true) {
 				
-				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
+				String firstLine = lis.readLine(MAX_HEADER_LINE_LENGTH, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
 					sock.close();
 					return;
@@ -523,192 +537,246 @@ public class ToadletContextImpl implements ToadletContext {
 					continue;
 				}
 				
-				if(logMINOR)
-					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
-				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
-				
-				URI uri;
-				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
-				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
-				}
-				String method = split[0];
+				String[] split = parseRequestLine(firstLine);
 				
 				MultiValueTable<String,String> headers = new MultiValueTable<String,String>();
 				
 				while(true) {
-					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
+					String line = lis.readLine(MAX_HEADER_LINE_LENGTH, 128, false); // ISO-8859 or US-ASCII, not UTF-8
 					if (line == null) {
 						sock.close();
 						return;
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.isEmpty()) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
-					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
+					parseHeaderLine(line, headers);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				if(handleRequest(sock, is, split, headers, container, pageMaker, userAlertManager, bookmarkManager, null) != ConnectionState.KEEP_ALIVE) {
+					sock.close();
+					return;
+				}
+			}
+			
+		} catch (Throwable t) {
+			handleError(sock, t);
+		}
+	}
+	
+	/** Longest request or header line we will accept. */
+	static final int MAX_HEADER_LINE_LENGTH = 32768;
+	
+	/** What to do with a connection after handling a request on it. */
+	enum ConnectionState {
+		/** Wait for the next request. */
+		KEEP_ALIVE,
+		/** Close it; may have been closed already. */
+		CLOSE,
+		/** The Toadlet suspended the request, see suspend(). */
+		SUSPENDED
+	}
+	
+	/**
+	 * Check and split the first line of a request.
+	 * @return The method, the URI and the protocol.
+	 */
+	static String[] parseRequestLine(String firstLine) throws ParseException {
+		if(logMINOR)
+			Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
+		
+		String[] split = firstLine.split(" ");
+		
+		if(split.length != 3)
+			throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+		
+		if(!split[2].startsWith("HTTP/1."))
+			throw new ParseException("Unrecognized protocol "+split[2], -1);
+		return split;
+	}
+	
+	/** Parse a header line and add it to headers. Header names are converted to lower case. */
+	static void parseHeaderLine(String line, MultiValueTable<String,String> headers) throws ParseException {
+		int index = line.indexOf(':');
+		if (index < 0) {
+			throw new ParseException("Missing ':' in request header field", -1);
+		}
+		String before = line.substring(0, index).toLowerCase();
+		String after = line.substring(index+1);
+		after = after.trim();
+		headers.put(before, after);
+	}
+	
+	/**
+	 * Handle one request, whose request line and headers have already been read.
+	 * @param is The rest of the connection: the request's data, if any, then any later requests.
+	 * Only the request's data is read.
+	 * @param split The request line, from parseRequestLine().
+	 * @param resume If not null, the Toadlet may suspend the request, and this will be returned
+	 * by suspend().
+	 */
+	static ConnectionState handleRequest(Socket sock, InputStream is, String[] split, MultiValueTable<String,String> headers, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, HTTPSelector.Resumer resume) throws Throwable {
+		URI uri;
+		try {
+			uri = URIPreEncoder.encodeURI(split[1]).normalize();
+			if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+		} catch (URISyntaxException e) {
+			sendURIParseError(sock.getOutputStream(), true, e);
+			return ConnectionState.CLOSE;
+		}
+		String method = split[0];
+		
+		boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
 
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
+		boolean allowPost = container.allowPosts();
+		BucketFactory bf = container.getBucketFactory();
+		
+		ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
+		ctx.shouldDisconnect = disconnect;
+		
+		/*
+		 * copy the data into a bucket now,
+		 * before we go into the redirect loop
+		 */
+		
+		Bucket data;
 
 
-				String slen = headers.get("content-length");
+		String slen = headers.get("content-length");
 
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				}
+		if (METHODS_MUST_HAVE_DATA.contains(method)) {
+			// <method> must have data
+			if (slen == null) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return ConnectionState.CLOSE;
+			}
+		} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+			// <method> can not have data
+			if (slen != null) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return ConnectionState.CLOSE;
+			}
+		}
 
-				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
-					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
-					}
+		if (slen != null) {
+			long len;
+			try {
+				len = Integer.parseInt(slen);
+				if(len < 0) throw new NumberFormatException("content-length less than 0");
+			} catch (NumberFormatException e) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return ConnectionState.CLOSE;
+			}
+			if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
+				data = bf.makeBucket(len);
+				BucketTools.copyFrom(data, is, len);
+			} else {
+				FileUtil.skipFully(is, len);
+				if (method.equals("POST")) {
+					ctx.sendMethodNotAllowed("POST", true);
 				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
+					sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
 				}
+				ctx.close();
+				return ConnectionState.CLOSE;
+			}
+		} else {
+			// we're not doing to use it, but we have to keep
+			// the compiler happy
+			data = null;
+			// Only requests without data can be handled again.
+			ctx.resume = resume;
+		}
 
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
-				}
+		if (!container.enableExtendedMethodHandling()) {
+			if (!METHODS_RESTRICTED_MODE.contains(method)) {
+				sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
+				return ConnectionState.CLOSE;
+			}
+		}
 
-				// Handle it.
+		// Handle it.
+		try {
+			boolean redirect = true;
+			while (redirect) {
+				// don't go around the loop unless set explicitly
+				redirect = false;
+				
+				Toadlet t;
 				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
-					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
-
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
-
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						
-						// require form password if it's a POST, unless the toadlet requests otherwise
-						if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
-							if (!ctx.checkFormPassword(req, t.path())) {
-								break;
-							}
-						}
-						
-						if(ctx.isAllowedFullAccess()) {
-							ctx.getPageMaker().parseMode(req, container);
-						}
-						
-						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
-						}
-					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
+					t = container.findToadlet(uri);
+				} catch (PermanentRedirectException e) {
+					Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+					break;
+				}
+			
+				if(t == null) {
+					ctx.sendNoToadletError(ctx.shouldDisconnect);
+					break;
+				}
+
+				// if the Toadlet does not support the method, we don't need to parse the data
+				// also due this pre check a 'NoSuchMethodException' should never appear
+				if (!(t.findSupportedMethods().contains(method))) {
+					ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+					break;
+				}
+
+				HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+				
+				// require form password if it's a POST, unless the toadlet requests otherwise
+				if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
+					if (!ctx.checkFormPassword(req, t.path())) {
+						break;
 					}
+				}
+				
+				if(ctx.isAllowedFullAccess()) {
+					ctx.getPageMaker().parseMode(req, container);
+				}
+				
+				try {
+					callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
+				} catch (RedirectException re) {
+					uri = re.newuri;
+					redirect = true;
 				} finally {
-					if(data != null) data.free();
+					req.freeParts();
 				}
 			}
-			
-		} catch (ParseException e) {
+			if(ctx.shouldDisconnect) {
+				sock.close();
+				return ConnectionState.CLOSE;
+			}
+		} finally {
+			if(data != null) data.free();
+		}
+		if(ctx.suspended && ctx.firstReplySendingException == null)
+			return ConnectionState.SUSPENDED;
+		return ConnectionState.KEEP_ALIVE;
+	}
+	
+	/** Tell the client about an error handling its connection, if we still can. */
+	static void handleError(Socket sock, Throwable t) {
+		if(t instanceof ParseException) {
 			try {
-				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
+				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", t.getMessage()), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
-		} catch (TooLongException e) {
+		} else if(t instanceof TooLongException) {
 			try {
 				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("headersLineTooLong"), true, null);
 			} catch (IOException e1) {
 				// Ignore
 			}
-		} catch (IOException e) {
+		} else if(t instanceof IOException) {
 			// ignore and return
-		} catch (ToadletContextClosedException e) {
+		} else if(t instanceof ToadletContextClosedException) {
 			Logger.error(ToadletContextImpl.class, "ToadletContextClosedException while handling connection!");
-		} catch (Throwable t) {
+		} else {
 			Logger.error(ToadletContextImpl.class, "Caught error: "+t+" handling socket", t);
 			try {
 				String msg = "<html><head><title>"+NodeL10n.getBase().getString("Toadlet.internalErrorTitle")+
@@ -768,6 +836,19 @@ public class ToadletContextImpl implements ToadletContext {
 		}
 	}
 
+	@Override
+	public Runnable suspend() {
+		if(resume == null) return null;
+		suspended = true;
+		return resume;
+	}
+
+	@Override
+	public void whenClosed(Runnable onClosed) {
+		if(resume != null)
+			resume.whenClosed(onClosed);
+	}
+
 	private void setActiveToadlet(Toadlet t) {
 		this.activeToadlet = t;
 	}
@@ -820,10 +901,39 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	@Override
 	public void writeData(Bucket data) throws ToadletContextClosedException, IOException {
-		if(closed) throw new ToadletContextClosedException();
-		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
+		writeData(data, 0, data.size());
 		data.free();
 	}
+
+	/**
+	 * Sends file-backed buckets with FileChannel.transferTo() if the socket has a channel, and
+	 * everything else through a pooled buffer.
+	 */
+	@Override
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
+		if(closed) throw new ToadletContextClosedException();
+		byte[] buf = takeSendBuffer();
+		try {
+			BucketTools.copyTo(data, offset, length, sockOutputStream, sockChannel, buf);
+		} finally {
+			returnSendBuffer(buf);
+		}
+	}
+
+	private static byte[] takeSendBuffer() {
+		synchronized(spareSendBuffers) {
+			byte[] buf = spareSendBuffers.pollFirst();
+			if(buf != null) return buf;
+		}
+		return new byte[SEND_BUFFER_SIZE];
+	}
+
+	private static void returnSendBuffer(byte[] buf) {
+		synchronized(spareSendBuffers) {
+			if(spareSendBuffers.size() < MAX_SPARE_SEND_BUFFERS)
+				spareSendBuffers.addFirst(buf);
+		}
+	}
 	
 	@Override
 	public BucketFactory getBucketFactory() {
@@ -16,7 +16,7 @@ import freenet.support.Base64;
 import freenet.support.Logger;
 import freenet.support.api.HTTPRequest;
 
-/** This toadlet provides notifications for clients. It will block until one is present. It requires the requestId parameter. */
+/** This toadlet provides notifications for clients. It will wait until one is present. It requires the requestId parameter. */
 public class PushNotificationToadlet extends Toadlet {
 
 	private static volatile boolean	logMINOR;
@@ -31,7 +31,28 @@ public class PushNotificationToadlet extends Toadlet {
 
 	public void handleMethodGET(URI uri, HTTPRequest req, ToadletContext ctx) throws ToadletContextClosedException, IOException, RedirectException {
 		String requestId = req.getParam("requestId");
-		PushDataManager.UpdateEvent event = ((SimpleToadletServer) ctx.getContainer()).getPushDataManager().getNextNotification(requestId);
+		final PushDataManager pushDataManager = ((SimpleToadletServer) ctx.getContainer()).getPushDataManager();
+		// Don't tie up a thread while waiting, if possible. We will be called again when woken.
+		final Runnable resume = ctx.suspend();
+		if (resume != null) {
+			if (pushDataManager.waitTimedOut(resume)) {
+				// No notification yet, the client will poll again.
+				writeHTMLReply(ctx, 200, "OK", "");
+				return;
+			}
+			if (!pushDataManager.waitForNotification(requestId, resume)) {
+				ctx.whenClosed(new Runnable() {
+
+					@Override
+					public void run() {
+						pushDataManager.cancelWait(resume);
+					}
+
+				});
+				return;
+			}
+		}
+		PushDataManager.UpdateEvent event = pushDataManager.getNextNotification(requestId);
 		if (event != null) {
 			String elementRequestId = event.getRequestId();
 			String elementId = event.getElementId();
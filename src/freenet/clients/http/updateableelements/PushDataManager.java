@@ -1,10 +1,15 @@
 package freenet.clients.http.updateableelements;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import freenet.support.Logger;
 import freenet.support.Ticker;
@@ -32,6 +37,15 @@ public class PushDataManager {
 	
 	private Map<String, Boolean>						isFirstKeepaliveReceived		= new HashMap<String, Boolean>();
 
+	/** How long a suspended request waits for a notification before it is answered anyway, see waitForNotification() */
+	static final long									WAIT_TIMEOUT			= MINUTES.toMillis(2);
+
+	/** Suspended requests for notifications, see waitForNotification() */
+	private List<Waiter>								waiters					= new ArrayList<Waiter>();
+
+	/** The wakeUp callbacks of suspended requests that were woken because they waited too long, see waitTimedOut() */
+	private Set<Runnable>								timedOut				= new HashSet<Runnable>();
+
 	/** The Cleaner that runs periodically and cleanes the failing requests */
 	private Ticker										cleaner;
 
@@ -85,7 +99,7 @@ public class PushDataManager {
 			if(logMINOR){
 				Logger.minor(this, "Waking up notification polls");
 			}
-			notifyAll();
+			wakeUp();
 		}
 	}
 
@@ -168,7 +182,7 @@ public class PushDataManager {
 			if (logMINOR) {
 				Logger.minor(this, "copied " + awaitingNotifications.get(newRequestId).size() + " notification:" + awaitingNotifications.get(newRequestId));
 			}
-			notifyAll();
+			wakeUp();
 			return true;
 		} else {
 			if (logMINOR) {
@@ -209,7 +223,7 @@ public class PushDataManager {
 		}
 		isKeepaliveReceived.put(requestId, true);
 		isFirstKeepaliveReceived.put(requestId, true);
-		notifyAll();
+		wakeUp();
 		return true;
 	}
 
@@ -224,8 +238,7 @@ public class PushDataManager {
 		if (logMINOR) {
 			Logger.minor(this, "Polling for notification:" + requestId);
 		}
-		while (awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).isEmpty() || // No notifications
-				(awaitingNotifications.get(requestId) != null && !awaitingNotifications.get(requestId).isEmpty() && isFirstKeepaliveReceived.containsKey(awaitingNotifications.get(requestId).get(0).requestId)==false)) { // Not asked us yet
+		while (mustWait(requestId)) {
 			try {
 				wait();
 			} catch (InterruptedException ie) {
@@ -241,6 +254,79 @@ public class PushDataManager {
 		return awaitingNotifications.get(requestId).remove(0);
 	}
 
+	/**
+	 * Like getNextNotification(), but doesn't wait: a request for notifications can be suspended
+	 * until this returns true, or wakeUp is called, and then call getNextNotification(). If
+	 * nothing changes for WAIT_TIMEOUT, wakeUp is called anyway, and waitTimedOut() will return
+	 * true.
+	 * 
+	 * @param requestId
+	 *            - The id of the request
+	 * @param wakeUp
+	 *            - Called, once, when something changes and getNextNotification() may not need to
+	 *            wait. Must not block.
+	 * @return True if getNextNotification() would return immediately, in which case wakeUp won't
+	 *         be called.
+	 */
+	public synchronized boolean waitForNotification(String requestId, Runnable wakeUp) {
+		if (!mustWait(requestId)) {
+			return true;
+		}
+		Waiter waiter = new Waiter(wakeUp);
+		waiters.add(waiter);
+		cleaner.queueTimedJob(waiter, "Push notification wait timeout", WAIT_TIMEOUT, false, false);
+		return false;
+	}
+
+	/**
+	 * Forgets a suspended request, e.g. because its connection has been closed, so wakeUp won't be
+	 * called.
+	 * 
+	 * @param wakeUp
+	 *            - The callback passed to waitForNotification()
+	 */
+	public synchronized void cancelWait(Runnable wakeUp) {
+		for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+			Waiter waiter = it.next();
+			if (waiter.wakeUp == wakeUp) {
+				it.remove();
+				cleaner.removeQueuedJob(waiter);
+			}
+		}
+		timedOut.remove(wakeUp);
+	}
+
+	/**
+	 * @param wakeUp
+	 *            - The callback passed to waitForNotification()
+	 * @return True, once, if wakeUp was called because the request waited too long, rather than
+	 *         because something changed. The request should then be answered without a
+	 *         notification.
+	 */
+	public synchronized boolean waitTimedOut(Runnable wakeUp) {
+		return timedOut.remove(wakeUp);
+	}
+
+	private boolean mustWait(String requestId) {
+		List<UpdateEvent> events = awaitingNotifications.get(requestId);
+		return events != null && events.isEmpty() || // No notifications
+				(events != null && !events.isEmpty() && isFirstKeepaliveReceived.containsKey(events.get(0).requestId)==false); // Not asked us yet
+	}
+
+	/** Wakes up everything waiting for notifications, to check whether they have one. */
+	private void wakeUp() {
+		notifyAll();
+		if (waiters.isEmpty()) {
+			return;
+		}
+		List<Waiter> toWake = waiters;
+		waiters = new ArrayList<Waiter>();
+		for (Waiter waiter : toWake) {
+			cleaner.removeQueuedJob(waiter);
+			waiter.wake();
+		}
+	}
+
 	/** Returns the cleaner's delay in ms */
 	private int getDelayInMs() {
 		return (int) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
@@ -288,6 +374,7 @@ public class PushDataManager {
 			}
 		}
 		awaitingNotifications.remove(requestId);
+		wakeUp();
 		return true;
 	}
 
@@ -364,4 +451,35 @@ public class PushDataManager {
 			}
 		}
 	}
+
+	/** A suspended request for notifications. Runs when it has waited too long. */
+	private class Waiter implements Runnable {
+		private final Runnable	wakeUp;
+
+		private Waiter(Runnable wakeUp) {
+			this.wakeUp = wakeUp;
+		}
+
+		@Override
+		public void run() {
+			synchronized (PushDataManager.this) {
+				if (!waiters.remove(this)) {
+					return;
+				}
+				if (logMINOR) {
+					Logger.minor(this, "Notification wait timed out:" + wakeUp);
+				}
+				timedOut.add(wakeUp);
+				wake();
+			}
+		}
+
+		private void wake() {
+			try {
+				wakeUp.run();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " waking up " + wakeUp, t);
+			}
+		}
+	}
 }
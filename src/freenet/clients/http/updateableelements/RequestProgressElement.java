@@ -0,0 +1,125 @@
+package freenet.clients.http.updateableelements;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import freenet.client.async.PersistenceDisabledException;
+import freenet.clients.fcp.FCPServer;
+import freenet.clients.fcp.RequestStatus;
+import freenet.clients.fcp.RequestStatusCache;
+import freenet.clients.http.QueueToadlet;
+import freenet.clients.http.ToadletContext;
+import freenet.support.Base64;
+import freenet.support.HTMLNode;
+
+/** A pushed element that renders the progress cell of a request on the queue page, so the
+ * visible rows are kept up to date without reloading the whole page. Subscriptions tells the
+ * PushDataManager when the request's status changes. */
+public class RequestProgressElement extends BaseUpdateableElement {
+
+	/** The requests shown by a RequestProgressElement on a page which is being pushed. Listens
+	 * for changes to the requests on the global queue, and only updates those shown, so a change
+	 * to any other request costs almost nothing. One is shared by the queue pages. */
+	public static class Subscriptions implements RequestStatusCache.Listener {
+
+		private final PushDataManager pushDataManager;
+		/** The number of elements showing each request */
+		private final Map<String, Integer> elements = new HashMap<String, Integer>();
+
+		public Subscriptions(PushDataManager pushDataManager) {
+			this.pushDataManager = pushDataManager;
+		}
+
+		synchronized void add(String identifier) {
+			Integer count = elements.get(identifier);
+			elements.put(identifier, count == null ? 1 : count + 1);
+		}
+
+		synchronized void remove(String identifier) {
+			Integer count = elements.get(identifier);
+			if(count == null) return;
+			if(count == 1)
+				elements.remove(identifier);
+			else
+				elements.put(identifier, count - 1);
+		}
+
+		synchronized boolean isShown(String identifier) {
+			return elements.containsKey(identifier);
+		}
+
+		@Override
+		public void onStatusChanged(String identifier) {
+			if(isShown(identifier))
+				pushDataManager.updateElement(getId(identifier));
+		}
+
+	}
+
+	private final FCPServer fcp;
+	/** Null if the element is not pushed. */
+	private final Subscriptions subscriptions;
+	/** The identifier of the request on the global queue */
+	private final String identifier;
+	private final boolean advancedMode;
+	private final boolean upload;
+	/** The last known status of the request */
+	private RequestStatus status;
+
+	public RequestProgressElement(FCPServer fcp, Subscriptions subscriptions, RequestStatus status, boolean advancedMode, boolean upload, ToadletContext ctx, boolean pushed) {
+		// This is a <td>
+		super("td", "class", "request-progress", ctx);
+		this.fcp = fcp;
+		this.subscriptions = pushed ? subscriptions : null;
+		this.identifier = status.getIdentifier();
+		this.status = status;
+		this.advancedMode = advancedMode;
+		this.upload = upload;
+		// Before it is rendered, so no change is missed.
+		if(pushed)
+			subscriptions.add(identifier);
+		init(pushed);
+	}
+
+	@Override
+	public void updateState(boolean initial) {
+		children.clear();
+		if(!initial) {
+			try {
+				RequestStatus latest = fcp.getGlobalRequestStatus(identifier);
+				// If it has been removed, show the last known state until the page is reloaded.
+				if(latest != null) status = latest;
+			} catch (PersistenceDisabledException e) {
+				// Keep the last known state.
+			}
+		}
+		for(HTMLNode child : QueueToadlet.createProgressCell(advancedMode, status, upload).getChildren())
+			addChild(child);
+	}
+
+	@Override
+	public String getUpdaterId(String requestId) {
+		return getId(identifier);
+	}
+
+	public static String getId(String identifier) {
+		return Base64.encodeStandardUTF8("requestprogress[Identifier:" + identifier + "]");
+	}
+
+	@Override
+	public void dispose() {
+		if(subscriptions != null)
+			subscriptions.remove(identifier);
+	}
+
+	@Override
+	public String getUpdaterType() {
+		return UpdaterConstants.REPLACER_UPDATER;
+	}
+
+	@Override
+	public String toString() {
+		return "RequestProgressElement[identifier:" + identifier + ",updaterId:" + getUpdaterId(null) + "]";
+	}
+
+}
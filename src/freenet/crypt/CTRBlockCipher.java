@@ -3,6 +3,12 @@
  * GPL compatible. */
 package freenet.crypt;
 
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import freenet.crypt.ciphers.Rijndael;
+
 /**
  * Implements the Segmented Integer Counter (SIC) mode on top of a simple
  * block cipher. This mode is also known as CTR mode.
@@ -29,6 +35,18 @@ public class CTRBlockCipher
     /** Offset within the current block. */
     private int blockOffset;
     
+    /** If the underlying cipher is AES, a JCA ECB cipher with the same key. Used to encrypt
+     * many counter blocks per call with the platform's (usually hardware accelerated) AES.
+     * Null if not available, in which case we use the block cipher one block at a time. */
+    private final Cipher ecb;
+    /** Counter blocks to encrypt in bulk. Allocated on first use. */
+    private byte[] bulkCounters;
+    /** Encrypted counter blocks. Allocated on first use. */
+    private byte[] bulkKeystream;
+    
+    /** Maximum number of bytes of keystream to generate per JCA call. */
+    static final int BULK_SIZE = 4096;
+    
     /**
      * Basic constructor.
      *
@@ -42,6 +60,7 @@ public class CTRBlockCipher
         this.counter = new byte[blockSize];
         this.counterOut = new byte[blockSize];
 		this.blockOffset = IV.length;
+		this.ecb = (c instanceof Rijndael) ? ((Rijndael)c).createEcbEncipher() : null;
     }
 
 
@@ -112,6 +131,14 @@ public class CTRBlockCipher
     		processBlock();
 		}
 		assert(blockOffset == 0);
+		if(ecb != null && length > blockSize) {
+			// All full blocks but the last, as below.
+			int bulk = ((length - 1) / blockSize) * blockSize;
+			processBulk(input, offsetIn, bulk, output, offsetOut);
+			offsetIn += bulk;
+			offsetOut += bulk;
+			length -= bulk;
+		}
 		while(length > blockSize) {
 			/* consume full blocks */
 			// note: we skip *last* full block to avoid extra processBlock()
@@ -128,6 +155,36 @@ public class CTRBlockCipher
 		}
     }
 
+    /** XOR a whole number of blocks with the keystream, using the JCA cipher. On entry,
+     * blockOffset is 0 and counterOut is the keystream for the first block; on exit the same
+     * is true for the block after the last one processed. */
+    private void processBulk(byte[] input, int offsetIn, int length, byte[] output, int offsetOut) {
+    	if(bulkCounters == null) {
+    		bulkCounters = new byte[BULK_SIZE];
+    		bulkKeystream = new byte[BULK_SIZE];
+    	}
+    	// The first block uses the counterOut we already have.
+    	for(int i=0;i<blockSize;i++)
+    		output[offsetOut++] = (byte) (input[offsetIn++] ^ counterOut[i]);
+    	length -= blockSize;
+    	while(length > 0) {
+    		int chunk = Math.min(length, BULK_SIZE);
+    		for(int x=0;x<chunk;x+=blockSize) {
+    			System.arraycopy(counter, 0, bulkCounters, x, blockSize);
+    			incrementCounter();
+    		}
+    		try {
+    			ecb.update(bulkCounters, 0, chunk, bulkKeystream, 0);
+    		} catch (GeneralSecurityException e) {
+    			throw new Error("Impossible: "+e, e);
+    		}
+    		for(int i=0;i<chunk;i++)
+    			output[offsetOut++] = (byte) (input[offsetIn++] ^ bulkKeystream[i]);
+    		length -= chunk;
+    	}
+    	processBlock();
+    }
+
     /** Encrypt counter to counterOut, and then increment counter. */
     private void processBlock()
           throws IllegalStateException
@@ -138,10 +195,14 @@ public class CTRBlockCipher
     	cipher.encipher(counterOut, counterOut);
     	
     	// Now increment counter.
+    	incrementCounter();
+		blockOffset = 0;
+    }
+
+    private void incrementCounter() {
         for (int i = counter.length; i-- > 0 && (++counter[i]) == (byte)0;) {
 			/* nothing here */
 		}
-		blockOffset = 0;
     }
 
 }
@@ -6,6 +6,11 @@ package freenet.crypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import freenet.crypt.ciphers.Rijndael;
 
 /**
  * Control mechanism for the Periodic Cipher Feed Back mode.  This is
@@ -30,6 +35,18 @@ public class PCFBMode {
     /** When this reaches the end of the register, we refillBuffer() i.e. re-encrypt the
      * register. */
     protected int registerPointer;
+    /** If the block size is 128 bits, i.e. this is standard AES-CFB, a JCA ECB cipher with the
+     * same key. Decryption does not depend on its own output, so we can generate the keystream
+     * for many blocks in one call with the platform's (usually hardware accelerated) AES. Null
+     * if not available, e.g. for the 256-bit block size used by most of Freenet. Created on
+     * first use. */
+    private Cipher ecb;
+    private boolean triedEcb;
+    
+    /** Minimum number of bytes in a blockDecipher() call to use the JCA cipher. */
+    static final int MIN_BULK_LENGTH = 256;
+    /** Maximum number of bytes to decrypt per JCA call. */
+    static final int BULK_SIZE = 4096;
     
     /** Create the PCFB with no IV. The caller must either:
      * a) Call reset() with a proper IV, or 
@@ -147,6 +164,15 @@ public class PCFBMode {
 
     public void blockDecipher(byte[] buf, int off, int len) {
 		final int feedback_length = feedback_register.length;
+		if(len >= MIN_BULK_LENGTH && registerPointer == feedback_length && getEcb() != null) {
+			// The register holds the previous ciphertext block, so we can do all the full
+			// blocks at once. Leave the rest for below.
+			int bulk = (len / feedback_length) * feedback_length;
+			bulkDecipher(buf, off, bulk);
+			off += bulk;
+			len -= bulk;
+			if(len == 0) return;
+		}
 		if (registerPointer != 0) {
 			/* handle first incomplete feedback run */
 			int l = Math.min(feedback_length - registerPointer, len);
@@ -222,6 +248,38 @@ public class PCFBMode {
         return;
     }
         
+    private Cipher getEcb() {
+        if(!triedEcb) {
+            triedEcb = true;
+            if(c instanceof Rijndael && c.getBlockSize() == 128)
+                ecb = ((Rijndael)c).createEcbEncipher();
+        }
+        return ecb;
+    }
+
+    /** Decipher a whole number of blocks. The register must hold the previous ciphertext
+     * block, and will hold the last ciphertext block on exit. */
+    private void bulkDecipher(byte[] buf, int off, int len) {
+        final int feedback_length = feedback_register.length;
+        byte[] input = new byte[Math.min(len, BULK_SIZE)];
+        byte[] keystream = new byte[input.length];
+        while(len > 0) {
+            int chunk = Math.min(len, BULK_SIZE);
+            // Keystream for each block is the encryption of the ciphertext block before it.
+            System.arraycopy(feedback_register, 0, input, 0, feedback_length);
+            System.arraycopy(buf, off, input, feedback_length, chunk - feedback_length);
+            System.arraycopy(buf, off + chunk - feedback_length, feedback_register, 0, feedback_length);
+            try {
+                ecb.update(input, 0, chunk, keystream, 0);
+            } catch (GeneralSecurityException e) {
+                throw new Error("Impossible: "+e, e);
+            }
+            for(int i=0;i<chunk;i++)
+                buf[off++] ^= keystream[i];
+            len -= chunk;
+        }
+    }
+
     // Refills the encrypted buffer with data.
     //private synchronized void refillBuffer() {
     protected void refillBuffer() {
@@ -25,6 +25,8 @@ import freenet.support.Logger;
  */
 public class Rijndael implements BlockCipher {
 	private Object sessionKey;
+	/** The key, if this is standard AES (128-bit block), for createEcbEncipher(). */
+	private SecretKeySpec aesKey;
 	private final int keysize, blocksize;
 
 	public static final Provider AesCtrProvider = getAesCtrProvider();
@@ -158,6 +160,8 @@ public class Rijndael implements BlockCipher {
 			byte[] nkey=new byte[keysize>>3];
 			System.arraycopy(key, 0, nkey, 0, nkey.length);
 			sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+			if(blocksize == 128)
+				aesKey = new SecretKeySpec(nkey, "AES");
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 			Logger.error(this,"Invalid key");
@@ -177,4 +181,25 @@ public class Rijndael implements BlockCipher {
 			throw new IllegalArgumentException();
 		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
 	}
+
+	/**
+	 * Create a JCA cipher which encrypts 128-bit blocks exactly as encipher() does. Modes built
+	 * on top of this class can use it to encrypt many blocks in one call with the platform's AES,
+	 * which is usually hardware accelerated. Unlike this class, the result is not thread-safe.
+	 * @return The cipher, or null if the block size is not 128 bits, we haven't been initialized
+	 * or the JCA can't do it (e.g. restricted key length).
+	 */
+	public Cipher createEcbEncipher() {
+		SecretKeySpec key = aesKey;
+		if(key == null) return null;
+		try {
+			Cipher c = AesCtrProvider != null ?
+					Cipher.getInstance("AES/ECB/NOPADDING", AesCtrProvider) :
+					Cipher.getInstance("AES/ECB/NOPADDING");
+			c.init(Cipher.ENCRYPT_MODE, key);
+			return c;
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+	}
 }
@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
 import java.util.Arrays;
@@ -101,8 +102,20 @@ public class NetworkInterface implements Closeable {
 	// FIXME make configurable
 	static final int maxQueueLength = 100;
 
+	/** If true, accepted sockets have a SocketChannel. */
+	private boolean useChannels;
+
 	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		return create(port, bindTo, allowedHosts, executor, ignoreUnbindableIP6, false);
+	}
+
+	/**
+	 * @param useChannels If true, accepted sockets have a SocketChannel (Socket.getChannel()), so
+	 * they can be used with a Selector.
+	 */
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6, boolean useChannels) throws IOException {
 		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor);
+		iface.useChannels = useChannels;
 		String[] failedBind = iface.setBindTo(bindTo, ignoreUnbindableIP6);
 		if(failedBind != null) {
 			System.err.println("Could not bind to some of the interfaces specified for port "+port+" : "+Arrays.toString(failedBind));
@@ -126,6 +139,8 @@ public class NetworkInterface implements Closeable {
 	}
 
 	protected ServerSocket createServerSocket() throws IOException {
+		if(useChannels)
+			return ServerSocketChannel.open().socket();
 		return new ServerSocket();
 	}
 	
@@ -221,6 +221,8 @@ public class BaseL10n {
 	private SimpleFieldSet fallbackTranslation = null;
 	private SimpleFieldSet translationOverride;
 	private ClassLoader cl;
+	/** Incremented whenever the language or an override changes. */
+	private volatile int generation;
 
 	private static ClassLoader getClassLoaderFallback() {
 		ClassLoader _cl;
@@ -289,6 +291,7 @@ public class BaseL10n {
 		}
 
 		this.lang = selectedLanguage;
+		generation++;
 
 		Logger.normal(this.getClass(), "Changing the current language to : " + this.lang);
 
@@ -375,6 +378,15 @@ public class BaseL10n {
 		return this.lang;
 	}
 
+	/**
+	 * Get a number which changes whenever the language or an override changes, so that callers
+	 * can tell whether text they translated earlier is still valid.
+	 * @return int
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
 	/**
 	 * Returns true if a key is overridden.
 	 * @param key Key to check override status
@@ -411,6 +423,7 @@ public class BaseL10n {
 			this.translationOverride.putOverwrite(key, value);
 			Logger.normal(this.getClass(), "Got a new translation key: set the Override!");
 		}
+		generation++;
 
 		// Save the file to disk
 		saveTranslationFile();
@@ -820,6 +820,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private int inputBandwidthLimit;
 	private long amountOfDataToCheckCompressionRatio;
 	private int minimumCompressionPercentage;
+	private volatile boolean parallelCompression;
 	private boolean connectionSpeedDetection;
 	boolean inputLimitDefault;
 
@@ -1897,6 +1898,21 @@ public class Node implements TimeSkewDetectorCallback {
 
 		minimumCompressionPercentage = nodeConfig.getInt("minimumCompressionPercentage");
 
+		nodeConfig.register("parallelCompression", false, sortOrder++,
+				true, false, "Node.parallelCompression",
+				"Node.parallelCompressionLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return parallelCompression;
+			}
+			@Override
+			public void set(Boolean val) {
+				parallelCompression = val;
+			}
+		});
+
+		parallelCompression = nodeConfig.getBoolean("parallelCompression");
+
 		// max time for single compressor makes the insert compression CPU dependent, so it should not have been used.
 		nodeConfig.registerIgnoredOption("maxTimeForSingleCompressor");
 
@@ -3792,6 +3808,20 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/**
+	 * Get a hint for where a key lives in the main datastore, so that code checking many keys at
+	 * once can look them up in file order.
+	 * @return The first slot the key maps to, or -1 if the store does not use slots.
+	 */
+	public long getStoreSlotHint(Key key) {
+		StoreCallback<?> store = (key instanceof NodeSSK) ? sskDatastore : chkDatastore;
+		if(store == null) return -1;
+		FreenetStore<?> underlying = store.getStore().getUnderlyingStore();
+		if(underlying instanceof SaltedHashFreenetStore)
+			return ((SaltedHashFreenetStore<?>)underlying).getSlotHint(key.getRoutingKey());
+		return -1;
+	}
+
 	CHKStore getChkDatacache() {
 		return chkDatacache;
 	}
@@ -12,17 +12,20 @@ import freenet.client.FetchContext;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.client.InsertContext;
+import freenet.client.async.ChainedDownloadCache;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientLayerPersister;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.client.async.DatastoreChecker;
 import freenet.client.async.HealingDecisionSupplier;
 import freenet.client.async.HealingQueue;
+import freenet.client.async.LocalDownloadCache;
 import freenet.client.async.PersistentStatsPutter;
 import freenet.client.async.SimpleHealingQueue;
 import freenet.client.async.USKManager;
 import freenet.client.events.SimpleEventProducer;
 import freenet.client.filter.FilterCallback;
+import freenet.client.filter.FilterResultCache;
 import freenet.client.filter.FoundURICallback;
 import freenet.client.filter.GenericReadFilterCallback;
 import freenet.client.filter.LinkFilterExceptionProvider;
@@ -33,11 +36,13 @@ import freenet.clients.http.FProxyToadlet;
 import freenet.clients.http.SimpleToadletServer;
 import freenet.clients.http.bookmark.BookmarkManager;
 import freenet.config.Config;
+import freenet.config.EnumerableOptionCallback;
 import freenet.config.InvalidConfigValueException;
 import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.MasterSecret;
 import freenet.crypt.RandomSource;
+import freenet.io.comm.DMT;
 import freenet.io.xfer.AbortedException;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
@@ -76,6 +81,7 @@ import freenet.support.api.HTTPRequest;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.StringArrCallback;
+import freenet.support.api.StringCallback;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.RealCompressor;
 import freenet.support.io.DiskSpaceCheckingRandomAccessBufferFactory;
@@ -101,7 +107,9 @@ public class NodeClientCore implements Persistable {
 	// a 3GiB file stays alive if it is downloaded by one person per day.
 	// 8k means that up to 250 MiB of memory are needed
 	// when a file of 250MiB or more succeeds just barely.
-	private static final int MAX_RUNNING_HEALING_INSERTS = 8192;
+	// The limit scales with the output bandwidth class (1 to 10), so a slow
+	// node does not hold more healing blocks in memory than it can send.
+	private static final int MAX_RUNNING_HEALING_INSERTS_PER_BANDWIDTH_CLASS = 819;
 	private static volatile boolean logMINOR;
 
 	static {
@@ -237,6 +245,10 @@ public class NodeClientCore implements Persistable {
 	FProxyToadlet fproxyServlet;
 	final SimpleToadletServer toadletContainer;
 	public final RealCompressor compressor;
+	/** Cache of completed transient fetches, consulted by FProxy and ClientGetter. */
+	private final LocalDownloadCache localDownloadCache;
+	/** Cache of content filter output, for resources shared between pages. */
+	private final FilterResultCache filterResultCache;
 	/** If true, requests are resumed lazily i.e. startup does not block waiting for them. */
 	protected final Persister persister;
 
@@ -586,7 +598,9 @@ public class NodeClientCore implements Persistable {
 						false, Node.FORK_ON_CACHEABLE_DEFAULT, false,
 						Compressor.DEFAULT_COMPRESSORDESCRIPTOR, 0, 0,
 						InsertContext.CompatibilityMode.COMPAT_DEFAULT),
-				RequestStarter.PREFETCH_PRIORITY_CLASS, MAX_RUNNING_HEALING_INSERTS,
+				RequestStarter.PREFETCH_PRIORITY_CLASS,
+				() -> MAX_RUNNING_HEALING_INSERTS_PER_BANDWIDTH_CLASS *
+						DMT.bandwidthClassForCapacityUsage(node.getOutputBandwidthLimit()),
 				new HealingDecisionSupplier(node::getLocation, node::isOpennetEnabled));
 
 		PooledFileRandomAccessBufferFactory raff =
@@ -771,6 +785,8 @@ public class NodeClientCore implements Persistable {
 							}
 							persistentRAFFactory.setEncryption(true);
 						}
+						localDownloadCache.setPersistent(
+								newLevel == PHYSICAL_THREAT_LEVEL.LOW);
 						if (clientLayerPersister.hasLoaded()) {
 							// May need to change filenames for client.dat* or even create them.
 							try {
@@ -888,6 +904,91 @@ public class NodeClientCore implements Persistable {
 
 		maxBackgroundUSKFetchers = nodeConfig.getInt("maxBackgroundUSKFetchers");
 
+		nodeConfig.register("maxProgressEventsPerSecond", 5, sortOrder++, true, false,
+				    "NodeClientCore.maxProgressEventsPerSecond",
+				    "NodeClientCore.maxProgressEventsPerSecondLong", new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return clientContext.getMaxProgressEventsPerSecond();
+					}
+
+					@Override
+					public void set(Integer val)
+							throws InvalidConfigValueException {
+						if (val < 0)
+							throw new InvalidConfigValueException(
+									l10n("maxProgressEventsPerSecondMustNotBeNegative"));
+						clientContext.setMaxProgressEventsPerSecond(val);
+					}
+				}, false);
+
+		clientContext.setMaxProgressEventsPerSecond(nodeConfig.getInt("maxProgressEventsPerSecond"));
+
+		nodeConfig.register("downloadCacheSize", "64MiB", sortOrder++, true, false,
+				"NodeClientCore.downloadCacheSize", "NodeClientCore.downloadCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						return localDownloadCache == null ? 0 : localDownloadCache.getMaxSize();
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if (val < 0)
+							throw new InvalidConfigValueException(
+									l10n("downloadCacheSizeMustBePositive"));
+						if (localDownloadCache != null)
+							localDownloadCache.setMaxSize(val);
+					}
+				}, true);
+
+		nodeConfig.register("downloadCacheEvictionPolicy",
+				LocalDownloadCache.EvictionPolicy.LRU.name(), sortOrder++, true, false,
+				"NodeClientCore.downloadCacheEvictionPolicy",
+				"NodeClientCore.downloadCacheEvictionPolicyLong",
+				new DownloadCacheEvictionPolicyCallback());
+
+		LocalDownloadCache.EvictionPolicy evictionPolicy;
+		try {
+			evictionPolicy = LocalDownloadCache.EvictionPolicy
+					.valueOf(nodeConfig.getString("downloadCacheEvictionPolicy"));
+		} catch (IllegalArgumentException e) {
+			evictionPolicy = LocalDownloadCache.EvictionPolicy.LRU;
+		}
+		// Only keep decoded data on disk across restarts if we don't encrypt temp files.
+		localDownloadCache =
+				new LocalDownloadCache(node.userDir().file("download-cache"),
+						       tempBucketFactory,
+						       nodeConfig.getLong("downloadCacheSize"),
+						       evictionPolicy,
+						       node.getSecurityLevels().getPhysicalThreatLevel()
+								       == PHYSICAL_THREAT_LEVEL.LOW);
+		clientContext.setLocalDownloadCache(localDownloadCache);
+
+		nodeConfig.register("filterCacheSize", "8MiB", sortOrder++, true, false,
+				"NodeClientCore.filterCacheSize", "NodeClientCore.filterCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						return filterResultCache == null ? 0 : filterResultCache.getMaxSize();
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if (val < 0)
+							throw new InvalidConfigValueException(
+									l10n("filterCacheSizeMustBePositive"));
+						if (filterResultCache != null)
+							filterResultCache.setMaxSize(val);
+					}
+				}, true);
+
+		filterResultCache = new FilterResultCache(nodeConfig.getLong("filterCacheSize"));
+		clientContext.setFilterResultCache(filterResultCache);
+
 		// This is all part of construction, not of start().
 		// Some plugins depend on it, so it needs to be *created* before they are started.
 
@@ -905,7 +1006,8 @@ public class NodeClientCore implements Persistable {
 			fcpServer =
 					FCPServer.maybeCreate(node, this, node.getConfig(),
 							      fcpPersistentRoot);
-			clientContext.setDownloadCache(fcpServer);
+			clientContext.setDownloadCache(
+					new ChainedDownloadCache(fcpServer, localDownloadCache));
 			if (!killedDatabase())
 				fcpServer.load();
 		} catch (IOException e) {
@@ -1988,6 +2090,46 @@ public class NodeClientCore implements Persistable {
 		return new HighLevelSimpleClientImpl(this, tempBucketFactory, random, prioClass, forceDontIgnoreTooManyPathComponents, realTimeFlag);
 	}
 
+	public LocalDownloadCache getLocalDownloadCache() {
+		return localDownloadCache;
+	}
+
+	public FilterResultCache getFilterResultCache() {
+		return filterResultCache;
+	}
+
+	private class DownloadCacheEvictionPolicyCallback extends StringCallback
+			implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			return localDownloadCache == null ? LocalDownloadCache.EvictionPolicy.LRU.name()
+							  : localDownloadCache.getEvictionPolicy().name();
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException {
+			LocalDownloadCache.EvictionPolicy policy;
+			try {
+				policy = LocalDownloadCache.EvictionPolicy.valueOf(val);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidConfigValueException(
+						l10n("downloadCacheEvictionPolicyInvalid"));
+			}
+			if (localDownloadCache != null)
+				localDownloadCache.setEvictionPolicy(policy);
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			LocalDownloadCache.EvictionPolicy[] values = LocalDownloadCache.EvictionPolicy.values();
+			String[] names = new String[values.length];
+			for (int i = 0; i < values.length; i++)
+				names[i] = values[i].name();
+			return names;
+		}
+	}
+
 	public FCPServer getFCPServer() {
 		return fcpServer;
 	}
@@ -75,6 +75,11 @@ public abstract class SendableGet extends BaseSendableGet {
 			return context.getChkFetchScheduler(realTimeFlag);
 	}
 
+	/** Called by the DatastoreChecker when it has looked for our keys in the store. */
+	public void onStoreChecked(int checked, int found) {
+		parent.onStoreChecked(checked, found);
+	}
+
 	/**
 	 * Get the time at which the key specified by the given token will wake up from the 
 	 * cooldown queue.
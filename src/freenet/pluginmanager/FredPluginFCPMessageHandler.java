@@ -36,6 +36,10 @@ import freenet.support.io.NativeThread;
  * If you want to specify the thread priority of the message handling functions, you can
  * additionally implement the member interface {@link PrioritizedMessageHandler}.<br><br>
  * 
+ * If you receive many messages per second, you can additionally implement the member interface
+ * {@link QueuedMessageHandler} to have them delivered through a bounded queue instead of by one
+ * thread per message.<br><br>
+ * 
  * As opposed to the old {@link FredPluginFCP} and {@link FredPluginTalker} message handler
  * interfaces, and their {@link PluginReplySender} and {@link PluginTalker} message sending
  * counterparts, this new API is as symmetric as possible:<br>
@@ -278,4 +282,34 @@ public interface FredPluginFCPMessageHandler {
         /** @see PrioritizedMessageHandler */
         public NativeThread.PriorityLevel getPriority(FCPPluginMessage message);
     }
+
+    /**
+     * Implement this to have messages delivered to
+     * {@link FredPluginFCPMessageHandler#handlePluginFCPMessage(FCPPluginConnection,
+     * FCPPluginMessage)} through a bounded queue per {@link FCPPluginConnection} instead of by
+     * one thread per message.<br><br>
+     * 
+     * The messages of each connection are then handled one after another, in the order in which
+     * they were sent, by a single thread which handles a batch of them before giving up the thread.
+     * This saves creating and scheduling a thread for each message, but a message which takes
+     * long to handle delays the following ones of the same connection. Messages of different
+     * connections are still handled in parallel.<br><br>
+     * 
+     * If the queue of a connection is full, the send functions of the sender throw
+     * {@link FCPPluginConnection.MessageQueueFullException}, so it can slow down and try again
+     * later. Networked FCP clients receive a ProtocolError instead. Replies to messages which
+     * were delivered are always accepted, so the queue can exceed the capacity by the number of
+     * outstanding replies.<br><br>
+     * 
+     * If you also implement {@link PrioritizedMessageHandler}, the thread priority is that of the
+     * first message of each batch.
+     */
+    public interface QueuedMessageHandler {
+        /**
+         * @return
+         *     The maximal number of messages waiting to be handled for each connection. Must be
+         *     positive. Queried for each message, so you may change it at runtime.
+         */
+        public int getMessageQueueCapacity();
+    }
 }
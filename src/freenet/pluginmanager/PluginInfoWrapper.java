@@ -47,6 +47,11 @@ public class PluginInfoWrapper implements Comparable<PluginInfoWrapper> {
 	private HashSet<String> toadletLinks = new HashSet<String>();
 	private volatile boolean stopping = false;
 	private volatile boolean unregistered = false;
+	/** Milliseconds it took to fetch, verify and instantiate the plugin, -1 if unknown. */
+	private volatile long loadTime = -1;
+	/** Milliseconds it took to start the plugin, -1 if unknown. For threadless plugins this
+	 * includes runPlugin(), other plugins run it in a thread of their own after this. */
+	private volatile long startTime = -1;
 	
 	public PluginInfoWrapper(Node node, FredPlugin plug, String filename, boolean isOfficial) throws IOException {
 		this.plug = plug;
@@ -109,6 +114,22 @@ public class PluginInfoWrapper implements Comparable<PluginInfoWrapper> {
 	public long getStarted() {
 		return start;
 	}
+
+	void setStartupTimes(long loadTime, long startTime) {
+		this.loadTime = loadTime;
+		this.startTime = startTime;
+	}
+
+	/** @return Milliseconds it took to fetch, verify and instantiate the plugin, or -1 if
+	 * unknown. */
+	public long getLoadTime() {
+		return loadTime;
+	}
+
+	/** @return Milliseconds it took to start the plugin once it was loaded, or -1 if unknown. */
+	public long getStartTime() {
+		return startTime;
+	}
 	
 	public String getPluginClassName(){
 		return plug.getClass().getName();
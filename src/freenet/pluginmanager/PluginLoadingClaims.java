@@ -0,0 +1,45 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.pluginmanager;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The main classes of the plugins which are being loaded. Plugins with different main classes are
+ * loaded in parallel; a thread loading a plugin whose main class is claimed by another thread
+ * waits until that one has registered the plugin or given up, and must then check whether the
+ * plugin is loaded already.
+ */
+class PluginLoadingClaims {
+
+	private final Set<String> claimed = new HashSet<String>();
+
+	/** Wait until no other thread has claimed the main class, and then claim it. Must be followed
+	 * by release(). Not interruptible, since the claim is only held while loading a plugin, but
+	 * the interrupt is kept for the caller. */
+	synchronized void claim(String pluginMainClassName) {
+		boolean interrupted = false;
+		while (claimed.contains(pluginMainClassName)) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		claimed.add(pluginMainClassName);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	synchronized void release(String pluginMainClassName) {
+		if (claimed.remove(pluginMainClassName))
+			notifyAll();
+	}
+
+	synchronized boolean isClaimed(String pluginMainClassName) {
+		return claimed.contains(pluginMainClassName);
+	}
+
+}
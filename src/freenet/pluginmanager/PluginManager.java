@@ -60,6 +60,7 @@ import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SerialExecutor;
 import freenet.support.Ticker;
+import freenet.support.TimeUtil;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.StringArrCallback;
@@ -197,6 +198,7 @@ public class PluginManager {
 		}
 
 		final Semaphore startingPlugins = new Semaphore(0);
+		final long startTime = System.currentTimeMillis();
 			for(final String name : toStart) {
 			    core.getExecutor().execute(new Runnable() {
 
@@ -213,6 +215,8 @@ public class PluginManager {
 			@Override
 			public void run() {
 				startingPlugins.acquireUninterruptibly(toStart.length);
+				Logger.normal(PluginManager.this, "Started " + toStart.length + " plugins in "
+						+ TimeUtil.formatTime(System.currentTimeMillis() - startTime, 2, true));
 				synchronized (loadedPlugins) {
 					started = true;
 					toStart = null;
@@ -374,16 +378,21 @@ public class PluginManager {
 		final PluginProgress pluginProgress = new PluginProgress(filename, pdl);
 		loadedPlugins.addStartingPlugin(pluginProgress);
 		Logger.normal(this, "Loading plugin: " + filename);
-		FredPlugin plug;
+		long startTime = System.currentTimeMillis();
+		FredPlugin plug = null;
 		PluginInfoWrapper pi = null;
 		try {
 			plug = loadPlugin(pdl, filename, pluginProgress, alwaysDownload);
+			long loadedTime = System.currentTimeMillis();
 			pluginProgress.setProgress(ProgressState.STARTING);
 			pi = new PluginInfoWrapper(node, plug, filename, pdl.isOfficialPluginLoader());
 			PluginHandler.startPlugin(PluginManager.this, pi);
+			pi.setStartupTimes(loadedTime - startTime, System.currentTimeMillis() - loadedTime);
 			loadedPlugins.addLoadedPlugin(pi);
 			loadedPlugins.removeFailedPlugin(filename);
-			Logger.normal(this, "Plugin loaded: " + filename);
+			Logger.normal(this, "Plugin loaded: " + filename + " in "
+					+ TimeUtil.formatTime(pi.getLoadTime(), 2, true) + ", started in "
+					+ TimeUtil.formatTime(pi.getStartTime(), 2, true));
 		} catch (PluginAlreadyLoaded e) {
 			return null;
 		} catch (PluginNotFoundException e) {
@@ -434,6 +443,9 @@ public class PluginManager {
 			core.getAlerts().register(newAlert);
 			core.getAlerts().unregister(oldAlert);
 		} finally {
+			// loadPlugin() keeps the main class claimed until the plugin has been registered.
+			if (plug != null)
+				loadingPluginClasses.release(plug.getClass().getName());
 			loadedPlugins.removeStartingPlugin(pluginProgress);
 		}
 		/* try not to destroy the config. */
@@ -1017,10 +1029,10 @@ public class PluginManager {
 		return null;
 	}
 
-	/** Separate lock for plugin loading. Don't use (this) as we also use that for
-	 * writing the config file, and because we do a lot inside the lock below; it
-	 * must not be taken in any other circumstance. */
-	private final Object pluginLoadSyncObject = new Object();
+	/** Main classes of the plugins which are being loaded, from reading the jar file until the
+	 * plugin is registered in loadedPlugins. Plugins with different main classes are loaded in
+	 * parallel, but the same one only once at a time. */
+	private final PluginLoadingClaims loadingPluginClasses = new PluginLoadingClaims();
 
 	/**
 	 * All plugin updates are on a single request client.
@@ -1051,7 +1063,8 @@ public class PluginManager {
 	 * @param alwaysDownload If true, always download a new version anyway.
 	 * This is especially important on Windows, where we will not usually be
 	 * able to delete the file after determining that it is too old.
-	 * @return An instanciated object of the plugin
+	 * @return An instanciated object of the plugin. Its class stays claimed in
+	 * loadingPluginClasses, the caller must release it once the plugin is registered.
 	 * @throws PluginNotFoundException
 	 *             If anything goes wrong.
 	 * @throws PluginAlreadyLoaded if the plugin is already loaded
@@ -1096,23 +1109,35 @@ public class PluginManager {
 
 			cancelRunningLoads(name, progress);
 
-			// we do quite a lot inside the lock, use a dedicated one
-			synchronized (pluginLoadSyncObject) {
-				String pluginMainClassName;
+			// Other plugins are loaded in parallel, only the same plugin is loaded once at a time.
+			String pluginMainClassName;
+			try {
+				pluginMainClassName = verifyJarFileAndGetPluginMainClass(pluginFile);
+				loadingPluginClasses.claim(pluginMainClassName);
+				boolean loaded = false;
 				try {
-					pluginMainClassName = verifyJarFileAndGetPluginMainClass(pluginFile);
+					// Another thread may have loaded it while we were waiting for the claim.
+					if (isPluginLoaded(pluginMainClassName)) {
+						Logger.error(this, "Plugin already loaded: " + pluginFile.getName());
+						throw new PluginAlreadyLoaded();
+					}
 					FredPlugin object = loadPluginFromJarFile(name, pluginFile, pluginMainClassName, pdl.isOfficialPluginLoader());
 					if (object != null) {
+						loaded = true;
 						return object;
 					}
-				} catch (PluginNotFoundException e) {
-					Logger.error(this, e.getMessage());
-					pluginFile.delete();
-					if (!downloadWasAttempted) {
-						continue;
-					}
-					throw e;
+				} finally {
+					// On success, the caller releases the claim once the plugin is registered.
+					if (!loaded)
+						loadingPluginClasses.release(pluginMainClassName);
+				}
+			} catch (PluginNotFoundException e) {
+				Logger.error(this, e.getMessage());
+				pluginFile.delete();
+				if (!downloadWasAttempted) {
+					continue;
 				}
+				throw e;
 			}
 		}
 		return null;
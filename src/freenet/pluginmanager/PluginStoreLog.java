@@ -0,0 +1,384 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.pluginmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.crypt.AEADInputStream;
+import freenet.crypt.AEADOutputStream;
+import freenet.crypt.SHA256;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PaddedEphemerallyEncryptedBucket;
+
+/**
+ * Stores a PluginStore as a log of changes, so saving a big store which has hardly changed only
+ * writes what has changed, rather than the whole store.
+ *
+ * The store is flattened into the same keys and values as PluginStore.exportStoreAsSFS(), and
+ * each save appends one batch of the keys which have been added, changed or removed since the
+ * last save. When the log is much bigger than the store, it is rewritten as a single batch.
+ *
+ * The file is a magic number and then batches, each an int length and then the batch, which is
+ * authenticated and encrypted on its own if there is a key. A batch contains its sequence number,
+ * so batches can't be reordered or replayed. An encrypted batch is padded with zeros to a power
+ * of two, as the whole store used to be, so the file only shows roughly how much each save
+ * changed. A batch which is cut short or fails to decrypt at the end of the file is assumed to
+ * be a save interrupted by a crash, and is dropped, losing that save but nothing before it. It
+ * could also be tampering, so it is logged as an error. Anywhere else it means the file is
+ * corrupt.
+ *
+ * If an append fails, whatever was written is cut off again, and the next save rewrites the file
+ * anyway, so a later append never follows a broken batch. A rewrite keeps the previous file as
+ * a backup (see backupFile()), in case the new one is lost or corrupted.
+ *
+ * Not thread-safe; PluginStores synchronizes on it.
+ */
+class PluginStoreLog {
+
+	private static final long MAGIC = 0x46504c5353544f52L; // "FPLSSTOR"
+	private static final byte OP_PUT = 0;
+	private static final byte OP_REMOVE = 1;
+	/** Don't bother compacting logs smaller than this. */
+	static final int MIN_COMPACT_SIZE = 64 * 1024;
+
+	private final File file;
+	/** Null if not encrypted. */
+	private final byte[] key;
+	private final SecureRandom random;
+	/** The keys the log adds up to, and hashes of their values. Only the hashes are kept, so we
+	 * don't keep a second copy of the whole store in memory. */
+	private final HashMap<String, byte[]> written;
+	/** The keys and values read from the file, until toFieldSet() is called. */
+	private HashMap<String, String> loaded;
+	/** The sequence number of the last batch. */
+	private long sequence;
+	private long length;
+	/** If true, the next save rewrites the file, because an append failed. */
+	private boolean mustRewrite;
+
+	private PluginStoreLog(File file, byte[] key, SecureRandom random) {
+		this.file = file;
+		this.key = key;
+		this.random = random;
+		this.written = new HashMap<String, byte[]>();
+	}
+
+	/** @return The file the previous version of a log is kept in when it is rewritten. */
+	static File backupFile(File file) {
+		return new File(file.getPath() + ".bak");
+	}
+
+	/** Create an empty log, replacing any existing file. Nothing is written until the first
+	 * save. */
+	static PluginStoreLog create(File file, byte[] key, SecureRandom random) {
+		return new PluginStoreLog(file, key, random);
+	}
+
+	/** Read an existing log.
+	 * @throws IOException If the file cannot be read, is not a log, is corrupt, or does not
+	 * authenticate with the key. */
+	static PluginStoreLog open(File file, byte[] key, SecureRandom random) throws IOException {
+		PluginStoreLog log = new PluginStoreLog(file, key, random);
+		log.read();
+		return log;
+	}
+
+	private void read() throws IOException {
+		loaded = new HashMap<String, String>();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		String dropped = "cut short";
+		try {
+			long fileLength = raf.length();
+			if(fileLength < 8 || raf.readLong() != MAGIC)
+				throw new IOException("Not a plugin store log: "+file);
+			long offset = 8;
+			while(offset + 4 <= fileLength) {
+				int batchLength = raf.readInt();
+				if(batchLength < 0 || offset + 4 + batchLength > fileLength)
+					// The last batch was cut short.
+					break;
+				byte[] buf = new byte[batchLength];
+				raf.readFully(buf);
+				try {
+					readBatch(buf);
+				} catch (IOException e) {
+					if(offset + 4 + batchLength < fileLength)
+						throw new IOException("Corrupt plugin store log "+file+" at "+offset+": "+e, e);
+					// The last batch was not written completely.
+					dropped = e.toString();
+					break;
+				}
+				offset += 4 + batchLength;
+			}
+			length = offset;
+		} finally {
+			raf.close();
+		}
+		for(Map.Entry<String, String> entry : loaded.entrySet())
+			written.put(entry.getKey(), hash(entry.getValue()));
+		if(length < file.length()) {
+			// Keep everything before it.
+			Logger.error(this, "Dropping last save of plugin store "+file+" ("+(file.length() - length)+
+					" bytes at "+length+"), probably interrupted by a crash, or tampered with: "+dropped);
+			RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+			try {
+				truncate.setLength(length);
+			} finally {
+				truncate.close();
+			}
+		}
+	}
+
+	private void readBatch(byte[] buf) throws IOException {
+		InputStream is = new ByteArrayInputStream(buf);
+		if(key != null)
+			is = AEADInputStream.createAES(is, key);
+		// Decrypt and authenticate the whole batch before parsing it.
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(buf.length);
+		byte[] temp = new byte[4096];
+		int read;
+		while((read = is.read(temp)) > 0)
+			baos.write(temp, 0, read);
+		// Authenticates.
+		is.close();
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+		long seq = dis.readLong();
+		if(seq != sequence + 1)
+			throw new IOException("Batch "+seq+" out of order, expected "+(sequence + 1));
+		int count = dis.readInt();
+		// Parse the whole batch before applying any of it.
+		HashMap<String, String> puts = new HashMap<String, String>();
+		List<String> removes = new ArrayList<String>();
+		for(int i=0;i<count;i++) {
+			byte op = dis.readByte();
+			String k = readString(dis);
+			if(op == OP_PUT)
+				puts.put(k, readString(dis));
+			else if(op == OP_REMOVE)
+				removes.add(k);
+			else
+				throw new IOException("Unknown operation "+op);
+		}
+		int b;
+		while((b = dis.read()) != -1) {
+			if(key == null || b != 0)
+				throw new IOException("Junk at end of batch");
+		}
+		loaded.putAll(puts);
+		for(String k : removes)
+			loaded.remove(k);
+		sequence = seq;
+	}
+
+	/** @return The store read from the file, as a SimpleFieldSet which PluginStore can be
+	 * constructed from. Can only be called once, after open(). */
+	SimpleFieldSet toFieldSet() {
+		if(loaded == null)
+			throw new IllegalStateException("Already called, or not opened");
+		SimpleFieldSet fs = new SimpleFieldSet(true, true);
+		for(Map.Entry<String, String> entry : loaded.entrySet())
+			fs.putOverwrite(entry.getKey(), entry.getValue());
+		loaded = null;
+		return fs;
+	}
+
+	/** Save the store. Appends what has changed since the last save, or rewrites the file if
+	 * the log has got too big.
+	 * @param store The store, as exported by PluginStore.exportStoreAsSFS(). */
+	void write(SimpleFieldSet store) throws IOException {
+		HashMap<String, String> current = new HashMap<String, String>();
+		flatten(store, "", current);
+		long newLiveSize = 0;
+		for(Map.Entry<String, String> entry : current.entrySet())
+			newLiveSize += entrySize(entry.getKey(), entry.getValue());
+		List<String> changed = new ArrayList<String>();
+		List<String> removed = new ArrayList<String>();
+		HashMap<String, byte[]> hashes = new HashMap<String, byte[]>();
+		for(Map.Entry<String, String> entry : current.entrySet()) {
+			byte[] hash = hash(entry.getValue());
+			hashes.put(entry.getKey(), hash);
+			if(!Arrays.equals(hash, written.get(entry.getKey())))
+				changed.add(entry.getKey());
+		}
+		for(String k : written.keySet()) {
+			if(!current.containsKey(k))
+				removed.add(k);
+		}
+		long changeSize = 0;
+		for(String k : changed)
+			changeSize += entrySize(k, current.get(k));
+		for(String k : removed)
+			changeSize += entrySize(k, "");
+		if(sequence == 0 || mustRewrite ||
+				length + changeSize > Math.max(MIN_COMPACT_SIZE, newLiveSize * 2)) {
+			rewrite(current, hashes);
+		} else if(!changed.isEmpty() || !removed.isEmpty()) {
+			byte[] batch = encodeBatch(sequence + 1, current, changed, removed);
+			append(batch);
+			length += batch.length;
+			sequence++;
+			for(String k : changed)
+				written.put(k, hashes.get(k));
+			for(String k : removed)
+				written.remove(k);
+		}
+	}
+
+	private void append(byte[] batch) throws IOException {
+		boolean success = false;
+		try {
+			FileOutputStream fos = new FileOutputStream(file, true);
+			try {
+				fos.write(batch);
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+			success = true;
+		} finally {
+			if(!success) {
+				// Part of the batch may have been written. Cut it off, so it isn't taken for
+				// the end of the log, and rewrite next time in case we can't.
+				mustRewrite = true;
+				try {
+					RandomAccessFile raf = new RandomAccessFile(file, "rw");
+					try {
+						raf.setLength(length);
+					} finally {
+						raf.close();
+					}
+				} catch (IOException e) {
+					Logger.error(this, "Unable to truncate "+file+" after failed save: "+e, e);
+				}
+			}
+		}
+	}
+
+	private static byte[] hash(String value) {
+		return SHA256.digest(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** Add every key and value in the SimpleFieldSet, including subsets, to the map. Does not
+	 * use the key iterator, because exportStoreAsSFS() puts subsets under keys containing
+	 * dots, which can't be looked up again with get(). */
+	private static void flatten(SimpleFieldSet fs, String prefix, Map<String, String> out) {
+		for(Map.Entry<String, String> entry : fs.directKeyValues().entrySet())
+			out.put(prefix + entry.getKey(), entry.getValue());
+		for(Map.Entry<String, SimpleFieldSet> entry : fs.directSubsets().entrySet())
+			flatten(entry.getValue(), prefix + entry.getKey() + SimpleFieldSet.MULTI_LEVEL_CHAR, out);
+	}
+
+	/** Write the whole store as a new log, and replace the old one, keeping it as the backup. */
+	private void rewrite(HashMap<String, String> current, HashMap<String, byte[]> hashes)
+			throws IOException {
+		// Until it has succeeded, the file may be missing or not match what we remember.
+		mustRewrite = true;
+		byte[] batch = encodeBatch(1, current, current.keySet(), new ArrayList<String>(0));
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			DataOutputStream dos = new DataOutputStream(fos);
+			dos.writeLong(MAGIC);
+			dos.write(batch);
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if(file.exists() && !FileUtil.renameTo(file, backupFile(file))) {
+			temp.delete();
+			throw new IOException("Unable to rename "+file+" to "+backupFile(file));
+		}
+		if(!FileUtil.renameTo(temp, file)) {
+			temp.delete();
+			throw new IOException("Unable to rename "+temp+" to "+file);
+		}
+		written.clear();
+		written.putAll(hashes);
+		length = 8 + batch.length;
+		sequence = 1;
+		mustRewrite = false;
+	}
+
+	private byte[] encodeBatch(long seq, Map<String, String> values, Collection<String> changed,
+			Collection<String> removed) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeLong(seq);
+		dos.writeInt(changed.size() + removed.size());
+		for(String k : changed) {
+			dos.writeByte(OP_PUT);
+			writeString(dos, k);
+			writeString(dos, values.get(k));
+		}
+		for(String k : removed) {
+			dos.writeByte(OP_REMOVE);
+			writeString(dos, k);
+		}
+		dos.close();
+		byte[] plaintext = baos.toByteArray();
+		byte[] body = plaintext;
+		if(key != null) {
+			int paddedLength = (int) PaddedEphemerallyEncryptedBucket.paddedLength(plaintext.length,
+					PaddedEphemerallyEncryptedBucket.MIN_PADDED_SIZE);
+			baos = new ByteArrayOutputStream(paddedLength + AEADOutputStream.AES_OVERHEAD);
+			OutputStream os = AEADOutputStream.createAES(baos, key, random);
+			os.write(plaintext);
+			os.write(new byte[paddedLength - plaintext.length]);
+			os.close();
+			body = baos.toByteArray();
+		}
+		baos = new ByteArrayOutputStream(body.length + 4);
+		dos = new DataOutputStream(baos);
+		dos.writeInt(body.length);
+		dos.write(body);
+		dos.close();
+		return baos.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream dos, String s) throws IOException {
+		byte[] buf = s.getBytes(StandardCharsets.UTF_8);
+		dos.writeInt(buf.length);
+		dos.write(buf);
+	}
+
+	private static String readString(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if(length < 0 || length > dis.available())
+			throw new IOException("Bad string length "+length);
+		byte[] buf = new byte[length];
+		dis.readFully(buf);
+		return new String(buf, StandardCharsets.UTF_8);
+	}
+
+	/** Roughly how many bytes a key and value take in the log. */
+	private static long entrySize(String k, String v) {
+		return 9 + k.length() + v.length();
+	}
+
+	/** @return The size of the file, for tests. */
+	long length() {
+		return length;
+	}
+
+}
@@ -4,7 +4,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import freenet.config.SubConfig;
 import freenet.crypt.AEADCryptBucket;
@@ -13,16 +14,29 @@ import freenet.node.Node;
 import freenet.node.NodeInitException;
 import freenet.node.ProgramDirectory;
 import freenet.support.IllegalBase64Exception;
+import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
 import freenet.support.io.PaddedBucket;
 
+/**
+ * Loads and saves PluginStore's. Stores are saved as a log of changes (see PluginStoreLog), so
+ * saving a big store only writes what has changed. Stores in the old format, a SimpleFieldSet
+ * rewritten on every save, are still loaded, and are converted the next time they are saved.
+ * A log which can't be loaded is moved aside rather than being overwritten, and then its backup
+ * is tried.
+ */
 public class PluginStores {
     
     final Node node;
     private final ProgramDirectory pluginStoresDir;
+    /** The logs of the stores which have been loaded or saved, by file. The log remembers what
+     * was last saved, so the next save can write just the changes. */
+    private final HashMap<File, PluginStoreLog> logs = new HashMap<File, PluginStoreLog>();
+    /** The stores which had a file we couldn't load. We don't delete any of their files. */
+    private final HashSet<String> failedLoads = new HashSet<String>();
     
     public PluginStores(Node node, SubConfig installConfig) throws NodeInitException {
         this.node = node;
@@ -34,18 +48,6 @@ public class PluginStores {
         }
     }
 
-    private void writePluginStoreInner(String storeIdentifier, PluginStore pluginStore, boolean isEncrypted, boolean backup) throws IOException {
-        Bucket bucket = makePluginStoreBucket(storeIdentifier, isEncrypted, backup);
-        OutputStream os = bucket.getOutputStream();
-        try {
-            if(pluginStore != null) {
-                pluginStore.exportStoreAsSFS().writeTo(os);
-            }
-        } finally {
-            os.close();
-        }
-    }
-    
     private File getPluginStoreFile(String storeIdentifier, boolean encrypted, boolean backup) {
         String filename = storeIdentifier;
         filename += ".data";
@@ -56,22 +58,6 @@ public class PluginStores {
         return pluginStoresDir.file(filename);
     }
 
-    private Bucket makePluginStoreBucket(String storeIdentifier, boolean isEncrypted, boolean backup) 
-    throws FileNotFoundException {
-        File f = getPluginStoreFile(storeIdentifier, isEncrypted, backup);
-        Bucket bucket = new FileBucket(f, false, true, false, false);
-        if(isEncrypted) {
-            byte[] key = node.getPluginStoreKey(storeIdentifier);
-            if(key != null) {
-                // We pad then encrypt, which is wasteful, but we have no way to persist the size.
-                // Unfortunately AEADCryptBucket needs to know the real termination point.
-                bucket = new AEADCryptBucket(bucket, key);
-                bucket = new PaddedBucket(bucket);
-            }
-        }
-        return bucket;
-    }
-    
     private Bucket findPluginStoreBucket(String storeIdentifier, boolean isEncrypted, boolean backup) 
     throws FileNotFoundException {
         File f = getPluginStoreFile(storeIdentifier, isEncrypted, backup);
@@ -89,9 +75,25 @@ public class PluginStores {
         return bucket;
     }
 
+    private File getPluginStoreLogFile(String storeIdentifier, boolean encrypted) {
+        String filename = storeIdentifier + ".log";
+        if(encrypted)
+            filename += ".crypt";
+        return pluginStoresDir.file(filename);
+    }
+
+    /** @return The key to encrypt the store with, or null if it should not be encrypted. */
+    private byte[] getKey(String storeIdentifier, boolean isEncrypted) {
+        return isEncrypted ? node.getPluginStoreKey(storeIdentifier) : null;
+    }
+
     public PluginStore loadPluginStore(String storeIdentifier) {
         boolean isEncrypted = node.wantEncryptedDatabase();
-        PluginStore store = loadPluginStore(storeIdentifier, isEncrypted, false);
+        PluginStore store = loadPluginStoreLog(storeIdentifier, isEncrypted);
+        if(store != null) return store;
+        store = loadPluginStoreLog(storeIdentifier, !isEncrypted);
+        if(store != null) return store;
+        store = loadPluginStore(storeIdentifier, isEncrypted, false);
         if(store != null) return store;
         store = loadPluginStore(storeIdentifier, isEncrypted, true);
         if(store != null) return store;
@@ -102,6 +104,71 @@ public class PluginStores {
         return store;
     }
     
+    private PluginStore loadPluginStoreLog(String storeIdentifier, boolean isEncrypted) {
+        File f = getPluginStoreLogFile(storeIdentifier, isEncrypted);
+        byte[] key = getKey(storeIdentifier, isEncrypted);
+        if(f.exists()) {
+            PluginStore store = loadPluginStoreLog(storeIdentifier, f, key, true);
+            if(store != null) return store;
+            // Keep it for the user to recover, and don't overwrite it on the next save.
+            synchronized(logs) {
+                logs.remove(f);
+            }
+            File moved = new File(f.getPath() + ".corrupt." + System.currentTimeMillis());
+            if(FileUtil.renameTo(f, moved))
+                System.err.println("Moved unreadable plugin data for "+storeIdentifier+" to "+moved);
+        }
+        File backup = PluginStoreLog.backupFile(f);
+        if(!backup.exists()) return null;
+        PluginStore store = loadPluginStoreLog(storeIdentifier, backup, key, false);
+        if(store == null) return null;
+        System.err.println("Loaded plugin data for "+storeIdentifier+" from backup "+backup);
+        if(!f.exists()) {
+            // The next save rewrites the log from the backup's contents, and keeps the backup.
+            synchronized(logs) {
+                logs.put(f, PluginStoreLog.create(f, key, node.getSecureRandom()));
+            }
+        }
+        return store;
+    }
+
+    /** Load a log.
+     * @param keep If true, keep the log, to append the next save to.
+     * @return Null if it can't be loaded. */
+    private PluginStore loadPluginStoreLog(String storeIdentifier, File f, byte[] key, boolean keep) {
+        try {
+            PluginStoreLog log = PluginStoreLog.open(f, key, node.getSecureRandom());
+            PluginStore store = new PluginStore(log.toFieldSet());
+            if(keep) {
+                synchronized(logs) {
+                    logs.put(f, log);
+                }
+            }
+            return store;
+        } catch (IOException e) {
+            failedToLoad(storeIdentifier, f, e);
+            return null;
+        } catch (IllegalBase64Exception e) {
+            failedToLoad(storeIdentifier, f, e);
+            return null;
+        } catch (FSParseException e) {
+            failedToLoad(storeIdentifier, f, e);
+            return null;
+        }
+    }
+
+    private void failedToLoad(String storeIdentifier, File f, Exception e) {
+        Logger.error(this, "Unable to load plugin data for "+storeIdentifier+" from "+f+" : "+e+
+                " - this could be caused by data corruption or bugs in Freenet.", e);
+        setFailedLoad(storeIdentifier);
+    }
+
+    private void setFailedLoad(String storeIdentifier) {
+        synchronized(failedLoads) {
+            failedLoads.add(storeIdentifier);
+        }
+    }
+
     private PluginStore loadPluginStore(String storeIdentifier, boolean isEncrypted, boolean backup) {
         Bucket bucket;
         try {
@@ -127,42 +194,64 @@ public class PluginStores {
             System.err.println("Unable to load plugin data for "+storeIdentifier+" : "+e);
             System.err.println("This could be caused by data corruption or bugs in Freenet.");
             // FIXME crypto - possible it's caused by attack while offline.
+            setFailedLoad(storeIdentifier);
             return null;
         } catch (IllegalBase64Exception e) {
             // Hence, if close() throws, we DO need to catch it here.
             System.err.println("Unable to load plugin data for "+storeIdentifier+" : "+e);
             System.err.println("This could be caused by data corruption or bugs in Freenet.");
             // FIXME crypto - possible it's caused by attack while offline.
+            setFailedLoad(storeIdentifier);
             return null;
         } catch (FSParseException e) {
             // Hence, if close() throws, we DO need to catch it here.
             System.err.println("Unable to load plugin data for "+storeIdentifier+" : "+e);
             System.err.println("This could be caused by data corruption or bugs in Freenet.");
             // FIXME crypto - possible it's caused by attack while offline.
+            setFailedLoad(storeIdentifier);
             return null;
         }
     }
 
     public void writePluginStore(String storeIdentifier, PluginStore store) throws IOException {
         boolean isEncrypted = node.wantEncryptedDatabase();
-        File backup = getPluginStoreFile(storeIdentifier, isEncrypted, true);
-        File main = getPluginStoreFile(storeIdentifier, isEncrypted, false);
-        if(backup.exists() && main.exists()) {
-            FileUtil.secureDelete(backup);
+        SimpleFieldSet fs = store == null ? new SimpleFieldSet(true, true) : store.exportStoreAsSFS();
+        PluginStoreLog log;
+        boolean created = false;
+        File f = getPluginStoreLogFile(storeIdentifier, isEncrypted);
+        synchronized(logs) {
+            log = logs.get(f);
+            if(log == null) {
+                // Not loaded yet, in the old format, or the physical security level has changed.
+                log = PluginStoreLog.create(f, getKey(storeIdentifier, isEncrypted), node.getSecureRandom());
+                logs.put(f, log);
+                created = true;
+            }
+            // Don't keep the other one if the physical security level has changed.
+            logs.remove(getPluginStoreLogFile(storeIdentifier, !isEncrypted));
         }
-        if(main.exists()) {
-            if(!main.renameTo(backup))
-                System.err.println("Unable to rename "+main+" to "+backup+" when writing pluginstore for "+storeIdentifier);
+        synchronized(log) {
+            log.write(fs);
         }
-        writePluginStoreInner(storeIdentifier, store, isEncrypted, false);
-        File f = getPluginStoreFile(storeIdentifier, !isEncrypted, true);
-        if(f.exists()) {
-            FileUtil.secureDelete(f);
+        boolean failed;
+        synchronized(failedLoads) {
+            failed = failedLoads.contains(storeIdentifier);
         }
-        f = getPluginStoreFile(storeIdentifier, !isEncrypted, false);
-        if(f.exists()) {
-            FileUtil.secureDelete(f);
+        if(created && !failed) {
+            // Remove the store in any other format.
+            File other = getPluginStoreLogFile(storeIdentifier, !isEncrypted);
+            deleteIfExists(other);
+            deleteIfExists(PluginStoreLog.backupFile(other));
+            for(boolean encrypted : new boolean[] { false, true }) {
+                deleteIfExists(getPluginStoreFile(storeIdentifier, encrypted, false));
+                deleteIfExists(getPluginStoreFile(storeIdentifier, encrypted, true));
+            }
         }
     }
 
+    private static void deleteIfExists(File f) throws IOException {
+        if(f.exists())
+            FileUtil.secureDelete(f);
+    }
+
 }
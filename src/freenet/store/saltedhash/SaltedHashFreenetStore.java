@@ -2033,6 +2033,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return getOffsetFromDigestedKey(cipherManager.getDigestedKey(plainKey), storeSize);
 	}
 
+	/**
+	 * Get the first slot a key would be stored in. Callers looking up many keys at once can sort
+	 * them by this so that the store file is read in order rather than at random. Also caches the
+	 * digested key, which the lookup itself will need.
+	 */
+	public long getSlotHint(byte[] routingKey) {
+		configLock.readLock().lock();
+		try {
+			return getOffsetFromPlainKey(routingKey, storeSize)[0];
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
 	public void close() {
 		close(false);
 	}
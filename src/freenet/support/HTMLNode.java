@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -38,9 +39,11 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 		this(name, null);
 	}
 
-	private static final ArrayList<String> EmptyTag = new ArrayList<String>(10);
-	private static final ArrayList<String> OpenTags = new ArrayList<String>(12);
-	private static final ArrayList<String> CloseTags = new ArrayList<String>(12);
+	private static final HashSet<String> EmptyTag = new HashSet<String>();
+	private static final HashSet<String> OpenTags = new HashSet<String>();
+	private static final HashSet<String> CloseTags = new HashSet<String>();
+	/** Indentation strings, so we don't have to build them every time. */
+	private static final String[] indents = new String[32];
 
 	static {
 		/* HTML elements which are allowed to be empty */
@@ -80,6 +83,11 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 		CloseTags.add("noscript");
 		CloseTags.add("option");
 		CloseTags.add("title");
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<indents.length;i++) {
+			sb.append('\t');
+			indents[i] = sb.toString();
+		}
 	}
 
 	/** Tests an HTML element name to determine if it is one of the elements permitted
@@ -87,7 +95,7 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	 * @param name The name of the html element
 	 * @return True if the element is allowed to be empty
 	 */
-	private Boolean isEmptyElement(String name) {
+	private boolean isEmptyElement(String name) {
 		return EmptyTag.contains(name);
 	}
 
@@ -96,7 +104,7 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	 * @param name The name of the html element
 	 * @return True if we should add a newline after the opening tag
 	 */
-	Boolean newlineOpen(String name) {
+	boolean newlineOpen(String name) {
 		return OpenTags.contains(name);
 	}
 
@@ -106,7 +114,7 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 	* @param name The name of the html element
 	* @return True if we should add a newline after the opening tag
 	*/
-	private Boolean newlineClose(String name) {
+	private boolean newlineClose(String name) {
 		return (newlineOpen(name) || CloseTags.contains(name));
 	}
 
@@ -123,20 +131,10 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 		}
 	}
 
-	/** Returns a closing tag for a named html elemen
-	 * @param name the name of the element
-	 * @return the complete closing tag for the element
-	 */
-	private String CloseTag(String name) {
-		if (isEmptyElement(name)) {
-			return "";
-		} else {
-			return "</" + name + ">";
-		}
-	}
-
 	private String indentString(int indentDepth) {
-		StringBuffer indentLine = new StringBuffer();
+		if(indentDepth < indents.length)
+			return indents[indentDepth];
+		StringBuilder indentLine = new StringBuilder();
 
 		for (int indentIndex = 0, indentCount = indentDepth+1; indentIndex < indentCount; indentIndex++) {
 			indentLine.append('\t');
@@ -187,7 +185,9 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			boolean simpleMatch = true;
 			for(int i=1;i<str.length();i++) {
 				c = str.charAt(i);
-				if(!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+				// Also allow the ASCII punctuation in NameChar, for e.g. xml:lang and http-equiv.
+				if(!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+						c == '-' || c == '.' || c == '_' || c == ':')) {
 					simpleMatch = false;
 					break;
 				}
@@ -431,7 +431,9 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			tagBuffer.append('\n');
 			tagBuffer.append(indentString(indentDepth));
 		}
-		tagBuffer.append(CloseTag(name));
+		if (!isEmptyElement(name)) {
+			tagBuffer.append("</").append(name).append('>');
+		}
 		if (newlineClose(name)) {
 			tagBuffer.append('\n');
 			tagBuffer.append(indentString(indentDepth));
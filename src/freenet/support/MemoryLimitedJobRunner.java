@@ -127,6 +127,10 @@ public class MemoryLimitedJobRunner {
         shutdown = true;
     }
     
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+    
     public synchronized void waitForShutdown() {
         shutdown = true;
         while(runningThreads > 0) {
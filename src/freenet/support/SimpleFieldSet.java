@@ -1,9 +1,7 @@
 package freenet.support;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -11,7 +9,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -113,8 +110,14 @@ public class SimpleFieldSet {
     /** Copy constructor */
     public SimpleFieldSet(SimpleFieldSet sfs){
     	values = new HashMap<String, String>(sfs.values);
-    	if(sfs.subsets != null)
+    	if(sfs.subsets != null) {
     		subsets = new HashMap<String, SimpleFieldSet>(sfs.subsets);
+    		if(sfs instanceof ReadOnly) {
+    			// The copy must be writable all the way down.
+    			for(Map.Entry<String, SimpleFieldSet> entry : subsets.entrySet())
+    				entry.setValue(new SimpleFieldSet(entry.getValue()));
+    		}
+    	}
     	this.shortLived = false; // it's been copied!
     	this.header = sfs.header;
     	this.endMarker = sfs.endMarker;
@@ -167,6 +170,34 @@ public class SimpleFieldSet {
     	read(Readers.fromStringArray(content), allowMultiple, allowBase64);
     }
     
+    /**
+     * Parse a SimpleFieldSet from bytes in the standard format, as UTF-8. Much faster than reading
+     * it a line at a time, e.g. for FCP messages which have already been read into a buffer.
+     * @param buf The buffer. Anything after the end marker is ignored.
+     * @param allowMultiple If {@code true}, multiple lines with the same field name will be
+     * combined; if {@code false}, the first one is kept.
+     * @param shortLived If {@code false}, strings will be interned to ensure that they use as
+     * little memory as possible.
+     * @throws EOFException If there is nothing but empty lines.
+     */
+    public SimpleFieldSet(byte[] buf, int offset, int length, boolean allowMultiple, boolean shortLived, boolean allowBase64) throws IOException {
+    	this(shortLived);
+    	read(buf, offset, length, allowMultiple, allowBase64);
+    }
+
+    /**
+     * Parse a SimpleFieldSet from bytes, as {@link #SimpleFieldSet(byte[], int, int, boolean, 
+     * boolean, boolean)}, into a read-only SimpleFieldSet which doesn't lock when it is read. 
+     * Only for short-lived instances which are only used by one thread at a time, e.g. a 
+     * message which is parsed, looked at and discarded. Anything which would change it throws
+     * UnsupportedOperationException.
+     */
+    public static SimpleFieldSet readOnly(byte[] buf, int offset, int length, boolean allowMultiple, boolean allowBase64) throws IOException {
+    	SimpleFieldSet fs = new ReadOnly();
+    	fs.read(buf, offset, length, allowMultiple, allowBase64);
+    	return fs;
+    }
+
     /**
      * @see #read(LineReader, int, int, boolean, boolean)
      */
@@ -240,6 +271,98 @@ public class SimpleFieldSet {
 		}
 	}
 
+	/** @see #read(LineReader, int, int, boolean, boolean, boolean) */
+	private void read(byte[] buf, int offset, int length, boolean allowMultiple, boolean allowBase64) throws IOException {
+		int end = offset + length;
+		boolean firstLine = true;
+		boolean headerSection = true;
+		List<String> headers = null;
+
+		for(int i = offset, next; ; i = next) {
+			if (i >= end) {
+				if (firstLine) throw new EOFException();
+				Logger.error(this, "No end marker");
+				break;
+			}
+			int lineEnd = i;
+			int separator = -1;
+			for(; lineEnd < end && buf[lineEnd] != '\n'; lineEnd++) {
+				if(separator < 0 && buf[lineEnd] == KEYVALUE_SEPARATOR_CHAR) separator = lineEnd;
+			}
+			next = lineEnd + 1;
+			if (lineEnd > i && buf[lineEnd-1] == '\r') lineEnd--;
+			if (lineEnd == i) continue; // ignore
+			firstLine = false;
+
+			if (buf[i] == '#') {
+				if (headerSection) {
+					if (headers == null) headers = new ArrayList<String>();
+					headers.add(new String(buf, i+1, lineEnd-i-1, StandardCharsets.UTF_8).trim());
+				}
+				continue;
+			}
+			if (headerSection) {
+				if (headers != null) { this.header = headers.toArray(new String[headers.size()]); }
+				headerSection = false;
+			}
+			if (separator < 0 || separator >= lineEnd) {
+				endMarker = new String(buf, i, lineEnd-i, StandardCharsets.UTF_8);
+				break;
+			}
+			String after;
+			if (allowBase64 && separator+1 < lineEnd && buf[separator+1] == KEYVALUE_SEPARATOR_CHAR) {
+				try {
+					after = new String(buf, separator+2, lineEnd-separator-2, StandardCharsets.UTF_8);
+					after = Base64.decodeUTF8(after.replaceAll("\\s", ""));
+				} catch (IllegalBase64Exception e) {
+					throw new IOException("Unable to decode UTF8, = should not be allowed as first character of a value");
+				}
+			} else {
+				after = new String(buf, separator+1, lineEnd-separator-1, StandardCharsets.UTF_8);
+			}
+			if(!shortLived) after = after.intern();
+			// Trim the key, like String.trim().
+			int keyStart = i;
+			int keyEnd = separator;
+			while (keyStart < keyEnd && (buf[keyStart] & 0xFF) <= ' ') keyStart++;
+			while (keyEnd > keyStart && (buf[keyEnd-1] & 0xFF) <= ' ') keyEnd--;
+			putRead(buf, keyStart, keyEnd, after, allowMultiple);
+		}
+	}
+
+	/** Add a value read by read(byte[], ...), walking the tree without creating substrings of 
+	 * the key. As put(), the first value is kept if allowMultiple is false. */
+	private void putRead(byte[] buf, int keyStart, int keyEnd, String value, boolean allowMultiple) {
+		SimpleFieldSet fs = this;
+		int segment = keyStart;
+		for (int i = keyStart; i < keyEnd; i++) {
+			if (buf[i] != MULTI_LEVEL_CHAR) continue;
+			String before = new String(buf, segment, i-segment, StandardCharsets.UTF_8);
+			if (fs.subsets == null)
+				fs.subsets = new HashMap<String, SimpleFieldSet>();
+			SimpleFieldSet sub = fs.subsets.get(before);
+			if (sub == null) {
+				sub = fs.newSubset();
+				if (!shortLived) before = before.intern();
+				fs.subsets.put(before, sub);
+			}
+			fs = sub;
+			segment = i+1;
+		}
+		String key = new String(buf, segment, keyEnd-segment, StandardCharsets.UTF_8);
+		if (!shortLived) key = key.intern();
+		String old = fs.values.get(key);
+		if (old == null)
+			fs.values.put(key, value);
+		else if (allowMultiple)
+			fs.values.put(key, old + MULTI_VALUE_CHAR + value);
+	}
+
+	/** Create an empty subset, of the same kind as this SimpleFieldSet. */
+	SimpleFieldSet newSubset() {
+		return new SimpleFieldSet(shortLived, alwaysUseBase64);
+	}
+
 	/** Get a value for a key as a String. This may be a top level value, or we will traverse the 
 	 * tree, so can be used for any key=value or subset.subset.key=value etc.
 	 * @param key The key to look up.
@@ -247,6 +370,10 @@ public class SimpleFieldSet {
 	 * key=value pair.
 	 */
     public synchronized String get(String key) {
+    	return getUnlocked(key);
+    }
+
+    final String getUnlocked(String key) {
    		int idx = key.indexOf(MULTI_LEVEL_CHAR);
    		if(idx == -1)
    			return values.get(key);
@@ -636,6 +763,10 @@ public class SimpleFieldSet {
     }
 
 	public synchronized SimpleFieldSet subset(String key) {
+		return subsetUnlocked(key);
+	}
+
+	final SimpleFieldSet subsetUnlocked(String key) {
 		if(subsets == null) return null;
 		int idx = key.indexOf(MULTI_LEVEL_CHAR);
 		if(idx == -1)
@@ -886,6 +1017,10 @@ public class SimpleFieldSet {
 
 	/** Is this SimpleFieldSet empty? */
 	public synchronized boolean isEmpty() {
+		return isEmptyUnlocked();
+	}
+
+	final boolean isEmptyUnlocked() {
 		return values.isEmpty() && (subsets == null || subsets.isEmpty());
 	}
 
@@ -971,6 +1106,18 @@ public class SimpleFieldSet {
 	    }
 	}
 
+    /** Get the SimpleFieldSet as UTF-8, exactly as toString().getBytes(UTF_8) would, but without
+     * building the String and then encoding it. */
+    public byte[] toByteArray() {
+        ByteWriter bw = new ByteWriter(null, 512);
+        try {
+            writeTo(bw);
+        } catch (IOException e) {
+            Logger.error(this, "WTF?!: "+e+" in toByteArray()!", e);
+        }
+        return bw.toByteArray();
+    }
+
     /** Write to the given OutputStream (as UTF-8) and flush it. */
     public void writeTo(OutputStream os) throws IOException {
         writeTo(os, 4096);
@@ -984,17 +1131,126 @@ public class SimpleFieldSet {
 	
 	/** Write to the given OutputStream and flush it. */
     public void writeTo(OutputStream os, int bufferSize) throws IOException {
-        BufferedOutputStream bos = null;
-        OutputStreamWriter osw = null;
-        BufferedWriter bw = null;
-        
-        bos = new BufferedOutputStream(os, bufferSize);
-        osw = new OutputStreamWriter(bos, StandardCharsets.UTF_8);
-        bw = new BufferedWriter(osw);
+        ByteWriter bw = new ByteWriter(os, bufferSize);
         writeTo(bw);
         bw.flush();
     }
 
+    /** Encodes to UTF-8 straight into a byte array, for writing a SimpleFieldSet without a 
+     * chain of Writer's and their char buffers. Almost everything we write is ASCII, which is 
+     * simply copied. If there is a sink, the buffer is written to it when it is full, otherwise
+     * it grows. */
+    private static final class ByteWriter extends Writer {
+
+        private final OutputStream sink;
+        private byte[] buf;
+        private int count;
+
+        ByteWriter(OutputStream sink, int bufferSize) {
+            this.sink = sink;
+            buf = new byte[Math.max(bufferSize, 16)];
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            ensure(4);
+            char ch = (char) c;
+            if(ch < 0x80)
+                buf[count++] = (byte) ch;
+            else
+                encode(ch, (char) 0);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int end = off + len;
+            while(off < end) {
+                // At most 3 bytes per char, or 4 for a surrogate pair which may end just past
+                // the chunk.
+                ensure(Math.min(end - off, 1024) * 3 + 1);
+                int chunkEnd = Math.min(end, off + (buf.length - count - 1) / 3);
+                byte[] b = buf;
+                int pos = count;
+                int i = off;
+                for(; i < chunkEnd; i++) {
+                    char ch = str.charAt(i);
+                    if(ch < 0x80) {
+                        b[pos++] = (byte) ch;
+                    } else {
+                        count = pos;
+                        if(encode(ch, i + 1 < end ? str.charAt(i + 1) : 0)) i++;
+                        pos = count;
+                    }
+                }
+                count = pos;
+                off = i;
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            write(new String(cbuf, off, len), 0, len);
+        }
+
+        /** Encode a non-ASCII char, and the next char if they are a surrogate pair. Unpaired 
+         * surrogates are written as '?', as String.getBytes() does. There must be at least 4
+         * bytes free.
+         * @return True if the next char was used. */
+        private boolean encode(char ch, char next) {
+            if(ch < 0x800) {
+                buf[count++] = (byte) (0xc0 | (ch >> 6));
+                buf[count++] = (byte) (0x80 | (ch & 0x3f));
+            } else if(Character.isSurrogate(ch)) {
+                if(Character.isHighSurrogate(ch) && Character.isLowSurrogate(next)) {
+                    int cp = Character.toCodePoint(ch, next);
+                    buf[count++] = (byte) (0xf0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                    return true;
+                }
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xe0 | (ch >> 12));
+                buf[count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (ch & 0x3f));
+            }
+            return false;
+        }
+
+        /** Make room for at least min(bytes, buffer size) more bytes, and at least 4. */
+        private void ensure(int bytes) throws IOException {
+            bytes = Math.max(bytes, 4);
+            if(buf.length - count >= Math.min(bytes, buf.length)) return;
+            if(sink != null) {
+                sink.write(buf, 0, count);
+                count = 0;
+            } else {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(sink == null) return;
+            if(count > 0) {
+                sink.write(buf, 0, count);
+                count = 0;
+            }
+            sink.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
     /** Get an integer value for the given key. This may be at the top level or lower in the tree,
      * it's just key=value. (Value in decimal)
      * @param key The key to fetch.
@@ -1377,4 +1633,91 @@ public class SimpleFieldSet {
 	public void put(String key, String[] values) {
 	    putSingle(key, unsplit(values));
 	}
+
+	/** A SimpleFieldSet which can't be changed once it has been read, and so doesn't need to 
+	 * lock when it is read. See readOnly(). */
+	private static final class ReadOnly extends SimpleFieldSet {
+
+		ReadOnly() {
+			super(true);
+		}
+
+		@Override
+		SimpleFieldSet newSubset() {
+			return new ReadOnly();
+		}
+
+		@Override
+		public String get(String key) {
+			return getUnlocked(key);
+		}
+
+		@Override
+		public SimpleFieldSet subset(String key) {
+			return subsetUnlocked(key);
+		}
+
+		@Override
+		public SimpleFieldSet getSubset(String key) throws FSParseException {
+			SimpleFieldSet fs = subsetUnlocked(key);
+			if(fs == null) throw new FSParseException("No such subset "+key);
+			return fs;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return isEmptyUnlocked();
+		}
+
+		@Override
+		public void putAllOverwrite(SimpleFieldSet fs) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void putSingle(String key, String value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void putAppend(String key, String value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void putOverwrite(String key, String value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void put(String key, boolean b) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void put(String key, SimpleFieldSet fs) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void removeValue(String key) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void removeSubset(String key) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setEndMarker(String s) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setHeader(String... headers) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
 }
@@ -122,6 +122,11 @@ public class Bzip2Compressor extends AbstractCompressor {
 		}
 	}
 
+	@Override
+	public InputStream decompressingInputStream(InputStream input) throws IOException {
+		return new BZip2CompressorInputStream(HeaderStreams.augInput(BZ_HEADER, input));
+	}
+
 	@Override
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 		// Didn't work with Inflater.
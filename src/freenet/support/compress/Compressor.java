@@ -28,7 +28,9 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// Not tried by default, see FramedCompressor.
+		LZMA_FRAMED("LZMA_FRAMED", new FramedCompressor(LZMA_NEW), (short)4);
 
 		public final String name;
 		public final Compressor compressor;
@@ -97,17 +99,19 @@ public interface Compressor {
 		public static COMPRESSOR_TYPE[] getCompressorsArray(String compressordescriptor) throws InvalidCompressionCodecException {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[values.length-1];
-				int x = 0;
+				ArrayList<COMPRESSOR_TYPE> ret = new ArrayList<COMPRESSOR_TYPE>(values.length);
 				for(COMPRESSOR_TYPE v: values) {
 					// LZMA should no longer be used. Use LZMA_NEW instead.
 					if(v == LZMA) {
 						logLzmaOldRemovedWarning();
 						continue;
 					}
-					ret[x++] = v;
+					// Older nodes can't decode framed data, so only use it if asked to.
+					if(v.compressor instanceof FramedCompressor)
+						continue;
+					ret.add(v);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
@@ -184,6 +188,11 @@ public interface Compressor {
 			return compressor.decompress(dbuf, i, j, output);
 		}
 
+		@Override
+		public InputStream decompressingInputStream(InputStream input) throws IOException {
+			return compressor.decompressingInputStream(input);
+		}
+
 		public static int countCompressors() {
 			return values.length;
 		}
@@ -249,4 +258,15 @@ public interface Compressor {
 	 * @returns The number of bytes actually written.
 	 */
 	int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException;
+
+	/**
+	 * Wrap a stream so that reading from it decompresses the data, without another thread.
+	 * The caller must enforce any limit on the decompressed size.
+	 * @param input The compressed data.
+	 * @return A stream of decompressed data, or null if this codec can only decompress via
+	 * {@link #decompress(InputStream, OutputStream, long, long)}.
+	 */
+	default InputStream decompressingInputStream(InputStream input) throws IOException {
+		return null;
+	}
 }
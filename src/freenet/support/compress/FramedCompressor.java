@@ -0,0 +1,384 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+/**
+ * Splits the data into frames which are compressed independently by another codec, on a
+ * thread pool, so that big inserts are not limited to one core. Decompression is parallel too.
+ *
+ * Format:
+ * <pre>
+ * int    MAGIC
+ * short  VERSION
+ * short  Metadata ID of the codec used for each frame
+ * int    Maximum uncompressed frame size
+ * then for each frame:
+ *   int  Compressed length (greater than 0)
+ *   int  Uncompressed length
+ *   byte[] Compressed frame
+ * int    0 (end of frames)
+ * </pre>
+ * The frame headers form an index: the decompressor can read the next few frames without
+ * decompressing them and hand them all to the pool at once. Decoders reject versions they
+ * don't know, and the codec is named in the header rather than implied, so we can change
+ * either later without needing another COMPRESSOR_TYPE.
+ *
+ * Not used by default: nodes before this codec was added cannot decode it, so it must be
+ * asked for explicitly in the compressor descriptor.
+ */
+public class FramedCompressor extends AbstractCompressor {
+
+	static final int MAGIC = 0xF4A3ED5C;
+	static final short VERSION = 1;
+	/** Big enough that the 1MB LZMA dictionary is not much worse off than for a single stream. */
+	static final int DEFAULT_FRAME_SIZE = 4*1024*1024;
+	/** Reject frames bigger than this when decoding, so corrupt headers can't use lots of memory.
+	 * The same as the frames we write. */
+	static final int MAX_FRAME_SIZE = DEFAULT_FRAME_SIZE;
+	static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+	/** Most bytes of frame buffers, input plus output, that one stream holds at once. Does not
+	 * depend on the number of cores, so a stream uses the same memory on any machine. */
+	static final int MAX_BYTES_IN_FLIGHT = 32*1024*1024;
+	/** Memory used by an inner encoder, on top of its buffers: LZMA with a 1MB dictionary. */
+	private static final int ENCODER_MEMORY = 16*1024*1024;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Shared by all streams. Its threads exit when they have been idle for a while, so it holds
+	 * nothing between inserts, and RealCompressor shuts it down with the node. */
+	private static ThreadPoolExecutor executor;
+
+	private final COMPRESSOR_TYPE inner;
+	private final int frameSize;
+	private final int maxBytesInFlight;
+
+	FramedCompressor(COMPRESSOR_TYPE inner) {
+		this(inner, DEFAULT_FRAME_SIZE, MAX_BYTES_IN_FLIGHT);
+	}
+
+	FramedCompressor(COMPRESSOR_TYPE inner, int frameSize, int maxBytesInFlight) {
+		if(frameSize <= 0 || frameSize > MAX_FRAME_SIZE)
+			throw new IllegalArgumentException("Invalid frame size "+frameSize);
+		this.inner = inner;
+		this.frameSize = frameSize;
+		this.maxBytesInFlight = maxBytesInFlight;
+	}
+
+	/** A frame handed to the pool, and the bytes of buffers it holds until we have written it. */
+	private static class Frame<T> {
+		final Future<T> future;
+		final int uncompressedLength;
+		final int bytes;
+		Frame(Future<T> future, int uncompressedLength, int bytes) {
+			this.future = future;
+			this.uncompressedLength = uncompressedLength;
+			this.bytes = bytes;
+		}
+	}
+
+	/** Decompressed data for one frame, written in place into an array of exactly the right
+	 * size. */
+	private static class FrameOutputStream extends OutputStream {
+		final byte[] buf;
+		int length;
+		FrameOutputStream(int size) {
+			buf = new byte[size];
+		}
+		@Override
+		public void write(int b) throws IOException {
+			if(length == buf.length) throw new InvalidCompressedDataException("Frame too long");
+			buf[length++] = (byte) b;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(len > buf.length - length) throw new InvalidCompressedDataException("Frame too long");
+			System.arraycopy(b, off, buf, length, len);
+			length += len;
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if(executor == null) {
+			executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new RealCompressor.CompressorThreadFactory());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/** Stop the frame threads. A later stream starts a new pool. */
+	static synchronized void shutdown() {
+		if(executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/** Generous upper bound on the compressed size of a frame: the codecs we use expand
+	 * incompressible data by far less than this. Bigger frame headers are corrupt, and must not
+	 * be allowed to allocate a huge buffer. */
+	static int maxCompressedFrameSize(int maxFrameSize) {
+		return maxFrameSize + maxFrameSize / 8 + 64*1024;
+	}
+
+	/** The bytes a compressing stream counts against its budget for a frame: the input, and
+	 * the output which is rarely any bigger. */
+	private static int compressBytes(int length) {
+		return length * 2;
+	}
+
+	/** Rough upper bound on the memory used compressing one stream: buffers for the frames in
+	 * flight, plus an inner encoder for each of them. */
+	public static long maxMemoryUsage() {
+		int frames = Math.max(1, MAX_BYTES_IN_FLIGHT / compressBytes(DEFAULT_FRAME_SIZE));
+		return (long)MAX_BYTES_IN_FLIGHT + (long)frames * ENCODER_MEMORY;
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength)
+			throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		try (InputStream is = data.getInputStream();
+			 OutputStream os = output.getOutputStream()) {
+			compress(is, os, maxReadLength, maxWriteLength);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength,
+						 long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage)
+			throws IOException, CompressionRatioException {
+		if(maxReadLength < 0)
+			throw new IllegalArgumentException();
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.writeInt(MAGIC);
+		dos.writeShort(VERSION);
+		dos.writeShort(inner.metadataID);
+		dos.writeInt(frameSize);
+		long read = 0;
+		long written = 12;
+		boolean compressionEffectShouldBeChecked = minimumCompressionPercentage != 0;
+		ArrayDeque<Frame<ByteArrayOutputStream>> inFlight = new ArrayDeque<Frame<ByteArrayOutputStream>>();
+		int bytesInFlight = 0;
+		ExecutorService executor = getExecutor();
+		try {
+			while(true) {
+				int length = (int) Math.min(frameSize, maxReadLength - read);
+				// Wait for earlier frames before reading another one, if it would take us over
+				// the budget.
+				while(!inFlight.isEmpty() && bytesInFlight + compressBytes(length) > maxBytesInFlight) {
+					Frame<ByteArrayOutputStream> done = inFlight.removeFirst();
+					bytesInFlight -= done.bytes;
+					written += writeFrame(dos, done);
+				}
+				if(written > maxWriteLength)
+					throw new CompressionOutputSizeException();
+				final byte[] frame = readFrame(is, length);
+				if(frame == null) break;
+				read += frame.length;
+				Future<ByteArrayOutputStream> future = executor.submit(new Callable<ByteArrayOutputStream>() {
+
+					@Override
+					public ByteArrayOutputStream call() throws IOException {
+						ByteArrayOutputStream baos = new ByteArrayOutputStream(frame.length / 2);
+						inner.compress(new ByteArrayInputStream(frame), baos, frame.length, Long.MAX_VALUE);
+						return baos;
+					}
+
+				});
+				inFlight.add(new Frame<ByteArrayOutputStream>(future, frame.length, compressBytes(frame.length)));
+				bytesInFlight += compressBytes(frame.length);
+				if(compressionEffectShouldBeChecked && read >= amountOfDataToCheckCompressionRatio) {
+					// Wait for what we have read so far, so we compare like with like.
+					while(!inFlight.isEmpty())
+						written += writeFrame(dos, inFlight.removeFirst());
+					bytesInFlight = 0;
+					checkCompressionEffect(read, written, minimumCompressionPercentage);
+					compressionEffectShouldBeChecked = false;
+				}
+				if(frame.length < length) break;
+			}
+			while(!inFlight.isEmpty())
+				written += writeFrame(dos, inFlight.removeFirst());
+			dos.writeInt(0);
+			written += 4;
+			if(written > maxWriteLength)
+				throw new CompressionOutputSizeException();
+		} finally {
+			for(Frame<ByteArrayOutputStream> f : inFlight)
+				f.future.cancel(false);
+		}
+		dos.flush();
+		if(logMINOR)
+			Logger.minor(this, "Read "+read+" written "+written+" using "+inner);
+		return written;
+	}
+
+	/** Read up to length bytes.
+	 * @return The data, shorter than length only at the end of the stream, or null if there is
+	 * nothing left to read. */
+	private static byte[] readFrame(InputStream is, int length) throws IOException {
+		if(length == 0) return null;
+		byte[] buf = new byte[length];
+		int offset = 0;
+		while(offset < length) {
+			int x = is.read(buf, offset, length - offset);
+			if(x <= -1) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			offset += x;
+		}
+		if(offset == 0) return null;
+		if(offset == length) return buf;
+		byte[] ret = new byte[offset];
+		System.arraycopy(buf, 0, ret, 0, offset);
+		return ret;
+	}
+
+	private static long writeFrame(DataOutputStream dos, Frame<ByteArrayOutputStream> frame) throws IOException {
+		ByteArrayOutputStream compressed = await(frame.future);
+		dos.writeInt(compressed.size());
+		dos.writeInt(frame.uncompressedLength);
+		compressed.writeTo(dos);
+		return 8 + compressed.size();
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if(t instanceof IOException) throw (IOException) t;
+			if(t instanceof RuntimeException) throw (RuntimeException) t;
+			if(t instanceof Error) throw (Error) t;
+			throw new IOException(t);
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		if(dis.readInt() != MAGIC)
+			throw new InvalidCompressedDataException("Not framed data");
+		short version = dis.readShort();
+		if(version != VERSION)
+			throw new InvalidCompressedDataException("Unknown framed compression version "+version);
+		short codecID = dis.readShort();
+		final COMPRESSOR_TYPE codec = COMPRESSOR_TYPE.getCompressorByMetadataID(codecID);
+		if(codec == null || codec.compressor instanceof FramedCompressor)
+			throw new InvalidCompressedDataException("Unknown or invalid codec in frame: "+codecID);
+		int maxFrameSize = dis.readInt();
+		if(maxFrameSize <= 0 || maxFrameSize > MAX_FRAME_SIZE)
+			throw new InvalidCompressedDataException("Invalid frame size "+maxFrameSize);
+		int maxCompressedLength = maxCompressedFrameSize(maxFrameSize);
+		long total = 0;
+		ArrayDeque<Frame<byte[]>> inFlight = new ArrayDeque<Frame<byte[]>>();
+		int bytesInFlight = 0;
+		ExecutorService executor = getExecutor();
+		try {
+			while(true) {
+				int compressedLength = dis.readInt();
+				if(compressedLength == 0) break;
+				final int uncompressedLength = dis.readInt();
+				if(compressedLength < 0 || compressedLength > maxCompressedLength ||
+						uncompressedLength <= 0 || uncompressedLength > maxFrameSize)
+					throw new InvalidCompressedDataException("Invalid frame header");
+				total += uncompressedLength;
+				if(total > maxLength)
+					throw new CompressionOutputSizeException(total);
+				// Write out earlier frames before allocating this one, if it would take us over
+				// the budget.
+				int bytes = compressedLength + uncompressedLength;
+				while(!inFlight.isEmpty() && bytesInFlight + bytes > maxBytesInFlight) {
+					Frame<byte[]> done = inFlight.removeFirst();
+					bytesInFlight -= done.bytes;
+					os.write(await(done.future));
+				}
+				final byte[] compressed = new byte[compressedLength];
+				dis.readFully(compressed);
+				Future<byte[]> future = executor.submit(new Callable<byte[]>() {
+
+					@Override
+					public byte[] call() throws IOException {
+						FrameOutputStream out = new FrameOutputStream(uncompressedLength);
+						codec.decompress(new ByteArrayInputStream(compressed), out, uncompressedLength, -1);
+						if(out.length != uncompressedLength)
+							throw new InvalidCompressedDataException("Frame decompressed to "+out.length+" bytes, expected "+uncompressedLength);
+						return out.buf;
+					}
+
+				});
+				inFlight.add(new Frame<byte[]>(future, uncompressedLength, bytes));
+				bytesInFlight += bytes;
+			}
+			while(!inFlight.isEmpty())
+				os.write(await(inFlight.removeFirst().future));
+		} catch (EOFException e) {
+			throw new InvalidCompressedDataException("Truncated framed data");
+		} finally {
+			for(Frame<byte[]> f : inFlight)
+				f.future.cancel(false);
+		}
+		return total;
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		try {
+			decompress(bais, baos, output.length, -1);
+		} catch (CompressionOutputSizeException e) {
+			throw e;
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, buf.length);
+		return buf.length;
+	}
+
+}
@@ -126,6 +126,11 @@ public class GzipCompressor extends AbstractCompressor {
 		}
 	}
 
+	@Override
+	public InputStream decompressingInputStream(InputStream input) throws IOException {
+		return new GZIPInputStream(input, 32768);
+	}
+
 	@Override
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 		// Didn't work with Inflater.
@@ -107,6 +107,7 @@ public class RealCompressor {
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
+        FramedCompressor.shutdown();
     }
 
     public static class CompressorThreadFactory implements ThreadFactory {
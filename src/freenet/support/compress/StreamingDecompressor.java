@@ -0,0 +1,161 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import freenet.support.Logger;
+import freenet.support.io.HandoffPipe;
+
+/**
+ * Pull-based replacement for DecompressorThreadManager. Each decompressor wraps the stream
+ * before it, so the caller's reads drive the whole chain on its own thread, with no pipes and
+ * no extra copies. Codecs that can only decompress by pushing into an OutputStream (LZMA) still
+ * get a thread, but it hands over large buffers through a HandoffPipe rather than going through
+ * a PipedInputStream.
+ *
+ * Errors are thrown from read(). Reading more than maxLen bytes from any stage throws a
+ * CompressionOutputSizeException.
+ */
+public class StreamingDecompressor {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(StreamingDecompressor.class);
+	}
+
+	private static int counter;
+	private static synchronized int counter() {
+		return counter++;
+	}
+
+	private StreamingDecompressor() {
+		// Static methods only.
+	}
+
+	/**
+	 * @param input The compressed data.
+	 * @param decompressors The decompressors to apply, in the same order as for
+	 * DecompressorThreadManager: the last one is applied first. Not modified.
+	 * @param maxLen The maximum number of bytes to extract at each stage.
+	 * @return A stream of the decompressed data. Closing it closes input.
+	 */
+	public static InputStream decompress(InputStream input, List<? extends Compressor> decompressors, long maxLen) {
+		InputStream is = input;
+		for(int i=decompressors.size()-1;i>=0;i--)
+			is = new Stage(decompressors.get(i), is, maxLen);
+		return is;
+	}
+
+	private static InputStream pushThread(final Compressor compressor, final InputStream source, final long maxLen) {
+		final HandoffPipe pipe = new HandoffPipe();
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				OutputStream os = pipe.getOutputStream();
+				try (InputStream is = source) {
+					compressor.decompress(is, os, maxLen, maxLen * 4);
+					os.close();
+				} catch (Throwable t) {
+					if(logMINOR) Logger.minor(this, "Decompressor failed: "+t, t);
+					pipe.abort(t);
+				}
+			}
+
+		}, "DecompressorThread"+counter());
+		t.setDaemon(true);
+		t.start();
+		return pipe.getInputStream();
+	}
+
+	/** One decompressor. The decompressing stream is only created on the first read, because
+	 * creating it may read the header, and the caller usually hasn't started writing yet.
+	 * Enforces the size limit. At the end of the decompressed data, reads any trailing data
+	 * from the stage below, so a writer at the far end of the chain isn't left blocked. */
+	private static class Stage extends InputStream {
+
+		private final Compressor compressor;
+		private final InputStream source;
+		private final long maxLen;
+		private InputStream in;
+		/** If true, a push thread reads and closes the source. */
+		private boolean pushing;
+		private long read;
+		private boolean closed;
+
+		Stage(Compressor compressor, InputStream source, long maxLen) {
+			this.compressor = compressor;
+			this.source = source;
+			this.maxLen = maxLen;
+		}
+
+		private void start() throws IOException {
+			if(in != null) return;
+			if(closed) throw new IOException("Stream closed");
+			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
+			in = compressor.decompressingInputStream(source);
+			if(in == null) {
+				in = pushThread(compressor, source, maxLen);
+				pushing = true;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			start();
+			int x = in.read();
+			if(x == -1) {
+				drain();
+				return -1;
+			}
+			count(1);
+			return x;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			start();
+			int x = in.read(buf, offset, length);
+			if(x == -1) {
+				drain();
+				return -1;
+			}
+			count(x);
+			return x;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in == null ? 0 : in.available();
+		}
+
+		private void count(int x) throws CompressionOutputSizeException {
+			read += x;
+			if(read > maxLen)
+				throw new CompressionOutputSizeException(read);
+		}
+
+		private void drain() throws IOException {
+			if(pushing) return;
+			byte[] buf = new byte[4096];
+			while(source.read(buf) >= 0);
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			try {
+				if(in != null) in.close();
+			} finally {
+				if(!pushing) source.close();
+			}
+		}
+
+	}
+
+}
@@ -2,13 +2,16 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
@@ -329,6 +332,85 @@ public class BucketTools {
 		}
 	}
 
+	/**
+	 * @return The file holding the bucket's data, if it is kept unencrypted and unpadded in a
+	 * single file which we can read directly, otherwise null. Always null for a TempBucket,
+	 * since it can move its data to another bucket while the file is being read.
+	 */
+	public static File getPlainFile(Bucket bucket) {
+		while(true) {
+			if(bucket instanceof NoFreeBucket)
+				bucket = ((NoFreeBucket) bucket).proxy;
+			else if(bucket instanceof DelayedFreeRandomAccessBucket)
+				bucket = ((DelayedFreeRandomAccessBucket) bucket).getUnderlying();
+			else if(bucket instanceof DelayedFreeBucket)
+				bucket = ((DelayedFreeBucket) bucket).getUnderlying();
+			else if(bucket instanceof BaseFileBucket)
+				return ((BaseFileBucket) bucket).getFile();
+			else
+				return null;
+		}
+	}
+
+	/**
+	 * Write part of a bucket to a stream. If the bucket is a plain file, it is read through a
+	 * FileChannel, and if we have a channel for the destination too, FileChannel.transferTo()
+	 * sends it without copying it through the Java heap. Otherwise the data is copied through
+	 * the caller's buffer, so sending a large file doesn't allocate anything per block.
+	 * @param offset The offset of the first byte to write.
+	 * @param length The number of bytes to write.
+	 * @param channel A blocking channel writing to the same place as os, or null. os is
+	 * flushed before it is used.
+	 * @param buf The buffer to copy through if we can't transfer directly.
+	 * @throws EOFException If the bucket is shorter than offset + length.
+	 */
+	public static void copyTo(Bucket bucket, long offset, long length, OutputStream os, WritableByteChannel channel, byte[] buf) throws IOException {
+		if(offset < 0 || length < 0) throw new IllegalArgumentException();
+		File file = getPlainFile(bucket);
+		if(file != null) {
+			FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				if(fc.size() < offset + length) throw new EOFException();
+				if(channel != null) {
+					os.flush();
+					while(length > 0) {
+						long moved = fc.transferTo(offset, length, channel);
+						if(moved <= 0) throw new IOException("Unable to transfer "+file+" at "+offset);
+						offset += moved;
+						length -= moved;
+					}
+				} else {
+					ByteBuffer bb = ByteBuffer.wrap(buf);
+					while(length > 0) {
+						bb.clear();
+						bb.limit((int) Math.min(buf.length, length));
+						int read = fc.read(bb, offset);
+						if(read < 0) throw new EOFException();
+						os.write(buf, 0, read);
+						offset += read;
+						length -= read;
+					}
+				}
+			} finally {
+				fc.close();
+			}
+		} else {
+			InputStream is = bucket.getInputStreamUnbuffered();
+			try {
+				FileUtil.skipFully(is, offset);
+				while(length > 0) {
+					int read = is.read(buf, 0, (int) Math.min(buf.length, length));
+					if(read < 0) throw new EOFException();
+					os.write(buf, 0, read);
+					length -= read;
+				}
+			} finally {
+				is.close();
+			}
+		}
+		os.flush();
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
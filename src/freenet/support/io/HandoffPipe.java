@@ -0,0 +1,227 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * A pipe between one writer thread and one reader thread, which hands over whole buffers rather
+ * than copying single bytes through a ring like PipedInputStream. A fixed set of buffers is
+ * reused, so memory use is bounded and there is no garbage per write. Unlike
+ * PipedInputStream, the reader is woken as soon as a buffer is ready, and does not poll.
+ *
+ * The writer can pass an error to the reader with abort(), e.g. a decompressor failing; the
+ * reader will then throw it, or an IOException wrapping it.
+ */
+public class HandoffPipe {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64*1024;
+	public static final int DEFAULT_BUFFERS = 4;
+
+	private final ArrayDeque<Chunk> free;
+	private final ArrayDeque<Chunk> full;
+	private boolean writerClosed;
+	private boolean readerClosed;
+	private Throwable error;
+	private final Output output;
+	private final Input input;
+
+	private static class Chunk {
+		final byte[] buf;
+		int length;
+		int offset;
+		Chunk(int size) {
+			buf = new byte[size];
+		}
+	}
+
+	public HandoffPipe() {
+		this(DEFAULT_BUFFER_SIZE, DEFAULT_BUFFERS);
+	}
+
+	public HandoffPipe(int bufferSize, int buffers) {
+		if(bufferSize <= 0 || buffers <= 0) throw new IllegalArgumentException();
+		free = new ArrayDeque<Chunk>(buffers);
+		full = new ArrayDeque<Chunk>(buffers);
+		for(int i=0;i<buffers;i++)
+			free.add(new Chunk(bufferSize));
+		output = new Output();
+		input = new Input();
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	/** Close the writing end with an error, which the reader will see instead of EOF. */
+	public synchronized void abort(Throwable t) {
+		if(error == null) error = t;
+		writerClosed = true;
+		notifyAll();
+	}
+
+	private synchronized Chunk takeFree() throws IOException {
+		boolean interrupted = false;
+		try {
+			while(free.isEmpty()) {
+				if(readerClosed) throw new IOException("Pipe closed");
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(readerClosed) throw new IOException("Pipe closed");
+			return free.removeFirst();
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void putFull(Chunk chunk) throws IOException {
+		if(readerClosed) {
+			free.add(chunk);
+			throw new IOException("Pipe closed");
+		}
+		chunk.offset = 0;
+		full.add(chunk);
+		notifyAll();
+	}
+
+	/** @return The next chunk to read, or null at the end of the stream. */
+	private synchronized Chunk takeFull() throws IOException {
+		while(full.isEmpty()) {
+			if(writerClosed) {
+				if(error == null) return null;
+				if(error instanceof IOException) throw (IOException) error;
+				throw new IOException(error);
+			}
+			if(readerClosed) throw new IOException("Pipe closed");
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		return full.removeFirst();
+	}
+
+	private synchronized void putFree(Chunk chunk) {
+		chunk.length = 0;
+		free.add(chunk);
+		notifyAll();
+	}
+
+	private class Output extends OutputStream {
+
+		private Chunk current;
+
+		@Override
+		public void write(int b) throws IOException {
+			if(current == null) current = takeFree();
+			current.buf[current.length++] = (byte) b;
+			if(current.length == current.buf.length) flushChunk();
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			while(length > 0) {
+				if(current == null) current = takeFree();
+				int x = Math.min(length, current.buf.length - current.length);
+				System.arraycopy(buf, offset, current.buf, current.length, x);
+				current.length += x;
+				offset += x;
+				length -= x;
+				if(current.length == current.buf.length) flushChunk();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if(current != null && current.length > 0) flushChunk();
+		}
+
+		private void flushChunk() throws IOException {
+			Chunk c = current;
+			current = null;
+			putFull(c);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				synchronized(HandoffPipe.this) {
+					if(writerClosed) return;
+				}
+				flush();
+			} finally {
+				synchronized(HandoffPipe.this) {
+					writerClosed = true;
+					HandoffPipe.this.notifyAll();
+				}
+			}
+		}
+
+	}
+
+	private class Input extends InputStream {
+
+		private Chunk current;
+
+		/** @return False at the end of the stream. */
+		private boolean ensureData() throws IOException {
+			if(current != null && current.offset < current.length) return true;
+			if(current != null) {
+				putFree(current);
+				current = null;
+			}
+			current = takeFull();
+			return current != null;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!ensureData()) return -1;
+			return current.buf[current.offset++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			if(!ensureData()) return -1;
+			int x = Math.min(length, current.length - current.offset);
+			System.arraycopy(current.buf, current.offset, buf, offset, x);
+			current.offset += x;
+			return x;
+		}
+
+		@Override
+		public int available() {
+			Chunk c = current;
+			return c == null ? 0 : c.length - c.offset;
+		}
+
+		@Override
+		public void close() {
+			synchronized(HandoffPipe.this) {
+				readerClosed = true;
+				if(current != null) free.add(current);
+				current = null;
+				free.addAll(full);
+				full.clear();
+				HandoffPipe.this.notifyAll();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,156 @@
+package freenet.client.async;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.Node;
+import freenet.node.RequestStarter;
+import freenet.node.SendableGet;
+import freenet.store.BlockMetadata;
+import freenet.support.Executor;
+
+public class DatastoreCheckerTest {
+
+	private Node node;
+	private DatastoreChecker checker;
+	private ClientContext context;
+
+	@Before
+	public void setUp() {
+		node = mock(Node.class);
+		// Lazy, and the executor does nothing, so the test runs the checker itself.
+		checker = new DatastoreChecker(node, true, mock(Executor.class), "test");
+		context = mock(ClientContext.class);
+		checker.setContext(context);
+	}
+
+	/** A key which maps to the given slot in the store. */
+	private Key makeKey(int slot) {
+		byte[] routingKey = new byte[32];
+		routingKey[0] = (byte) slot;
+		Key key = new NodeCHK(routingKey, (byte) 2);
+		when(node.getStoreSlotHint(key)).thenReturn((long) slot);
+		return key;
+	}
+
+	private KeyBlock inStore(Key key) {
+		KeyBlock block = mock(KeyBlock.class);
+		when(node.fetch(eq(key), anyBoolean(), anyBoolean(), anyBoolean(), anyBoolean(), any(BlockMetadata.class)))
+			.thenReturn(block);
+		return block;
+	}
+
+	private SendableGet makeGetter(short prio, ClientRequestScheduler sched, Key... keys) {
+		SendableGet getter = mock(SendableGet.class);
+		when(getter.listKeys()).thenReturn(keys);
+		when(getter.getPriorityClass()).thenReturn(prio);
+		when(getter.getScheduler(context)).thenReturn(sched);
+		return getter;
+	}
+
+	private void fetched(InOrder inOrder, Key key) {
+		inOrder.verify(node).fetch(eq(key), anyBoolean(), anyBoolean(), anyBoolean(), anyBoolean(), any(BlockMetadata.class));
+	}
+
+	@Test
+	public void testBatch() {
+		Key k1 = makeKey(30), k2 = makeKey(10), k3 = makeKey(20), k4 = makeKey(5);
+		KeyBlock block = inStore(k2);
+		ClientRequestScheduler schedA = mock(ClientRequestScheduler.class);
+		ClientRequestScheduler schedB = mock(ClientRequestScheduler.class);
+		SendableGet a = makeGetter(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, schedA, k1, k2);
+		SendableGet b = makeGetter(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, schedB, k2, k3);
+		SendableGet c = makeGetter(RequestStarter.PREFETCH_PRIORITY_CLASS, schedA, k4);
+		checker.queueRequest(c, null);
+		checker.queueRequest(a, null);
+		checker.queueRequest(b, null);
+		checker.run();
+
+		InOrder inOrder = inOrder(node, schedA, schedB);
+		// The higher priority requests are checked together, in slot order, each key once.
+		fetched(inOrder, k2);
+		fetched(inOrder, k3);
+		fetched(inOrder, k1);
+		inOrder.verify(schedA).finishRegister(new SendableGet[] { a }, false, true);
+		inOrder.verify(schedB).finishRegister(new SendableGet[] { b }, false, true);
+		// Then the lower priority one.
+		fetched(inOrder, k4);
+		inOrder.verify(schedA).finishRegister(new SendableGet[] { c }, false, true);
+		verify(node, times(4)).fetch(any(Key.class), anyBoolean(), anyBoolean(), anyBoolean(), anyBoolean(), any(BlockMetadata.class));
+
+		// Both requests are told about the shared key.
+		verify(schedA).tripPendingKey(block);
+		verify(schedB).tripPendingKey(block);
+		verify(a).onStoreChecked(2, 1);
+		verify(b).onStoreChecked(2, 1);
+		verify(c).onStoreChecked(1, 0);
+	}
+
+	@Test
+	public void testAllFound() {
+		Key k1 = makeKey(1), k2 = makeKey(2);
+		inStore(k1);
+		inStore(k2);
+		ClientRequestScheduler sched = mock(ClientRequestScheduler.class);
+		SendableGet getter = makeGetter(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, sched, k1, k2);
+		checker.queueRequest(getter, null);
+		checker.run();
+		// Nothing left to fetch from the network.
+		verify(sched).finishRegister(new SendableGet[] { getter }, false, false);
+		verify(getter).onStoreChecked(2, 2);
+	}
+
+	@Test
+	public void testBatchLimit() {
+		Key[] keys = new Key[DatastoreChecker.MAX_BATCH_KEYS];
+		for(int i=0;i<keys.length;i++) {
+			byte[] routingKey = new byte[32];
+			routingKey[0] = 1;
+			routingKey[1] = (byte) (i >> 8);
+			routingKey[2] = (byte) i;
+			keys[i] = new NodeCHK(routingKey, (byte) 2);
+		}
+		Key extra = makeKey(0);
+		ClientRequestScheduler sched = mock(ClientRequestScheduler.class);
+		SendableGet big = makeGetter(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, sched, keys);
+		SendableGet small = makeGetter(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, sched, extra);
+		checker.queueRequest(big, null);
+		checker.queueRequest(small, null);
+		checker.run();
+
+		// The small request doesn't fit in the first batch, so its key is looked up afterwards
+		// even though it sorts first.
+		InOrder inOrder = inOrder(node, sched);
+		inOrder.verify(sched).finishRegister(new SendableGet[] { big }, false, true);
+		fetched(inOrder, extra);
+		inOrder.verify(sched).finishRegister(new SendableGet[] { small }, false, true);
+		verify(big).onStoreChecked(keys.length, 0);
+	}
+
+	@Test
+	public void testBlockSet() {
+		Key k1 = makeKey(1), k2 = makeKey(2);
+		KeyBlock block = mock(KeyBlock.class);
+		BlockSet blocks = mock(BlockSet.class);
+		when(blocks.get(k1)).thenReturn(block);
+		ClientRequestScheduler sched = mock(ClientRequestScheduler.class);
+		SendableGet getter = makeGetter(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, sched, k1, k2);
+		checker.queueRequest(getter, blocks);
+		checker.run();
+		// Only the block set is checked, not the store.
+		verify(node, never()).fetch(any(Key.class), anyBoolean(), anyBoolean(), anyBoolean(), anyBoolean(), any(BlockMetadata.class));
+		verify(sched).tripPendingKey(block);
+		verify(sched).finishRegister(new SendableGet[] { getter }, false, true);
+		verify(getter).onStoreChecked(2, 1);
+	}
+
+}
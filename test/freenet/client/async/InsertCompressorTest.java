@@ -0,0 +1,180 @@
+package freenet.client.async;
+
+import static freenet.support.compress.Compressor.COMPRESSOR_TYPE.BZIP2;
+import static freenet.support.compress.Compressor.COMPRESSOR_TYPE.GZIP;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.client.events.FinishedCompressionEvent.CodecAttempt;
+import freenet.keys.CHKBlock;
+import freenet.support.Executor;
+import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.PooledExecutor;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.CompressionRatioException;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.NativeThread;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Test case for {@link InsertCompressor.CompressionRace}, which runs the codecs in parallel.
+ */
+public class InsertCompressorTest {
+
+	// Two codecs are enough for a race, and these are much quicker than LZMA.
+	private static final COMPRESSOR_TYPE[] CODECS = { GZIP, BZIP2 };
+	private static final long CHECK_RATIO = Long.MAX_VALUE;
+
+	private final Executor executor = new PooledExecutor();
+
+	/** Remembers the buckets it creates, so we can check which have been freed. */
+	private static class TrackingBucketFactory implements BucketFactory {
+
+		final List<TrackingBucket> buckets = new ArrayList<TrackingBucket>();
+
+		@Override
+		public synchronized RandomAccessBucket makeBucket(long size) throws IOException {
+			TrackingBucket bucket = new TrackingBucket();
+			buckets.add(bucket);
+			return bucket;
+		}
+
+		synchronized int countUnfreed() {
+			int count = 0;
+			for(TrackingBucket bucket : buckets)
+				if(!bucket.freed) count++;
+			return count;
+		}
+
+	}
+
+	private static class TrackingBucket extends ArrayBucket {
+
+		volatile boolean freed;
+
+		@Override
+		public void free() {
+			freed = true;
+			super.free();
+		}
+
+	}
+
+	/** Compressible, but not so much that the codecs all end up the same number of blocks. */
+	private static ArrayBucket makeData(int length) {
+		Random random = new Random(1234);
+		String[] words = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "freenet" };
+		StringBuilder sb = new StringBuilder(length);
+		while(sb.length() < length) {
+			sb.append(words[random.nextInt(words.length)]);
+			sb.append(random.nextInt(1000));
+			sb.append(' ');
+		}
+		return new ArrayBucket(sb.substring(0, length).getBytes());
+	}
+
+	private MemoryLimitedJobRunner makeRunner(int maxThreads) {
+		return new MemoryLimitedJobRunner(Long.MAX_VALUE, maxThreads, executor, NativeThread.JAVA_PRIORITY_RANGE);
+	}
+
+	private static long compressedSize(COMPRESSOR_TYPE comp, ArrayBucket data) throws IOException {
+		InputStream is = data.getInputStream();
+		try {
+			return comp.compress(is, new NullOutputStream(), data.size(), Long.MAX_VALUE, CHECK_RATIO, 0);
+		} catch (CompressionRatioException e) {
+			throw new AssertionError(e);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Test
+	public void testChoosesFewestBlocks() throws IOException {
+		ArrayBucket data = makeData(1024*1024);
+		long bestBlocks = Long.MAX_VALUE;
+		for(COMPRESSOR_TYPE comp : CODECS)
+			bestBlocks = Math.min(bestBlocks, compressedSize(comp, data) / CHKBlock.DATA_LENGTH);
+
+		TrackingBucketFactory bf = new TrackingBucketFactory();
+		InsertCompressor.CompressionRace race =
+			new InsertCompressor.CompressionRace(CODECS, data, 0, bf, 0, CHECK_RATIO, 0);
+		race.run(makeRunner(CODECS.length), NativeThread.PriorityLevel.NORM_PRIORITY.value);
+
+		assertNotNull(race.bestCodec);
+		assertEquals(bestBlocks, race.bestData.size() / CHKBlock.DATA_LENGTH);
+		assertEquals(bestBlocks, compressedSize(race.bestCodec, data) / CHKBlock.DATA_LENGTH);
+		assertEquals(CODECS.length, race.attempts.length);
+		for(int i=0;i<CODECS.length;i++) {
+			assertNotNull(race.attempts[i]);
+			assertEquals(CODECS[i].metadataID, race.attempts[i].codec);
+		}
+		// Only the winner is kept.
+		assertEquals(1, bf.countUnfreed());
+		assertFalse(((TrackingBucket) race.bestData).freed);
+	}
+
+	@Test
+	public void testLosersCancelled() throws IOException {
+		ArrayBucket data = makeData(256*1024);
+		TrackingBucketFactory bf = new TrackingBucketFactory();
+		// One codec at a time, in order. The first one fits, so the others must give up.
+		InsertCompressor.CompressionRace race =
+			new InsertCompressor.CompressionRace(CODECS, data, Integer.MAX_VALUE, bf, 0, CHECK_RATIO, 0);
+		race.run(makeRunner(1), NativeThread.PriorityLevel.NORM_PRIORITY.value);
+
+		assertEquals(CODECS[0], race.bestCodec);
+		assertEquals(compressedSize(CODECS[0], data), race.bestData.size());
+		assertFalse(race.attempts[0].aborted);
+		for(int i=1;i<CODECS.length;i++) {
+			CodecAttempt attempt = race.attempts[i];
+			assertTrue(attempt.aborted);
+			assertEquals(-1, attempt.compressedSize);
+		}
+		assertEquals(1, bf.countUnfreed());
+		assertFalse(((TrackingBucket) race.bestData).freed);
+	}
+
+	@Test
+	public void testNothingWins() throws IOException {
+		// Random data doesn't compress, so nothing beats the original.
+		byte[] buf = new byte[128*1024];
+		new Random(1234).nextBytes(buf);
+		TrackingBucketFactory bf = new TrackingBucketFactory();
+		InsertCompressor.CompressionRace race =
+			new InsertCompressor.CompressionRace(CODECS, new ArrayBucket(buf), 0, bf, 0, CHECK_RATIO, 0);
+		race.run(makeRunner(CODECS.length), NativeThread.PriorityLevel.NORM_PRIORITY.value);
+
+		assertNull(race.bestCodec);
+		assertNull(race.bestData);
+		assertEquals(0, bf.countUnfreed());
+	}
+
+	@Test
+	public void testShutdown() throws IOException {
+		final MemoryLimitedJobRunner runner = makeRunner(0);
+		TrackingBucketFactory bf = new TrackingBucketFactory();
+		InsertCompressor.CompressionRace race =
+			new InsertCompressor.CompressionRace(CODECS, makeData(1024), 0, bf, 0, CHECK_RATIO, 0);
+		// No threads, so the jobs stay queued until the runner shuts down.
+		runner.shutdown();
+		try {
+			race.run(runner, NativeThread.PriorityLevel.NORM_PRIORITY.value);
+			fail("Should have given up");
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertNull(race.bestCodec);
+		assertEquals(0, bf.countUnfreed());
+	}
+
+}
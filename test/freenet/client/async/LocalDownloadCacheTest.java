@@ -0,0 +1,162 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.client.FetchContext;
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.async.LocalDownloadCache.EvictionPolicy;
+import freenet.client.events.SimpleEventProducer;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+public class LocalDownloadCacheTest {
+
+	private static final String CHK_BASE = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+	private File dir;
+
+	@Before
+	public void setUp() {
+		dir = new File("local-download-cache-test");
+		FileUtil.removeAll(dir);
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtil.removeAll(dir);
+	}
+
+	private static FreenetURI uri(String name) throws MalformedURLException {
+		return new FreenetURI(CHK_BASE + name);
+	}
+
+	private static Bucket data(int size, int seed) {
+		byte[] buf = new byte[size];
+		for(int i=0;i<size;i++) buf[i] = (byte)(i + seed);
+		return new ArrayBucket(buf);
+	}
+
+	@Test
+	public void testStoreAndLookup() throws IOException {
+		LocalDownloadCache cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LRU, false);
+		Bucket original = data(100, 1);
+		cache.store(uri("a.html"), "text/html", original, false);
+		assertNull(cache.lookupInstant(uri("b.html"), false, false, null));
+		CacheFetchResult result = cache.lookupInstant(uri("a.html"), true, false, null);
+		assertNotNull(result);
+		assertFalse(result.alreadyFiltered);
+		assertEquals("text/html", result.getMimeType());
+		assertArrayEquals(BucketTools.toByteArray(original), BucketTools.toByteArray(result.asBucket()));
+		assertEquals(2, cache.getLookups());
+		assertEquals(1, cache.getHits());
+		assertEquals(100, cache.getBytesSaved());
+	}
+
+	@Test
+	public void testFilteredOnlyWhenAllowed() throws IOException {
+		LocalDownloadCache cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LRU, false);
+		cache.store(uri("a.html"), "text/html", data(100, 1), true);
+		assertNull(cache.lookupInstant(uri("a.html"), true, false, null));
+		CacheFetchResult result = cache.lookupInstant(uri("a.html"), false, false, null);
+		assertNotNull(result);
+		assertTrue(result.alreadyFiltered);
+	}
+
+	@Test
+	public void testTooBigNotCached() throws IOException {
+		LocalDownloadCache cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LRU, false);
+		cache.store(uri("big"), "application/octet-stream", data(2000, 1), false);
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void testLRUEviction() throws IOException {
+		LocalDownloadCache cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LRU, false);
+		for(int i=0;i<8;i++)
+			cache.store(uri("page"+i), "text/plain", data(1000, i), false);
+		assertEquals(8, cache.getEntryCount());
+		// Touch the oldest so it is kept.
+		assertNotNull(cache.lookupInstant(uri("page0"), true, false, null));
+		cache.store(uri("page8"), "text/plain", data(1000, 8), false);
+		assertEquals(8, cache.getEntryCount());
+		assertNotNull(cache.lookupInstant(uri("page0"), true, false, null));
+		assertNull(cache.lookupInstant(uri("page1"), true, false, null));
+		assertEquals(1, cache.getEvictedCount());
+	}
+
+	@Test
+	public void testLFUEviction() throws IOException {
+		LocalDownloadCache cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LFU, false);
+		for(int i=0;i<8;i++)
+			cache.store(uri("page"+i), "text/plain", data(1000, i), false);
+		for(int i=0;i<8;i++) {
+			if(i == 5) continue;
+			assertNotNull(cache.lookupInstant(uri("page"+i), true, false, null));
+		}
+		cache.store(uri("page8"), "text/plain", data(1000, 8), false);
+		assertNull(cache.lookupInstant(uri("page5"), true, false, null));
+		assertNotNull(cache.lookupInstant(uri("page0"), true, false, null));
+	}
+
+	@Test
+	public void testPersistent() throws IOException {
+		LocalDownloadCache cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LRU, true);
+		Bucket original = data(500, 3);
+		cache.store(uri("a.css"), "text/css", original, true);
+		assertEquals(1, cache.getEntryCount());
+		cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LRU, true);
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(500, cache.getTotalSize());
+		CacheFetchResult result = cache.lookupInstant(uri("a.css"), false, true, null);
+		assertNotNull(result);
+		assertTrue(result.alreadyFiltered);
+		assertEquals("text/css", result.getMimeType());
+		assertArrayEquals(BucketTools.toByteArray(original), BucketTools.toByteArray(result.asBucket()));
+		// Switching to non-persistent mode wipes the files.
+		cache.setPersistent(false);
+		assertEquals(0, cache.getEntryCount());
+		cache = new LocalDownloadCache(dir, new ArrayBucketFactory(), 8192, EvictionPolicy.LRU, true);
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	public void testUSKWithoutEditionNotCacheable() throws MalformedURLException {
+		assertTrue(LocalDownloadCache.isCacheable(uri("a")));
+		assertFalse(LocalDownloadCache.isCacheable(new FreenetURI("USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/WebOfTrust/-5")));
+		assertTrue(LocalDownloadCache.isCacheable(new FreenetURI("USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/WebOfTrust/5")));
+	}
+
+	@Test
+	public void testOnlyDefaultFetchesCached() {
+		FetchContext ctx = HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE,
+				Long.MAX_VALUE, new ArrayBucketFactory(), new SimpleEventProducer());
+		ctx.filterData = true;
+		assertTrue(ClientGetter.canAddToLocalCache(ctx));
+		// e.g. ?type= in fproxy. Caching it under the URI would serve it on normal visits.
+		ctx.overrideMIME = "text/plain";
+		assertFalse(ClientGetter.canAddToLocalCache(ctx));
+		ctx.overrideMIME = null;
+		ctx.returnZIPManifests = true;
+		assertFalse(ClientGetter.canAddToLocalCache(ctx));
+		ctx.returnZIPManifests = false;
+		ctx.charset = "UTF-8";
+		assertFalse(ClientGetter.canAddToLocalCache(ctx));
+		// The charset only matters to the filter.
+		ctx.filterData = false;
+		assertTrue(ClientGetter.canAddToLocalCache(ctx));
+	}
+
+}
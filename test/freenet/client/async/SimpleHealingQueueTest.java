@@ -0,0 +1,109 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import freenet.keys.ClientCHK;
+import freenet.node.RequestStarter;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+
+public class SimpleHealingQueueTest {
+
+	/** Doesn't really encode or insert anything. Each block's key is given by its first byte. */
+	private static class TestHealingQueue extends SimpleHealingQueue {
+
+		int encoded;
+
+		TestHealingQueue(int maxRunning) {
+			super(null, RequestStarter.PREFETCH_PRIORITY_CLASS, maxRunning,
+					new HealingDecisionSupplier(() -> 0.5, () -> false));
+		}
+
+		@Override
+		SingleBlockInserter encode(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, int token, ClientContext context) {
+			encoded++;
+			byte[] routingKey = new byte[32];
+			try {
+				Arrays.fill(routingKey, ((ArrayBucket) data).toByteArray()[0]);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			SingleBlockInserter sbi = mock(SingleBlockInserter.class);
+			when(sbi.getKeyNoEncode()).thenReturn(new ClientCHK(routingKey, cryptoKey, false, cryptoAlgorithm, (short) -1));
+			when(sbi.getToken()).thenReturn(data);
+			return sbi;
+		}
+
+	}
+
+	private static Bucket[] blocks(int... keys) {
+		Bucket[] data = new Bucket[keys.length];
+		for(int i=0;i<keys.length;i++)
+			data[i] = new ArrayBucket(new byte[] { (byte) keys[i] });
+		return data;
+	}
+
+	private static boolean[] queue(SimpleHealingQueue queue, Bucket[] data) {
+		byte[][] cryptoKeys = new byte[data.length][];
+		for(int i=0;i<data.length;i++)
+			cryptoKeys[i] = new byte[32];
+		return queue.innerQueue(data, cryptoKeys, new byte[data.length], null);
+	}
+
+	@Test
+	public void testQueue() {
+		TestHealingQueue queue = new TestHealingQueue(10);
+		boolean[] started = queue(queue, blocks(1, 2, 3));
+		assertTrue(started[0] && started[1] && started[2]);
+		assertEquals(3, queue.getQueueSize());
+		assertEquals(3, queue.encoded);
+		assertEquals(0, queue.getDedupHits());
+		assertEquals(0, queue.getDroppedBlocks());
+	}
+
+	@Test
+	public void testDuplicates() {
+		TestHealingQueue queue = new TestHealingQueue(10);
+		Bucket[] first = blocks(1, 2);
+		queue(queue, first);
+		// Being healed, or healed recently.
+		boolean[] started = queue(queue, blocks(2, 3, 3));
+		assertFalse(started[0]);
+		assertTrue(started[1]);
+		assertFalse(started[2]);
+		assertEquals(2, queue.getDedupHits());
+		assertEquals(3, queue.getQueueSize());
+		SingleBlockInserter sbi = queue.runningInserters.values().iterator().next();
+		queue.onSuccess(sbi, null);
+		assertEquals(1, queue.getHealedBlocks());
+		assertEquals(2, queue.getQueueSize());
+		started = queue(queue, blocks(1));
+		assertFalse(started[0]);
+		assertEquals(3, queue.getDedupHits());
+	}
+
+	@Test
+	public void testLimit() {
+		TestHealingQueue queue = new TestHealingQueue(2);
+		boolean[] started = queue(queue, blocks(1, 2, 3, 4));
+		assertTrue(started[0] && started[1]);
+		assertFalse(started[2] || started[3]);
+		assertEquals(2, queue.getQueueSize());
+		assertEquals(2, queue.getDroppedBlocks());
+		// Dropped blocks are not encoded.
+		assertEquals(2, queue.encoded);
+		// Nor remembered, so they can be healed once there is room.
+		queue.onSuccess(queue.runningInserters.values().iterator().next(), null);
+		started = queue(queue, blocks(3));
+		assertTrue(started[0]);
+		assertEquals(0, queue.getDedupHits());
+		assertEquals(2, queue.getQueueSize());
+	}
+
+}
@@ -0,0 +1,71 @@
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+
+public class USKPollSchedulerTest {
+
+	private static final long MIN = MINUTES.toMillis(30);
+	private static final long MAX = HOURS.toMillis(24);
+
+	private static USK usk(String name, long edition) throws MalformedURLException {
+		return USK.create(new FreenetURI("USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/"+name+"/"+edition));
+	}
+
+	@Test
+	public void testBackoffWithoutHistory() throws MalformedURLException {
+		USKPollScheduler scheduler = new USKPollScheduler(MIN, MAX);
+		Random random = new Random(0);
+		long delay = scheduler.onRoundFinished(usk("site", 1), MIN * 2, 0, random);
+		assertTrue(delay >= 0 && delay < MIN * 2);
+	}
+
+	@Test
+	public void testAdaptsToUpdateInterval() throws MalformedURLException {
+		USKPollScheduler scheduler = new USKPollScheduler(MIN, MAX);
+		Random random = new Random(0);
+		long now = 0;
+		// Updated every 8 hours.
+		for(int i=0;i<5;i++) {
+			scheduler.onNewEdition(usk("site", i), i, now);
+			now += HOURS.toMillis(8);
+		}
+		now -= HOURS.toMillis(7);
+		long delay = scheduler.onRoundFinished(usk("site", 0), MAX, now, random);
+		assertTrue(delay >= MINUTES.toMillis(90) && delay <= MINUTES.toMillis(150));
+		// Updated every 10 minutes: never poll more often than the minimum.
+		for(int i=0;i<5;i++) {
+			scheduler.onNewEdition(usk("busy", i), i, now);
+			now += MINUTES.toMillis(10);
+		}
+		delay = scheduler.onRoundFinished(usk("busy", 0), MAX, now, random);
+		assertTrue(delay >= MIN && delay <= MIN * 5 / 4);
+		// The jitter never goes below the minimum.
+		for(int i=0;i<100;i++)
+			assertTrue(scheduler.onRoundFinished(usk("busy", 0), MAX, now, random) >= MIN);
+	}
+
+	@Test
+	public void testCostsSharedAcrossEditions() throws MalformedURLException {
+		USKPollScheduler scheduler = new USKPollScheduler(MIN, MAX);
+		scheduler.onProbes(usk("a", 1), 3);
+		scheduler.onProbes(usk("a", 7), 4);
+		scheduler.onProbes(usk("b", 1), 2);
+		List<USKPollScheduler.PollingCost> costs = scheduler.getPollingCosts();
+		assertEquals(2, costs.size());
+		assertEquals(7, costs.get(0).probes);
+		assertEquals("a", costs.get(0).usk.siteName);
+		assertEquals(9, scheduler.getTotalProbes());
+	}
+
+}
@@ -0,0 +1,38 @@
+package freenet.client.events;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ProgressCoalescerTest {
+
+	@Test
+	public void testNoLimit() {
+		ProgressCoalescer coalescer = new ProgressCoalescer();
+		for(int i=0;i<10;i++)
+			assertEquals(0, coalescer.onProgress(1000, 0));
+		assertEquals(0, coalescer.getSuppressed());
+	}
+
+	@Test
+	public void testLatestWins() {
+		long before = ProgressCoalescer.getTotalSuppressed();
+		ProgressCoalescer coalescer = new ProgressCoalescer();
+		// The first is sent straight away.
+		assertEquals(0, coalescer.onProgress(1000, 5));
+		// The next within 200ms is sent at the end of the interval...
+		assertEquals(150, coalescer.onProgress(1050, 5));
+		// ... along with anything else until then.
+		assertEquals(-1, coalescer.onProgress(1100, 5));
+		assertEquals(-1, coalescer.onProgress(1190, 5));
+		assertEquals(2, coalescer.getSuppressed());
+		coalescer.scheduledSend(1200);
+		assertEquals(200, coalescer.onProgress(1200, 5));
+		coalescer.scheduledSend(1400);
+		// Nothing for a while, so sent straight away.
+		assertEquals(0, coalescer.onProgress(2000, 5));
+		assertEquals(2, coalescer.getSuppressed());
+		assertTrue(ProgressCoalescer.getTotalSuppressed() >= before + 2);
+	}
+
+}
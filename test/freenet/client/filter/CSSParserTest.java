@@ -1343,4 +1343,28 @@ public class CSSParserTest {
 	public void testTripleCommentStart() throws IOException, URISyntaxException {
 		assertEquals("Triple comment start does not crash", filter("/*/*/*"), "");
 	}
+
+	@Test
+	public void testLargeStylesheet() throws IOException, URISyntaxException {
+		// Only individual rules are limited in size, not the whole stylesheet.
+		String rule = "h1 { color: red; }\n";
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() <= 2 * CSSTokenizerFilter.MAX_BUFFERED_CHARS)
+			sb.append(rule);
+		assertEquals(sb.toString(), filter(sb.toString()));
+	}
+
+	@Test
+	public void testSelectorTooLong() throws IOException, URISyntaxException {
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() <= CSSTokenizerFilter.MAX_BUFFERED_CHARS)
+			sb.append("h1 h2 ");
+		sb.append("{ color: red; }");
+		try {
+			filter(sb.toString());
+			fail("Over-long selector was accepted");
+		} catch (DataFilterException e) {
+			// Expected.
+		}
+	}
 }
@@ -142,7 +142,33 @@ public class ContentFilterTest {
 	private static void testOneHTMLFilter(String html) throws Exception {
 		assertEquals(html, htmlFilter(html));
 	}
-	
+
+	@Test
+	public void testLargeHTMLPage() throws Exception {
+		// Much bigger than the tokenizer's read buffer, so tags, text and styles span reads.
+		StringBuilder sb = new StringBuilder(HTML_START_TO_BODY);
+		for (int i = 0; i < 2000; i++) {
+			sb.append("<div id=\"d").append(i).append("\"><p>Paragraph ").append(i)
+				.append(" &lt; text &amp; more text</p><br /></div>\n");
+		}
+		sb.append(HTML_BODY_END);
+		testOneHTMLFilter(sb.toString());
+		String style = "<html><head><style type=\"text/css\">" + new String(new char[20000]).replace('\0', ' ')
+			+ "div { }</style></head><body>x</body></html>";
+		assertTrue(htmlFilter(style).contains("div { }"));
+	}
+
+	@Test
+	public void testStyleTooLong() throws Exception {
+		StringBuilder css = new StringBuilder();
+		while (css.length() <= CSSTokenizerFilter.MAX_BUFFERED_CHARS)
+			css.append("div { color: red; }\n");
+		String filtered = htmlFilter("<html><head><style type=\"text/css\">" + css
+			+ "</style></head><body>after</body></html>");
+		assertFalse(filtered.contains("color: red"));
+		assertTrue(filtered.contains("<body>after</body>"));
+	}
+
     @Test
     public void testHTMLFilter() throws Exception {
         if (TestProperty.VERBOSE) {
@@ -0,0 +1,86 @@
+package freenet.client.filter;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import freenet.client.filter.ContentFilter.FilterStatus;
+
+public class FilterResultCacheTest {
+
+	private static final String BASE = "http://localhost:8888/USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/Ultimate-Freenet-Index/55/";
+	private static final String CSS = "div { color: red; }\np { background: url(\"http://www.example.com/a.png\"); }\n";
+
+	private static String filter(FilterResultCache cache, String data, String type, String base) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FilterStatus status = cache.filter(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), baos,
+				type, new URI(base), null, null, null);
+		assertEquals(type, status.mimeType);
+		return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String filterDirectly(String data, String type, String base) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ContentFilter.filter(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), baos,
+				type, new URI(base), null, null, null, null, null);
+		return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testHit() throws Exception {
+		FilterResultCache cache = new FilterResultCache(1024*1024);
+		String expected = filterDirectly(CSS, "text/css", BASE);
+		assertEquals(expected, filter(cache, CSS, "text/css", BASE));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(expected, filter(cache, CSS, "text/css", BASE));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getLookups());
+		assertEquals(CSS.length(), cache.getBytesSaved());
+	}
+
+	@Test
+	public void testSettingsInKey() throws Exception {
+		FilterResultCache cache = new FilterResultCache(1024*1024);
+		filter(cache, CSS, "text/css", BASE);
+		filter(cache, CSS, "text/css", "http://localhost:8888/");
+		filter(cache, CSS, "text/css; charset=UTF-8", BASE);
+		filter(cache, CSS + " ", "text/css", BASE);
+		assertEquals(0, cache.getHits());
+		assertEquals(4, cache.getEntryCount());
+	}
+
+	@Test
+	public void testTooBig() throws Exception {
+		FilterResultCache cache = new FilterResultCache(1024);
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() <= 1024)
+			sb.append(CSS);
+		String css = sb.toString();
+		String expected = filterDirectly(css, "text/css", BASE);
+		assertEquals(expected, filter(cache, css, "text/css", BASE));
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getLookups());
+		assertEquals(1, cache.getTooBig());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		FilterResultCache cache = new FilterResultCache(CSS.length() * 8);
+		for(int i=0;i<20;i++)
+			filter(cache, CSS + "/* " + i + " */", "text/css", BASE);
+		assertTrue(cache.getTotalSize() <= cache.getMaxSize());
+		assertTrue(cache.getEntryCount() < 20);
+		cache.setMaxSize(0);
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getTotalSize());
+		filter(cache, CSS, "text/css", BASE);
+		assertEquals(0, cache.getEntryCount());
+	}
+
+}
@@ -0,0 +1,307 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.Test;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.LineReadingInputStream;
+
+public class FCPBinaryCodecTest {
+
+	/** A message the generic codec has to send. */
+	private static class TestMessage extends FCPMessage {
+
+		private final SimpleFieldSet fs;
+
+		TestMessage(SimpleFieldSet fs) {
+			this.fs = fs;
+		}
+
+		@Override
+		public SimpleFieldSet getFieldSet() {
+			return new SimpleFieldSet(fs);
+		}
+
+		@Override
+		public String getName() {
+			return "Test\u00e9";
+		}
+
+		@Override
+		public void run(FCPConnectionHandler handler, Node node) {
+			// Not used.
+		}
+
+	}
+
+	private static class TestDataMessage extends BaseDataCarryingMessage {
+
+		private final byte[] data;
+
+		TestDataMessage(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		long dataLength() {
+			return data.length;
+		}
+
+		@Override
+		public void readFrom(InputStream is, BucketFactory bf, FCPServer server) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void writeData(OutputStream os) throws IOException {
+			os.write(data);
+		}
+
+		@Override
+		String getEndString() {
+			return "Data";
+		}
+
+		@Override
+		public SimpleFieldSet getFieldSet() {
+			SimpleFieldSet fs = new SimpleFieldSet(true);
+			fs.put("DataLength", data.length);
+			return fs;
+		}
+
+		@Override
+		public String getName() {
+			return "TestData";
+		}
+
+		@Override
+		public void run(FCPConnectionHandler handler, Node node) {
+			// Not used.
+		}
+
+	}
+
+	private static byte[] encode(FCPMessage msg) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FCPBinaryCodec.write(msg, baos, null);
+		return baos.toByteArray();
+	}
+
+	/** Decoding the frame gives the same message as the text protocol. */
+	private static void checkRoundTrip(FCPMessage msg) throws IOException {
+		byte[] buf = encode(msg);
+		assertEquals(buf.length - 4, ByteBuffer.wrap(buf).getInt());
+		FCPBinaryCodec.DecodedMessage decoded = FCPBinaryCodec.decode(buf, 4, buf.length - 4);
+		assertEquals(msg.getName(), decoded.name);
+		SimpleFieldSet expected = msg.getFieldSet();
+		expected.setEndMarker(msg.getEndString());
+		assertEquals(expected.toOrderedString(), decoded.fs.toOrderedString());
+	}
+
+	private static SimpleProgressMessage progress(String identifier, int succeeded, int minSuccessFetchBlocks) {
+		return new SimpleProgressMessage(identifier, true, new SplitfileProgressEvent(1203, succeeded,
+				new Date(1446746522512L), 3, 1, null, 601, minSuccessFetchBlocks, true));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		checkRoundTrip(progress("test", 427, 0));
+		checkRoundTrip(progress("t\u00e9st \u20ac", 1203, 601));
+		checkRoundTrip(new SimpleProgressMessage("test", false,
+				new SplitfileProgressEvent(0, 0, null, 0, 0, null, 0, 0, false)));
+		checkRoundTrip(new SendingToNetworkMessage("test", true));
+		checkRoundTrip(new SendingToNetworkMessage("test", false));
+		USK usk = USK.create(new FreenetURI("USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/site/-5"));
+		checkRoundTrip(new SubscribedUSKUpdate("test", -5, usk, true, false));
+		checkRoundTrip(new SubscribedUSKUpdate("test", Long.MAX_VALUE, usk, false, true));
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", "test");
+		fs.putSingle("Metadata.ContentType", "text/plain;charset=utf-8");
+		fs.putSingle("Files.0.Name", "\u00e9");
+		fs.putSingle("Empty", "");
+		checkRoundTrip(new TestMessage(fs));
+		char[] big = new char[1000];
+		Arrays.fill(big, 'x');
+		fs.putSingle("Big", new String(big));
+		checkRoundTrip(new TestMessage(fs));
+	}
+
+	@Test
+	public void testData() throws Exception {
+		byte[] data = "some data".getBytes(StandardCharsets.UTF_8);
+		byte[] buf = encode(new TestDataMessage(data));
+		int length = ByteBuffer.wrap(buf).getInt();
+		FCPBinaryCodec.DecodedMessage decoded = FCPBinaryCodec.decode(buf, 4, length);
+		assertEquals("TestData", decoded.name);
+		assertEquals("Data", decoded.fs.getEndMarker());
+		assertEquals(data.length, decoded.fs.getInt("DataLength"));
+		// The data follows the frame.
+		assertArrayEquals(data, Arrays.copyOfRange(buf, 4 + length, buf.length));
+	}
+
+	@Test
+	public void testInvalid() throws Exception {
+		byte[] buf = encode(progress("test", 1, 0));
+		checkInvalid(buf, 4, buf.length - 5);
+		buf[buf.length - 1] = (byte) 0x80;
+		checkInvalid(buf, 4, buf.length - 4);
+		buf = encode(new SendingToNetworkMessage("test", true));
+		byte[] junk = Arrays.copyOf(buf, buf.length + 1);
+		checkInvalid(junk, 4, junk.length - 4);
+		buf[4] = 100;
+		checkInvalid(buf, 4, buf.length - 4);
+		// A string longer than the frame.
+		buf = encode(new SendingToNetworkMessage("test", true));
+		buf[5] = 100;
+		checkInvalid(buf, 4, buf.length - 4);
+		// A negative string length.
+		FCPBinaryCodec.FrameWriter w = new FCPBinaryCodec.FrameWriter();
+		w.writeByte(FCPBinaryCodec.TYPE_SENDING_TO_NETWORK);
+		w.writeVarLong(-1);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		w.writeTo(baos);
+		buf = baos.toByteArray();
+		checkInvalid(buf, 4, buf.length - 4);
+	}
+
+	@Test
+	public void testContinuedFrames() throws Exception {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		char[] value = new char[FCPBinaryCodec.MAX_FRAME_LENGTH * 2];
+		Arrays.fill(value, 'x');
+		fs.putSingle("Big", new String(value));
+		fs.putSingle("Small", "y");
+		byte[] buf = encode(new TestMessage(fs));
+		// Three frames, all full but the last.
+		ByteBuffer frames = ByteBuffer.wrap(buf);
+		for(int i=0;i<2;i++) {
+			assertEquals(FCPBinaryCodec.MAX_FRAME_LENGTH | FCPBinaryCodec.CONTINUED, frames.getInt());
+			frames.position(frames.position() + FCPBinaryCodec.MAX_FRAME_LENGTH);
+		}
+		assertEquals(frames.remaining() - 4, frames.getInt());
+		InputStream is = new ByteArrayInputStream(buf);
+		FCPBinaryCodec.DecodedMessage decoded = FCPBinaryCodec.read(is);
+		assertEquals("Test\u00e9", decoded.name);
+		fs.setEndMarker("EndMessage");
+		assertEquals(fs.toOrderedString(), decoded.fs.toOrderedString());
+		assertNull(FCPBinaryCodec.read(is));
+		// Cut short.
+		try {
+			FCPBinaryCodec.read(new ByteArrayInputStream(Arrays.copyOf(buf, buf.length - 1)));
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		byte[] data = "some data".getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FCPBinaryCodec.write(new SendingToNetworkMessage("test", true), baos, null);
+		FCPBinaryCodec.write(new TestDataMessage(data), baos, null);
+		InputStream is = new ByteArrayInputStream(baos.toByteArray());
+		assertEquals(SendingToNetworkMessage.NAME, FCPBinaryCodec.read(is).name);
+		assertEquals("TestData", FCPBinaryCodec.read(is).name);
+		// The data follows the frame.
+		byte[] buf = new byte[data.length];
+		new DataInputStream(is).readFully(buf);
+		assertArrayEquals(data, buf);
+		assertNull(FCPBinaryCodec.read(is));
+	}
+
+	private static void checkInvalid(byte[] buf, int offset, int length) {
+		try {
+			FCPBinaryCodec.decode(buf, offset, length);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Messages per second from the node to the client over a loopback socket: formatting on
+	 * one end, and parsing on the other, as text and as binary frames. */
+	@Test
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK)
+			return;
+		final int count = 1000000;
+		final SimpleProgressMessage[] messages = new SimpleProgressMessage[1000];
+		for(int i=0;i<messages.length;i++)
+			messages[i] = progress("Request number " + i, i, 601);
+		for(final boolean binary : new boolean[] { false, true, false, true }) {
+			ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			final Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			final Socket node = server.accept();
+			server.close();
+			long start = System.nanoTime();
+			Thread sender = new Thread() {
+				@Override
+				public void run() {
+					try {
+						OutputStream os = new BufferedOutputStream(node.getOutputStream(), 4096);
+						for(int i=0;i<count;i++) {
+							FCPMessage msg = messages[i % messages.length];
+							if(binary)
+								FCPBinaryCodec.write(msg, os, null);
+							else
+								msg.send(os);
+						}
+						os.flush();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			sender.start();
+			InputStream is = new BufferedInputStream(client.getInputStream(), 4096);
+			long sink = 0;
+			if(binary) {
+				DataInputStream dis = new DataInputStream(is);
+				byte[] buf = new byte[FCPBinaryCodec.MAX_FRAME_LENGTH];
+				for(int i=0;i<count;i++) {
+					int length = dis.readInt();
+					dis.readFully(buf, 0, length);
+					sink += FCPBinaryCodec.decode(buf, 0, length).fs.getInt("Succeeded");
+				}
+			} else {
+				LineReadingInputStream lis = new LineReadingInputStream(is);
+				for(int i=0;i<count;i++) {
+					assertEquals("SimpleProgress", lis.readLine(128, 128, true));
+					sink += new SimpleFieldSet(lis, 4096, 128, true, true, true).getInt("Succeeded");
+				}
+			}
+			sender.join();
+			long time = System.nanoTime() - start;
+			client.close();
+			node.close();
+			System.out.println((binary ? "Binary: " : "Text:   ") + (long) (count / (time / 1e9)) +
+					" messages/s (" + sink + ")");
+		}
+	}
+
+}
@@ -0,0 +1,286 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.crypt.RandomSource;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+import freenet.support.io.TempBucketFactory;
+
+/** Runs messages through the input handler the way a selector connection does. */
+public class FCPConnectionInputHandlerTest {
+
+	private ServerSocketChannel server;
+	private FCPSelector selector;
+	private FCPConnectionHandler handler;
+	private Socket s;
+	private File base = new File("tmp.fcp-connection-input-handler-test");
+	/** If true, data from the client is written to FileBucket's, so it is copied with
+	 * transferTo(), rather than through a stream. */
+	private boolean fileBuckets;
+
+	@Before
+	public void setUp() throws IOException {
+		base.mkdir();
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		PooledExecutor executor = new PooledExecutor();
+		selector = new FCPSelector(executor);
+		selector.start();
+		Node node = mock(Node.class);
+		when(node.getRandom()).thenReturn(mock(RandomSource.class));
+		when(node.getExecutor()).thenReturn(executor);
+		TempBucketFactory bf = mock(TempBucketFactory.class);
+		when(bf.makeBucket(anyLong())).thenAnswer(new Answer<Bucket>() {
+
+			@Override
+			public Bucket answer(InvocationOnMock invocation) throws IOException {
+				return makeBucket();
+			}
+
+		});
+		NodeClientCore core = mock(NodeClientCore.class);
+		when(core.getTempBucketFactory()).thenReturn(bf);
+		FCPServer fcpServer = mock(FCPServer.class);
+		when(fcpServer.getNode()).thenReturn(node);
+		when(fcpServer.getCore()).thenReturn(core);
+		when(fcpServer.maxMessageQueueLength()).thenReturn(1024);
+		s = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		s.setSoTimeout(10000);
+		SocketChannel channel = server.accept();
+		handler = spy(new FCPConnectionHandler(channel.socket(), fcpServer));
+		// Don't start any requests, or look for persistent ones.
+		doNothing().when(handler).setClientName(anyString());
+		doNothing().when(handler).startClientGet(any(ClientGetMessage.class));
+		doNothing().when(handler).startClientPut(any(ClientPutMessage.class));
+		FCPConnectionInputHandler input = new FCPConnectionInputHandler(handler);
+		FCPSelector.Connection connection = selector.add(channel, input.getSelectorTask());
+		input.start(connection);
+		handler.getOutputHandler().start(connection);
+		connection.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		s.close();
+		selector.close();
+		server.close();
+		FileUtil.removeAll(base);
+	}
+
+	private Bucket makeBucket() throws IOException {
+		if(!fileBuckets) return new ArrayBucket();
+		return new FileBucket(File.createTempFile("test", ".tmp", base), false, false, false, true);
+	}
+
+	private void send(String data) throws IOException {
+		s.getOutputStream().write(data.getBytes(StandardCharsets.UTF_8));
+		s.getOutputStream().flush();
+	}
+
+	/** @return The lines of the next message from the node, up to EndMessage. */
+	private List<String> readMessage() throws IOException {
+		return readMessage("EndMessage");
+	}
+
+	/** @return The lines of the next message from the node, up to the given end marker. */
+	private List<String> readMessage(String endMarker) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		InputStream is = s.getInputStream();
+		while(true) {
+			int x = is.read();
+			assertTrue("Connection closed", x >= 0);
+			if(x != '\n') {
+				baos.write(x);
+				continue;
+			}
+			String line = new String(baos.toByteArray(), StandardCharsets.UTF_8);
+			baos.reset();
+			lines.add(line);
+			if(line.equals(endMarker)) return lines;
+		}
+	}
+
+	private void hello(boolean binary) throws IOException {
+		send("ClientHello\nName=test\nExpectedVersion=2.0\n" + (binary ? "Framing=Binary\n" : "") +
+				"EndMessage\n");
+		List<String> reply = readMessage();
+		assertEquals("NodeHello", reply.get(0));
+		assertEquals(binary, reply.contains("Framing=Binary"));
+	}
+
+	/** @return The next len bytes from the node. */
+	private byte[] readData(int len) throws IOException {
+		byte[] buf = new byte[len];
+		InputStream is = s.getInputStream();
+		int read = 0;
+		while(read < len) {
+			int x = is.read(buf, read, len - read);
+			assertTrue("Connection closed", x >= 0);
+			read += x;
+		}
+		return buf;
+	}
+
+	/** Send a message which fails, and check that its error is the next reply, i.e. nothing
+	 * sent before it failed. */
+	private void checkNoErrors() throws IOException {
+		send("ClientGet\nIdentifier=end\nEndMessage\n");
+		List<String> reply = readMessage();
+		assertEquals("ProtocolError", reply.get(0));
+		assertTrue(reply.toString(), reply.contains("Identifier=end"));
+	}
+
+	@Test
+	public void testCommentLines() throws Exception {
+		hello(false);
+		send("ClientGet\nURI=KSK@x\nIdentifier=a\n# comment\n\nGlobal=true\nPersistence=forever\nEndMessage\n" +
+				"ClientGet\r\nURI=KSK@y\r\n# EndMessage\r\n\r\nIdentifier=b\r\nEndMessage\r\n");
+		ArgumentCaptor<ClientGetMessage> captor = ArgumentCaptor.forClass(ClientGetMessage.class);
+		verify(handler, timeout(10000).times(2)).startClientGet(captor.capture());
+		ClientGetMessage get = captor.getAllValues().get(0);
+		assertEquals("a", get.identifier);
+		assertTrue(get.global);
+		assertEquals(Persistence.FOREVER, get.persistence);
+		get = captor.getAllValues().get(1);
+		assertEquals("b", get.identifier);
+		assertFalse(get.global);
+		checkNoErrors();
+	}
+
+	@Test
+	public void testBigBinaryMessage() throws Exception {
+		hello(true);
+		final SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("URI", "KSK@x");
+		fs.putSingle("Identifier", "a");
+		char[] token = new char[FCPBinaryCodec.MAX_FRAME_LENGTH * 3];
+		Arrays.fill(token, 'x');
+		fs.putSingle("ClientToken", new String(token));
+		FCPMessage get = new FCPMessage() {
+
+			@Override
+			public SimpleFieldSet getFieldSet() {
+				return fs;
+			}
+
+			@Override
+			public String getName() {
+				return ClientGetMessage.NAME;
+			}
+
+			@Override
+			public void run(FCPConnectionHandler handler, Node node) {
+				// Not used.
+			}
+
+		};
+		OutputStream os = new BufferedOutputStream(s.getOutputStream());
+		FCPBinaryCodec.write(get, os, null);
+		os.flush();
+		ArgumentCaptor<ClientGetMessage> captor = ArgumentCaptor.forClass(ClientGetMessage.class);
+		verify(handler, timeout(10000)).startClientGet(captor.capture());
+		assertEquals("a", captor.getValue().identifier);
+		assertEquals(token.length, captor.getValue().clientToken.length());
+		assertFalse(handler.isClosed());
+	}
+
+	private void checkPutData(int... lengths) throws Exception {
+		hello(false);
+		Random random = new Random(lengths.length);
+		byte[][] data = new byte[lengths.length][];
+		for(int i = 0; i < lengths.length; i++) {
+			data[i] = new byte[lengths[i]];
+			random.nextBytes(data[i]);
+			// Send each message in one write, so the data arrives in the same buffer as the
+			// header, and the next message may arrive in the same buffer as the data.
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			baos.write(("ClientPut\nURI=CHK@\nIdentifier=" + i + "\nUploadFrom=direct\nDataLength=" +
+					lengths[i] + "\nData\n").getBytes(StandardCharsets.UTF_8));
+			baos.write(data[i]);
+			s.getOutputStream().write(baos.toByteArray());
+		}
+		s.getOutputStream().flush();
+		ArgumentCaptor<ClientPutMessage> captor = ArgumentCaptor.forClass(ClientPutMessage.class);
+		verify(handler, timeout(10000).times(lengths.length)).startClientPut(captor.capture());
+		for(int i = 0; i < lengths.length; i++) {
+			ClientPutMessage put = captor.getAllValues().get(i);
+			assertEquals(Integer.toString(i), put.identifier);
+			assertEquals(fileBuckets, BucketTools.getPlainFile(put.bucket) != null);
+			assertArrayEquals(data[i], BucketTools.toByteArray(put.bucket));
+		}
+		checkNoErrors();
+	}
+
+	@Test
+	public void testClientPutData() throws Exception {
+		checkPutData(100, FCPSelector.BUFFER_SIZE * 3 + 7, 1);
+	}
+
+	@Test
+	public void testClientPutDataToFile() throws Exception {
+		fileBuckets = true;
+		checkPutData(100, FCPSelector.BUFFER_SIZE * 3 + 7, 1);
+	}
+
+	private void checkAllData(Bucket bucket) throws Exception {
+		hello(false);
+		byte[] data = new byte[FCPSelector.BUFFER_SIZE * 3 + 7];
+		new Random(0).nextBytes(data);
+		BucketTools.copyFrom(bucket, new ByteArrayInputStream(data), data.length);
+		handler.send(new AllDataMessage(bucket, "x", false, 0, 0, null));
+		List<String> lines = readMessage("Data");
+		assertEquals("AllData", lines.get(0));
+		assertTrue(lines.toString(), lines.contains("DataLength=" + data.length));
+		assertArrayEquals(data, readData(data.length));
+		checkNoErrors();
+	}
+
+	@Test
+	public void testAllData() throws Exception {
+		checkAllData(new ArrayBucket());
+	}
+
+	@Test
+	public void testAllDataFromFile() throws Exception {
+		fileBuckets = true;
+		checkAllData(makeBucket());
+	}
+
+}
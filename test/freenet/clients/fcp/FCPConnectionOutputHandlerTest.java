@@ -0,0 +1,137 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.client.events.SplitfileProgressEvent;
+
+public class FCPConnectionOutputHandlerTest {
+
+	private static final int MAX_QUEUE_LENGTH = 8;
+
+	private FCPConnectionHandler handler;
+	private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private FCPConnectionOutputHandler output;
+
+	@Before
+	public void setUp() throws Exception {
+		FCPServer server = mock(FCPServer.class);
+		when(server.maxMessageQueueLength()).thenReturn(MAX_QUEUE_LENGTH);
+		Socket sock = new Socket() {
+			@Override
+			public OutputStream getOutputStream() {
+				return sent;
+			}
+		};
+		handler = mock(FCPConnectionHandler.class);
+		when(handler.getServer()).thenReturn(server);
+		when(handler.getSocket()).thenReturn(sock);
+		when(handler.isClosed()).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				return closed.get();
+			}
+		});
+		output = new FCPConnectionOutputHandler(handler);
+	}
+
+	private static SimpleProgressMessage progress(String identifier, int succeeded) {
+		return new SimpleProgressMessage(identifier, true,
+				new SplitfileProgressEvent(100, succeeded, null, 0, 0, null, 50, 50, true));
+	}
+
+	/** Send everything queued, as the output thread would when the connection is closed. */
+	private String drain() {
+		closed.set(true);
+		output.run();
+		return new String(sent.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static int count(String s, String what) {
+		int count = 0;
+		for(int i = s.indexOf(what); i >= 0; i = s.indexOf(what, i + 1))
+			count++;
+		return count;
+	}
+
+	@Test
+	public void testProgressCoalesced() {
+		output.queue(progress("one", 10));
+		output.queue(new NodeHelloMessage("hello"));
+		output.queue(progress("one", 20));
+		output.queue(progress("two", 5));
+		output.queue(progress("one", 30));
+		assertEquals(3, output.getQueueLength());
+		assertEquals(2, output.getCoalescedProgress());
+		String s = drain();
+		assertEquals(2, count(s, "SimpleProgress\n"));
+		// The latest progress is sent after everything queued before it.
+		assertTrue(s, s.indexOf("NodeHello") < s.indexOf("Succeeded=30"));
+		assertTrue(s, s.indexOf("Succeeded=5") < s.indexOf("Succeeded=30"));
+		assertFalse(s, s.contains("Succeeded=10"));
+		assertFalse(s, s.contains("Succeeded=20"));
+		assertTrue(s, s.contains("Succeeded=5"));
+		assertTrue(output.getBytesWritten() > 0);
+	}
+
+	@Test
+	public void testProgressNotSentBeforeLaterMessages() {
+		output.queue(progress("one", 10));
+		output.queue(new PersistentRequestRemovedMessage("one", true));
+		output.queue(progress("one", 20));
+		assertEquals(2, output.getQueueLength());
+		String s = drain();
+		assertFalse(s, s.contains("Succeeded=10"));
+		assertTrue(s, s.indexOf("PersistentRequestRemoved") < s.indexOf("Succeeded=20"));
+	}
+
+	@Test
+	public void testProgressAfterSentIsQueued() {
+		output.queue(progress("one", 10));
+		drain();
+		// Not coalesced with a message that has already been sent.
+		closed.set(false);
+		output = new FCPConnectionOutputHandler(handler);
+		output.queue(progress("one", 20));
+		assertEquals(1, output.getQueueLength());
+		assertEquals(0, output.getCoalescedProgress());
+	}
+
+	@Test
+	public void testInputPausedUntilClientCatchesUp() throws Exception {
+		for(int i=0;i<MAX_QUEUE_LENGTH/2;i++)
+			output.queue(new NodeHelloMessage("hello"));
+		// Not backed up yet.
+		assertFalse(output.pauseInputIfBackedUp());
+		assertFalse(output.isInputPaused());
+		output.queue(new NodeHelloMessage("hello"));
+		Thread input = new Thread() {
+			@Override
+			public void run() {
+				output.pauseInputIfBackedUp();
+			}
+		};
+		input.start();
+		for(int i=0;i<1000 && !output.isInputPaused();i++)
+			Thread.sleep(10);
+		assertTrue(output.isInputPaused());
+		assertTrue(input.isAlive());
+		drain();
+		input.join(10000);
+		assertFalse(input.isAlive());
+		assertFalse(output.isInputPaused());
+	}
+
+}
@@ -6,13 +6,19 @@ package freenet.clients.fcp;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
+import freenet.clients.fcp.FCPPluginConnection.MessageQueueFullException;
 import freenet.clients.fcp.FCPPluginConnection.SendDirection;
 import freenet.pluginmanager.FredPluginFCPMessageHandler.ClientSideFCPMessageHandler;
+import freenet.pluginmanager.FredPluginFCPMessageHandler.QueuedMessageHandler;
 import freenet.pluginmanager.FredPluginFCPMessageHandler.ServerSideFCPMessageHandler;
 
 public final class FCPPluginConnectionImplTest {
@@ -119,4 +125,152 @@ public final class FCPPluginConnectionImplTest {
             0, connection.getSendSynchronousCount());
     }
 
+    /**
+     * A server which wants its messages queued. Records the order of the messages it handles, and
+     * blocks in the first one until {@link #release} is counted down.
+     */
+    private static final class QueuedServer
+            implements ServerSideFCPMessageHandler, QueuedMessageHandler {
+        
+        final int capacity;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        
+        QueuedServer(int capacity, boolean block) {
+            this.capacity = capacity;
+            if(!block)
+                release.countDown();
+        }
+        
+        @Override public int getMessageQueueCapacity() {
+            return capacity;
+        }
+        
+        @Override public FCPPluginMessage handlePluginFCPMessage(
+                final FCPPluginConnection connection, final FCPPluginMessage message) {
+            
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            handled.add(message.params.get("index"));
+            final FCPPluginMessage reply = FCPPluginMessage.constructSuccessReply(message);
+            reply.params.putSingle("replyToIndex", message.params.get("index"));
+            return reply;
+        }
+    }
+
+    private static FCPPluginMessage constructIndexedMessage(int index) {
+        final FCPPluginMessage message = FCPPluginMessage.construct();
+        message.params.putSingle("index", Integer.toString(index));
+        return message;
+    }
+
+    /**
+     * Tests that messages to a {@link QueuedMessageHandler} are handled in order, that the queue
+     * refuses messages once it is full, and that the messages are counted in the
+     * {@link FCPPluginMessageStats}.
+     */
+    @Test
+    public final void testQueuedDelivery() throws Exception {
+        final int capacity = 5;
+        final QueuedServer server = new QueuedServer(capacity, true);
+        final CountDownLatch replies = new CountDownLatch(capacity + 1);
+        final ClientSideFCPMessageHandler client = new ClientSideFCPMessageHandler() {
+                @Override public FCPPluginMessage handlePluginFCPMessage(
+                        final FCPPluginConnection connection, final FCPPluginMessage message) {
+                    
+                    replies.countDown();
+                    return null;
+                }
+            };
+        
+        final FCPPluginConnectionImpl connection = FCPPluginConnectionImpl.constructForUnitTest(
+            server, client);
+        
+        // The first message is taken off the queue and blocks the thread which handles it.
+        connection.send(SendDirection.ToServer, constructIndexedMessage(0));
+        assertTrue(server.started.await(10, TimeUnit.SECONDS));
+        
+        for(int i=1; i <= capacity; ++i)
+            connection.send(SendDirection.ToServer, constructIndexedMessage(i));
+        assertEquals(capacity, connection.getMessageQueueLength(SendDirection.ToServer));
+        
+        try {
+            connection.send(SendDirection.ToServer, constructIndexedMessage(capacity + 1));
+            fail("The queue should be full");
+        } catch(MessageQueueFullException e) {
+            // Expected.
+        }
+        
+        server.release.countDown();
+        assertTrue(replies.await(10, TimeUnit.SECONDS));
+        
+        final List<String> expected = new ArrayList<String>();
+        for(int i=0; i <= capacity; ++i)
+            expected.add(Integer.toString(i));
+        assertEquals(expected, server.handled);
+        assertEquals(0, connection.getMessageQueueLength(SendDirection.ToServer));
+        
+        final FCPPluginMessageStats.Stats stats
+            = connection.getMessageStats().getStats(server.toString());
+        assertEquals(1, stats.rejected);
+        assertTrue(stats.delivered >= capacity + 1);
+        assertTrue(stats.maxLatencyNanos > 0);
+    }
+
+    /**
+     * Tests that {@link FCPPluginConnectionImpl#sendSynchronous(SendDirection, FCPPluginMessage,
+     * long)} works with a {@link QueuedMessageHandler}, as long as the queue can hold all messages.
+     */
+    @Test
+    public final void testQueuedSendSynchronous() throws Exception {
+        final int threadCount = 20;
+        final QueuedServer server = new QueuedServer(threadCount, false);
+        final ClientSideFCPMessageHandler client = new ClientSideFCPMessageHandler() {
+                @Override public FCPPluginMessage handlePluginFCPMessage(
+                        final FCPPluginConnection connection, final FCPPluginMessage message) {
+                    
+                    fail("Replies should go to sendSynchronous()");
+                    return null;
+                }
+            };
+        
+        final FCPPluginConnectionImpl connection = FCPPluginConnectionImpl.constructForUnitTest(
+            server, client);
+        
+        final AtomicBoolean failure = new AtomicBoolean(false);
+        final Thread[] threads = new Thread[threadCount];
+        for(int i=0; i < threadCount; ++i) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        final FCPPluginMessage reply = connection.sendSynchronous(
+                            SendDirection.ToServer, constructIndexedMessage(index),
+                            TimeUnit.SECONDS.toNanos(10));
+                        
+                        if(!Integer.toString(index).equals(reply.params.get("replyToIndex")))
+                            failure.set(true);
+                    } catch (IOException e) {
+                        failure.set(true);
+                    } catch (InterruptedException e) {
+                        failure.set(true);
+                    }
+                }
+            });
+        }
+        for(int i=0; i < threadCount; ++i)
+            threads[i].start();
+        for(int i=0; i < threadCount; ++i)
+            threads[i].join();
+        
+        assertFalse(failure.get());
+        assertEquals(threadCount, server.handled.size());
+        assertEquals(0, connection.getSendSynchronousCount());
+    }
+
 }
@@ -0,0 +1,50 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public final class FCPPluginMessageStatsTest {
+
+    /** Counts messages for several plugins from several threads at once. */
+    @Test
+    public final void testConcurrentCounting() throws InterruptedException {
+        final FCPPluginMessageStats stats = new FCPPluginMessageStats();
+        final int threadCount = 8;
+        final int messages = 10000;
+        final Thread[] threads = new Thread[threadCount];
+        for(int i=0; i < threadCount; ++i) {
+            final String plugin = "plugin" + (i % 2);
+            threads[i] = new Thread() {
+                @Override public void run() {
+                    for(int j=1; j <= messages; ++j) {
+                        stats.delivered(plugin, j, 2);
+                        if(j % 10 == 0)
+                            stats.rejected(plugin);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads)
+            thread.join();
+        
+        final Map<String, FCPPluginMessageStats.Stats> all = stats.getStats();
+        assertEquals(2, all.size());
+        for(FCPPluginMessageStats.Stats s : all.values()) {
+            final long perPlugin = (long) messages * threadCount / 2;
+            assertEquals(perPlugin, s.delivered);
+            assertEquals(perPlugin / 10, s.rejected);
+            assertEquals(messages, s.maxLatencyNanos);
+            assertEquals(perPlugin * 2, s.handlingNanos);
+            assertEquals((long) messages * (messages + 1) / 2 * threadCount / 2, s.latencyNanos);
+        }
+        assertNull(stats.getStats("other"));
+    }
+
+}
@@ -0,0 +1,418 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+import freenet.support.io.LineReadingInputStream;
+
+public class FCPSelectorTest {
+
+	private ServerSocketChannel server;
+	private FCPSelector selector;
+
+	/** Replies with the message name, and the data sent, if any. Pause pauses the connection.
+	 * Upload writes the data to the file, and Download sends the file. */
+	private static class EchoHandler implements Runnable {
+
+		FCPSelector.Connection connection;
+		File file;
+		/** Copy Upload and Download data through streams, as a threaded connection does. */
+		boolean streams;
+		private LineReadingInputStream lis;
+		int runs;
+
+		@Override
+		public void run() {
+			synchronized(this) {
+				runs++;
+			}
+			try {
+				if(lis == null)
+					lis = new LineReadingInputStream(connection.getInputStream());
+				while(true) {
+					String name = lis.readLine(128, 128, true);
+					if(name == null) break;
+					if(name.isEmpty()) {
+						// Between messages.
+						if(connection.release())
+							return;
+						continue;
+					}
+					SimpleFieldSet fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+					String reply = name;
+					if(name.equals("Upload") && streams) {
+						OutputStream os = new FileOutputStream(file);
+						try {
+							FileUtil.copy(lis, os, fs.getLong("DataLength"));
+						} finally {
+							os.close();
+						}
+						reply += ":" + file.length();
+					} else if(name.equals("Upload")) {
+						FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+						try {
+							connection.transferTo(fc, 0, fs.getLong("DataLength"));
+						} finally {
+							fc.close();
+						}
+						reply += ":" + file.length();
+					} else if(name.equals("Download")) {
+						OutputStream os = connection.getOutputStream();
+						os.write(("Download:" + file.length() + "\n").getBytes(StandardCharsets.ISO_8859_1));
+						if(streams) {
+							OutputStream bos = new BufferedOutputStream(os, 4096);
+							InputStream is = new FileInputStream(file);
+							try {
+								FileUtil.copy(is, bos, file.length());
+							} finally {
+								is.close();
+							}
+							bos.flush();
+						} else {
+							FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+							try {
+								connection.transferFrom(fc, 0, file.length());
+							} finally {
+								fc.close();
+							}
+						}
+						if(connection.release())
+							return;
+						continue;
+					} else if("Data".equals(fs.getEndMarker())) {
+						byte[] data = new byte[fs.getInt("DataLength")];
+						int read = 0;
+						while(read < data.length) {
+							int x = lis.read(data, read, data.length - read);
+							if(x < 0) throw new IOException("EOF");
+							read += x;
+						}
+						reply += ":" + new String(data, StandardCharsets.ISO_8859_1);
+					}
+					OutputStream os = connection.getOutputStream();
+					os.write((reply + "\n").getBytes(StandardCharsets.ISO_8859_1));
+					if(name.equals("Pause") && connection.pause())
+						return;
+					if(connection.release())
+						return;
+				}
+			} catch (Exception e) {
+				// Closed.
+			}
+			connection.close();
+		}
+
+		synchronized int getRuns() {
+			return runs;
+		}
+
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		selector = new FCPSelector(new PooledExecutor());
+		selector.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		selector.close();
+		server.close();
+	}
+
+	private Socket connect(EchoHandler handler) throws IOException {
+		Socket s = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		s.setSoTimeout(10000);
+		handler.connection = selector.add(server.accept(), handler);
+		handler.connection.start();
+		return s;
+	}
+
+	private static void send(Socket s, String data) throws IOException {
+		s.getOutputStream().write(data.getBytes(StandardCharsets.ISO_8859_1));
+		s.getOutputStream().flush();
+	}
+
+	private static String readLine(Socket s) throws IOException {
+		InputStream is = s.getInputStream();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		while(true) {
+			int x = is.read();
+			assertTrue("Connection closed", x >= 0);
+			if(x == '\n') return new String(baos.toByteArray(), StandardCharsets.ISO_8859_1);
+			baos.write(x);
+		}
+	}
+
+	private void waitFor(String what, Condition condition) throws InterruptedException {
+		for(int i=0;i<1000;i++) {
+			if(condition.check()) return;
+			Thread.sleep(10);
+		}
+		fail("Timed out waiting for "+what);
+	}
+
+	private interface Condition {
+		boolean check();
+	}
+
+	@Test
+	public void testMessages() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		Socket s = connect(handler);
+		send(s, "Hello\nName=test\nEndMessage\nPut\nDataLength=5\nData\nhello\nGet\r\nIdentifier=x\r\nEndMessage\r\n");
+		assertEquals("Hello", readLine(s));
+		assertEquals("Put:hello", readLine(s));
+		assertEquals("Get", readLine(s));
+		assertEquals(1, selector.getOpenConnections());
+		s.close();
+		waitFor("close", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getOpenConnections() == 0;
+			}
+		});
+	}
+
+	@Test
+	public void testPartialMessage() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		Socket s = connect(handler);
+		String message = "ClientGet\nURI=KSK@test\nIdentifier=test\nEndMessage\n";
+		for(int i=0;i<message.length();i++) {
+			send(s, message.substring(i, i+1));
+			if(i < message.length() - 1) {
+				Thread.sleep(1);
+				assertEquals(0, handler.getRuns());
+			}
+		}
+		assertEquals("ClientGet", readLine(s));
+		s.close();
+	}
+
+	@Test
+	public void testBigData() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		Socket s = connect(handler);
+		char[] data = new char[FCPSelector.BUFFER_SIZE * 3];
+		Arrays.fill(data, 'x');
+		String big = new String(data);
+		send(s, "Put\nDataLength=" + big.length() + "\nData\n" + big + "Get\nEndMessage\n");
+		assertEquals("Put:" + big, readLine(s));
+		assertEquals("Get", readLine(s));
+		s.close();
+	}
+
+	@Test
+	public void testTransfer() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		handler.file = File.createTempFile("fcpselectortest", ".tmp");
+		try {
+			Socket s = connect(handler);
+			byte[] data = new byte[FCPSelector.BUFFER_SIZE * 5 + 123];
+			new Random(1).nextBytes(data);
+			// Some of the data will be in the buffer with the message.
+			ByteArrayOutputStream upload = new ByteArrayOutputStream();
+			upload.write(("Upload\nDataLength=" + data.length + "\nData\n").getBytes(StandardCharsets.ISO_8859_1));
+			upload.write(data);
+			upload.write("Get\nEndMessage\n".getBytes(StandardCharsets.ISO_8859_1));
+			s.getOutputStream().write(upload.toByteArray());
+			s.getOutputStream().flush();
+			assertEquals("Upload:" + data.length, readLine(s));
+			assertEquals("Get", readLine(s));
+			assertArrayEquals(data, Files.readAllBytes(handler.file.toPath()));
+			assertEquals(data.length, handler.connection.getReceivedDirect());
+			send(s, "Download\nEndMessage\n");
+			assertEquals("Download:" + data.length, readLine(s));
+			byte[] received = new byte[data.length];
+			int read = 0;
+			while(read < received.length) {
+				int x = s.getInputStream().read(received, read, received.length - read);
+				assertTrue(x > 0);
+				read += x;
+			}
+			assertArrayEquals(data, received);
+			assertEquals(data.length, handler.connection.getSentDirect());
+			s.close();
+		} finally {
+			handler.file.delete();
+		}
+	}
+
+	/** Local upload and download throughput, copying through streams and transferring 
+	 * directly between the socket and the file. */
+	@Test
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK)
+			return;
+		final int size = 256*1024*1024;
+		final int rounds = 5;
+		byte[] buf = new byte[256*1024];
+		new Random(1).nextBytes(buf);
+		for(boolean streams : new boolean[] { true, false, true, false }) {
+			EchoHandler handler = new EchoHandler();
+			handler.streams = streams;
+			handler.file = File.createTempFile("fcpselectortest", ".tmp");
+			try {
+				Socket s = connect(handler);
+				long uploadTime = 0;
+				long downloadTime = 0;
+				for(int i=0;i<rounds;i++) {
+					long start = System.nanoTime();
+					send(s, "Upload\nDataLength=" + size + "\nData\n");
+					for(int written = 0; written < size; written += buf.length)
+						s.getOutputStream().write(buf, 0, Math.min(buf.length, size - written));
+					assertEquals("Upload:" + size, readLine(s));
+					uploadTime += System.nanoTime() - start;
+					start = System.nanoTime();
+					send(s, "Download\nEndMessage\n");
+					assertEquals("Download:" + size, readLine(s));
+					for(int read = 0; read < size;) {
+						int x = s.getInputStream().read(buf, 0, Math.min(buf.length, size - read));
+						assertTrue(x > 0);
+						read += x;
+					}
+					downloadTime += System.nanoTime() - start;
+				}
+				s.close();
+				double mb = (double) size * rounds / (1024 * 1024);
+				System.out.println((streams ? "Streams: " : "Direct:  ") +
+						"upload " + (int) (mb / (uploadTime / 1e9)) + " MB/s, download " +
+						(int) (mb / (downloadTime / 1e9)) + " MB/s");
+			} finally {
+				handler.file.delete();
+			}
+		}
+	}
+
+	/** Replies with where each binary frame was read from, and its length. */
+	private static class FrameHandler extends EchoHandler {
+
+		@Override
+		public void run() {
+			synchronized(this) {
+				runs++;
+			}
+			try {
+				while(true) {
+					ByteBuffer frame = connection.readMessage();
+					String reply;
+					if(frame != null) {
+						reply = "buffer:" + frame.remaining();
+					} else {
+						// Too big for the buffer.
+						DataInputStream dis = new DataInputStream(connection.getInputStream());
+						byte[] buf = new byte[dis.readInt()];
+						dis.readFully(buf);
+						reply = "stream:" + buf.length;
+					}
+					connection.getOutputStream().write((reply + "\n").getBytes(StandardCharsets.ISO_8859_1));
+					if(connection.release())
+						return;
+				}
+			} catch (Exception e) {
+				// Closed.
+			}
+			connection.close();
+		}
+
+	}
+
+	private static byte[] frame(int length) {
+		return ByteBuffer.allocate(4 + length).putInt(length).array();
+	}
+
+	@Test
+	public void testBinaryFrames() throws Exception {
+		EchoHandler handler = new FrameHandler();
+		Socket s = connect(handler);
+		handler.connection.setBinaryFraming();
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frames.write(frame(10));
+		frames.write(frame(FCPSelector.BUFFER_SIZE * 2));
+		frames.write(frame(5));
+		s.getOutputStream().write(frames.toByteArray());
+		assertEquals("buffer:10", readLine(s));
+		assertEquals("stream:" + FCPSelector.BUFFER_SIZE * 2, readLine(s));
+		assertEquals("buffer:5", readLine(s));
+		// Not run until the whole frame has arrived.
+		byte[] frame = frame(3);
+		int runs = handler.getRuns();
+		for(int i=0;i<frame.length;i++) {
+			s.getOutputStream().write(frame[i]);
+			if(i < frame.length - 1) {
+				Thread.sleep(1);
+				assertEquals(runs, handler.getRuns());
+			}
+		}
+		assertEquals("buffer:3", readLine(s));
+		s.close();
+	}
+
+	@Test
+	public void testPause() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		Socket s = connect(handler);
+		send(s, "Pause\nEndMessage\nAfter\nEndMessage\n");
+		assertEquals("Pause", readLine(s));
+		Thread.sleep(100);
+		assertTrue(handler.connection.isPaused());
+		assertEquals(0, s.getInputStream().available());
+		assertEquals(1, handler.getRuns());
+		handler.connection.resume();
+		assertEquals("After", readLine(s));
+		// Still usable afterwards.
+		send(s, "Again\nEndMessage\n");
+		assertEquals("Again", readLine(s));
+		s.close();
+	}
+
+	@Test
+	public void testCloseWhilePaused() throws Exception {
+		final EchoHandler handler = new EchoHandler();
+		Socket s = connect(handler);
+		send(s, "Pause\nEndMessage\n");
+		assertEquals("Pause", readLine(s));
+		waitFor("pause", new Condition() {
+			@Override
+			public boolean check() {
+				return handler.connection.isPaused();
+			}
+		});
+		handler.connection.close();
+		assertEquals(-1, s.getInputStream().read());
+		assertEquals(0, selector.getOpenConnections());
+		s.close();
+	}
+
+}
@@ -0,0 +1,187 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.client.async.ClientRequester;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+import freenet.support.SimpleFieldSet;
+
+public class ListPersistentRequestsMessageTest {
+
+	private RequestStatusCache reboot;
+	private RequestStatusCache forever;
+	/** The client's reboot and forever queues, then the global ones, if watching them. */
+	private PersistentRequestClient[] clients;
+
+	@Before
+	public void setUp() throws Exception {
+		PersistentRequestRoot root = new PersistentRequestRoot();
+		clients = new PersistentRequestClient[] {
+			new PersistentRequestClient("test", null, false, null, Persistence.REBOOT, null),
+			root.registerForeverClient("test", null), null, null
+		};
+		reboot = clients[0].getRequestStatusCache();
+		forever = clients[1].getRequestStatusCache();
+		for(int i=0;i<5;i++)
+			reboot.addDownload(makeDownload("reboot" + i, Persistence.REBOOT,
+					i % 2 == 0 ? RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS : RequestStarter.INTERACTIVE_PRIORITY_CLASS));
+		for(int i=0;i<5;i++)
+			forever.addDownload(makeDownload("forever" + i, Persistence.FOREVER,
+					RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS));
+		forever.finishedDownload("forever1", true, 1024, "text/plain", null, null, null, null, false);
+	}
+
+	private static DownloadRequestStatus makeDownload(String identifier, Persistence persistence,
+			short priority) throws Exception {
+		return new DownloadRequestStatus(identifier, persistence, true, false, false,
+				100, 50, 10, null, 0, 0, null, false, priority,
+				null, null, -1, null, null, null, new FreenetURI("KSK@" + identifier), null, null,
+				false, null, true, false);
+	}
+
+	private static ListPersistentRequestsMessage message(String... fields) throws MessageInvalidException {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", "list");
+		for(int i=0;i<fields.length;i+=2)
+			fs.putSingle(fields[i], fields[i+1]);
+		return new ListPersistentRequestsMessage(fs);
+	}
+
+	/** Check the summaries on a page, and return the end message. */
+	private SimpleFieldSet checkPage(ListPersistentRequestsMessage msg, String... identifiers) {
+		List<FCPMessage> messages = msg.listPage(clients);
+		assertEquals(identifiers.length + 1, messages.size());
+		for(int i=0;i<identifiers.length;i++) {
+			FCPMessage summary = messages.get(i);
+			assertEquals(PersistentRequestSummaryMessage.NAME, summary.getName());
+			SimpleFieldSet fs = summary.getFieldSet();
+			assertEquals(identifiers[i], fs.get("Identifier"));
+			assertEquals("list", fs.get("ListRequestIdentifier"));
+		}
+		FCPMessage end = messages.get(identifiers.length);
+		assertEquals("EndListPersistentRequests", end.getName());
+		return end.getFieldSet();
+	}
+
+	@Test
+	public void testPages() throws Exception {
+		SimpleFieldSet end = checkPage(message("MaxRequests", "3"), "reboot0", "reboot1", "reboot2");
+		assertTrue(end.getBoolean("HasMore", false));
+		// Crosses from one queue to the next.
+		end = checkPage(message("MaxRequests", "3", "Cursor", end.get("Cursor")),
+				"reboot3", "reboot4", "forever0");
+		assertTrue(end.getBoolean("HasMore", false));
+		end = checkPage(message("MaxRequests", "10", "Cursor", end.get("Cursor")),
+				"forever1", "forever2", "forever3", "forever4");
+		assertFalse(end.getBoolean("HasMore", true));
+		// Polling again only returns new requests.
+		String cursor = end.get("Cursor");
+		checkPage(message("Cursor", cursor));
+		reboot.addDownload(makeDownload("reboot5", Persistence.REBOOT, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS));
+		checkPage(message("Cursor", cursor), "reboot5");
+	}
+
+	@Test
+	public void testLastPageIsFull() throws Exception {
+		SimpleFieldSet end = checkPage(message("MaxRequests", "5"), "reboot0", "reboot1", "reboot2", "reboot3", "reboot4");
+		assertTrue(end.getBoolean("HasMore", false));
+		end = checkPage(message("MaxRequests", "5", "Cursor", end.get("Cursor")),
+				"forever0", "forever1", "forever2", "forever3", "forever4");
+		// Nothing on the global queues.
+		assertFalse(end.getBoolean("HasMore", true));
+	}
+
+	@Test
+	public void testGlobalQueue() throws Exception {
+		clients[2] = new PersistentRequestClient("Global Queue", null, true, null, Persistence.REBOOT, null);
+		clients[3] = new PersistentRequestRoot().getGlobalForeverClient();
+		clients[2].getRequestStatusCache().addDownload(
+				makeDownload("global0", Persistence.REBOOT, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS));
+		SimpleFieldSet end = checkPage(message("IdentifierPrefix", "forever", "MaxRequests", "5"),
+				"forever0", "forever1", "forever2", "forever3", "forever4");
+		assertFalse(end.getBoolean("HasMore", true));
+		end = checkPage(message("State", "running", "MaxRequests", "9"),
+				"reboot0", "reboot1", "reboot2", "reboot3", "reboot4", "forever0", "forever2", "forever3", "forever4");
+		assertTrue(end.getBoolean("HasMore", false));
+		end = checkPage(message("State", "running", "Cursor", end.get("Cursor")), "global0");
+		assertFalse(end.getBoolean("HasMore", true));
+		List<FCPMessage> messages = message("IdentifierPrefix", "global").listPage(clients);
+		assertTrue(messages.get(0).getFieldSet().getBoolean("Global", false));
+	}
+
+	@Test
+	public void testFilters() throws Exception {
+		checkPage(message("State", "finished"), "forever1");
+		checkPage(message("State", "Running", "IdentifierPrefix", "forever"),
+				"forever0", "forever2", "forever3", "forever4");
+		checkPage(message("PriorityClass", Short.toString(RequestStarter.INTERACTIVE_PRIORITY_CLASS)),
+				"reboot1", "reboot3");
+		SimpleFieldSet end = checkPage(message("IdentifierPrefix", "reboot", "MaxRequests", "2"),
+				"reboot0", "reboot1");
+		end = checkPage(message("IdentifierPrefix", "reboot", "MaxRequests", "2", "Cursor", end.get("Cursor")),
+				"reboot2", "reboot3");
+		end = checkPage(message("IdentifierPrefix", "reboot", "MaxRequests", "2", "Cursor", end.get("Cursor")),
+				"reboot4");
+		assertFalse(end.getBoolean("HasMore", true));
+	}
+
+	@Test
+	public void testSummary() throws Exception {
+		List<FCPMessage> messages = message("State", "finished").listPage(clients);
+		SimpleFieldSet fs = messages.get(0).getFieldSet();
+		assertEquals("Get", fs.get("Type"));
+		assertEquals("finished", fs.get("State"));
+		assertEquals("forever", fs.get("Persistence"));
+		assertEquals("KSK@forever1", fs.get("URI"));
+		assertEquals(1024, fs.getLong("DataLength"));
+		assertEquals(100, fs.getInt("Total"));
+		assertEquals(10, fs.getInt("Succeeded"));
+		assertFalse(fs.getBoolean("Global", true));
+	}
+
+	@Test
+	public void testInvalid() {
+		checkInvalid("MaxRequests", "0");
+		checkInvalid("MaxRequests", Integer.toString(ListPersistentRequestsMessage.MAX_PAGE_SIZE + 1));
+		checkInvalid("MaxRequests", "many");
+		checkInvalid("State", "sleeping");
+		checkInvalid("PriorityClass", "100");
+		checkInvalid("Cursor", "1");
+		checkInvalid("Cursor", "1:2");
+		checkInvalid("Cursor", "1:2:3:-4");
+	}
+
+	private static void checkInvalid(String name, String value) {
+		try {
+			message(name, value);
+			fail();
+		} catch (MessageInvalidException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testRequesterCounts() throws Exception {
+		RequestStatus status = forever.getStatus("forever0");
+		SimpleFieldSet fs = new PersistentRequestSummaryMessage(status, null, false, "list").getFieldSet();
+		assertNull(fs.get("KeysCheckedInStore"));
+		assertNull(fs.get("CoalescedProgress"));
+		ClientRequester requester = mock(ClientRequester.class);
+		when(requester.getStoreKeysChecked()).thenReturn(100L);
+		when(requester.getStoreKeysFound()).thenReturn(7L);
+		when(requester.getSuppressedProgressEvents()).thenReturn(12L);
+		fs = new PersistentRequestSummaryMessage(status, requester, false, "list").getFieldSet();
+		assertEquals(100, fs.getLong("KeysCheckedInStore"));
+		assertEquals(7, fs.getLong("KeysFoundInStore"));
+		assertEquals(12, fs.getLong("CoalescedProgress"));
+	}
+
+}
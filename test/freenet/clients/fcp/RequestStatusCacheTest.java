@@ -0,0 +1,183 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.clients.fcp.ClientPut.COMPRESS_STATE;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.clients.fcp.RequestStatusCache.State;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+
+public class RequestStatusCacheTest {
+
+	private RequestStatusCache cache;
+	private final List<String> changed = new ArrayList<String>();
+
+	private final RequestStatusCache.Listener listener = new RequestStatusCache.Listener() {
+
+		@Override
+		public void onStatusChanged(String identifier) {
+			// Must be able to call back into the cache.
+			assertFalse(Thread.holdsLock(cache));
+			changed.add(identifier);
+		}
+
+	};
+
+	@Before
+	public void setUp() throws Exception {
+		cache = new RequestStatusCache();
+		cache.addDownload(makeDownload("one"));
+		cache.addDownload(makeDownload("two"));
+	}
+
+	private static DownloadRequestStatus makeDownload(String identifier) throws Exception {
+		return new DownloadRequestStatus(identifier, Persistence.FOREVER, true, false, false,
+				100, 50, 0, null, 0, 0, null, false, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS,
+				null, null, -1, null, null, null, new FreenetURI("KSK@" + identifier), null, null,
+				false, null, true, false);
+	}
+
+	private static UploadFileRequestStatus makeUpload(String identifier) throws Exception {
+		return new UploadFileRequestStatus(identifier, Persistence.FOREVER, true, false, false,
+				100, 50, 0, null, 0, 0, null, false, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS,
+				null, new FreenetURI("CHK@"), null, null, null, 1024, "text/plain", null,
+				COMPRESS_STATE.WORKING);
+	}
+
+	private static SplitfileProgressEvent progress(int fetched) {
+		return new SplitfileProgressEvent(100, fetched, null, 0, 0, null, 50, 50, true);
+	}
+
+	@Test
+	public void testGetStatus() {
+		RequestStatus status = cache.getStatus("one");
+		assertEquals("one", status.getIdentifier());
+		assertEquals(0, status.getFetchedBlocks());
+		cache.updateStatus("one", progress(10));
+		// A copy, not affected by later changes.
+		assertEquals(0, status.getFetchedBlocks());
+		assertEquals(10, cache.getStatus("one").getFetchedBlocks());
+		assertNotSame(cache.getStatus("one"), cache.getStatus("one"));
+		assertNull(cache.getStatus("three"));
+		cache.removeByIdentifier("one");
+		assertNull(cache.getStatus("one"));
+		assertNotNull(cache.getStatus("two"));
+	}
+
+	@Test
+	public void testListener() {
+		cache.addListener(listener);
+		cache.updateStatus("one", progress(10));
+		cache.updateStarted("two", false);
+		cache.finishedDownload("one", true, 1024, "text/plain", null, null, null, null, false);
+		assertEquals(3, changed.size());
+		assertEquals("one", changed.get(0));
+		assertEquals("two", changed.get(1));
+		assertEquals("one", changed.get(2));
+		// Unknown requests are ignored.
+		cache.updateStatus("three", progress(10));
+		assertEquals(3, changed.size());
+		cache.removeListener(listener);
+		cache.updateStatus("two", progress(20));
+		assertEquals(3, changed.size());
+	}
+
+	@Test
+	public void testByURI() throws Exception {
+		FreenetURI one = new FreenetURI("KSK@one");
+		assertEquals(1, cache.getByURI(one).size());
+		assertEquals("one", cache.getByURI(one).get(0).getIdentifier());
+		cache.addDownload(makeDownload("one"));
+		assertEquals(1, cache.getByURI(one).size());
+		// Following a redirect moves it to the new URI.
+		FreenetURI redirect = new FreenetURI("KSK@redirect");
+		cache.updateStarted("one", redirect);
+		assertTrue(cache.getByURI(one).isEmpty());
+		assertEquals("one", cache.getByURI(redirect).get(0).getIdentifier());
+		// Uploads are indexed by their final URI once they have one.
+		cache.addUpload(makeUpload("upload"));
+		FreenetURI inserted = new FreenetURI("KSK@inserted");
+		assertTrue(cache.getByURI(inserted).isEmpty());
+		cache.gotFinalURI("upload", inserted);
+		assertEquals("upload", cache.getByURI(inserted).get(0).getIdentifier());
+		cache.removeByIdentifier("upload");
+		cache.removeByIdentifier("one");
+		assertTrue(cache.getByURI(inserted).isEmpty());
+		assertTrue(cache.getByURI(redirect).isEmpty());
+		assertEquals(1, cache.getByURI(new FreenetURI("KSK@two")).size());
+	}
+
+	@Test
+	public void testState() throws Exception {
+		assertEquals(2, cache.count(State.RUNNING));
+		assertEquals(2, cache.count(null));
+		cache.finishedDownload("one", true, 1024, "text/plain", null, null, null, null, false);
+		cache.finishedDownload("two", false, 0, null, null, null, null, null, false);
+		assertEquals(0, cache.count(State.RUNNING));
+		assertEquals(1, cache.count(State.FINISHED));
+		assertEquals(1, cache.count(State.FAILED));
+		assertEquals("two", cache.getPage(State.FAILED, 0, 10).statuses.get(0).getIdentifier());
+		cache.updateStarted("two", false);
+		assertEquals(1, cache.count(State.RUNNING));
+		assertEquals(0, cache.count(State.FAILED));
+		cache.removeByIdentifier("one");
+		assertEquals(0, cache.count(State.FINISHED));
+		assertEquals(1, cache.count(null));
+	}
+
+	@Test
+	public void testPages() throws Exception {
+		cache.clear();
+		for(int i=0;i<1000;i++) {
+			cache.addDownload(makeDownload("request" + i));
+			if(i % 3 == 0)
+				cache.finishedDownload("request" + i, true, 1024, "text/plain", null, null, null,
+						null, false);
+		}
+		// All pages, in the order the requests were added.
+		long cursor = 0;
+		int seen = 0;
+		while(true) {
+			RequestStatusCache.Page page = cache.getPage(null, cursor, 64);
+			for(RequestStatus status : page.statuses)
+				assertEquals("request" + seen++, status.getIdentifier());
+			cursor = page.cursor;
+			if(!page.hasMore) break;
+			assertEquals(64, page.statuses.size());
+		}
+		assertEquals(1000, seen);
+		// Only finished requests.
+		cursor = 0;
+		seen = 0;
+		while(true) {
+			RequestStatusCache.Page page = cache.getPage(State.FINISHED, cursor, 100);
+			for(RequestStatus status : page.statuses) {
+				assertEquals("request" + seen * 3, status.getIdentifier());
+				assertTrue(status.hasFinished());
+				seen++;
+			}
+			cursor = page.cursor;
+			if(!page.hasMore) break;
+		}
+		assertEquals(334, seen);
+		// Re-adding a request moves it to the end.
+		cache.addDownload(makeDownload("request0"));
+		RequestStatusCache.Page page = cache.getPage(null, 0, 1);
+		assertEquals("request1", page.statuses.get(0).getIdentifier());
+		assertTrue(page.hasMore);
+		page = cache.getPage(null, cursor, 10);
+		assertEquals(1, page.statuses.size());
+		assertEquals("request0", page.statuses.get(0).getIdentifier());
+		assertFalse(page.hasMore);
+		assertTrue(cache.getPage(null, page.cursor, 10).statuses.isEmpty());
+	}
+
+}
@@ -0,0 +1,352 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.clients.http.ToadletContextImpl.ConnectionState;
+import freenet.support.MultiValueTable;
+import freenet.support.PooledExecutor;
+import freenet.support.io.TooLongException;
+
+public class HTTPSelectorTest {
+
+	private static final int MAX_HANDLERS = 4;
+
+	private ServerSocketChannel server;
+	private HTTPSelector selector;
+	private final TestHandler handler = new TestHandler();
+
+	/** Replies with the path, and the data sent, if any. /wait suspends the first time, and
+	 * counts the connection being closed while suspended in closedWhileSuspended. */
+	private static class TestHandler implements HTTPSelector.RequestHandler {
+
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Runnable resume;
+		int suspended;
+		int closed;
+		int closedWhileSuspended;
+
+		@Override
+		public ConnectionState handle(Socket sock, InputStream is, String[] requestLine,
+				MultiValueTable<String, String> headers, HTTPSelector.Resumer resume) throws Throwable {
+			String path = requestLine[1];
+			if(path.equals("/wait")) {
+				synchronized(this) {
+					if(this.resume == null) {
+						this.resume = resume;
+						suspended++;
+						resume.whenClosed(new Runnable() {
+
+							@Override
+							public void run() {
+								synchronized(TestHandler.this) {
+									closedWhileSuspended++;
+								}
+							}
+
+						});
+						notifyAll();
+						return ConnectionState.SUSPENDED;
+					}
+				}
+			}
+			String reply = path;
+			String length = headers.get("content-length");
+			if(length != null) {
+				byte[] data = new byte[Integer.parseInt(length)];
+				int read = 0;
+				while(read < data.length) {
+					int x = is.read(data, read, data.length - read);
+					if(x < 0) throw new IOException("EOF");
+					read += x;
+				}
+				reply += ":" + new String(data, StandardCharsets.ISO_8859_1);
+			}
+			byte[] replyBytes = reply.getBytes(StandardCharsets.ISO_8859_1);
+			OutputStream os = sock.getOutputStream();
+			os.write(("HTTP/1.1 200 OK\r\nContent-Length: " + replyBytes.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			os.write(replyBytes);
+			os.flush();
+			return path.equals("/close") ? ConnectionState.CLOSE : ConnectionState.KEEP_ALIVE;
+		}
+
+		@Override
+		public synchronized void handleError(Socket sock, Throwable t) {
+			errors.add(t);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void closed() {
+			closed++;
+		}
+
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		selector = new HTTPSelector(handler, new PooledExecutor(), MAX_HANDLERS);
+		selector.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		selector.close();
+		server.close();
+	}
+
+	private Socket connect() throws IOException {
+		Socket s = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		s.setSoTimeout(10000);
+		selector.add(server.accept());
+		return s;
+	}
+
+	private static void send(Socket s, String data) throws IOException {
+		s.getOutputStream().write(data.getBytes(StandardCharsets.ISO_8859_1));
+		s.getOutputStream().flush();
+	}
+
+	/** Read one reply and return its content. */
+	private static String readReply(Socket s) throws IOException {
+		InputStream is = s.getInputStream();
+		String head = readHead(is);
+		assertTrue(head, head.startsWith("HTTP/1.1 200 OK\r\n"));
+		int length = Integer.parseInt(head.substring(head.indexOf("Content-Length: ") + 16).trim());
+		byte[] data = new byte[length];
+		int read = 0;
+		while(read < length) {
+			int x = is.read(data, read, length - read);
+			assertTrue(x > 0);
+			read += x;
+		}
+		return new String(data, StandardCharsets.ISO_8859_1);
+	}
+
+	private static String readHead(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		while(true) {
+			int x = is.read();
+			assertTrue("Connection closed", x >= 0);
+			baos.write(x);
+			String s = new String(baos.toByteArray(), StandardCharsets.ISO_8859_1);
+			if(s.endsWith("\r\n\r\n")) return s;
+		}
+	}
+
+	private void waitFor(String what, Condition condition) throws InterruptedException {
+		for(int i=0;i<1000;i++) {
+			if(condition.check()) return;
+			Thread.sleep(10);
+		}
+		fail("Timed out waiting for "+what);
+	}
+
+	private interface Condition {
+		boolean check();
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		Socket s = connect();
+		send(s, "GET /one HTTP/1.1\r\nHost: localhost\r\n\r\n");
+		assertEquals("/one", readReply(s));
+		send(s, "POST /two HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+		assertEquals("/two:hello", readReply(s));
+		assertEquals(1, selector.getOpenConnections());
+		s.close();
+		waitFor("close", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getOpenConnections() == 0;
+			}
+		});
+		assertEquals(2, selector.getRequests());
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		Socket s = connect();
+		send(s, "GET /one HTTP/1.1\r\n\r\nPOST /two HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc\r\nGET /three HTTP/1.1\n\n");
+		assertEquals("/one", readReply(s));
+		assertEquals("/two:abc", readReply(s));
+		assertEquals("/three", readReply(s));
+		send(s, "GET /close HTTP/1.1\r\n\r\n");
+		assertEquals("/close", readReply(s));
+		assertEquals(-1, s.getInputStream().read());
+		s.close();
+	}
+
+	@Test
+	public void testPartialHeaders() throws Exception {
+		Socket s = connect();
+		String request = "GET /slow HTTP/1.1\r\nHost: localhost\r\nUser-Agent: test\r\n\r\n";
+		for(int i=0;i<request.length();i++) {
+			send(s, request.substring(i, i+1));
+			if(i < request.length() - 1)
+				assertEquals(0, selector.getRequests());
+		}
+		assertEquals("/slow", readReply(s));
+		s.close();
+	}
+
+	@Test
+	public void testIdleConnectionsDontUseHandlers() throws Exception {
+		List<Socket> sockets = new ArrayList<Socket>();
+		for(int i=0;i<MAX_HANDLERS*5;i++)
+			sockets.add(connect());
+		assertEquals(MAX_HANDLERS*5, selector.getOpenConnections());
+		assertEquals(0, selector.getRunningHandlers());
+		for(int i=0;i<sockets.size();i++)
+			send(sockets.get(i), "GET /" + i + " HTTP/1.1\r\n\r\n");
+		for(int i=0;i<sockets.size();i++)
+			assertEquals("/" + i, readReply(sockets.get(i)));
+		assertTrue(selector.getRunningHandlers() <= MAX_HANDLERS);
+		for(Socket s : sockets)
+			s.close();
+	}
+
+	@Test
+	public void testSuspend() throws Exception {
+		Socket s = connect();
+		send(s, "GET /wait HTTP/1.1\r\n\r\n");
+		waitFor("suspend", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getSuspendedRequests() == 1;
+			}
+		});
+		assertEquals(0, selector.getRunningHandlers());
+		assertEquals(0, s.getInputStream().available());
+		handler.resume.run();
+		assertEquals("/wait", readReply(s));
+		assertEquals(0, selector.getSuspendedRequests());
+		assertEquals(1, handler.suspended);
+		// Still usable afterwards.
+		send(s, "GET /after HTTP/1.1\r\n\r\n");
+		assertEquals("/after", readReply(s));
+		s.close();
+		waitFor("close", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getOpenConnections() == 0;
+			}
+		});
+		// It was resumed, so it wasn't closed while suspended.
+		synchronized(handler) {
+			assertEquals(0, handler.closedWhileSuspended);
+		}
+	}
+
+	@Test
+	public void testSuspendedClientCloses() throws Exception {
+		Socket s = connect();
+		send(s, "GET /wait HTTP/1.1\r\n\r\n");
+		waitFor("suspend", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getSuspendedRequests() == 1;
+			}
+		});
+		s.close();
+		waitFor("close", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getOpenConnections() == 0;
+			}
+		});
+		assertEquals(0, selector.getSuspendedRequests());
+		synchronized(handler) {
+			assertEquals(1, handler.closed);
+			assertEquals(1, handler.closedWhileSuspended);
+		}
+		// Resuming it later does nothing.
+		handler.resume.run();
+		Thread.sleep(100);
+		assertEquals(1, selector.getRequests());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Socket idle = connect();
+		Socket suspended = connect();
+		send(suspended, "GET /wait HTTP/1.1\r\n\r\n");
+		waitFor("suspend", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getSuspendedRequests() == 1;
+			}
+		});
+		selector.close();
+		assertEquals(0, selector.getOpenConnections());
+		assertEquals(0, selector.getSuspendedRequests());
+		synchronized(handler) {
+			assertEquals(2, handler.closed);
+			assertEquals(1, handler.closedWhileSuspended);
+		}
+		assertEquals(-1, idle.getInputStream().read());
+		assertEquals(-1, suspended.getInputStream().read());
+		// Connections added afterwards are closed at once.
+		Socket late = connect();
+		assertEquals(-1, late.getInputStream().read());
+		synchronized(handler) {
+			assertEquals(3, handler.closed);
+		}
+		idle.close();
+		suspended.close();
+		late.close();
+	}
+
+	@Test
+	public void testHeadersTooLong() throws Exception {
+		Socket s = connect();
+		StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+		while(sb.length() <= HTTPSelector.MAX_HEAD_SIZE)
+			sb.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+		send(s, sb.toString());
+		synchronized(handler) {
+			while(handler.errors.isEmpty())
+				handler.wait(10000);
+			assertTrue(handler.errors.get(0) instanceof TooLongException);
+		}
+		waitFor("close", new Condition() {
+			@Override
+			public boolean check() {
+				return selector.getOpenConnections() == 0;
+			}
+		});
+		s.close();
+	}
+
+	@Test
+	public void testBadRequestLine() throws Exception {
+		Socket s = connect();
+		send(s, "NONSENSE\r\n\r\n");
+		synchronized(handler) {
+			while(handler.errors.isEmpty())
+				handler.wait(10000);
+			assertEquals(1, handler.errors.size());
+			assertTrue(handler.errors.get(0) instanceof ParseException);
+		}
+		s.close();
+	}
+
+}
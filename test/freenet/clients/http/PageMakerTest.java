@@ -0,0 +1,97 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.clients.http.PageMaker.RenderParameters;
+import freenet.clients.http.PageMaker.THEME;
+
+public class PageMakerTest {
+
+	private ToadletContext ctx;
+	private Toadlet toadlet;
+	private boolean linkEnabled;
+
+	@Before
+	public void setUp() {
+		ToadletContainer container = mock(ToadletContainer.class);
+		toadlet = mock(Toadlet.class);
+		when(toadlet.showAsToadlet(any(ToadletContext.class))).thenReturn(toadlet);
+		when(toadlet.path()).thenReturn("/queue/");
+		ctx = mock(ToadletContext.class);
+		when(ctx.isAllowedFullAccess()).thenReturn(true);
+		when(ctx.getContainer()).thenReturn(container);
+		when(ctx.activeToadlet()).thenReturn(toadlet);
+	}
+
+	private PageMaker makePageMaker() {
+		PageMaker pageMaker = new PageMaker(THEME.getDefault(), null);
+		pageMaker.addNavigationCategory("/", "FProxyToadlet.categoryBrowsing", "FProxyToadlet.categoryTitleBrowsing", null);
+		pageMaker.addNavigationLink("FProxyToadlet.categoryBrowsing", "/", "FProxyToadlet.welcomeTitle", "FProxyToadlet.welcome", false, null, null);
+		pageMaker.addNavigationCategory("/queue/", "FProxyToadlet.categoryQueue", "FProxyToadlet.categoryTitleQueue", null);
+		pageMaker.addNavigationLink("FProxyToadlet.categoryQueue", "/queue/", "FProxyToadlet.queueTitle", "FProxyToadlet.queue", false, null, null);
+		pageMaker.addNavigationLink("FProxyToadlet.categoryQueue", "/uploads/", "FProxyToadlet.uploadsTitle", "FProxyToadlet.uploads", true, new LinkEnabledCallback() {
+
+			@Override
+			public boolean isEnabled(ToadletContext ctx) {
+				return linkEnabled;
+			}
+
+		}, null);
+		return pageMaker;
+	}
+
+	private String render(PageMaker pageMaker) {
+		PageNode page = pageMaker.getPageNode("Test", ctx, new RenderParameters().renderStatus(false));
+		page.content.addChild("p", "content");
+		return page.outer.generate();
+	}
+
+	@Test
+	public void testCachedNavigationBarUnchanged() {
+		PageMaker pageMaker = makePageMaker();
+		String first = render(pageMaker);
+		assertTrue(first.contains("id=\"navlist\""));
+		assertTrue(first.contains("id=\"selected-subnavbar\""));
+		assertEquals(first, render(pageMaker));
+		assertEquals(first, render(makePageMaker()));
+	}
+
+	@Test
+	public void testMenuChanges() {
+		PageMaker pageMaker = makePageMaker();
+		assertFalse(render(pageMaker).contains("href=\"/downloads/\""));
+		pageMaker.addNavigationLink("FProxyToadlet.categoryQueue", "/downloads/", "FProxyToadlet.downloadsTitle", "FProxyToadlet.downloads", false, null, null);
+		assertTrue(render(pageMaker).contains("href=\"/downloads/\""));
+		pageMaker.removeNavigationLink("FProxyToadlet.categoryQueue", "FProxyToadlet.downloadsTitle");
+		assertFalse(render(pageMaker).contains("href=\"/downloads/\""));
+	}
+
+	@Test
+	public void testLinkEnabledAndAccess() {
+		PageMaker pageMaker = makePageMaker();
+		assertFalse(render(pageMaker).contains("href=\"/uploads/\""));
+		linkEnabled = true;
+		assertTrue(render(pageMaker).contains("href=\"/uploads/\""));
+		// Full access only.
+		when(ctx.isAllowedFullAccess()).thenReturn(false);
+		assertFalse(render(pageMaker).contains("href=\"/uploads/\""));
+	}
+
+	@Test
+	public void testActivePath() {
+		PageMaker pageMaker = makePageMaker();
+		String queue = render(pageMaker);
+		when(toadlet.path()).thenReturn("/");
+		String welcome = render(pageMaker);
+		assertFalse(queue.equals(welcome));
+		assertEquals(welcome, render(makePageMaker()));
+		when(toadlet.path()).thenReturn("/queue/");
+		assertEquals(queue, render(pageMaker));
+	}
+
+}
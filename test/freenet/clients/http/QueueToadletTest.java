@@ -0,0 +1,49 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+
+import java.net.URISyntaxException;
+
+import org.junit.Test;
+
+import freenet.support.api.HTTPRequest;
+
+public class QueueToadletTest {
+
+	private static HTTPRequest request(String query) throws URISyntaxException {
+		return new HTTPRequestImpl("/downloads/", query, "GET");
+	}
+
+	@Test
+	public void testSortLink() throws URISyntaxException {
+		assertEquals("?sortBy=id&reversed", QueueToadlet.sortLink(request(null), "id"));
+		assertEquals("?sortBy=size", QueueToadlet.sortLink(request("sortBy=id&reversed"), "size"));
+		// Keeps the filter and page size, but not the position in the tables.
+		assertEquals("?sortBy=progress&reversed&filter=a%20b%26c&pageSize=20",
+				QueueToadlet.sortLink(request("filter=a+b%26c&pageSize=20&offset-uncompleted-download=40"), "progress"));
+	}
+
+	@Test
+	public void testPageLink() throws URISyntaxException {
+		assertEquals("?offset-completed-disk=100", QueueToadlet.pageLink(request(null), "offset-completed-disk", 100));
+		String link = QueueToadlet.pageLink(request("sortBy=id&reversed&offset-completed-disk=100&offset-failed-download=200"), "offset-completed-disk", 0);
+		assertTrue(link, link.contains("sortBy=id"));
+		assertTrue(link, link.contains("&reversed"));
+		assertTrue(link, link.contains("offset-failed-download=200"));
+		assertTrue(link, link.endsWith("&offset-completed-disk=0"));
+		assertEquals(link.indexOf("offset-completed-disk"), link.lastIndexOf("offset-completed-disk"));
+		// MIME types are part of the parameter name for some tables.
+		assertEquals("?offset-failed-download-file-badmime-image%2bsvg=5",
+				QueueToadlet.pageLink(request(null), "offset-failed-download-file-badmime-image+svg", 5));
+	}
+
+	@Test
+	public void testPageSize() throws URISyntaxException {
+		assertEquals(QueueToadlet.DEFAULT_PAGE_SIZE, QueueToadlet.getPageSize(request(null)));
+		assertEquals(20, QueueToadlet.getPageSize(request("pageSize=20")));
+		assertEquals(QueueToadlet.DEFAULT_PAGE_SIZE, QueueToadlet.getPageSize(request("pageSize=0")));
+		assertEquals(QueueToadlet.DEFAULT_PAGE_SIZE, QueueToadlet.getPageSize(request("pageSize=junk")));
+		assertEquals(QueueToadlet.MAX_PAGE_SIZE, QueueToadlet.getPageSize(request("pageSize=1000000")));
+	}
+
+}
@@ -0,0 +1,96 @@
+package freenet.clients.http.updateableelements;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import freenet.support.Ticker;
+
+public class PushDataManagerTest {
+
+	private static final String REQUEST_ID = "request";
+
+	private Ticker ticker;
+	private PushDataManager pushDataManager;
+
+	/** Counts how many times the request has been woken. */
+	private static class Resume implements Runnable {
+
+		int woken;
+
+		@Override
+		public void run() {
+			woken++;
+		}
+
+	}
+
+	@Before
+	public void setUp() {
+		ticker = mock(Ticker.class);
+		pushDataManager = new PushDataManager(ticker);
+		BaseUpdateableElement element = mock(BaseUpdateableElement.class);
+		when(element.getUpdaterId(REQUEST_ID)).thenReturn("element");
+		pushDataManager.elementRendered(REQUEST_ID, element);
+	}
+
+	/** Suspend a request for notifications, and return the job that times it out. */
+	private Runnable suspend(Resume resume) {
+		assertFalse(pushDataManager.waitForNotification(REQUEST_ID, resume));
+		ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+		verify(ticker).queueTimedJob(timeout.capture(), anyString(), eq(PushDataManager.WAIT_TIMEOUT), eq(false), eq(false));
+		return timeout.getValue();
+	}
+
+	@Test
+	public void testWakeUp() {
+		Resume resume = new Resume();
+		Runnable timeout = suspend(resume);
+		pushDataManager.keepAliveReceived(REQUEST_ID);
+		assertEquals(1, resume.woken);
+		verify(ticker).removeQueuedJob(timeout);
+		// Already woken, so it doesn't time out.
+		timeout.run();
+		assertEquals(1, resume.woken);
+		assertFalse(pushDataManager.waitTimedOut(resume));
+	}
+
+	@Test
+	public void testWaitTimesOut() {
+		Resume resume = new Resume();
+		Runnable timeout = suspend(resume);
+		timeout.run();
+		assertEquals(1, resume.woken);
+		assertTrue(pushDataManager.waitTimedOut(resume));
+		assertFalse(pushDataManager.waitTimedOut(resume));
+		// No longer waiting.
+		pushDataManager.keepAliveReceived(REQUEST_ID);
+		assertEquals(1, resume.woken);
+	}
+
+	@Test
+	public void testCancelWait() {
+		Resume resume = new Resume();
+		Runnable timeout = suspend(resume);
+		pushDataManager.cancelWait(resume);
+		verify(ticker).removeQueuedJob(timeout);
+		pushDataManager.keepAliveReceived(REQUEST_ID);
+		timeout.run();
+		assertEquals(0, resume.woken);
+		assertFalse(pushDataManager.waitTimedOut(resume));
+	}
+
+	@Test
+	public void testCancelAfterTimeout() {
+		Resume resume = new Resume();
+		suspend(resume).run();
+		// The connection was closed before the request was handled again.
+		pushDataManager.cancelWait(resume);
+		assertFalse(pushDataManager.waitTimedOut(resume));
+	}
+
+}
@@ -0,0 +1,52 @@
+package freenet.clients.http.updateableelements;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RequestProgressElementTest {
+
+	/** Records which elements are updated. */
+	private static class RecordingPushDataManager extends PushDataManager {
+
+		final List<String> updated = new ArrayList<String>();
+
+		RecordingPushDataManager() {
+			super(null);
+		}
+
+		@Override
+		public synchronized void updateElement(String id) {
+			updated.add(id);
+		}
+
+	}
+
+	@Test
+	public void testOnlyShownRequestsUpdated() {
+		RecordingPushDataManager pushDataManager = new RecordingPushDataManager();
+		RequestProgressElement.Subscriptions subscriptions = new RequestProgressElement.Subscriptions(pushDataManager);
+		subscriptions.onStatusChanged("one");
+		assertTrue(pushDataManager.updated.isEmpty());
+		// Shown on two pages.
+		subscriptions.add("one");
+		subscriptions.add("one");
+		subscriptions.onStatusChanged("one");
+		subscriptions.onStatusChanged("two");
+		assertEquals(1, pushDataManager.updated.size());
+		assertEquals(RequestProgressElement.getId("one"), pushDataManager.updated.get(0));
+		subscriptions.remove("one");
+		assertTrue(subscriptions.isShown("one"));
+		subscriptions.remove("one");
+		assertFalse(subscriptions.isShown("one"));
+		subscriptions.onStatusChanged("one");
+		assertEquals(1, pushDataManager.updated.size());
+		// Removing too often does no harm.
+		subscriptions.remove("one");
+		assertFalse(subscriptions.isShown("one"));
+	}
+
+}
@@ -267,6 +267,34 @@ public class CTRBlockCipherTest {
 		}
 	}
 	
+	@Test
+	public void testLargeAgainstJCA() throws Exception {
+		if(!TEST_JCA) return;
+		for(int i=0;i<16;i++) {
+			byte[] plaintext = new byte[mt.nextInt(40000)+1];
+			byte[] key = new byte[32];
+			byte[] iv = new byte[16];
+			mt.nextBytes(plaintext);
+			mt.nextBytes(key);
+			mt.nextBytes(iv);
+			// Make the counter wrap around the low bytes during the message.
+			Arrays.fill(iv, 12, 16, (byte)0xFF);
+			Cipher c = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+			byte[] expected = c.doFinal(plaintext);
+			Rijndael cipher = new Rijndael(256, 128);
+			cipher.initialize(key);
+			CTRBlockCipher ctr = new CTRBlockCipher(cipher);
+			ctr.init(iv);
+			byte[] output = new byte[plaintext.length];
+			// An odd first piece so the bulk path starts in the middle of a block.
+			int first = Math.min(7, plaintext.length);
+			ctr.processBytes(plaintext, 0, first, output, 0);
+			ctr.processBytes(plaintext, first, plaintext.length - first, output, first);
+			assertTrue(Arrays.equals(expected, output));
+		}
+	}
+
 	@Test
 	public void testRandom() throws UnsupportedCipherException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException {
 		for(int i=0;i<1024;i++) {
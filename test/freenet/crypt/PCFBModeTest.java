@@ -4,6 +4,10 @@ import static org.junit.Assert.*;
 
 import java.util.Arrays;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.junit.Test;
 
 import freenet.crypt.ciphers.Rijndael;
@@ -169,4 +173,37 @@ public class PCFBModeTest {
 		}
 	}
 
+	// With a 128-bit block, PCFB is standard AES-CFB, and decryption may use JCA in bulk.
+	@Test
+	public void testAES128BlockAgainstJCA() throws Exception {
+		for(int i=0;i<64;i++) {
+			byte[] plaintext = new byte[mt.nextInt(20000)+1];
+			byte[] key = new byte[32];
+			byte[] iv = new byte[16];
+			mt.nextBytes(plaintext);
+			mt.nextBytes(key);
+			mt.nextBytes(iv);
+			Cipher c = Cipher.getInstance("AES/CFB/NOPADDING");
+			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+			byte[] ciphertext = c.doFinal(plaintext);
+			Rijndael cipher = new Rijndael(256, 128);
+			cipher.initialize(key);
+			PCFBMode pcfb = PCFBMode.create(cipher, iv);
+			byte[] output = Arrays.copyOf(plaintext, plaintext.length);
+			pcfb.blockEncipher(output, 0, output.length);
+			assertArrayEquals(ciphertext, output);
+			// Decrypt in random pieces, some big enough to go through the bulk path.
+			pcfb = PCFBMode.create(cipher, iv);
+			MersenneTwister random = new MersenneTwister(mt.nextLong());
+			int ptr = 0;
+			while (ptr < output.length) {
+				int max = output.length - ptr;
+				int count = (max == 1) ? 1 : (random.nextInt(max - 1) + 1);
+				pcfb.blockDecipher(output, ptr, count);
+				ptr += count;
+			}
+			assertArrayEquals(plaintext, output);
+		}
+	}
+
 }
@@ -0,0 +1,103 @@
+package freenet.pluginmanager;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PluginLoadingClaimsTest {
+
+	/** Many threads load the same plugin at once, the way PluginManager does: claim the main
+	 * class, check whether it is loaded, load it and register it, then release. Only one of
+	 * them may load it. */
+	@Test
+	public void testConcurrentLoads() throws InterruptedException {
+		final PluginLoadingClaims claims = new PluginLoadingClaims();
+		final Set<String> loaded = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicInteger instances = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[20];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					claims.claim("Plugin");
+					try {
+						if(loaded.contains("Plugin"))
+							return;
+						instances.incrementAndGet();
+						// Loading and starting take a while.
+						Thread.sleep(10);
+						loaded.add("Plugin");
+					} catch (InterruptedException e) {
+						// Ignore.
+					} finally {
+						claims.release("Plugin");
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for(Thread t : threads)
+			t.join();
+		assertEquals(1, instances.get());
+		assertFalse(claims.isClaimed("Plugin"));
+	}
+
+	@Test
+	public void testDifferentPluginsInParallel() throws InterruptedException {
+		final PluginLoadingClaims claims = new PluginLoadingClaims();
+		claims.claim("A");
+		final CountDownLatch claimedB = new CountDownLatch(1);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				claims.claim("B");
+				claimedB.countDown();
+			}
+		});
+		t.start();
+		assertTrue(claimedB.await(10, TimeUnit.SECONDS));
+		t.join();
+		assertTrue(claims.isClaimed("A"));
+		assertTrue(claims.isClaimed("B"));
+	}
+
+	@Test
+	public void testInterruptKept() throws InterruptedException {
+		final PluginLoadingClaims claims = new PluginLoadingClaims();
+		claims.claim("A");
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final boolean[] interrupted = new boolean[1];
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				waiting.countDown();
+				claims.claim("A");
+				interrupted[0] = Thread.currentThread().isInterrupted();
+			}
+		});
+		t.start();
+		waiting.await();
+		t.interrupt();
+		Thread.sleep(50);
+		// Still waiting for the claim.
+		assertTrue(t.isAlive());
+		claims.release("A");
+		t.join();
+		assertTrue(interrupted[0]);
+	}
+
+}
@@ -0,0 +1,244 @@
+package freenet.pluginmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.FileUtil;
+
+public class PluginStoreLogTest {
+
+    private final File base = new File("tmp.plugin-store-log-test");
+    private final SecureRandom random = new SecureRandom();
+    private File file;
+
+    @Before
+    public void setUp() {
+        base.mkdir();
+        file = new File(base, "test.log");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.removeAll(base);
+    }
+
+    private static PluginStore makeStore(int count) {
+        PluginStore store = new PluginStore();
+        for(int i=0;i<count;i++) {
+            store.longs.put("long" + i, (long) i);
+            store.strings.put("string" + i, "value\n" + i);
+        }
+        PluginStore sub = new PluginStore();
+        sub.integersArrays.put("array", new int[] { 1, 2, 3 });
+        store.subStores.put("sub", sub);
+        return store;
+    }
+
+    private static void assertSameStore(PluginStore expected, PluginStore actual) {
+        assertEquals(flatten(expected.exportStoreAsSFS(), ""), flatten(actual.exportStoreAsSFS(), ""));
+    }
+
+    /** exportStoreAsSFS() puts substores under keys with dots in, which toOrderedString() can't
+     * cope with. */
+    private static Map<String, String> flatten(SimpleFieldSet fs, String prefix) {
+        Map<String, String> ret = new TreeMap<String, String>();
+        for(Map.Entry<String, String> entry : fs.directKeyValues().entrySet())
+            ret.put(prefix + entry.getKey(), entry.getValue());
+        for(Map.Entry<String, SimpleFieldSet> entry : fs.directSubsets().entrySet())
+            ret.putAll(flatten(entry.getValue(), prefix + entry.getKey() + "."));
+        return ret;
+    }
+
+    private PluginStore reopen(byte[] key) throws Exception {
+        return new PluginStore(PluginStoreLog.open(file, key, random).toFieldSet());
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        checkIncremental(null);
+    }
+
+    @Test
+    public void testEncrypted() throws Exception {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        checkIncremental(key);
+        // The wrong key does not authenticate.
+        byte[] wrongKey = key.clone();
+        wrongKey[0]++;
+        try {
+            PluginStoreLog.open(file, wrongKey, random);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    private void checkIncremental(byte[] key) throws Exception {
+        PluginStore store = makeStore(1000);
+        PluginStoreLog log = PluginStoreLog.create(file, key, random);
+        log.write(store.exportStoreAsSFS());
+        long fullLength = log.length();
+        assertEquals(fullLength, file.length());
+        assertSameStore(store, reopen(key));
+        // Saving again without changes writes nothing.
+        log.write(store.exportStoreAsSFS());
+        assertEquals(fullLength, file.length());
+        // Changes are appended.
+        store.longs.put("long5", 55L);
+        store.strings.remove("string6");
+        store.subStores.get("sub").booleans.put("new", true);
+        log.write(store.exportStoreAsSFS());
+        assertTrue(file.length() > fullLength);
+        // Encrypted batches are padded.
+        assertTrue(file.length() < fullLength + (key == null ? 200 : 2 * 1024));
+        PluginStore copy = reopen(key);
+        assertSameStore(store, copy);
+        assertEquals(55L, (long) copy.longs.get("long5"));
+        assertNull(copy.strings.get("string6"));
+        // Reopened logs carry on appending.
+        log = PluginStoreLog.open(file, key, random);
+        long length = file.length();
+        store.longs.put("long7", 77L);
+        log.write(store.exportStoreAsSFS());
+        assertTrue(file.length() > length);
+        assertSameStore(store, reopen(key));
+    }
+
+    @Test
+    public void testPadded() throws Exception {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        PluginStore store = makeStore(10);
+        PluginStoreLog log = PluginStoreLog.create(file, key, random);
+        log.write(store.exportStoreAsSFS());
+        // Changes of different sizes take the same space.
+        long length = file.length();
+        store.strings.put("string0", "a");
+        log.write(store.exportStoreAsSFS());
+        long small = file.length() - length;
+        length = file.length();
+        store.strings.put("string1", "a much longer value than the last one");
+        log.write(store.exportStoreAsSFS());
+        assertEquals(small, file.length() - length);
+        assertSameStore(store, reopen(key));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        PluginStore store = makeStore(100);
+        PluginStoreLog log = PluginStoreLog.create(file, null, random);
+        log.write(store.exportStoreAsSFS());
+        for(int i=0;i<1000;i++) {
+            store.strings.put("string0", "changed " + i);
+            log.write(store.exportStoreAsSFS());
+            assertTrue(file.length() <= PluginStoreLog.MIN_COMPACT_SIZE);
+        }
+        assertSameStore(store, reopen(null));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        PluginStore store = makeStore(10);
+        PluginStoreLog log = PluginStoreLog.create(file, null, random);
+        log.write(store.exportStoreAsSFS());
+        PluginStore saved = makeStore(10);
+        store.longs.put("long1", 11L);
+        log.write(store.exportStoreAsSFS());
+        long length = file.length();
+        // Cut the last save short, as if we crashed while writing it.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 3);
+        raf.close();
+        assertSameStore(saved, reopen(null));
+        // The partial save is dropped from the file.
+        log = PluginStoreLog.open(file, null, random);
+        assertTrue(file.length() < length - 3);
+        log.write(store.exportStoreAsSFS());
+        assertSameStore(store, reopen(null));
+    }
+
+    @Test
+    public void testCorrupt() throws Exception {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        PluginStore store = makeStore(10);
+        PluginStoreLog log = PluginStoreLog.create(file, key, random);
+        log.write(store.exportStoreAsSFS());
+        store.longs.put("long1", 11L);
+        log.write(store.exportStoreAsSFS());
+        // Corrupt the first batch, which is not the last.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(20);
+        int b = raf.read();
+        raf.seek(20);
+        raf.write(b ^ 1);
+        raf.close();
+        try {
+            PluginStoreLog.open(file, key, random);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testBackup() throws Exception {
+        PluginStore store = makeStore(10);
+        for(int i=0;i<10;i++)
+            store.strings.put("big" + i, new String(new char[PluginStoreLog.MIN_COMPACT_SIZE / 5]));
+        PluginStoreLog log = PluginStoreLog.create(file, null, random);
+        log.write(store.exportStoreAsSFS());
+        assertFalse(PluginStoreLog.backupFile(file).exists());
+        PluginStore saved = store;
+        // Most of the log is now obsolete, so it is rewritten.
+        store = makeStore(10);
+        log.write(store.exportStoreAsSFS());
+        assertTrue(file.length() < PluginStoreLog.MIN_COMPACT_SIZE);
+        // The previous version is kept.
+        assertSameStore(saved, new PluginStore(
+                PluginStoreLog.open(PluginStoreLog.backupFile(file), null, random).toFieldSet()));
+        assertSameStore(store, reopen(null));
+    }
+
+    @Test
+    public void testFailedAppend() throws Exception {
+        PluginStore store = makeStore(10);
+        PluginStoreLog log = PluginStoreLog.create(file, null, random);
+        log.write(store.exportStoreAsSFS());
+        // Make the append fail.
+        assertTrue(file.delete());
+        assertTrue(file.mkdir());
+        store.longs.put("long1", 11L);
+        try {
+            log.write(store.exportStoreAsSFS());
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(file.delete());
+        // The next save does not append to whatever is there, but rewrites it.
+        store.longs.put("long2", 22L);
+        log.write(store.exportStoreAsSFS());
+        assertSameStore(store, reopen(null));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        PluginStoreLog log = PluginStoreLog.create(file, null, random);
+        log.write(new SimpleFieldSet(true, true));
+        assertTrue(reopen(null).exportStoreAsSFS().isEmpty());
+    }
+
+}
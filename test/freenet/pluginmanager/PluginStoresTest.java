@@ -0,0 +1,112 @@
+package freenet.pluginmanager;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.config.SubConfig;
+import freenet.node.Node;
+import freenet.node.ProgramDirectory;
+import freenet.support.io.FileUtil;
+
+public class PluginStoresTest {
+
+    private final File base = new File("tmp.plugin-stores-test");
+    private PluginStores stores;
+
+    @Before
+    public void setUp() throws Exception {
+        base.mkdir();
+        ProgramDirectory dir = new ProgramDirectory();
+        dir.move(base.getPath());
+        Node node = mock(Node.class);
+        when(node.setupProgramDir(any(SubConfig.class), any(String.class), any(String.class),
+                any(String.class), any(String.class), any(String.class), any(SubConfig.class)))
+                .thenReturn(dir);
+        when(node.getSecureRandom()).thenReturn(new SecureRandom());
+        stores = new PluginStores(node, null);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.removeAll(base);
+    }
+
+    private static PluginStore makeStore(long value) {
+        PluginStore store = new PluginStore();
+        store.longs.put("value", value);
+        return store;
+    }
+
+    private static void corrupt(File f) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        fos.close();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        stores.writePluginStore("test", makeStore(1));
+        stores.writePluginStore("test", makeStore(2));
+        assertEquals(2L, (long) stores.loadPluginStore("test").longs.get("value"));
+    }
+
+    @Test
+    public void testCorruptLogMovedAside() throws Exception {
+        stores.writePluginStore("test", makeStore(1));
+        File log = new File(base, "test.log");
+        corrupt(log);
+        // A store in the old format, left over from a crash while converting it.
+        File old = new File(base, "test.data");
+        FileOutputStream fos = new FileOutputStream(old);
+        makeStore(5).exportStoreAsSFS().writeTo(fos);
+        fos.close();
+        stores = new PluginStores(stores.node, null);
+        assertEquals(5L, (long) stores.loadPluginStore("test").longs.get("value"));
+        stores.writePluginStore("test", makeStore(6));
+        // Nothing is lost.
+        assertTrue(old.exists());
+        File[] moved = base.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("test.log.corrupt.");
+            }
+        });
+        assertEquals(1, moved.length);
+        assertEquals(10, moved[0].length());
+        assertEquals(6L, (long) new PluginStores(stores.node, null).loadPluginStore("test").longs.get("value"));
+    }
+
+    @Test
+    public void testLoadFromBackup() throws Exception {
+        PluginStore store = makeStore(1);
+        for(int i=0;i<10;i++)
+            store.strings.put("big" + i, new String(new char[PluginStoreLog.MIN_COMPACT_SIZE / 5]));
+        stores.writePluginStore("test", store);
+        // Most of the log is now obsolete, so it is rewritten, keeping the previous one as the
+        // backup.
+        stores.writePluginStore("test", makeStore(2));
+        File log = new File(base, "test.log");
+        assertTrue(PluginStoreLog.backupFile(log).exists());
+        corrupt(log);
+        stores = new PluginStores(stores.node, null);
+        PluginStore loaded = stores.loadPluginStore("test");
+        assertEquals(1L, (long) loaded.longs.get("value"));
+        assertEquals(10, loaded.strings.size());
+        // The next save writes a new log, and keeps the backup.
+        stores.writePluginStore("test", makeStore(3));
+        assertTrue(PluginStoreLog.backupFile(log).exists());
+        assertEquals(3L, (long) new PluginStores(stores.node, null).loadPluginStore("test").longs.get("value"));
+    }
+
+}
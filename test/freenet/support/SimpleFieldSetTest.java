@@ -21,9 +21,13 @@ import static org.hamcrest.Matchers.anEmptyMap;
 import static org.junit.Assert.*;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -32,6 +36,7 @@ import org.junit.Test;
 
 import freenet.node.FSParseException;
 import freenet.support.io.LineReader;
+import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.Readers;
 
 /**
@@ -843,6 +848,221 @@ public class SimpleFieldSetTest {
         assertTrue(Arrays.equals(SimpleFieldSet.split(";;;"), new String[] { "", "", "" }));
 	}
 
+	/** Messages as a client and the node would send them. */
+	private static final String[] FCP_MESSAGES = {
+		"ClientPut\nURI=CHK@\nIdentifier=My Test Insert\nVerbosity=1023\nMaxRetries=-1\n" +
+		"PriorityClass=2\nGetCHKOnly=false\nGlobal=true\nPersistence=forever\n" +
+		"DontCompress=false\nTargetFilename=a file.txt\nUploadFrom=direct\nDataLength=1048576\n" +
+		"Metadata.ContentType=text/plain;charset=utf-8\nData\n",
+		"SimpleProgress\nTotal=1203\nRequired=601\nFailed=0\nFatallyFailed=0\nSucceeded=427\n" +
+		"LastProgress=1446746522512\nFinalizedTotal=true\nMinSuccessFetchBlocks=601\n" +
+		"Identifier=My Test Insert\nGlobal=true\nEndMessage\n",
+		"AllData\nIdentifier=fetch-\u00e9t\u00e9\nCompletionTime=1446746522512\n" +
+		"StartupTime=1446746511111\nDataLength=37261\nGlobal=false\nMetadata.ContentType=image/png\n" +
+		"Data\n",
+		"Peer\nlastGoodVersion=Fred,0.7,1.0,1473\nopennet=false\nidentity=sNk5Mwc2TnZ5ZXhfb3B1ZGo2bWFiMnRibWFvdw\n" +
+		"myName=Node 1\nversion=Fred,0.7,1.0,1475\nauth.negTypes=10\n" +
+		"physical.udp=192.168.1.2:12345;[2001:db8::1]:12345\n" +
+		"ark.pubURI=SSK@vOLmmMR~2bWnPWJ2jtt~xIpBsUkO3UkA9wT~Ik2TUMU,r3Nph8Mg9VTNL1XHwAxYIJnuiCN8m5E2YGV1T~VZZHo,AQACAAE/ark\n" +
+		"ark.number=42\nsig=6c3b1d09a1c4e5e0e1d1b2f79a9ec3fc8a1c3d2e3f4a5b6c7d8e9f0a1b2c3d4e\n" +
+		"sigP256=MEUCIQC1v6d1YrP3Ykp1q8b6ZmO9F8r5lXk0g9k8hE3tX0L1OwIgT4Y0s8k7n1b5U2c9oW4q6rQ5a3j8v7m2e1d0c9b8a7Y\n" +
+		"ecdsa.P256.pub=MFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEJz7b1x9PzK5y4sQzH3q8dJm2VxN7b6Gc1s0p5T4r3E2w1Q9y8U7i6O5p4A3s2D1f0G9h8J7k6L5z4X3c2V1b0A\n" +
+		"metadata.routableConnectionCount=17\nvolatile.status=CONNECTED\nEndMessage\n"
+	};
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/** Read a message the old way, a line at a time. */
+	private static SimpleFieldSet readLines(byte[] message, int offset) throws IOException {
+		LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(message, offset, message.length - offset));
+		return new SimpleFieldSet(lis, 4096, 128, true, true, true, true);
+	}
+
+	private static void assertSameFields(SimpleFieldSet expected, SimpleFieldSet actual) {
+		assertEquals(expected.toOrderedString(), actual.toOrderedString());
+		assertEquals(expected.getEndMarker(), actual.getEndMarker());
+		assertArrayEquals(expected.getHeader(), actual.getHeader());
+	}
+
+	@Test
+	public void testReadBytes() throws IOException {
+		for(String message : FCP_MESSAGES) {
+			byte[] buf = bytes(message);
+			int offset = message.indexOf('\n') + 1;
+			SimpleFieldSet fs = new SimpleFieldSet(buf, offset, buf.length - offset, true, true, true);
+			assertSameFields(readLines(buf, offset), fs);
+			assertSameFields(fs, SimpleFieldSet.readOnly(buf, offset, buf.length - offset, true, true));
+		}
+		String message = "# header one\n#header two \n\r\n" +
+			" key = value \r\n" +
+			"a.b.c=1\n" +
+			"a.b.c=2\n" +
+			"a.d=x=y\n" +
+			"a.=empty\n" +
+			"b64==" + Base64.encodeUTF8("a b\u00e9c") + "\n" +
+			"\n" +
+			"# not a header\n" +
+			"EndMessage\r\n" +
+			"junk\n";
+		byte[] buf = bytes(message);
+		SimpleFieldSet fs = new SimpleFieldSet(buf, 0, buf.length, true, false, true);
+		assertSameFields(readLines(buf, 0), fs);
+		assertArrayEquals(new String[] { "header one", "header two" }, fs.getHeader());
+		assertEquals(" value ", fs.get("key"));
+		assertEquals("1;2", fs.get("a.b.c"));
+		assertEquals("x=y", fs.get("a.d"));
+		assertEquals("empty", fs.get("a."));
+		assertEquals("a b\u00e9c", fs.get("b64"));
+		assertEquals("EndMessage", fs.getEndMarker());
+		// The first value is kept if multiple values aren't allowed.
+		fs = new SimpleFieldSet(buf, 0, buf.length, false, true, false);
+		assertSameFields(new SimpleFieldSet(new LineReadingInputStream(
+				new ByteArrayInputStream(buf)), 4096, 128, true, false, true, false), fs);
+		assertEquals("1", fs.get("a.b.c"));
+		assertEquals("=" + Base64.encodeUTF8("a b\u00e9c"), fs.get("b64"));
+		// No end marker.
+		buf = bytes("a=b\n");
+		assertEquals("b", new SimpleFieldSet(buf, 0, buf.length, true, true, true).get("a"));
+		buf = bytes("\n\r\n");
+		try {
+			new SimpleFieldSet(buf, 0, buf.length, true, true, true);
+			fail();
+		} catch (EOFException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testReadOnly() throws IOException, FSParseException {
+		byte[] buf = bytes("a=1\nb.c=2\nb.d.e=3\nEnd\n");
+		SimpleFieldSet fs = SimpleFieldSet.readOnly(buf, 0, buf.length, false, false);
+		assertEquals("1", fs.get("a"));
+		assertEquals("3", fs.get("b.d.e"));
+		assertEquals("2", fs.getSubset("b").get("c"));
+		assertEquals(2, fs.getInt("b.c"));
+		assertFalse(fs.isEmpty());
+		assertEquals("a=1\nb.c=2\nb.d.e=3\nEnd\n", fs.toOrderedString());
+		try {
+			fs.putSingle("x", "y");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+		try {
+			fs.put("x", 1);
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+		try {
+			fs.subset("b").putOverwrite("c", "y");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+		try {
+			fs.removeValue("b.d.e");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+		try {
+			fs.setEndMarker("EndMessage");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+		// A copy can be changed, all the way down.
+		SimpleFieldSet copy = new SimpleFieldSet(fs);
+		copy.putOverwrite("b.d.e", "4");
+		copy.removeValue("b.c");
+		assertEquals("4", copy.get("b.d.e"));
+		assertEquals("3", fs.get("b.d.e"));
+		assertEquals("2", fs.get("b.c"));
+	}
+
+	@Test
+	public void testToByteArray() throws IOException {
+		SimpleFieldSet fs = sfsFromSampleStringPairs();
+		fs.putSingle("unicode", "\u00e9\u20ac\ud83d\ude00 \ud83d!");
+		fs.setHeader("header");
+		fs.setEndMarker("EndMessage");
+		assertArrayEquals(bytes(fs.toString()), fs.toByteArray());
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<5000;i++)
+			sb.append(i % 7 == 0 ? '\u00e9' : (i % 11 == 0 ? '\u20ac' : 'x'));
+		fs.putSingle("big", sb.toString());
+		assertArrayEquals(bytes(fs.toString()), fs.toByteArray());
+		for(int bufferSize : new int[] { 1, 7, 4096 }) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			fs.writeTo(os, bufferSize);
+			assertArrayEquals(bytes(fs.toString()), os.toByteArray());
+		}
+		for(String message : FCP_MESSAGES) {
+			byte[] buf = bytes(message);
+			int offset = message.indexOf('\n') + 1;
+			fs = readLines(buf, offset);
+			assertArrayEquals(bytes(fs.toString()), fs.toByteArray());
+			assertSameFields(fs, new SimpleFieldSet(fs.toByteArray(), 0, fs.toByteArray().length, true, true, true));
+		}
+	}
+
+	/** Parsing, writing and reading FCP messages the old way and the new way. */
+	@Test
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK)
+			return;
+		byte[][] messages = new byte[FCP_MESSAGES.length][];
+		int[] offsets = new int[FCP_MESSAGES.length];
+		SimpleFieldSet[] parsed = new SimpleFieldSet[FCP_MESSAGES.length];
+		for(int i=0;i<messages.length;i++) {
+			messages[i] = bytes(FCP_MESSAGES[i]);
+			offsets[i] = FCP_MESSAGES[i].indexOf('\n') + 1;
+			parsed[i] = readLines(messages[i], offsets[i]);
+		}
+		final int rounds = 200000;
+		for(int pass=0;pass<3;pass++) {
+			long sink = 0;
+			long start = System.nanoTime();
+			for(int r=0;r<rounds;r++)
+				for(int i=0;i<messages.length;i++)
+					sink += readLines(messages[i], offsets[i]).getEndMarker().length();
+			long lines = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int r=0;r<rounds;r++)
+				for(int i=0;i<messages.length;i++)
+					sink += new SimpleFieldSet(messages[i], offsets[i], messages[i].length - offsets[i], true, true, true).getEndMarker().length();
+			long bytes = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int r=0;r<rounds;r++)
+				for(int i=0;i<messages.length;i++)
+					sink += bytes(parsed[i].toString()).length;
+			long toString = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int r=0;r<rounds;r++)
+				for(int i=0;i<messages.length;i++)
+					sink += parsed[i].toByteArray().length;
+			long toByteArray = System.nanoTime() - start;
+			SimpleFieldSet locked = parsed[0];
+			SimpleFieldSet readOnly = SimpleFieldSet.readOnly(messages[0], offsets[0], messages[0].length - offsets[0], true, true);
+			start = System.nanoTime();
+			for(int r=0;r<rounds*10;r++)
+				sink += locked.get("Metadata.ContentType").length() + locked.get("Identifier").length();
+			long get = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int r=0;r<rounds*10;r++)
+				sink += readOnly.get("Metadata.ContentType").length() + readOnly.get("Identifier").length();
+			long getReadOnly = System.nanoTime() - start;
+			int n = rounds * messages.length;
+			System.out.println("Parse: lines " + lines / n + " ns, bytes " + bytes / n +
+					" ns; write: toString " + toString / n + " ns, toByteArray " + toByteArray / n +
+					" ns; get: locked " + get / (rounds * 20) + " ns, read-only " +
+					getReadOnly / (rounds * 20) + " ns (" + (sink & 1) + ")");
+		}
+	}
+
 	// This fixes https://freenet.mantishub.io/view.php?id=7197.
 	@Test
 	public void directSubsetsReturnsEmptyMapWhenSubsetsIsNotInitialized() {
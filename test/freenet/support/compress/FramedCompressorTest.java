@@ -0,0 +1,159 @@
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+/**
+ * Test case for {@link freenet.support.compress.FramedCompressor}. Uses gzip frames, which
+ * behave the same as LZMA frames as far as framing is concerned.
+ */
+public class FramedCompressorTest {
+
+	private static final int FRAME_SIZE = 1024;
+
+	private static FramedCompressor makeCompressor() {
+		return new FramedCompressor(COMPRESSOR_TYPE.GZIP, FRAME_SIZE, FRAME_SIZE * 8);
+	}
+
+	private static byte[] testData(int length) {
+		byte[] data = new byte[length];
+		Random random = new Random(1234);
+		// Compressible but not trivially.
+		for(int i=0;i<length;i++)
+			data[i] = (byte)('a' + random.nextInt(4));
+		return data;
+	}
+
+	private static byte[] compress(FramedCompressor compressor, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		compressor.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	private static byte[] decompress(FramedCompressor compressor, byte[] data, long maxLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		compressor.decompress(new ByteArrayInputStream(data), baos, maxLength, -1);
+		return baos.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		FramedCompressor compressor = makeCompressor();
+		for(int length : new int[] { 0, 1, FRAME_SIZE - 1, FRAME_SIZE, FRAME_SIZE + 1, FRAME_SIZE * 100 + 17 }) {
+			byte[] data = testData(length);
+			byte[] compressed = compress(compressor, data);
+			if(length > FRAME_SIZE)
+				assertTrue(compressed.length < length);
+			assertArrayEquals(data, decompress(compressor, compressed, length));
+		}
+	}
+
+	@Test
+	public void testByteArrayDecompress() throws IOException {
+		FramedCompressor compressor = makeCompressor();
+		byte[] data = testData(FRAME_SIZE * 3 + 5);
+		byte[] compressed = compress(compressor, data);
+		byte[] output = new byte[data.length];
+		assertEquals(data.length, compressor.decompress(compressed, 0, compressed.length, output));
+		assertArrayEquals(data, output);
+	}
+
+	@Test
+	public void testMaxLength() throws IOException {
+		FramedCompressor compressor = makeCompressor();
+		byte[] compressed = compress(compressor, testData(FRAME_SIZE * 4));
+		try {
+			decompress(compressor, compressed, FRAME_SIZE * 2);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testCorruptHeader() throws IOException {
+		FramedCompressor compressor = makeCompressor();
+		byte[] compressed = compress(compressor, testData(FRAME_SIZE * 2));
+		byte[] badVersion = Arrays.copyOf(compressed, compressed.length);
+		badVersion[5] = 99;
+		try {
+			decompress(compressor, badVersion, Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		byte[] truncated = Arrays.copyOf(compressed, compressed.length - 10);
+		try {
+			decompress(compressor, truncated, Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testHugeFrameHeader() throws IOException {
+		FramedCompressor compressor = makeCompressor();
+		byte[] compressed = compress(compressor, testData(FRAME_SIZE * 2));
+		// The first frame claims to be almost 2GB compressed.
+		compressed[12] = 0x7f;
+		try {
+			decompress(compressor, compressed, Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testFrameSizeTooBig() throws IOException {
+		FramedCompressor compressor = makeCompressor();
+		byte[] compressed = compress(compressor, testData(FRAME_SIZE * 2));
+		// Claims frames bigger than we would ever write.
+		ByteBuffer.wrap(compressed).putInt(8, FramedCompressor.MAX_FRAME_SIZE + 1);
+		try {
+			decompress(compressor, compressed, Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testSmallBudget() throws IOException {
+		// Not enough for even one frame in flight, so they are done one at a time.
+		FramedCompressor compressor = new FramedCompressor(COMPRESSOR_TYPE.GZIP, FRAME_SIZE, FRAME_SIZE);
+		byte[] data = testData(FRAME_SIZE * 10 + 3);
+		byte[] compressed = compress(compressor, data);
+		assertArrayEquals(compress(makeCompressor(), data), compressed);
+		assertArrayEquals(data, decompress(compressor, compressed, data.length));
+	}
+
+	@Test
+	public void testShutdown() throws IOException {
+		FramedCompressor compressor = makeCompressor();
+		byte[] data = testData(FRAME_SIZE * 3);
+		compress(compressor, data);
+		FramedCompressor.shutdown();
+		// A new stream gets a new pool.
+		assertArrayEquals(data, decompress(compressor, compress(compressor, data), data.length));
+	}
+
+	@Test
+	public void testNotUsedByDefault() throws InvalidCompressionCodecException {
+		for(COMPRESSOR_TYPE type : COMPRESSOR_TYPE.getCompressorsArray(null))
+			assertNotEquals(COMPRESSOR_TYPE.LZMA_FRAMED, type);
+		assertEquals(COMPRESSOR_TYPE.LZMA_FRAMED, COMPRESSOR_TYPE.getCompressorsArray("LZMA_FRAMED")[0]);
+	}
+
+}
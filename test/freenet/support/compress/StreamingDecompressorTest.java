@@ -0,0 +1,174 @@
+package freenet.support.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.FileUtil;
+import freenet.support.io.HandoffPipe;
+
+public class StreamingDecompressorTest {
+
+	/** Only supports push decompression, like the LZMA codecs. */
+	private static class PushOnlyCompressor implements Compressor {
+
+		private final Compressor inner;
+
+		PushOnlyCompressor(Compressor inner) {
+			this.inner = inner;
+		}
+
+		@Override
+		public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException {
+			return inner.compress(data, bf, maxReadLength, maxWriteLength);
+		}
+
+		@Override
+		public long compress(InputStream input, OutputStream output, long maxReadLength, long maxWriteLength) throws IOException {
+			return inner.compress(input, output, maxReadLength, maxWriteLength);
+		}
+
+		@Override
+		public long compress(InputStream input, OutputStream output, long maxReadLength, long maxWriteLength,
+				long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage) throws IOException, CompressionRatioException {
+			return inner.compress(input, output, maxReadLength, maxWriteLength, amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+		}
+
+		@Override
+		public long decompress(InputStream input, OutputStream output, long maxLength, long maxEstimateSizeLength) throws IOException {
+			return inner.decompress(input, output, maxLength, maxEstimateSizeLength);
+		}
+
+		@Override
+		public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+			return inner.decompress(dbuf, i, j, output);
+		}
+
+	}
+
+	private static byte[] testData(int length) {
+		byte[] data = new byte[length];
+		Random random = new Random(4321);
+		for(int i=0;i<length;i++)
+			data[i] = (byte)('a' + random.nextInt(8));
+		return data;
+	}
+
+	private static byte[] compress(Compressor compressor, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		compressor.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FileUtil.copy(is, baos, -1);
+		is.close();
+		return baos.toByteArray();
+	}
+
+	private static void checkRoundTrip(Compressor compressor) throws IOException {
+		byte[] data = testData(300000);
+		byte[] compressed = compress(compressor, data);
+		List<Compressor> decompressors = new ArrayList<Compressor>();
+		decompressors.add(compressor);
+		InputStream is = StreamingDecompressor.decompress(new ByteArrayInputStream(compressed), decompressors, data.length);
+		assertArrayEquals(data, readAll(is));
+	}
+
+	@Test
+	public void testGzip() throws IOException {
+		checkRoundTrip(COMPRESSOR_TYPE.GZIP);
+	}
+
+	@Test
+	public void testBzip2() throws IOException {
+		checkRoundTrip(COMPRESSOR_TYPE.BZIP2);
+	}
+
+	@Test
+	public void testPushOnly() throws IOException {
+		checkRoundTrip(new PushOnlyCompressor(COMPRESSOR_TYPE.GZIP));
+	}
+
+	@Test
+	public void testChain() throws IOException {
+		byte[] data = testData(100000);
+		// Compressed with gzip then bzip2, so bzip2 is undone first, i.e. it is last in the list.
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2, compress(new PushOnlyCompressor(COMPRESSOR_TYPE.GZIP), data));
+		List<Compressor> decompressors = Arrays.<Compressor>asList(new PushOnlyCompressor(COMPRESSOR_TYPE.GZIP), COMPRESSOR_TYPE.BZIP2);
+		InputStream is = StreamingDecompressor.decompress(new ByteArrayInputStream(compressed), decompressors, data.length);
+		assertArrayEquals(data, readAll(is));
+	}
+
+	@Test
+	public void testChainCreatedBeforeWriting() throws Exception {
+		// As in ClientGetter: the chain is set up on the thread that will later write the data.
+		final byte[] data = testData(200000);
+		final byte[] compressed = compress(COMPRESSOR_TYPE.GZIP, data);
+		HandoffPipe pipe = new HandoffPipe();
+		final InputStream is = StreamingDecompressor.decompress(pipe.getInputStream(), Arrays.asList(COMPRESSOR_TYPE.GZIP), data.length);
+		final byte[][] result = new byte[1][];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result[0] = readAll(is);
+				} catch (IOException e) {
+					// Checked below.
+				}
+			}
+		};
+		reader.start();
+		OutputStream os = pipe.getOutputStream();
+		os.write(compressed);
+		os.close();
+		reader.join();
+		assertArrayEquals(data, result[0]);
+	}
+
+	@Test
+	public void testTooBig() throws IOException {
+		byte[] data = testData(100000);
+		for(Compressor compressor : new Compressor[] { COMPRESSOR_TYPE.GZIP, new PushOnlyCompressor(COMPRESSOR_TYPE.GZIP) }) {
+			byte[] compressed = compress(compressor, data);
+			InputStream is = StreamingDecompressor.decompress(new ByteArrayInputStream(compressed), Arrays.asList(compressor), data.length - 1);
+			try {
+				readAll(is);
+				fail();
+			} catch (CompressionOutputSizeException e) {
+				// Expected.
+			}
+		}
+	}
+
+	@Test
+	public void testCorrupt() throws IOException {
+		byte[] data = testData(100000);
+		byte[] compressed = compress(COMPRESSOR_TYPE.GZIP, data);
+		compressed = Arrays.copyOf(compressed, compressed.length / 2);
+		for(Compressor compressor : new Compressor[] { COMPRESSOR_TYPE.GZIP, new PushOnlyCompressor(COMPRESSOR_TYPE.GZIP) }) {
+			InputStream is = StreamingDecompressor.decompress(new ByteArrayInputStream(compressed), Arrays.asList(compressor), data.length);
+			try {
+				readAll(is);
+				fail();
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+	}
+
+}
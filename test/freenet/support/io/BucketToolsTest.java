@@ -0,0 +1,113 @@
+package freenet.support.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.crypt.MasterSecret;
+import freenet.support.SerialExecutor;
+import freenet.support.api.Bucket;
+
+public class BucketToolsTest {
+
+	private static final int SIZE = 300000;
+
+	private File base = new File("tmp.bucket-tools-test");
+	private byte[] data;
+
+	@Before
+	public void setUp() {
+		base.mkdir();
+		data = new byte[SIZE];
+		new Random(1).nextBytes(data);
+	}
+
+	@After
+	public void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private Bucket makeFileBucket() throws IOException {
+		File f = File.createTempFile("test", ".tmp", base);
+		FileBucket bucket = new FileBucket(f, false, false, false, true);
+		BucketTools.copyFrom(bucket, new ByteArrayInputStream(data), data.length);
+		return bucket;
+	}
+
+	private void checkCopy(Bucket bucket, boolean useChannel) throws IOException {
+		int[][] ranges = { { 0, SIZE }, { 0, 1 }, { 12345, 100000 }, { SIZE - 1, 1 }, { SIZE, 0 } };
+		for(int[] range : ranges) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			BucketTools.copyTo(bucket, range[0], range[1], baos, useChannel ? Channels.newChannel(baos) : null, new byte[4096]);
+			assertArrayEquals(Arrays.copyOfRange(data, range[0], range[0] + range[1]), baos.toByteArray());
+		}
+	}
+
+	@Test
+	public void testCopyRangeFromFile() throws IOException {
+		Bucket bucket = makeFileBucket();
+		assertNotNull(BucketTools.getPlainFile(bucket));
+		checkCopy(bucket, false);
+		checkCopy(bucket, true);
+		bucket.free();
+	}
+
+	@Test
+	public void testCopyRangeFromArray() throws IOException {
+		Bucket bucket = new ArrayBucket(data);
+		assertNull(BucketTools.getPlainFile(bucket));
+		checkCopy(bucket, false);
+		checkCopy(bucket, true);
+	}
+
+	@Test
+	public void testGetPlainFileUnwraps() throws IOException {
+		Bucket bucket = makeFileBucket();
+		assertEquals(((FileBucket) bucket).getFile(), BucketTools.getPlainFile(new NoFreeBucket(bucket)));
+		// Persistent buckets, e.g. the data for AllData.
+		DelayedFreeRandomAccessBucket delayed = new DelayedFreeRandomAccessBucket(
+				new TrivialPersistentFileTracker(base, null), (FileBucket) bucket);
+		assertEquals(((FileBucket) bucket).getFile(), BucketTools.getPlainFile(delayed));
+		delayed.free();
+		assertNull(BucketTools.getPlainFile(delayed));
+	}
+
+	@Test
+	public void testTempBucketNotUnwrapped() throws IOException {
+		Random random = new Random(1);
+		// Never kept in RAM, so the data is in a plain file, which could still change.
+		TempBucketFactory factory = new TempBucketFactory(new SerialExecutor(NativeThread.PriorityLevel.NORM_PRIORITY.value),
+				new FilenameGenerator(random, false, base, "junit"), 0, 0, random, false, 0, new MasterSecret());
+		Bucket bucket = factory.makeBucket(SIZE);
+		BucketTools.copyFrom(bucket, new ByteArrayInputStream(data), data.length);
+		assertNull(BucketTools.getPlainFile(bucket));
+		checkCopy(bucket, true);
+		bucket.free();
+	}
+
+	@Test
+	public void testCopyPastEnd() throws IOException {
+		Bucket[] buckets = { makeFileBucket(), new ArrayBucket(data) };
+		for(Bucket bucket : buckets) {
+			try {
+				BucketTools.copyTo(bucket, SIZE - 10, 11, new NullOutputStream(), null, new byte[4096]);
+				fail("Copied past the end of "+bucket);
+			} catch (EOFException e) {
+				// Expected.
+			}
+			bucket.free();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package freenet.support.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HandoffPipeTest {
+
+	@Test
+	public void testTransfer() throws Exception {
+		final HandoffPipe pipe = new HandoffPipe(1000, 3);
+		final byte[] data = new byte[123457];
+		new Random(1).nextBytes(data);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream os = pipe.getOutputStream();
+					Random r = new Random(2);
+					int offset = 0;
+					while(offset < data.length) {
+						if(r.nextInt(10) == 0) {
+							os.write(data[offset++]);
+						} else {
+							int length = Math.min(data.length - offset, r.nextInt(3000));
+							os.write(data, offset, length);
+							offset += length;
+						}
+					}
+					os.close();
+				} catch (IOException e) {
+					pipe.abort(e);
+				}
+			}
+		};
+		writer.start();
+		InputStream is = pipe.getInputStream();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[777];
+		int x;
+		while((x = is.read(buf)) != -1)
+			baos.write(buf, 0, x);
+		writer.join();
+		assertArrayEquals(data, baos.toByteArray());
+	}
+
+	@Test
+	public void testAbort() throws IOException {
+		HandoffPipe pipe = new HandoffPipe(16, 2);
+		pipe.getOutputStream().write(new byte[10]);
+		pipe.getOutputStream().flush();
+		pipe.abort(new IOException("test"));
+		InputStream is = pipe.getInputStream();
+		assertEquals(10, is.read(new byte[100]));
+		try {
+			is.read();
+			fail();
+		} catch (IOException e) {
+			assertEquals("test", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReaderClosed() throws IOException {
+		HandoffPipe pipe = new HandoffPipe(16, 2);
+		pipe.getInputStream().close();
+		try {
+			// Must not block.
+			pipe.getOutputStream().write(new byte[100]);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}